@@ -8,6 +8,7 @@ package com.vmware.eam.sample.solution;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -70,6 +71,15 @@ public class AgentHandler {
 
    private final VcUtils _vcUtils;
 
+   // How long the compute resources listed for an agency are reused
+   private static final long COMPUTE_RESOURCE_CACHE_TTL_MS = 30 * 1000L;
+
+   /*
+    * Compute resources of the vCenter inventory per agency, with the time they
+    * were retrieved. The config UI asks for them on every request.
+    */
+   private final Map<String, Pair<Long, Map<String, ManagedObjectReference>>> _computeResourceCache = new HashMap<String, Pair<Long, Map<String, ManagedObjectReference>>>();
+
    /**
     * Constructor for the AgentHandler class
     *
@@ -146,7 +156,7 @@ public class AgentHandler {
       waitForSetup();
 
       boolean changed = false;
-      Map<String, ManagedObjectReference> crs = _vcUtils.getComputeResources();
+      Map<String, ManagedObjectReference> crs = getCachedComputeResources();
       Set<ManagedObjectReference> newScope = new HashSet<ManagedObjectReference>();
 
       for (String update : updates) {
@@ -396,7 +406,7 @@ public class AgentHandler {
        * Iterate over all compute resources and create collection with scope
        * boolean.
        */
-      Map<String, ManagedObjectReference> crs = _vcUtils.getComputeResources();
+      Map<String, ManagedObjectReference> crs = getCachedComputeResources();
       ArrayList<Pair<String, Boolean>> crList = new ArrayList<Pair<String, Boolean>>();
       for (Entry<String, ManagedObjectReference> crEntry : crs.entrySet()) {
          ManagedObjectReference moRef = crEntry.getValue();
@@ -407,6 +417,34 @@ public class AgentHandler {
       return crList;
    }
 
+   /**
+    * Returns the compute resources of the vCenter inventory, retrieving them
+    * again only if the ones cached for the agency are older than
+    * COMPUTE_RESOURCE_CACHE_TTL_MS.
+    *
+    * @return map with all vCenter's compute resources and their name
+    * @throws RuntimeFaultFaultMsg
+    */
+   private Map<String, ManagedObjectReference> getCachedComputeResources()
+      throws RuntimeFaultFaultMsg {
+      String key = _agency == null ? "" : _agency.getValue();
+      long now = System.currentTimeMillis();
+      synchronized (_computeResourceCache) {
+         Pair<Long, Map<String, ManagedObjectReference>> cached = _computeResourceCache.get(key);
+         if (cached != null
+               && now - cached.getFirst() < COMPUTE_RESOURCE_CACHE_TTL_MS) {
+            return cached.getSecond();
+         }
+      }
+
+      // Retrieve outside the lock, a slow vCenter must not block the others
+      Map<String, ManagedObjectReference> crs = Collections.unmodifiableMap(_vcUtils.getComputeResources());
+      synchronized (_computeResourceCache) {
+         _computeResourceCache.put(key, Pair.create(now, crs));
+      }
+      return crs;
+   }
+
    private void waitForSetup() {
       while (!_isSetup) {
          try {
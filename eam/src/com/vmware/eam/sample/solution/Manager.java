@@ -33,9 +33,9 @@ import javax.xml.datatype.DatatypeFactory;
 import org.apache.log4j.Logger;
 import org.springframework.beans.factory.InitializingBean;
 
+import com.vmware.eam.sample.solution.util.ConnectionMonitor;
 import com.vmware.eam.sample.solution.util.CustomProxySelector;
 import com.vmware.eam.sample.solution.util.EamConnection;
-import com.vmware.eam.sample.solution.util.KeepConnectionAlive;
 import com.vmware.eam.sample.solution.util.VimConnection;
 import com.vmware.vsphere.Description;
 import com.vmware.vsphere.ExtExtendedProductInfo;
@@ -72,6 +72,9 @@ public class Manager implements InitializingBean {
    /** EAM connection */
    private EamConnection _eamConnection;
 
+   /** Keeps the VC and EAM sessions alive */
+   private ConnectionMonitor _connectionMonitor;
+
    private final String _vcUsername;
 
    private final String _vcPassword;
@@ -204,8 +207,9 @@ public class Manager implements InitializingBean {
             assert _eamConnection != null;
             _agentHandler.setup(_eamConnection);
 
-            // Start background thread to keep the connection alive.
-            new KeepConnectionAlive(_vimConnection, _eamConnection).start();
+            // Keep the connections alive in the background.
+            _connectionMonitor = new ConnectionMonitor(_vimConnection, _eamConnection);
+            _connectionMonitor.start();
          }
       }.start();
    }
@@ -278,6 +282,10 @@ public class Manager implements InitializingBean {
     * @throws NotFoundFaultMsg
     */
    public void cleanup() throws NotFoundFaultMsg, RuntimeFaultFaultMsg {
+      if (_connectionMonitor != null) {
+         _connectionMonitor.stop();
+      }
+
       // Logout from EAM
       if (_eamConnection != null) {
          _eamConnection.disconnect();
@@ -6,16 +6,24 @@
 package com.vmware.eam.sample.solution.health;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import com.vmware.eam.sample.solution.health.VimHealthProvider.VimHealth;
 
 /**
@@ -24,6 +32,12 @@ import com.vmware.eam.sample.solution.health.VimHealthProvider.VimHealth;
  * returns an aggregated status.  If no providers is installed, it always returns
  * green.
  *
+ * The providers are not queried on the request path: a background thread
+ * evaluates them every refreshInterval seconds and renders the document into an
+ * immutable snapshot, which replaces the previous one atomically. A request only
+ * writes the current snapshot, so frequent health polls never call vCenter and
+ * never wait for each other.
+ *
  *  The XML schema for health documents is this:
  *
  * <pre>
@@ -84,24 +98,39 @@ import com.vmware.eam.sample.solution.health.VimHealthProvider.VimHealth;
  */
 public class HealthStatusServlet extends HttpServlet {
 
+   private static Log _logger = LogFactory.getLog(HealthStatusServlet.class);
+
    private final String STATUS_RED    = "red";
    private final String STATUS_YELLOW = "yellow";
    private final String STATUS_GREEN  = "green";
 
+   /** Default seconds between two evaluations of the health providers */
+   public static final int DEFAULT_REFRESH_INTERVAL = 15;
 
-   private final SimpleDateFormat _dateFormatter;
-   private final SimpleDateFormat _timeFormatter;
+   /**
+    * The health document rendered at one point in time. Never modified after
+    * construction.
+    */
+   private static final class Snapshot {
+      private final byte[] _document;
+
+      private Snapshot(byte[] document) {
+         _document = document;
+      }
+   }
 
    private String _id;   // Extension id
    private String _name; // Extension name
    private ArrayList<VimHealthProvider> _healthProviders;
+   private int _refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+   private final AtomicReference<Snapshot> _snapshot = new AtomicReference<Snapshot>();
+   private ScheduledExecutorService _scheduler;
 
    /**
     * Creates a HealthStatusServlet
     */
    public HealthStatusServlet() {
-      _dateFormatter = new SimpleDateFormat("yyyy-MM-dd");
-      _timeFormatter = new SimpleDateFormat("HH:mm:ss");
       _healthProviders = new ArrayList<VimHealthProvider>();
    }
 
@@ -147,10 +176,101 @@ public class HealthStatusServlet extends HttpServlet {
       _healthProviders = healthProviders;
    }
 
+   /**
+    * @return seconds between two evaluations of the health providers
+    */
+   public int getRefreshInterval() {
+      return _refreshInterval;
+   }
+
+   /**
+    * @param refreshInterval seconds between two evaluations of the health
+    *        providers
+    */
+   public void setRefreshInterval(int refreshInterval) {
+      if (refreshInterval < 1) {
+         throw new IllegalArgumentException("refreshInterval must be positive");
+      }
+      _refreshInterval = refreshInterval;
+   }
+
+   @Override
+   public void init() throws ServletException {
+      super.init();
+      startRefresh();
+   }
+
+   @Override
+   public void destroy() {
+      synchronized (this) {
+         if (_scheduler != null) {
+            _scheduler.shutdownNow();
+            _scheduler = null;
+         }
+      }
+      super.destroy();
+   }
+
    @Override
    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
          throws ServletException, IOException {
 
+      Snapshot snapshot = _snapshot.get();
+      if (snapshot == null) {
+         // Not initialized by the container, e.g. created as a bean
+         startRefresh();
+         snapshot = _snapshot.get();
+      }
+
+      // Write output.
+      resp.setStatus(200);
+      resp.setContentType("text/xml");
+      resp.setContentLength(snapshot._document.length);
+      resp.getOutputStream().write(snapshot._document);
+   }
+
+   /**
+    * Evaluates the health providers once, so there is always a snapshot to
+    * serve, and schedules the following evaluations.
+    */
+   private synchronized void startRefresh() {
+      if (_scheduler != null) {
+         return;
+      }
+      refresh();
+      _scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "HealthStatusRefresh");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      _scheduler.scheduleWithFixedDelay(new Runnable() {
+         @Override
+         public void run() {
+            refresh();
+         }
+      }, _refreshInterval, _refreshInterval, TimeUnit.SECONDS);
+   }
+
+   /**
+    * Evaluates the health providers and replaces the snapshot.
+    */
+   private void refresh() {
+      VimHealth health;
+      try {
+         health = getOverallHealth();
+      } catch (Throwable e) {
+         // A failing provider must not stop the refresh thread
+         _logger.error("Failed to evaluate health", e);
+         health = new VimHealth(VimHealthProvider.LEVEL_ALERT,
+                                "Failed to evaluate health: " + e.getMessage());
+      }
+      _snapshot.set(new Snapshot(render(health)));
+   }
+
+   private byte[] render(VimHealth health) {
       StringBuilder sb = new StringBuilder(1024);
       sb.append(
             "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
@@ -159,19 +279,17 @@ public class HealthStatusServlet extends HttpServlet {
             "   xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n" +
             "   schemaVersion=\"1.0\">\n");
 
-      VimHealth health = getOverallHealth();
       printHealthStart(sb, _id, _name, convertLevelToStatus(health.getLevel()));
       printMessage(sb, _id, health.getLevel(), health.getMessage());
       printHealthStop(sb);
 
       sb.append("</vimhealth>\n");
-
-      // Write output.
-      PrintWriter writer = resp.getWriter();
-      writer.write(sb.toString());
-      resp.setStatus(200);
-      resp.setContentLength(sb.length());
-      resp.setContentType("text/xml");
+      try {
+         return sb.toString().getBytes("UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         // UTF-8 is always supported
+         throw new IllegalStateException(e);
+      }
    }
 
    /**
@@ -245,11 +363,11 @@ public class HealthStatusServlet extends HttpServlet {
     *
     */
    private void printMessage(StringBuilder sb, String id, String level, String message) {
-      Date now = new Date();
+      // The time the health was evaluated. A new formatter per document,
+      // SimpleDateFormat is not thread safe.
+      String time = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date());
       sb.append("<message id=\"").append(id).append("\" ").append("level=\"")
-            .append(level).append("\" ").append("time=\"").append(
-                  _dateFormatter.format(now)).append("T").append(
-                  _timeFormatter.format(now)).append("\">").append(message)
-            .append("</message>\n");
+            .append(level).append("\" ").append("time=\"").append(time)
+            .append("\">").append(message).append("</message>\n");
    }
 }
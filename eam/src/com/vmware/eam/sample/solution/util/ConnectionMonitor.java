@@ -0,0 +1,183 @@
+/* **********************************************************
+ * Copyright 2012 VMware, Inc.  All rights reserved.
+ *      -- VMware Confidential
+ * **********************************************************/
+
+package com.vmware.eam.sample.solution.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the vCenter and EAM sessions of the solution alive.
+ *
+ * Every check interval the monitor looks at when each connection last got a
+ * successful response, as recorded by its {@link LastCallHandler}. Only a
+ * session that has been idle for the idle timeout is pinged; a busy session
+ * costs no extra round trips. The vCenter and EAM sessions are checked
+ * concurrently. If a ping fails the session is logged in again, and since the
+ * EAM session is authorized with the vCenter session cookie, EAM is connected
+ * again once the vCenter session has been revalidated.
+ */
+public class ConnectionMonitor {
+
+   private static Log _logger = LogFactory.getLog(ConnectionMonitor.class);
+
+   /** Default seconds between two checks of the sessions */
+   public static final int DEFAULT_CHECK_INTERVAL = 60;
+
+   /** Default seconds a session may be idle before it is pinged */
+   public static final int DEFAULT_IDLE_TIMEOUT = 5 * 60;
+
+   private final VimConnection _vimConnection;
+   private final EamConnection _eamConnection;
+
+   private int _checkInterval = DEFAULT_CHECK_INTERVAL;
+   private int _idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+   private ScheduledExecutorService _scheduler;
+
+   public ConnectionMonitor(VimConnection vimConnection, EamConnection eamConnection) {
+      _vimConnection = vimConnection;
+      _eamConnection = eamConnection;
+   }
+
+   /**
+    * @param checkInterval seconds between two checks of the sessions
+    */
+   public void setCheckInterval(int checkInterval) {
+      if (checkInterval < 1) {
+         throw new IllegalArgumentException("checkInterval must be positive");
+      }
+      _checkInterval = checkInterval;
+   }
+
+   /**
+    * @param idleTimeout seconds a session may be idle before it is pinged
+    */
+   public void setIdleTimeout(int idleTimeout) {
+      if (idleTimeout < 1) {
+         throw new IllegalArgumentException("idleTimeout must be positive");
+      }
+      _idleTimeout = idleTimeout;
+   }
+
+   /**
+    * Starts checking the sessions in the background.
+    */
+   public synchronized void start() {
+      if (_scheduler != null) {
+         return;
+      }
+      // One thread runs the checks, one revalidates each session
+      final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(3, new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ConnectionMonitor");
+            t.setDaemon(true);
+            return t;
+         }
+      });
+      scheduler.scheduleWithFixedDelay(new Runnable() {
+         @Override
+         public void run() {
+            check(scheduler);
+         }
+      }, _checkInterval, _checkInterval, TimeUnit.SECONDS);
+      _scheduler = scheduler;
+   }
+
+   /**
+    * Stops checking the sessions.
+    */
+   public synchronized void stop() {
+      if (_scheduler != null) {
+         _scheduler.shutdownNow();
+         _scheduler = null;
+      }
+   }
+
+   /*
+    * Revalidates the idle sessions and waits for both to finish, so that the
+    * next check does not start before this one is done.
+    */
+   private void check(ScheduledExecutorService scheduler) {
+      final long idleMillis = _idleTimeout * 1000L;
+      final Future<Boolean> vim;
+      Future<?> eam;
+      try {
+         vim = scheduler.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+               return checkVim(idleMillis);
+            }
+         });
+         eam = scheduler.submit(new Runnable() {
+            @Override
+            public void run() {
+               checkEam(idleMillis, vim);
+            }
+         });
+      } catch (RejectedExecutionException e) {
+         // stopped
+         return;
+      }
+      try {
+         vim.get();
+         eam.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+         _logger.warn("Connection check failed: " + e.getCause().getMessage());
+      }
+   }
+
+   /*
+    * @return false if the vCenter session had to be logged in again
+    */
+   private boolean checkVim(long idleMillis) {
+      if (!_vimConnection.isConnected()
+            || _vimConnection.getIdleMillis() < idleMillis) {
+         return true;
+      }
+      try {
+         return _vimConnection.revalidate();
+      } catch (Exception e) {
+         _logger.warn("No VIM connection: " + e.getMessage());
+         return false;
+      }
+   }
+
+   private void checkEam(long idleMillis, Future<Boolean> vim) {
+      if (!_eamConnection.isConnected()
+            || _eamConnection.getIdleMillis() < idleMillis) {
+         return;
+      }
+      try {
+         _eamConnection.getStub().queryAgency(_eamConnection.getEsxAgentManager());
+         return;
+      } catch (Exception e) {
+         _logger.warn("No EAM connection: " + e.getMessage());
+      }
+
+      // The vCenter session may have been lost as well; wait for it to be
+      // revalidated and connect again with its current cookie.
+      try {
+         vim.get();
+         _eamConnection.reconnect(_vimConnection.getSessionCookie());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (Exception e) {
+         _logger.warn("Failed to reconnect to EAM: " + e.getMessage());
+      }
+   }
+}
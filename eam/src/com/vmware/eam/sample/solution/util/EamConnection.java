@@ -33,12 +33,15 @@ public class EamConnection {
    private final Logger _log = Logger.getLogger(EamConnection.class.getName());
 
    // State of EAM connection
-   private boolean _isConnected;
+   private volatile boolean _isConnected;
 
    // EAM connection info
    private final String _vcHost;
    private final int _vcHttpsProxyPort;
-   private final String _sessionCookie;
+   private String _sessionCookie;
+
+   // Records the last successful call of every stub of this connection
+   private final LastCallHandler _lastCallHandler = new LastCallHandler();
 
    private EamPortType _stub;
 
@@ -76,10 +79,31 @@ public class EamConnection {
       _isConnected = false;
    }
 
+   /**
+    * Connects to EAM again with a new vCenter session, e.g. after the previous
+    * session was lost in a vCenter restart.
+    *
+    * @param sessionCookie vc session cookie
+    */
+   public synchronized void reconnect(String sessionCookie) {
+      _sessionCookie = sessionCookie;
+      _isConnected = false;
+      _lastCallHandler.reset();
+      connect();
+   }
+
+   /**
+    * @return milliseconds since EAM last answered a call of this connection,
+    *         Long.MAX_VALUE if it never did
+    */
+   public long getIdleMillis() {
+      return _lastCallHandler.getIdleMillis();
+   }
+
    /**
     * Connect to EAM
     */
-   public void connect() {
+   public synchronized void connect() {
       if (_isConnected) {
          return;
       }
@@ -109,6 +133,7 @@ public class EamConnection {
          _log.info("Connecting to EAM: " + eamUrl);
 
          _stub = locator.getEamPort();
+         _lastCallHandler.install(_stub);
          ((BindingProvider) _stub).getRequestContext()
                                   .put(BindingProvider.SESSION_MAINTAIN_PROPERTY,
                                        Boolean.TRUE);
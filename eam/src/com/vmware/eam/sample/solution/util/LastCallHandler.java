@@ -0,0 +1,90 @@
+/* **********************************************************
+ * Copyright 2012 VMware, Inc.  All rights reserved.
+ *      -- VMware Confidential
+ * **********************************************************/
+
+package com.vmware.eam.sample.solution.util;
+
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+import javax.xml.ws.Binding;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.handler.Handler;
+import javax.xml.ws.handler.MessageContext;
+import javax.xml.ws.handler.soap.SOAPHandler;
+import javax.xml.ws.handler.soap.SOAPMessageContext;
+
+/**
+ * JAX-WS handler that records when a stub last received a successful
+ * response. Every response proves the session is alive, so the
+ * {@link ConnectionMonitor} only needs to ping sessions that have been idle.
+ *
+ * One handler is shared by all stubs of a connection, including the ones
+ * created when it reconnects.
+ */
+public class LastCallHandler implements SOAPHandler<SOAPMessageContext> {
+
+   private static final long NANOSECONDS_PER_MILLISECOND = 1000L * 1000L;
+
+   // System.nanoTime() of the last successful response, 0 if none yet
+   private volatile long _lastSuccess = 0;
+
+   /**
+    * Adds this handler to the handler chain of a stub.
+    *
+    * @param stub the JAX-WS port
+    */
+   @SuppressWarnings("rawtypes")
+   public void install(Object stub) {
+      Binding binding = ((BindingProvider) stub).getBinding();
+      List<Handler> chain = binding.getHandlerChain();
+      chain.add(this);
+      binding.setHandlerChain(chain);
+   }
+
+   /**
+    * Forgets the last successful call, e.g. after a logout.
+    */
+   public void reset() {
+      _lastSuccess = 0;
+   }
+
+   /**
+    * @return milliseconds since the last successful response, Long.MAX_VALUE
+    *         if there was none
+    */
+   public long getIdleMillis() {
+      long lastSuccess = _lastSuccess;
+      if (lastSuccess == 0) {
+         return Long.MAX_VALUE;
+      }
+      return (System.nanoTime() - lastSuccess) / NANOSECONDS_PER_MILLISECOND;
+   }
+
+   @Override
+   public boolean handleMessage(SOAPMessageContext context) {
+      Boolean outbound = (Boolean) context.get(MessageContext.MESSAGE_OUTBOUND_PROPERTY);
+      if (!outbound) {
+         // Faults are passed to handleFault, so this is a successful response
+         long now = System.nanoTime();
+         _lastSuccess = now == 0 ? 1 : now;
+      }
+      return true;
+   }
+
+   @Override
+   public boolean handleFault(SOAPMessageContext context) {
+      return true;
+   }
+
+   @Override
+   public void close(MessageContext context) {
+   }
+
+   @Override
+   public Set<QName> getHeaders() {
+      return null;
+   }
+}
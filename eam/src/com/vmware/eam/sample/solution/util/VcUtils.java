@@ -7,12 +7,19 @@ package com.vmware.eam.sample.solution.util;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import com.vmware.vsphere.ArrayOfManagedObjectReference;
+import com.vmware.vsphere.DynamicProperty;
 import com.vmware.vsphere.ManagedObjectReference;
+import com.vmware.vsphere.ObjectContent;
+import com.vmware.vsphere.ObjectSpec;
+import com.vmware.vsphere.PropertyFilterSpec;
+import com.vmware.vsphere.PropertySpec;
 import com.vmware.vsphere.RuntimeFaultFaultMsg;
+import com.vmware.vsphere.SelectionSpec;
+import com.vmware.vsphere.TraversalSpec;
 
 /**
  * <code>VcUtils</code> is a toolbox of various helper methods for vCenter
@@ -20,6 +27,40 @@ import com.vmware.vsphere.RuntimeFaultFaultMsg;
  */
 public class VcUtils {
 
+   /**
+    * A vCenter compute resource (standalone host or cluster) with its name
+    * and inventory path.
+    */
+   public static class ComputeResourceInfo {
+      private final ManagedObjectReference _moRef;
+      private final String _name;
+      private final String _path;
+
+      private ComputeResourceInfo(ManagedObjectReference moRef,
+                                  String name,
+                                  String path) {
+         _moRef = moRef;
+         _name = name;
+         _path = path;
+      }
+
+      public ManagedObjectReference getMoRef() {
+         return _moRef;
+      }
+
+      public String getName() {
+         return _name;
+      }
+
+      /**
+       * @return inventory path below the root folder, e.g.
+       *         "DC1/host/Production/Cluster1"
+       */
+      public String getPath() {
+         return _path;
+      }
+   }
+
    private final VimConnection _vimConnection;
 
    public VcUtils(VimConnection vimConnection) {
@@ -32,22 +73,15 @@ public class VcUtils {
     */
    public List<ManagedObjectReference> getDatacenters(ManagedObjectReference folder)
       throws RuntimeFaultFaultMsg {
-      List<ManagedObjectReference> datacenters = new ArrayList<ManagedObjectReference>();
       if (folder == null) {
          folder = _vimConnection.getRootFolder();
       }
-      ArrayOfManagedObjectReference folderChildren = _vimConnection.getProperty(folder,
-                                                                                "childEntity");
-      if (folderChildren != null) {
-         for (ManagedObjectReference child : folderChildren.getManagedObjectReference()) {
-            if (child.getType().equals("Datacenter")) {
-               datacenters.add(child);
-            } else if (child.getType().equals("Folder")) {
-               datacenters.addAll(getDatacenters(child));
-            }
+      List<ManagedObjectReference> datacenters = new ArrayList<ManagedObjectReference>();
+      for (ObjectContent object : retrieveInventory(folder, false)) {
+         if (object.getObj().getType().equals("Datacenter")) {
+            datacenters.add(object.getObj());
          }
       }
-
       return datacenters;
    }
 
@@ -60,38 +94,143 @@ public class VcUtils {
     */
    public Map<String, ManagedObjectReference> getComputeResources()
       throws RuntimeFaultFaultMsg {
-      Map<String, ManagedObjectReference> computeResources = new HashMap<String, ManagedObjectReference>();
-      for (ManagedObjectReference datacenter : getDatacenters(null)) {
-         ManagedObjectReference hostFolder = (ManagedObjectReference) _vimConnection.getProperty(datacenter,
-                                                                                                 "hostFolder");
-         getComputeResourcesFromFolder(hostFolder, computeResources /* out */);
+      Map<String, ManagedObjectReference> computeResources = new LinkedHashMap<String, ManagedObjectReference>();
+      for (ComputeResourceInfo cr : getComputeResourceInfos()) {
+         computeResources.put(cr.getName(), cr.getMoRef());
       }
       return computeResources;
    }
 
    /**
-    * Recursively traverse folder and all its children folders to collect
-    * vCenter compute resources
+    * Returns all compute resources with their name and inventory path. The
+    * folders, datacenters and compute resources are retrieved with one
+    * property collector traversal from the root folder, instead of one call
+    * per folder.
     *
-    * @param folder current folder to scan for compute resources
-    * @param crs map of all found compute resources
+    * @return all vCenter's compute resources
     * @throws RuntimeFaultFaultMsg
     */
-   private void getComputeResourcesFromFolder(ManagedObjectReference folder,
-                                              Map<String, ManagedObjectReference> crs)
+   public List<ComputeResourceInfo> getComputeResourceInfos()
       throws RuntimeFaultFaultMsg {
-      assert folder != null;
-      ArrayOfManagedObjectReference folderChildren = _vimConnection.getProperty(folder,
-                                                                                "childEntity");
-
-      for (ManagedObjectReference child : folderChildren.getManagedObjectReference()) {
-         if (child.getType().equals("ComputeResource")
-               || child.getType().equals("ClusterComputeResource")) {
-            String name = (String) _vimConnection.getProperty(child, "name");
-            crs.put(name, child);
-         } else if (child.getType().equals("Folder")) {
-            getComputeResourcesFromFolder(child, crs);
+      ManagedObjectReference rootFolder = _vimConnection.getRootFolder();
+      Map<String, Pair<String, ManagedObjectReference>> entities = new HashMap<String, Pair<String, ManagedObjectReference>>();
+      List<ObjectContent> objects = retrieveInventory(rootFolder, true);
+      for (ObjectContent object : objects) {
+         String name = null;
+         ManagedObjectReference parent = null;
+         for (DynamicProperty property : object.getPropSet()) {
+            if (property.getName().equals("name")) {
+               name = (String) property.getVal();
+            } else if (property.getName().equals("parent")) {
+               parent = (ManagedObjectReference) property.getVal();
+            }
+         }
+         entities.put(key(object.getObj()), Pair.create(name, parent));
+      }
+
+      List<ComputeResourceInfo> crs = new ArrayList<ComputeResourceInfo>();
+      for (ObjectContent object : objects) {
+         ManagedObjectReference moRef = object.getObj();
+         if (moRef.getType().equals("ComputeResource")
+               || moRef.getType().equals("ClusterComputeResource")) {
+            crs.add(new ComputeResourceInfo(moRef,
+                                            entities.get(key(moRef)).getFirst(),
+                                            getPath(moRef, rootFolder, entities)));
+         }
+      }
+      return crs;
+   }
+
+   /*
+    * Builds the path of an entity from the names of its parents, which are
+    * all part of the retrieved inventory.
+    */
+   private String getPath(ManagedObjectReference moRef,
+                          ManagedObjectReference rootFolder,
+                          Map<String, Pair<String, ManagedObjectReference>> entities) {
+      StringBuilder path = new StringBuilder();
+      String rootKey = key(rootFolder);
+      ManagedObjectReference current = moRef;
+      while (current != null && !key(current).equals(rootKey)) {
+         Pair<String, ManagedObjectReference> entity = entities.get(key(current));
+         if (entity == null) {
+            break;
+         }
+         if (path.length() > 0) {
+            path.insert(0, "/");
          }
+         path.insert(0, entity.getFirst());
+         current = entity.getSecond();
       }
+      return path.toString();
+   }
+
+   private static String key(ManagedObjectReference moRef) {
+      return moRef.getType() + ":" + moRef.getValue();
+   }
+
+   /**
+    * Retrieves the name and parent of every folder and datacenter below a
+    * folder and, if requested, of every compute resource in the host folders
+    * of the datacenters, in a single RetrievePropertiesEx call.
+    *
+    * @param folder folder to start the traversal at
+    * @param withComputeResources also traverse the datacenters' host folders
+    * @return the retrieved objects
+    * @throws RuntimeFaultFaultMsg
+    */
+   private List<ObjectContent> retrieveInventory(ManagedObjectReference folder,
+                                                 boolean withComputeResources)
+      throws RuntimeFaultFaultMsg {
+      SelectionSpec folderSelection = new SelectionSpec();
+      folderSelection.setName("folderToChildEntity");
+
+      TraversalSpec folderToChildEntity = new TraversalSpec();
+      folderToChildEntity.setName("folderToChildEntity");
+      folderToChildEntity.setType("Folder");
+      folderToChildEntity.setPath("childEntity");
+      folderToChildEntity.setSkip(false);
+      folderToChildEntity.getSelectSet().add(folderSelection);
+
+      ObjectSpec objectSpec = new ObjectSpec();
+      objectSpec.setObj(folder);
+      objectSpec.setSkip(false);
+      objectSpec.getSelectSet().add(folderToChildEntity);
+
+      PropertyFilterSpec pfs = new PropertyFilterSpec();
+      pfs.getObjectSet().add(objectSpec);
+      pfs.getPropSet().add(namePropertySpec("Folder"));
+      pfs.getPropSet().add(namePropertySpec("Datacenter"));
+
+      if (withComputeResources) {
+         TraversalSpec datacenterToHostFolder = new TraversalSpec();
+         datacenterToHostFolder.setName("datacenterToHostFolder");
+         datacenterToHostFolder.setType("Datacenter");
+         datacenterToHostFolder.setPath("hostFolder");
+         datacenterToHostFolder.setSkip(false);
+         datacenterToHostFolder.getSelectSet().add(folderSelection);
+
+         SelectionSpec datacenterSelection = new SelectionSpec();
+         datacenterSelection.setName("datacenterToHostFolder");
+         folderToChildEntity.getSelectSet().add(datacenterSelection);
+         objectSpec.getSelectSet().add(datacenterToHostFolder);
+
+         pfs.getPropSet().add(namePropertySpec("ComputeResource"));
+      }
+
+      return _vimConnection.retrieveAll(pfs);
+   }
+
+   /*
+    * The property spec of a type also applies to its subtypes, e.g.
+    * ComputeResource covers ClusterComputeResource.
+    */
+   private static PropertySpec namePropertySpec(String type) {
+      PropertySpec propertySpec = new PropertySpec();
+      propertySpec.setType(type);
+      propertySpec.setAll(false);
+      propertySpec.getPathSet().add("name");
+      propertySpec.getPathSet().add("parent");
+      return propertySpec;
    }
 }
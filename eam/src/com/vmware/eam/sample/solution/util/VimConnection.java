@@ -6,6 +6,7 @@
 package com.vmware.eam.sample.solution.util;
 
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -41,7 +42,6 @@ public class VimConnection implements VimHealthProvider {
    private static Log _logger = LogFactory.getLog(VimConnection.class);
 
    private final int CONSERVATIVE_VCENTER_TIMEOUT = 60;
-   private final Long SECOND_IN_NANOSECONDS = 1000L * 1000L * 1000L;
 
    public static final String SDK_URI = "https://sdkTunnel:8089/sdk";
 
@@ -53,7 +53,8 @@ public class VimConnection implements VimHealthProvider {
    private VimPortType _stub;
    private ServiceContent _sc;
 
-   private long _lastVcCallTimestamp;
+   // Records the last successful call of every stub of this connection
+   private final LastCallHandler _lastCallHandler = new LastCallHandler();
    private String _sessionId;
    private String _sessionCookie;
 
@@ -80,7 +81,6 @@ public class VimConnection implements VimHealthProvider {
       _port = port;
 
       // This is the default proxy URL. It is unlikely that this will change.
-      _lastVcCallTimestamp = 0;
       _connectionTimeout = CONSERVATIVE_VCENTER_TIMEOUT;
       _connectionStatus = ConnectionStatus.NotConnected;
 
@@ -195,7 +195,7 @@ public class VimConnection implements VimHealthProvider {
          _logger.error("Failed to logout", e);
       }
 
-      _lastVcCallTimestamp = 0;
+      _lastCallHandler.reset();
       _sc = null;
    }
 
@@ -211,29 +211,45 @@ public class VimConnection implements VimHealthProvider {
     * Re-authenticates to vCenter if needed (a connection can time out)
     */
    public void ensureConnection() {
-      // calculate the time span in seconds since last call to vCenter
-      long timeSpan = Math.abs(System.nanoTime() - _lastVcCallTimestamp)
-            / SECOND_IN_NANOSECONDS;
-
-      // Only re-authenticate ever so often
-      if (timeSpan < _connectionTimeout) {
+      // Only re-authenticate if vCenter has not answered for a while
+      if (getIdleMillis() < _connectionTimeout * 1000L) {
          return;
       }
+      revalidate();
+   }
 
+   /**
+    * Pings vCenter with the current session and logs in again if the session
+    * is no longer valid, e.g. after a vCenter restart.
+    *
+    * @return true if the session was still valid, false if a new login was
+    *         needed
+    */
+   public boolean revalidate() {
       if (_sc == null) {
          connect();
-         return;
+         return false;
       }
 
       try {
          _logger.debug("Checking if the session is still valid");
          _stub.currentTime(_siRef);
+         return true;
       } catch (Exception e) {
          _logger.debug("Current vCenter session invalid");
          connect();
+         return false;
       }
    }
 
+   /**
+    * @return milliseconds since vCenter last answered a call of this
+    *         connection, Long.MAX_VALUE if it never did
+    */
+   public long getIdleMillis() {
+      return _lastCallHandler.getIdleMillis();
+   }
+
    /**
     * @param moRef
     * @param path
@@ -270,6 +286,35 @@ public class VimConnection implements VimHealthProvider {
       return null;
    }
 
+   /**
+    * Retrieves the properties of all objects selected by a filter spec,
+    * following the continuation token until the result is complete.
+    *
+    * @param pfs filter spec, usually with a traversal from a root object
+    * @return all retrieved objects, empty if the spec was invalid
+    * @throws RuntimeFaultFaultMsg
+    */
+   public List<ObjectContent> retrieveAll(PropertyFilterSpec pfs)
+      throws RuntimeFaultFaultMsg {
+      List<ObjectContent> objects = new ArrayList<ObjectContent>();
+      ManagedObjectReference pc = _sc.getPropertyCollector();
+      try {
+         RetrieveResult result = _stub.retrievePropertiesEx(pc,
+                                                            Collections.singletonList(pfs),
+                                                            new RetrieveOptions());
+         while (result != null) {
+            objects.addAll(result.getObjects());
+            if (result.getToken() == null) {
+               break;
+            }
+            result = _stub.continueRetrievePropertiesEx(pc, result.getToken());
+         }
+      } catch (InvalidPropertyFaultMsg e) {
+         _logger.error(e, e);
+      }
+      return objects;
+   }
+
    private synchronized void connect() {
       if (getHost() == null || getHost().isEmpty()) {
          throw new RuntimeException("vcHost is not configured. Check your beans.xml");
@@ -298,6 +343,7 @@ public class VimConnection implements VimHealthProvider {
                                                                 "VimService"));
 
          _stub = locator.getVimPort();
+         _lastCallHandler.install(_stub);
          ((BindingProvider) _stub).getRequestContext()
                                   .put(BindingProvider.SESSION_MAINTAIN_PROPERTY,
                                        Boolean.TRUE);
@@ -0,0 +1,256 @@
+package com.vmware.apputils;
+
+import com.vmware.vim.sms.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * <pre>
+ *
+ * QueryListIterator.java
+ *
+ * Lazy iterator over the rows of an SMS queryList.
+ *
+ * Instead of one queryList that returns every row at once, the rows are
+ * queried in pages of a fixed size using the offset and maxCount of the
+ * QuerySpec, so no more than two pages are held in memory at any time. When
+ * an executor is given, the next page is queried in the background while the
+ * rows of the current one are consumed.
+ *
+ * The iterator is not thread safe. A failed queryList is thrown from
+ * hasNext() or next() as a QueryListException.
+ *
+ * Usage:
+ * QueryListIterator rows = conn.queryListPaged(dcRef,
+ *    EntityReferenceEntityType.DATASTORE, querySpec);
+ * int nameIdx = rows.getColumnIndex("name");
+ * while (rows.hasNext()) {
+ *    System.out.println(rows.next().getColumn().get(nameIdx));
+ * }
+ * </pre>
+ */
+public class QueryListIterator implements Iterator<RowData> {
+
+   /**
+    * Unchecked wrapper of a failed queryList, which Iterator can not throw
+    * as a checked exception.
+    */
+   public static class QueryListException extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      public QueryListException(String message, Throwable cause) {
+         super(message, cause);
+      }
+   }
+
+   private final SmServiceConnection conn;
+   private final EntityReference contextEntity;
+   private final EntityReferenceEntityType queryEntityType;
+   private final QuerySpec querySpec;
+   private final int pageSize;
+   private final ExecutorService executor;
+
+   private List<String> propertyNames = null;
+   private int totalRows = -1;
+   private boolean totalRowsReported = false;
+
+   private List<RowData> page = null;
+   private int pageIdx = 0;
+   private int nextOffset = 0;
+   private boolean lastPage = false;
+   private Future<QueryResult> nextPage = null;
+
+   /**
+    * @param conn SMS connection
+    * @param contextEntity entity to query on, null for all instances
+    * @param queryEntityType related entity type
+    * @param querySpec filter/sort constraints for the query, may be null;
+    *                  its offset and maxCount are ignored
+    * @param pageSize number of rows queried at a time
+    * @param executor executor that queries the next page ahead, or null to
+    *                 query every page when it is reached
+    */
+   public QueryListIterator(SmServiceConnection conn,
+                            EntityReference contextEntity,
+                            EntityReferenceEntityType queryEntityType,
+                            QuerySpec querySpec,
+                            int pageSize,
+                            ExecutorService executor) {
+      if (pageSize < 1) {
+         throw new IllegalArgumentException("pageSize must be positive");
+      }
+      this.conn = conn;
+      this.contextEntity = contextEntity;
+      this.queryEntityType = queryEntityType;
+      this.querySpec = querySpec;
+      this.pageSize = pageSize;
+      this.executor = executor;
+   }
+
+   /**
+    * @return entity the rows are related to, null for all instances
+    */
+   public EntityReference getContextEntity() {
+      return contextEntity;
+   }
+
+   /**
+    * Queries the first page if that was not done yet. Called by
+    * SmServiceConnection to query the first pages of several entities
+    * concurrently.
+    */
+   void open() throws Exception {
+      if (page == null) {
+         load(conn.queryList(contextEntity, queryEntityType, spec(0)));
+      }
+   }
+
+   /**
+    * @return names of the columns of the rows
+    */
+   public List<String> getPropertyNames() {
+      ensureOpen();
+      return propertyNames;
+   }
+
+   /**
+    * @param propertyName column name, not case sensitive
+    *
+    * @return index of the column in the rows, or -1 if there is no such column
+    */
+   public int getColumnIndex(String propertyName) {
+      List<String> names = getPropertyNames();
+      for (int i = 0; i < names.size(); ++i) {
+         if (names.get(i).equalsIgnoreCase(propertyName)) {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * @return number of rows matching the query, as reported with the first
+    *         page
+    */
+   public int getTotalRows() {
+      ensureOpen();
+      return totalRows;
+   }
+
+   public boolean hasNext() {
+      ensureOpen();
+      while (pageIdx >= page.size()) {
+         if (lastPage) {
+            return false;
+         }
+         load(fetchNextPage());
+      }
+      return true;
+   }
+
+   public RowData next() {
+      if (!hasNext()) {
+         throw new NoSuchElementException();
+      }
+      RowData row = page.get(pageIdx);
+      // release the row, a page may be consumed slowly
+      page.set(pageIdx++, null);
+      return row;
+   }
+
+   public void remove() {
+      throw new UnsupportedOperationException();
+   }
+
+   private void ensureOpen() {
+      try {
+         open();
+      } catch (QueryListException e) {
+         throw e;
+      } catch (Exception e) {
+         throw failure(e);
+      }
+   }
+
+   /*
+    * Makes the given result the current page and, if there are more rows,
+    * starts querying the next page ahead.
+    */
+   private void load(QueryResult result) {
+      List<RowData> rows = result.getRow();
+      Metadata metadata = result.getMetadata();
+      if (propertyNames == null) {
+         propertyNames = metadata == null
+            ? Collections.<String>emptyList()
+            : Collections.unmodifiableList(new ArrayList<String>(metadata.getPropertyName()));
+         totalRows = metadata == null ? rows.size() : metadata.getTotalRows();
+         totalRowsReported = metadata != null && totalRows > 0;
+      }
+      page = rows;
+      pageIdx = 0;
+      nextOffset += rows.size();
+      // A short page does not end the query, the server may cap maxCount
+      // below the page size. Without a reported total only an empty page
+      // does.
+      lastPage = rows.isEmpty()
+         || (totalRowsReported && nextOffset >= totalRows);
+      if (!lastPage && executor != null) {
+         final QuerySpec spec = spec(nextOffset);
+         nextPage = executor.submit(new Callable<QueryResult>() {
+            public QueryResult call() throws Exception {
+               return conn.queryList(contextEntity, queryEntityType, spec);
+            }
+         });
+      }
+   }
+
+   private QueryResult fetchNextPage() {
+      try {
+         if (nextPage != null) {
+            Future<QueryResult> future = nextPage;
+            nextPage = null;
+            return future.get();
+         }
+         return conn.queryList(contextEntity, queryEntityType, spec(nextOffset));
+      } catch (ExecutionException e) {
+         throw failure(e.getCause());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw failure(e);
+      } catch (Exception e) {
+         throw failure(e);
+      }
+   }
+
+   /*
+    * Copy of the caller's QuerySpec for one page, the caller's spec is
+    * shared by all pages and possibly by other iterators.
+    */
+   private QuerySpec spec(int offset) {
+      QuerySpec spec = new QuerySpec();
+      if (querySpec != null) {
+         spec.setFilterSpec(querySpec.getFilterSpec());
+         spec.getSortSpec().addAll(querySpec.getSortSpec());
+      }
+      spec.setOffset(offset);
+      spec.setMaxCount(pageSize);
+      return spec;
+   }
+
+   private QueryListException failure(Throwable cause) {
+      String context = contextEntity == null
+         ? "all instances"
+         : contextEntity.getType() + " " + contextEntity.getId();
+      return new QueryListException("queryList of " + queryEntityType + " for "
+                                    + context + " at offset " + nextOffset
+                                    + " failed: " + cause.getMessage(), cause);
+   }
+}
@@ -3,7 +3,20 @@ package com.vmware.apputils;
 import com.vmware.vim25.*;
 import com.vmware.vim.sms.*;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSession;
@@ -73,6 +86,12 @@ public class SmServiceConnection {
    private String userName;
    private String password;
    private String sessionCookie;
+   private ExecutorService queryExecutor;
+
+   /** Rows per queryList of queryListPaged and queryListEach. */
+   public static final int DEFAULT_PAGE_SIZE = 500;
+   /** Context entities queried ahead by queryListEach. */
+   public static final int DEFAULT_QUERY_PARALLELISM = 4;
 
    /*
     * Set the managed object reference type, and value to
@@ -262,6 +281,153 @@ public class SmServiceConnection {
                                querySpec);
    }
 
+   /**
+    * Lazy, paged variant of queryList. The rows are queried pageSize at a
+    * time while they are iterated, and the next page is queried ahead in the
+    * background.
+    * 
+    * @param contextEntity entity to query on
+    * @param queryEntityType related entity type
+    * @param querySpec filter/sort constraints for the query, may be null
+    * @param pageSize number of rows queried at a time
+    * 
+    * @return iterator over the rows
+    */
+   public QueryListIterator queryListPaged(
+      EntityReference contextEntity,
+      EntityReferenceEntityType queryEntityType,
+      QuerySpec querySpec,
+      int pageSize) {
+      return new QueryListIterator(this, contextEntity, queryEntityType,
+                                   querySpec, pageSize, getQueryExecutor());
+   }
+
+   /**
+    * queryListPaged with the default page size.
+    */
+   public QueryListIterator queryListPaged(
+      EntityReference contextEntity,
+      EntityReferenceEntityType queryEntityType,
+      QuerySpec querySpec) {
+      return queryListPaged(contextEntity, queryEntityType, querySpec,
+                            DEFAULT_PAGE_SIZE);
+   }
+
+   /**
+    * Runs the same paged queryList for several context entities, e.g. the
+    * datastores of every datacenter. The first pages of up to parallelism
+    * entities are queried concurrently, ahead of the entity being iterated,
+    * so the round trips of the entities overlap while memory stays bounded
+    * by a few pages.
+    * 
+    * @param contextEntities entities to query on
+    * @param queryEntityType related entity type
+    * @param querySpec filter/sort constraints for the queries, may be null
+    * @param pageSize number of rows queried at a time
+    * @param parallelism number of entities queried ahead
+    * 
+    * @return one row iterator per context entity, in the order of the list
+    */
+   public Iterator<QueryListIterator> queryListEach(
+      List<EntityReference> contextEntities,
+      final EntityReferenceEntityType queryEntityType,
+      final QuerySpec querySpec,
+      final int pageSize,
+      final int parallelism) {
+      if (parallelism < 1) {
+         throw new IllegalArgumentException("parallelism must be positive");
+      }
+      final List<EntityReference> entities =
+         new ArrayList<EntityReference>(contextEntities);
+      final ExecutorService executor = getQueryExecutor();
+      return new Iterator<QueryListIterator>() {
+         private final Deque<Future<QueryListIterator>> ahead =
+            new ArrayDeque<Future<QueryListIterator>>();
+         private int submitted = 0;
+
+         public boolean hasNext() {
+            fill();
+            return !ahead.isEmpty();
+         }
+
+         public QueryListIterator next() {
+            if (!hasNext()) {
+               throw new NoSuchElementException();
+            }
+            Future<QueryListIterator> future = ahead.poll();
+            fill();
+            try {
+               return future.get();
+            } catch (ExecutionException e) {
+               Throwable cause = e.getCause();
+               if (cause instanceof RuntimeException) {
+                  throw (RuntimeException) cause;
+               }
+               throw new QueryListIterator.QueryListException(
+                  "queryList failed: " + cause.getMessage(), cause);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new QueryListIterator.QueryListException(
+                  "queryList interrupted", e);
+            }
+         }
+
+         public void remove() {
+            throw new UnsupportedOperationException();
+         }
+
+         private void fill() {
+            while (ahead.size() < parallelism && submitted < entities.size()) {
+               final QueryListIterator rows =
+                  new QueryListIterator(SmServiceConnection.this,
+                                        entities.get(submitted++),
+                                        queryEntityType, querySpec,
+                                        pageSize, executor);
+               ahead.add(executor.submit(new Callable<QueryListIterator>() {
+                  public QueryListIterator call() throws Exception {
+                     rows.open();
+                     return rows;
+                  }
+               }));
+            }
+         }
+      };
+   }
+
+   /**
+    * queryListEach with the default page size and parallelism.
+    */
+   public Iterator<QueryListIterator> queryListEach(
+      List<EntityReference> contextEntities,
+      EntityReferenceEntityType queryEntityType,
+      QuerySpec querySpec) {
+      return queryListEach(contextEntities, queryEntityType, querySpec,
+                           DEFAULT_PAGE_SIZE, DEFAULT_QUERY_PARALLELISM);
+   }
+
+   /*
+    * Threads of the paged queries. The SMS port is only configured in
+    * initSmsPort, so it may be invoked from several threads afterwards.
+    * Idle threads end, an abandoned iterator leaves nothing behind.
+    */
+   private synchronized ExecutorService getQueryExecutor() {
+      if (queryExecutor == null) {
+         ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            2 * DEFAULT_QUERY_PARALLELISM, 2 * DEFAULT_QUERY_PARALLELISM,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+               public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "SmsQueryList");
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+         executor.allowCoreThreadTimeOut(true);
+         queryExecutor = executor;
+      }
+      return queryExecutor;
+   }
+
    /**
     * Wrapper for SMS queryTopology method.
     * @param entity entity to query on
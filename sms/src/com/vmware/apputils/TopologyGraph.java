@@ -0,0 +1,403 @@
+package com.vmware.apputils;
+
+import com.vmware.vim.sms.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+
+/**
+ * <pre>
+ *
+ * TopologyGraph.java
+ *
+ * In-memory graph of an SMS storage topology as returned by queryTopology.
+ *
+ * Nodes are indexed by their entity reference and every node keeps the maps
+ * of its outgoing and incoming edges, so the neighbors of a node are found
+ * without scanning the edge list. On top of that the graph answers path
+ * queries and impact queries such as "which virtual machines are on the
+ * datastores backed by this SCSI volume".
+ *
+ * refresh() queries the topology again, e.g. after a sync. It does nothing
+ * if the topology was not updated since the last query, and otherwise only
+ * touches the edges that were added, removed or changed their status.
+ *
+ * Usage:
+ * TopologyGraph graph = new TopologyGraph(conn, dcRef);
+ * List&lt;Node&gt; vms = graph.getImpacted(volumeRef,
+ *    EntityReferenceEntityType.DATASTORE, EntityReferenceEntityType.VM);
+ * conn.sync();
+ * graph.refresh();
+ * </pre>
+ */
+public class TopologyGraph {
+
+   /**
+    * EntityReference does not implement equals and hashCode.
+    */
+   private static final class Key {
+      private final EntityReferenceEntityType type;
+      private final String id;
+
+      private Key(EntityReference entity) {
+         this.type = entity.getType();
+         this.id = entity.getId();
+      }
+
+      public boolean equals(Object obj) {
+         if (!(obj instanceof Key)) {
+            return false;
+         }
+         Key other = (Key) obj;
+         return type == other.type && id.equals(other.id);
+      }
+
+      public int hashCode() {
+         return (type == null ? 0 : type.hashCode()) * 31 + id.hashCode();
+      }
+   }
+
+   /**
+    * Identity of an edge, to find the edges added or removed by a refresh.
+    */
+   private static final class EdgeKey {
+      private final Key source;
+      private final Key dest;
+
+      private EdgeKey(Edge edge) {
+         this.source = new Key(edge.getSourceEntity());
+         this.dest = new Key(edge.getDestEntity());
+      }
+
+      public boolean equals(Object obj) {
+         if (!(obj instanceof EdgeKey)) {
+            return false;
+         }
+         EdgeKey other = (EdgeKey) obj;
+         return source.equals(other.source) && dest.equals(other.dest);
+      }
+
+      public int hashCode() {
+         return source.hashCode() * 31 + dest.hashCode();
+      }
+   }
+
+   private final SmServiceConnection conn;
+   private final EntityReference root;
+
+   private final java.util.Map<Key, Node> nodes = new LinkedHashMap<Key, Node>();
+   private final java.util.Map<EdgeKey, Edge> edges = new HashMap<EdgeKey, Edge>();
+   private final java.util.Map<Key, java.util.Map<EdgeKey, Edge>> outgoing =
+      new HashMap<Key, java.util.Map<EdgeKey, Edge>>();
+   private final java.util.Map<Key, java.util.Map<EdgeKey, Edge>> incoming =
+      new HashMap<Key, java.util.Map<EdgeKey, Edge>>();
+   private XMLGregorianCalendar lastUpdateTime;
+
+   /**
+    * Queries the topology of the given entity and builds the graph.
+    *
+    * @param conn SMS connection
+    * @param root entity whose topology is queried, e.g. a datacenter
+    */
+   public TopologyGraph(SmServiceConnection conn, EntityReference root) throws Exception {
+      this.conn = conn;
+      this.root = root;
+      refresh();
+   }
+
+   /**
+    * Builds the graph from a topology map that was already queried.
+    * refresh() is not available on such a graph, use update() instead.
+    *
+    * @param map topology map
+    */
+   public TopologyGraph(Map map) {
+      this.conn = null;
+      this.root = null;
+      update(map);
+   }
+
+   /**
+    * Queries the topology again and applies the changes.
+    *
+    * @return true if the topology changed
+    */
+   public boolean refresh() throws Exception {
+      if (conn == null) {
+         throw new IllegalStateException("Graph was built without a connection");
+      }
+      return update(conn.queryTopology(root));
+   }
+
+   /**
+    * Applies a newer topology map of the same entity. Only edges that were
+    * added, removed or changed their status are indexed again, the others
+    * are kept as they are; nothing is done if the map has the same update
+    * time as the previous one.
+    *
+    * @param map topology map
+    *
+    * @return true if the topology changed
+    */
+   public synchronized boolean update(Map map) {
+      XMLGregorianCalendar updateTime = map.getLastUpdateTime();
+      if (updateTime != null && updateTime.equals(lastUpdateTime)) {
+         return false;
+      }
+      lastUpdateTime = updateTime;
+      boolean changed = false;
+
+      // Nodes: replace all, their names and status may have changed
+      java.util.Map<Key, Node> newNodes = new LinkedHashMap<Key, Node>();
+      for (Node node : map.getNode()) {
+         newNodes.put(new Key(node.getEntity()), node);
+      }
+      changed |= !nodes.keySet().equals(newNodes.keySet());
+      nodes.clear();
+      nodes.putAll(newNodes);
+
+      // Edges: index only the difference
+      java.util.Map<EdgeKey, Edge> newEdges = new HashMap<EdgeKey, Edge>();
+      for (Edge edge : map.getEdge()) {
+         newEdges.put(new EdgeKey(edge), edge);
+      }
+      Iterator<EdgeKey> it = edges.keySet().iterator();
+      while (it.hasNext()) {
+         EdgeKey key = it.next();
+         if (!newEdges.containsKey(key)) {
+            unlink(key);
+            it.remove();
+            changed = true;
+         }
+      }
+      for (java.util.Map.Entry<EdgeKey, Edge> entry : newEdges.entrySet()) {
+         Edge old = edges.get(entry.getKey());
+         if (old == null || !sameState(old, entry.getValue())) {
+            // New edge, or an edge whose status changed: replaced in place
+            link(entry.getKey(), entry.getValue());
+            changed = true;
+         }
+      }
+      return changed;
+   }
+
+   private static boolean sameState(Edge a, Edge b) {
+      return a.getStatus() == b.getStatus() && a.isDirect() == b.isDirect();
+   }
+
+   private void link(EdgeKey key, Edge edge) {
+      edges.put(key, edge);
+      adjacency(outgoing, key.source).put(key, edge);
+      adjacency(incoming, key.dest).put(key, edge);
+   }
+
+   private void unlink(EdgeKey key) {
+      java.util.Map<EdgeKey, Edge> out = outgoing.get(key.source);
+      if (out != null) {
+         out.remove(key);
+      }
+      java.util.Map<EdgeKey, Edge> in = incoming.get(key.dest);
+      if (in != null) {
+         in.remove(key);
+      }
+   }
+
+   private static java.util.Map<EdgeKey, Edge> adjacency(
+      java.util.Map<Key, java.util.Map<EdgeKey, Edge>> index, Key key) {
+      java.util.Map<EdgeKey, Edge> map = index.get(key);
+      if (map == null) {
+         map = new LinkedHashMap<EdgeKey, Edge>(4);
+         index.put(key, map);
+      }
+      return map;
+   }
+
+   /**
+    * @return all nodes of the topology
+    */
+   public synchronized Collection<Node> getNodes() {
+      return new ArrayList<Node>(nodes.values());
+   }
+
+   /**
+    * @param entity entity reference
+    *
+    * @return the node of the entity, or null if it is not in the topology
+    */
+   public synchronized Node getNode(EntityReference entity) {
+      return nodes.get(new Key(entity));
+   }
+
+   /**
+    * @param entity entity reference
+    *
+    * @return edges starting at the entity
+    */
+   public synchronized List<Edge> getOutgoingEdges(EntityReference entity) {
+      return copy(outgoing.get(new Key(entity)));
+   }
+
+   /**
+    * @param entity entity reference
+    *
+    * @return edges ending at the entity
+    */
+   public synchronized List<Edge> getIncomingEdges(EntityReference entity) {
+      return copy(incoming.get(new Key(entity)));
+   }
+
+   /**
+    * @param entity entity reference
+    *
+    * @return all edges starting or ending at the entity
+    */
+   public synchronized List<Edge> getEdges(EntityReference entity) {
+      Key key = new Key(entity);
+      List<Edge> result = copy(outgoing.get(key));
+      java.util.Map<EdgeKey, Edge> in = incoming.get(key);
+      if (in != null) {
+         result.addAll(in.values());
+      }
+      return result;
+   }
+
+   /**
+    * @param entity entity reference
+    *
+    * @return the nodes connected to the entity by an edge in either direction
+    */
+   public synchronized List<Node> getNeighbors(EntityReference entity) {
+      return getNeighbors(entity, null);
+   }
+
+   /**
+    * @param entity entity reference
+    * @param type type of the neighbors to return, null for all
+    *
+    * @return the nodes of the given type connected to the entity
+    */
+   public synchronized List<Node> getNeighbors(EntityReference entity,
+                                               EntityReferenceEntityType type) {
+      List<Node> result = new ArrayList<Node>();
+      for (Key key : neighborKeys(new Key(entity))) {
+         if (type == null || key.type == type) {
+            Node node = nodes.get(key);
+            if (node != null) {
+               result.add(node);
+            }
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Finds a shortest path between two entities, following edges in either
+    * direction.
+    *
+    * @param from start entity
+    * @param to end entity
+    *
+    * @return the nodes of the path including both ends, or an empty list if
+    *         the entities are not connected
+    */
+   public synchronized List<Node> findPath(EntityReference from, EntityReference to) {
+      Key start = new Key(from);
+      Key end = new Key(to);
+      if (!nodes.containsKey(start) || !nodes.containsKey(end)) {
+         return new ArrayList<Node>();
+      }
+      java.util.Map<Key, Key> previous = new HashMap<Key, Key>();
+      previous.put(start, start);
+      Deque<Key> queue = new ArrayDeque<Key>();
+      queue.add(start);
+      while (!queue.isEmpty() && !previous.containsKey(end)) {
+         Key current = queue.poll();
+         for (Key next : neighborKeys(current)) {
+            if (!previous.containsKey(next)) {
+               previous.put(next, current);
+               queue.add(next);
+            }
+         }
+      }
+      List<Node> path = new ArrayList<Node>();
+      if (!previous.containsKey(end)) {
+         return path;
+      }
+      for (Key key = end; ; key = previous.get(key)) {
+         path.add(nodes.get(key));
+         if (key.equals(start)) {
+            break;
+         }
+      }
+      Collections.reverse(path);
+      return path;
+   }
+
+   /**
+    * Impact analysis: follows the edges from an entity through the given
+    * sequence of entity types and returns the nodes of the last type, e.g.
+    * getImpacted(volume, DATASTORE, VM) returns the virtual machines on the
+    * datastores backed by a SCSI volume.
+    *
+    * @param entity start entity
+    * @param types entity types to pass through, in order
+    *
+    * @return the distinct nodes reached with the last type
+    */
+   public synchronized List<Node> getImpacted(EntityReference entity,
+                                              EntityReferenceEntityType... types) {
+      Set<Key> current = new LinkedHashSet<Key>();
+      current.add(new Key(entity));
+      for (EntityReferenceEntityType type : types) {
+         Set<Key> next = new LinkedHashSet<Key>();
+         for (Key key : current) {
+            for (Key neighbor : neighborKeys(key)) {
+               if (neighbor.type == type) {
+                  next.add(neighbor);
+               }
+            }
+         }
+         current = next;
+      }
+      List<Node> result = new ArrayList<Node>();
+      for (Key key : current) {
+         Node node = nodes.get(key);
+         if (node != null) {
+            result.add(node);
+         }
+      }
+      return result;
+   }
+
+   private Set<Key> neighborKeys(Key key) {
+      Set<Key> result = new LinkedHashSet<Key>();
+      java.util.Map<EdgeKey, Edge> out = outgoing.get(key);
+      if (out != null) {
+         for (Edge edge : out.values()) {
+            result.add(new Key(edge.getDestEntity()));
+         }
+      }
+      java.util.Map<EdgeKey, Edge> in = incoming.get(key);
+      if (in != null) {
+         for (Edge edge : in.values()) {
+            result.add(new Key(edge.getSourceEntity()));
+         }
+      }
+      return result;
+   }
+
+   private static List<Edge> copy(java.util.Map<EdgeKey, Edge> map) {
+      return map == null ? new ArrayList<Edge>() : new ArrayList<Edge>(map.values());
+   }
+}
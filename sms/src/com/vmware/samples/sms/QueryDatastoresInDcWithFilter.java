@@ -4,6 +4,9 @@ import com.vmware.apputils.*;
 import com.vmware.vim.sms.*;
 
 import java.text.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * <pre>
@@ -50,8 +53,6 @@ public class QueryDatastoresInDcWithFilter {
       FilterSpec filterSpec = getFilterSpec();
 
       QuerySpec querySpec = new QuerySpec();
-      querySpec.setMaxCount(0);
-      querySpec.setOffset(0);
       querySpec.setFilterSpec(filterSpec);
       if(sortSpec != null) {
          for(SortSpec s : sortSpec) {
@@ -60,39 +61,26 @@ public class QueryDatastoresInDcWithFilter {
       }
 
       // Get all instances of entityType without using any QuerySpec
-      QueryResult entityResult =                                                            
-         conn.queryList(null, entityType, null);                                              
+      QueryListIterator entityRows = conn.queryListPaged(null, entityType, null);
+      System.out.println("Retrieved " + entityRows.getTotalRows() + " datacenter(s)");
 
-      Metadata metadata = entityResult.getMetadata();
-      System.out.println("Retrieved " + metadata.getNumRows() + " datacenter(s)");
-      printFormattedQueryListResult(entityResult,relEntityTypeSpecified);
-
-      RowData[] rowData = entityResult.getRow().toArray(new RowData[0]);
-
-      int entityIdIdx = 0;
-      String[] propertyNames = metadata.getPropertyName().toArray(new String[0]);
-      for(int i = 0; i < propertyNames.length; ++i) {
-         if(propertyNames[i].equalsIgnoreCase("entityid")) {
-            entityIdIdx = i;
-         }
-      }
+      int entityIdIdx = Math.max(0, entityRows.getColumnIndex("entityid"));
+      List<EntityReference> entityRefs = new ArrayList<EntityReference>();
+      printFormattedQueryListResult(entityRows, relEntityTypeSpecified, entityIdIdx, entityRefs);
 
       // Iterates over each instance of entityType and lists instances
-      // of relEntity associated with it after applying QuerySpec. 
-      for(int j = 0; j < metadata.getNumRows(); ++j) {
-         String entityId = (String) rowData[j].getColumn().get(entityIdIdx);
-         EntityReference entityRef = new EntityReference();
-         entityRef.setId(entityId);
-         entityRef.setType(entityType);
-         relEntityTypeSpecified = true;
-
-         QueryResult relEntityResult =                                                               
-            conn.queryList(entityRef, relEntityType, querySpec);                                              
-
+      // of relEntity associated with it after applying QuerySpec. The
+      // datacenters are queried concurrently and their datastores are
+      // printed page by page as they arrive.
+      relEntityTypeSpecified = true;
+      Iterator<QueryListIterator> relEntityRows =
+         conn.queryListEach(entityRefs, relEntityType, querySpec);
+      for(int j = 0; relEntityRows.hasNext(); ++j) {
+         QueryListIterator rows = relEntityRows.next();
          System.out.println("For datacenter - " + (j+1) + 
-                            " Retrieved " + relEntityResult.getMetadata().getNumRows() + " datastore(s)");
+                            " Retrieved " + rows.getTotalRows() + " datastore(s)");
 
-         printFormattedQueryListResult(relEntityResult,relEntityTypeSpecified);
+         printFormattedQueryListResult(rows, relEntityTypeSpecified, -1, null);
       }
    }
 
@@ -155,19 +143,29 @@ public class QueryDatastoresInDcWithFilter {
       return filterSpec;
    }
 
+   /*
+    * Prints the rows as they are iterated. If refs is not null, an entity
+    * reference is added to it for the id in column entityIdIdx of each row.
+    */
    private void printFormattedQueryListResult(
-      QueryResult result,
-      boolean relEntityTypeSpecified) throws Exception {
+      QueryListIterator rows,
+      boolean relEntityTypeSpecified,
+      int entityIdIdx,
+      List<EntityReference> refs) throws Exception {
 
-      int numRows = result.getMetadata().getTotalRows();
-      RowData[] rows = result.getRow().toArray(new RowData[0]);
-      String[] columnNames = result.getMetadata().getPropertyName().toArray(new String[0]);
+      String[] columnNames = rows.getPropertyNames().toArray(new String[0]);
 
-      for (int rowCounter = 0; rowCounter < numRows; rowCounter++) {
+      while (rows.hasNext()) {
          System.out.println("--------------------------------------------------------------------");
          int columnCounter=0;
-         String[] columnValues = rows[rowCounter].getColumn().toArray(new String[0]);
-         while (columnCounter < result.getMetadata().getPropertyName().size()) {
+         String[] columnValues = rows.next().getColumn().toArray(new String[0]);
+         if (refs != null) {
+            EntityReference entityRef = new EntityReference();
+            entityRef.setId(columnValues[entityIdIdx]);
+            entityRef.setType(entityType);
+            refs.add(entityRef);
+         }
+         while (columnCounter < columnNames.length) {
 
             // In order to do special formatting of the output depending on the property type, 
             // get the type of each property.
@@ -3,6 +3,10 @@ package com.vmware.samples.sms;
 import com.vmware.apputils.*;
 import com.vmware.vim.sms.*;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
 /**
  * <pre>
  * 
@@ -31,57 +35,51 @@ public class QueryScsiVolumesInDc {
 
    public void execute() throws Exception {
       // Get all instances of datacenter
-      QueryResult entityResult =                                                            
-         conn.queryList(null, EntityReferenceEntityType.DATACENTER, null);                                              
-
-      Metadata metadata = entityResult.getMetadata();
-      System.out.println("Retrieved " + metadata.getNumRows() + " " + "datacenter(s)");
-      printDetailedQueryListResult(entityResult);
-
-      RowData[] rowData = entityResult.getRow().toArray(new RowData[0]);
-
-      int entityIdIdx = 0;
-      String[] propertyNames = metadata.getPropertyName().toArray(new String[0]);
-      for(int i = 0; i < propertyNames.length; ++i) {
-         if (propertyNames[i].equalsIgnoreCase("entityid")) {
-            entityIdIdx = i;
-         }
-      }
-
-      //Iterates over each instance of datacenter and lists instances of SCSIVolumes associated with it. 
-      for(int j = 0; j < metadata.getNumRows(); ++j) {
-         String entityId = (String) rowData[j].getColumn().get(entityIdIdx);
-         EntityReference entityRef = new EntityReference();
-         entityRef.setId(entityId);
-         entityRef.setType(EntityReferenceEntityType.DATACENTER);
-
-         QueryResult relEntityResult =                                                               
-            conn.queryList(entityRef, EntityReferenceEntityType.SCSI_VOLUME, null);                                              
-
+      QueryListIterator entityRows =
+         conn.queryListPaged(null, EntityReferenceEntityType.DATACENTER, null);
+      System.out.println("Retrieved " + entityRows.getTotalRows() + " " + "datacenter(s)");
+
+      int entityIdIdx = Math.max(0, entityRows.getColumnIndex("entityid"));
+      List<EntityReference> entityRefs = new ArrayList<EntityReference>();
+      printDetailedQueryListResult(entityRows, entityIdIdx, entityRefs);
+
+      // Iterates over each instance of datacenter and lists instances of SCSIVolumes associated with it.
+      // The datacenters are queried concurrently and the volumes are printed page by page.
+      Iterator<QueryListIterator> relEntityRows =
+         conn.queryListEach(entityRefs, EntityReferenceEntityType.SCSI_VOLUME, null);
+      for(int j = 0; relEntityRows.hasNext(); ++j) {
+         QueryListIterator rows = relEntityRows.next();
          System.out.println("For datacenter - " + (j+1) + 
-                            " Retrieved " + relEntityResult.getMetadata().getNumRows() + "scsiVolume(s)");
-
-         printDetailedQueryListResult(relEntityResult);
+                            " Retrieved " + rows.getTotalRows() + " scsiVolume(s)");
 
+         printDetailedQueryListResult(rows, -1, null);
       }
    }
 
-   private void printDetailedQueryListResult(QueryResult result) throws Exception {
+   /*
+    * Prints the rows as they are iterated. If refs is not null, a datacenter
+    * reference is added to it for the id in column entityIdIdx of each row.
+    */
+   private void printDetailedQueryListResult(
+      QueryListIterator rows,
+      int entityIdIdx,
+      List<EntityReference> refs) throws Exception {
 
-      int numRows = result.getMetadata().getTotalRows();
-      RowData[] rows = result.getRow().toArray(new RowData[0]);
-      String[] columnNames = result.getMetadata().getPropertyName().toArray(new String[0]);
+      String[] columnNames = rows.getPropertyNames().toArray(new String[0]);
 
-      // Display the detailed information of all scsiVolumes hosted on this datacenter
-      for (int rowCounter = 0; rowCounter < numRows; rowCounter++) {
+      // Display the detailed information of all rows
+      while (rows.hasNext()) {
          System.out.println("--------------------------------------------------------------------");
-         int columnCounter=0;
-         String[] columnValues = rows[rowCounter].getColumn().toArray(new String[0]);
-         while (columnCounter < result.getMetadata().getPropertyName().size()) {
+         String[] columnValues = rows.next().getColumn().toArray(new String[0]);
+         if (refs != null) {
+            EntityReference entityRef = new EntityReference();
+            entityRef.setId(columnValues[entityIdIdx]);
+            entityRef.setType(EntityReferenceEntityType.DATACENTER);
+            refs.add(entityRef);
+         }
+         for (int columnCounter = 0; columnCounter < columnNames.length; columnCounter++) {
             System.out.println(columnNames[columnCounter] + " : " +columnValues[columnCounter]);
-            columnCounter++;
          }
-         columnCounter = 0;
       }
    }
 
@@ -4,13 +4,8 @@ import com.vmware.vim.sms.*;
 import com.vmware.vim25.*;
 import com.vmware.apputils.*;
 
-import java.util.Map;
-import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
 
 /**
  * <pre>
@@ -45,46 +40,29 @@ public class QueryTopology {
       // Get the EntityReferene corresponding to the datacenter
       EntityReference dcRef = getDcEntityReference();
 
-      com.vmware.vim.sms.Map smsTopologyMap = conn.queryTopology(dcRef);
-
-      // Construct a HashMap containing all nodes for efficient retrieval
-      Map<String, Node> nodeMap = new HashMap<String, Node>();
-      List<Node> nodeList = smsTopologyMap.getNode();
-      ListIterator<Node> nodeListIterator = nodeList.listIterator();
-      while(nodeListIterator.hasNext()) {
-         Node node = nodeListIterator.next();
-         String key = node.getEntity().getType() + ":" + node.getEntity().getId();
-         nodeMap.put(key, node);
-      }
+      // The graph indexes the edges of every node, so printing all nodes
+      // with their edges no longer scans the whole edge list per node
+      TopologyGraph graph = new TopologyGraph(conn, dcRef);
 
       //Display each and every node and all the edges containing that node in the topology graph. 
-      Iterator nodeIterator = nodeMap.entrySet().iterator();
-      while (nodeIterator.hasNext()) {
-
-         Map.Entry entry = (Map.Entry) nodeIterator.next();
-         Node node = nodeMap.get(entry.getKey());
-
+      for (Node node : graph.getNodes()) {
          System.out.println("--------------------------------------------------------------------");
          System.out.println("Node Type - " + node.getEntity().getType());
          System.out.println("Node name - " + node.getName());
          System.out.println("Edges containing this node \nOutput Format : <Source Node> <Destination Node> <Edge Status>");
 
-         List<Edge> edgeList = smsTopologyMap.getEdge();
-         ListIterator<Edge> edgeListIterator = edgeList.listIterator();
-         while (edgeListIterator.hasNext()) {
-            Edge edge = edgeListIterator.next();
-            if(edge.getSourceEntity().getId().equals(node.getEntity().getId()) || 
-               edge.getDestEntity().getId().equals(node.getEntity().getId())) {
-               String srcKey = edge.getSourceEntity().getType() + ":" + edge.getSourceEntity().getId();
-               String destKey = edge.getDestEntity().getType() + ":" + edge.getDestEntity().getId();
-               System.out.println(nodeMap.get(srcKey).getName()+ " " +
-                                  nodeMap.get(destKey).getName()+ " " +
-                                  edge.getStatus());
-            }
+         for (Edge edge : graph.getEdges(node.getEntity())) {
+            System.out.println(name(graph.getNode(edge.getSourceEntity())) + " " +
+                               name(graph.getNode(edge.getDestEntity())) + " " +
+                               edge.getStatus());
          }
       }
    }
 
+   private static String name(Node node) {
+      return node == null ? "<unknown>" : node.getName();
+   }
+
    private EntityReference getDcEntityReference() throws Exception {
       ManagedObjectReference dcMoRef = getDatacenterByName(dcName);
       if (dcMoRef == null) {
@@ -111,7 +89,18 @@ public class QueryTopology {
    }
 
    private ManagedObjectReference getDatacenterByName(String datacenterName) throws Exception {
-      ManagedObjectReference retVal = null;
+      // A datacenter directly below the root folder has its name as
+      // inventory path, SearchIndex resolves it without listing every
+      // datacenter.
+      ManagedObjectReference retVal =
+         conn.getVimPort().findByInventoryPath(
+            conn.getVimServiceContent().getSearchIndex(), datacenterName);
+      if (retVal != null && "Datacenter".equals(retVal.getType())) {
+         return retVal;
+      }
+      retVal = null;
+
+      // Datacenters nested in folders are found by name
       ManagedObjectReference rootFolder = conn.getVimServiceContent().getRootFolder();
 
       TraversalSpec tSpec = getDatacenterTraversalSpec();
@@ -0,0 +1,520 @@
+package com.vmware.apputils.vim25;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ * DatastoreDownloader
+ *
+ * Downloads datastore files through the HTTP file access interface
+ * (https://server/folder/path?dcPath=...&dsName=...).
+ *
+ * Files are fetched by a pool of {@link #setParallelism(int)} threads. A file
+ * larger than {@link #setSegmentSize(long)} is split into segments that are
+ * fetched in parallel with HTTP Range requests, so one large -flat.vmdk is not
+ * limited to a single TCP stream. Data is written with positional FileChannel
+ * writes through a pool of large buffers that are reused for every file.
+ *
+ * A file is written to "name.part" and renamed once it is complete. Every
+ * finished segment is forced to disk before it is recorded in
+ * "name.part.progress", so an interrupted download that is submitted again
+ * continues after the last verified segment instead of from the beginning. A
+ * target that already exists with the size of the remote file is skipped.
+ * Servers that ignore Range requests get one stream per file, which cannot be
+ * resumed.
+ *
+ * Files can be submitted while earlier ones are still downloading.
+ *
+ * Usage:
+ * DatastoreDownloader downloader = new DatastoreDownloader(cookie);
+ * downloader.submit(fileUrl, new File("backup/vm-flat.vmdk"));
+ * long bytes = downloader.await();
+ * downloader.close();
+ * </pre>
+ */
+public class DatastoreDownloader implements Closeable {
+
+   public static final int DEFAULT_PARALLELISM = 4;
+   public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+   public static final int BUFFER_SIZE = 1024 * 1024;
+
+   private static final String PART_SUFFIX = ".part";
+   private static final String PROGRESS_SUFFIX = ".part.progress";
+
+   private class Transfer {
+      private final String url;
+      private final File target;
+      private final File part;
+      private final File progress;
+      private final AtomicInteger remaining = new AtomicInteger();
+      private FileChannel channel = null;
+      private Writer progressWriter = null;
+      private volatile Throwable failure = null;
+
+      private Transfer(String url, File target) {
+         this.url = url;
+         this.target = target;
+         this.part = new File(target.getPath() + PART_SUFFIX);
+         this.progress = new File(target.getPath() + PROGRESS_SUFFIX);
+      }
+   }
+
+   private final String cookie;
+   private final AtomicLong bytesDownloaded = new AtomicLong();
+   private final List<Transfer> transfers = new ArrayList<Transfer>();
+
+   private int parallelism = DEFAULT_PARALLELISM;
+   private long segmentSize = DEFAULT_SEGMENT_SIZE;
+   private ExecutorService executor = null;
+   private BlockingQueue<ByteBuffer> buffers = null;
+   private int pending = 0;
+
+   /**
+    * @param cookie
+    *           session cookie sent with every request, e.g.
+    *           vmware_soap_session="..."
+    */
+   public DatastoreDownloader(String cookie) {
+      this.cookie = cookie;
+   }
+
+   /**
+    * @param parallelism
+    *           number of files or segments downloaded at the same time
+    */
+   public synchronized void setParallelism(int parallelism) {
+      if (parallelism < 1) {
+         throw new IllegalArgumentException("parallelism must be positive");
+      }
+      if (executor != null) {
+         throw new IllegalStateException("downloader already started");
+      }
+      this.parallelism = parallelism;
+   }
+
+   /**
+    * @param segmentSize
+    *           bytes per Range request; also the granularity of resuming
+    */
+   public synchronized void setSegmentSize(long segmentSize) {
+      if (segmentSize < BUFFER_SIZE) {
+         throw new IllegalArgumentException("segment size must be at least "
+               + BUFFER_SIZE);
+      }
+      this.segmentSize = segmentSize;
+   }
+
+   /**
+    * @return bytes received so far
+    */
+   public long getBytesDownloaded() {
+      return bytesDownloaded.get();
+   }
+
+   /**
+    * Starts downloading a file in the background.
+    *
+    * @param url
+    *           file URL, with blanks already escaped
+    * @param target
+    *           local file; its directory must exist
+    */
+   public synchronized void submit(String url, File target) {
+      if (executor == null) {
+         buffers = new ArrayBlockingQueue<ByteBuffer>(parallelism);
+         for (int i = 0; i < parallelism; ++i) {
+            buffers.add(ByteBuffer.allocate(BUFFER_SIZE));
+         }
+         executor =
+               Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable r) {
+                     Thread t = new Thread(r, "DatastoreDownloader");
+                     t.setDaemon(true);
+                     return t;
+                  }
+               });
+      }
+      final Transfer transfer = new Transfer(url, target);
+      transfers.add(transfer);
+      ++pending;
+      executor.execute(new Runnable() {
+         @Override
+         public void run() {
+            try {
+               start(transfer);
+            } catch (Throwable t) {
+               finish(transfer, t);
+            }
+         }
+      });
+   }
+
+   /**
+    * Waits until every submitted file is downloaded or failed. Failed files
+    * keep their partial data and continue where they stopped when they are
+    * submitted again.
+    *
+    * @return bytes received so far
+    * @throws IOException
+    *            if a download failed; the other downloads are completed
+    *            first
+    * @throws InterruptedException
+    */
+   public synchronized long await() throws IOException, InterruptedException {
+      while (pending > 0) {
+         wait();
+      }
+      int failed = 0;
+      Throwable first = null;
+      for (Transfer transfer : transfers) {
+         if (transfer.failure != null) {
+            System.out.println("Download of " + transfer.target + " failed - "
+                  + transfer.failure.getMessage());
+            if (first == null) {
+               first = transfer.failure;
+            }
+            ++failed;
+         }
+      }
+      int total = transfers.size();
+      transfers.clear();
+      if (first != null) {
+         throw new IOException(failed + " of " + total
+               + " downloads failed", first);
+      }
+      return bytesDownloaded.get();
+   }
+
+   /**
+    * Stops the downloader threads; unfinished downloads can be resumed
+    * later.
+    */
+   @Override
+   public synchronized void close() {
+      if (executor != null) {
+         executor.shutdownNow();
+      }
+   }
+
+   private HttpURLConnection open(String url, String range)
+         throws IOException {
+      HttpURLConnection conn =
+            (HttpURLConnection) new URL(url).openConnection();
+      conn.setDoInput(true);
+      conn.setUseCaches(false);
+      conn.setRequestMethod("GET");
+      conn.setRequestProperty("Cookie", cookie);
+      if (range != null) {
+         conn.setRequestProperty("Range", "bytes=" + range);
+      }
+      return conn;
+   }
+
+   /*
+    * Asks for the first byte. A 206 answer carries the file size in
+    * Content-Range; a 200 answer means the server ignores ranges and already
+    * sends the whole file.
+    */
+   private void start(Transfer transfer) throws IOException,
+         InterruptedException {
+      HttpURLConnection conn = open(transfer.url, "0-0");
+      try {
+         int status = conn.getResponseCode();
+         if (status == HttpURLConnection.HTTP_OK) {
+            download(transfer, conn);
+            return;
+         }
+         if (status == 416) {
+            // Requested range not satisfiable: the file is empty
+            new FileOutputStream(transfer.target).close();
+            finish(transfer, null);
+            return;
+         }
+         if (status != HttpURLConnection.HTTP_PARTIAL) {
+            throw new IOException("GET " + transfer.url + " failed: HTTP "
+                  + status + " " + conn.getResponseMessage());
+         }
+         String contentRange = conn.getHeaderField("Content-Range");
+         long length = -1;
+         if (contentRange != null && contentRange.indexOf('/') >= 0) {
+            String total =
+                  contentRange.substring(contentRange.indexOf('/') + 1).trim();
+            if (!"*".equals(total)) {
+               length = Long.parseLong(total);
+            }
+         }
+         if (length < 0) {
+            throw new IOException("No file size in Content-Range of "
+                  + transfer.url + ": " + contentRange);
+         }
+         InputStream in = conn.getInputStream();
+         while (in.read() >= 0) {
+            // drain the single byte so the connection can be reused
+         }
+         in.close();
+         startSegments(transfer, length);
+      } finally {
+         conn.disconnect();
+      }
+   }
+
+   private void startSegments(final Transfer transfer, long length)
+         throws IOException {
+      if (transfer.target.isFile() && transfer.target.length() == length) {
+         System.out.println("Already downloaded " + transfer.target);
+         finish(transfer, null);
+         return;
+      }
+      long size;
+      synchronized (this) {
+         size = segmentSize;
+      }
+      int segments = (int) Math.max(1, (length + size - 1) / size);
+      String header = length + " " + size;
+      BitSet done = readProgress(transfer, header);
+      boolean resumed = !done.isEmpty();
+      if (!resumed) {
+         transfer.part.delete();
+      }
+      RandomAccessFile file = new RandomAccessFile(transfer.part, "rw");
+      file.setLength(length);
+      transfer.channel = file.getChannel();
+      transfer.progressWriter = new FileWriter(transfer.progress, resumed);
+      if (!resumed) {
+         transfer.progressWriter.write(header + "\n");
+         transfer.progressWriter.flush();
+      }
+      int remaining = segments - done.cardinality();
+      if (resumed) {
+         System.out.println("Resuming " + transfer.target + ", "
+               + done.cardinality() + " of " + segments + " segments present");
+      }
+      if (remaining <= 0) {
+         complete(transfer);
+         return;
+      }
+      transfer.remaining.set(remaining);
+      for (int i = 0; i < segments; ++i) {
+         if (done.get(i)) {
+            continue;
+         }
+         final int segment = i;
+         final long from = i * size;
+         final long to = Math.min(length, from + size) - 1;
+         executor.execute(new Runnable() {
+            @Override
+            public void run() {
+               Throwable failure = null;
+               try {
+                  downloadSegment(transfer, segment, from, to);
+               } catch (Throwable t) {
+                  failure = t;
+               }
+               segmentDone(transfer, failure);
+            }
+         });
+      }
+   }
+
+   /*
+    * Returns the segments recorded as complete, or none if the progress file
+    * is missing or belongs to a different file size or segment size.
+    */
+   private BitSet readProgress(Transfer transfer, String header) {
+      BitSet done = new BitSet();
+      if (!transfer.progress.isFile() || !transfer.part.isFile()) {
+         return done;
+      }
+      try {
+         BufferedReader reader =
+               new BufferedReader(new FileReader(transfer.progress));
+         try {
+            if (!header.equals(reader.readLine())) {
+               return done;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+               if (!line.isEmpty()) {
+                  done.set(Integer.parseInt(line.trim()));
+               }
+            }
+         } finally {
+            reader.close();
+         }
+      } catch (Exception e) {
+         // A torn last line only costs that segment
+         System.out.println("Ignoring part of " + transfer.progress + " - "
+               + e.getMessage());
+      }
+      return done;
+   }
+
+   private void downloadSegment(Transfer transfer, int segment, long from,
+         long to) throws IOException, InterruptedException {
+      ByteBuffer buffer = buffers.take();
+      HttpURLConnection conn = null;
+      try {
+         conn = open(transfer.url, from + "-" + to);
+         int status = conn.getResponseCode();
+         if (status != HttpURLConnection.HTTP_PARTIAL) {
+            throw new IOException("GET " + transfer.url + " bytes " + from
+                  + "-" + to + " failed: HTTP " + status + " "
+                  + conn.getResponseMessage());
+         }
+         long received =
+               copy(conn.getInputStream(), transfer.channel, from, buffer);
+         if (received != to - from + 1) {
+            throw new IOException("Short segment of " + transfer.url
+                  + ": expected " + (to - from + 1) + " bytes, got "
+                  + received);
+         }
+      } finally {
+         buffers.put(buffer);
+         if (conn != null) {
+            conn.disconnect();
+         }
+      }
+      // Only data that reached the disk is recorded as downloaded
+      transfer.channel.force(false);
+      synchronized (transfer) {
+         transfer.progressWriter.write(segment + "\n");
+         transfer.progressWriter.flush();
+      }
+   }
+
+   private void segmentDone(Transfer transfer, Throwable failure) {
+      if (failure != null && transfer.failure == null) {
+         transfer.failure = failure;
+      }
+      if (transfer.remaining.decrementAndGet() > 0) {
+         return;
+      }
+      try {
+         if (transfer.failure == null) {
+            complete(transfer);
+         } else {
+            closeFiles(transfer);
+            finish(transfer, transfer.failure);
+         }
+      } catch (Throwable t) {
+         finish(transfer, t);
+      }
+   }
+
+   private void complete(Transfer transfer) throws IOException {
+      closeFiles(transfer);
+      if (transfer.target.exists() && !transfer.target.delete()) {
+         throw new IOException("Cannot replace " + transfer.target);
+      }
+      if (!transfer.part.renameTo(transfer.target)) {
+         throw new IOException("Cannot rename " + transfer.part + " to "
+               + transfer.target);
+      }
+      transfer.progress.delete();
+      finish(transfer, null);
+   }
+
+   private void closeFiles(Transfer transfer) throws IOException {
+      try {
+         if (transfer.channel != null) {
+            transfer.channel.close();
+         }
+      } finally {
+         if (transfer.progressWriter != null) {
+            transfer.progressWriter.close();
+         }
+      }
+   }
+
+   /*
+    * The server sent the whole file in answer to the probe.
+    */
+   private void download(Transfer transfer, HttpURLConnection conn)
+         throws IOException, InterruptedException {
+      transfer.progress.delete();
+      // open first, an unwritable file must not cost a pooled buffer
+      FileChannel channel = new FileOutputStream(transfer.part).getChannel();
+      ByteBuffer buffer = null;
+      try {
+         buffer = buffers.take();
+         long received = copy(conn.getInputStream(), channel, 0, buffer);
+         long expected = conn.getContentLengthLong();
+         if (expected >= 0 && received != expected) {
+            throw new IOException("Short download of " + transfer.url
+                  + ": expected " + expected + " bytes, got " + received);
+         }
+         channel.force(false);
+      } finally {
+         if (buffer != null) {
+            buffers.put(buffer);
+         }
+         channel.close();
+      }
+      complete(transfer);
+   }
+
+   /*
+    * Fills the buffer from the stream before each write so the file is
+    * written in BUFFER_SIZE blocks, not in network packet sized pieces.
+    */
+   private long copy(InputStream in, FileChannel channel, long position,
+         ByteBuffer buffer) throws IOException {
+      byte[] array = buffer.array();
+      long received = 0;
+      boolean eof = false;
+      try {
+         while (!eof) {
+            int filled = 0;
+            while (filled < array.length) {
+               int n = in.read(array, filled, array.length - filled);
+               if (n < 0) {
+                  eof = true;
+                  break;
+               }
+               filled += n;
+            }
+            buffer.clear();
+            buffer.limit(filled);
+            long pos = position + received;
+            while (buffer.hasRemaining()) {
+               pos += channel.write(buffer, pos);
+            }
+            received += filled;
+            bytesDownloaded.addAndGet(filled);
+         }
+      } finally {
+         in.close();
+      }
+      return received;
+   }
+
+   private synchronized void finish(Transfer transfer, Throwable failure) {
+      transfer.failure = failure;
+      --pending;
+      notifyAll();
+   }
+}
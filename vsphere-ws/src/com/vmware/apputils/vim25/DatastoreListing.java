@@ -0,0 +1,396 @@
+package com.vmware.apputils.vim25;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * <pre>
+ * DatastoreListing
+ *
+ * Reads the HTML directory listing of the HTTP file access interface
+ * (https://server/folder/path?dcPath=...&dsName=...) one entry at a time.
+ *
+ * The page is tokenized in a single pass straight from the connection, so
+ * the first entries are available, and can be downloaded, while the rest of
+ * a large listing is still arriving. Only the current row is held in memory.
+ *
+ * Each {@link Entry} carries the link with "&amp;amp;" and the escaped ".",
+ * "-" and "_" decoded, the displayed name and, when the row shows them, the
+ * size and the modification time. Links back to the folder index
+ * ("folder?...") are skipped.
+ *
+ * Usage:
+ * DatastoreListing listing = new DatastoreListing(new InputStreamReader(
+ *       conn.getInputStream(), "UTF-8"));
+ * for (DatastoreListing.Entry e = listing.next(); e != null; e = listing.next()) {
+ *    ...
+ * }
+ * listing.close();
+ * </pre>
+ */
+public class DatastoreListing implements Closeable {
+
+   /**
+    * One file of the listing.
+    */
+   public static class Entry {
+      private final String href;
+      private final String name;
+      private final long size;
+      private final long lastModified;
+      private final String lastModifiedText;
+
+      private Entry(String href, String name, long size, long lastModified,
+            String lastModifiedText) {
+         this.href = href;
+         this.name = name;
+         this.size = size;
+         this.lastModified = lastModified;
+         this.lastModifiedText = lastModifiedText;
+      }
+
+      /**
+       * @return link of the file, relative to the server, e.g.
+       *         /folder/vm/vm.vmx?dcPath=dc&dsName=ds
+       */
+      public String getHref() {
+         return href;
+      }
+
+      /**
+       * @return file name as displayed, may be empty
+       */
+      public String getName() {
+         return name;
+      }
+
+      /**
+       * @return size in bytes, -1 if the listing shows none; the server
+       *         rounds large sizes to KB, MB or GB
+       */
+      public long getSize() {
+         return size;
+      }
+
+      /**
+       * @return modification time in milliseconds since the epoch, or -1
+       */
+      public long getLastModified() {
+         return lastModified;
+      }
+
+      /**
+       * @return modification time as displayed, or null
+       */
+      public String getLastModifiedText() {
+         return lastModifiedText;
+      }
+   }
+
+   private static final int NONE = 0;
+   private static final int ANCHOR = 1;
+   private static final int CELL = 2;
+
+   private static final String[] DATE_FORMATS = { "dd-MMM-yyyy HH:mm",
+         "dd-MMM-yyyy HH:mm:ss", "EEE, dd MMM yyyy HH:mm:ss zzz" };
+
+   private final Reader reader;
+   private final char[] buf = new char[8192];
+   private int pos = 0;
+   private int limit = 0;
+
+   private final StringBuilder text = new StringBuilder();
+   private final StringBuilder tag = new StringBuilder();
+   private int mode = NONE;
+
+   private String href = null;
+   private String name = null;
+   private final List<String> cells = new ArrayList<String>(4);
+
+   /**
+    * @param reader
+    *           the listing page; it is not buffered again
+    */
+   public DatastoreListing(Reader reader) {
+      this.reader = reader;
+   }
+
+   /**
+    * @return the next entry, or null at the end of the listing
+    * @throws IOException
+    */
+   public Entry next() throws IOException {
+      int c;
+      while ((c = read()) >= 0) {
+         if (c == '<') {
+            Entry entry = handleTag(readTag());
+            if (entry != null) {
+               return entry;
+            }
+         } else if (mode != NONE) {
+            text.append((char) c);
+         }
+      }
+      return finishEntry();
+   }
+
+   /**
+    * Reads all remaining entries.
+    */
+   public List<Entry> readAll() throws IOException {
+      List<Entry> entries = new ArrayList<Entry>();
+      for (Entry e = next(); e != null; e = next()) {
+         entries.add(e);
+      }
+      return entries;
+   }
+
+   @Override
+   public void close() throws IOException {
+      reader.close();
+   }
+
+   private int read() throws IOException {
+      if (pos == limit) {
+         limit = reader.read(buf, 0, buf.length);
+         pos = 0;
+         if (limit <= 0) {
+            limit = 0;
+            return -1;
+         }
+      }
+      return buf[pos++];
+   }
+
+   /*
+    * Returns the text between '<' and '>', quoted attribute values may
+    * contain '>'.
+    */
+   private String readTag() throws IOException {
+      tag.setLength(0);
+      char quote = 0;
+      int c;
+      while ((c = read()) >= 0) {
+         if (quote != 0) {
+            if (c == quote) {
+               quote = 0;
+            }
+         } else if (c == '"' || c == '\'') {
+            quote = (char) c;
+         } else if (c == '>') {
+            break;
+         }
+         tag.append((char) c);
+      }
+      return tag.toString();
+   }
+
+   private Entry handleTag(String t) {
+      int end = 0;
+      while (end < t.length() && !Character.isWhitespace(t.charAt(end))) {
+         ++end;
+      }
+      String tagName = t.substring(0, end).toLowerCase(Locale.US);
+      if (tagName.equals("a")) {
+         String link = attribute(t, "href");
+         if (link == null) {
+            return null;
+         }
+         link = decodeHref(link);
+         if (link.indexOf("folder?") != -1) {
+            return null;
+         }
+         Entry previous = finishEntry();
+         href = link;
+         mode = ANCHOR;
+         text.setLength(0);
+         return previous;
+      } else if (tagName.equals("/a")) {
+         if (mode == ANCHOR) {
+            name = decodeText(text.toString().trim());
+            mode = NONE;
+         }
+      } else if (tagName.equals("td")) {
+         if (href != null && mode != ANCHOR) {
+            mode = CELL;
+            text.setLength(0);
+         }
+      } else if (tagName.equals("/td")) {
+         if (mode == CELL) {
+            cells.add(decodeText(text.toString().trim()));
+            mode = NONE;
+         }
+      } else if (tagName.equals("/tr") || tagName.equals("/table")) {
+         return finishEntry();
+      }
+      return null;
+   }
+
+   private Entry finishEntry() {
+      if (href == null) {
+         return null;
+      }
+      long size = -1;
+      long lastModified = -1;
+      String lastModifiedText = null;
+      for (String cell : cells) {
+         long s = parseSize(cell);
+         if (s >= 0) {
+            size = s;
+            continue;
+         }
+         long t = parseDate(cell);
+         if (t >= 0) {
+            lastModified = t;
+            lastModifiedText = cell;
+         }
+      }
+      Entry entry =
+            new Entry(href, name == null ? "" : name, size, lastModified,
+                  lastModifiedText);
+      href = null;
+      name = null;
+      cells.clear();
+      mode = NONE;
+      return entry;
+   }
+
+   private static String attribute(String t, String attr) {
+      String lower = t.toLowerCase(Locale.US);
+      int i = lower.indexOf(attr + "=");
+      if (i < 0) {
+         return null;
+      }
+      i += attr.length() + 1;
+      if (i >= t.length()) {
+         return null;
+      }
+      char quote = t.charAt(i);
+      if (quote == '"' || quote == '\'') {
+         int end = t.indexOf(quote, i + 1);
+         return end < 0 ? t.substring(i + 1) : t.substring(i + 1, end);
+      }
+      int end = i;
+      while (end < t.length() && !Character.isWhitespace(t.charAt(end))) {
+         ++end;
+      }
+      return t.substring(i, end);
+   }
+
+   /*
+    * The same decoding the file access samples always applied to the links:
+    * "&amp;" and the escaped ".", "-" and "_". Other escapes such as %20 stay
+    * as they are, the link is requested again as is.
+    */
+   private static String decodeHref(String link) {
+      if (link.indexOf('&') < 0 && link.indexOf('%') < 0) {
+         return link;
+      }
+      StringBuilder sb = new StringBuilder(link.length());
+      for (int i = 0; i < link.length(); ++i) {
+         char c = link.charAt(i);
+         if (c == '&' && link.startsWith("&amp;", i)) {
+            sb.append('&');
+            i += 4;
+         } else if (c == '%' && i + 2 < link.length()) {
+            String hex = link.substring(i + 1, i + 3).toLowerCase(Locale.US);
+            if (hex.equals("2e")) {
+               sb.append('.');
+               i += 2;
+            } else if (hex.equals("2d")) {
+               sb.append('-');
+               i += 2;
+            } else if (hex.equals("5f")) {
+               sb.append('_');
+               i += 2;
+            } else {
+               sb.append(c);
+            }
+         } else {
+            sb.append(c);
+         }
+      }
+      return sb.toString();
+   }
+
+   private static String decodeText(String s) {
+      if (s.indexOf('&') < 0) {
+         return s;
+      }
+      return s.replace("&lt;", "<").replace("&gt;", ">")
+            .replace("&quot;", "\"").replace("&nbsp;", " ")
+            .replace("&amp;", "&");
+   }
+
+   /*
+    * "12345", "2.7 KB", "4 M", "1.5G" and the like; -1 for anything else.
+    */
+   private static long parseSize(String s) {
+      int i = 0;
+      int n = s.length();
+      while (i < n && (Character.isDigit(s.charAt(i)) || s.charAt(i) == '.')) {
+         ++i;
+      }
+      if (i == 0) {
+         return -1;
+      }
+      String number = s.substring(0, i);
+      while (i < n && s.charAt(i) == ' ') {
+         ++i;
+      }
+      long multiplier = 1;
+      if (i < n) {
+         switch (Character.toUpperCase(s.charAt(i))) {
+         case 'K':
+            multiplier = 1024L;
+            break;
+         case 'M':
+            multiplier = 1024L * 1024;
+            break;
+         case 'G':
+            multiplier = 1024L * 1024 * 1024;
+            break;
+         case 'T':
+            multiplier = 1024L * 1024 * 1024 * 1024;
+            break;
+         case 'B':
+            break;
+         default:
+            return -1;
+         }
+         ++i;
+         if (i < n && Character.toUpperCase(s.charAt(i)) == 'B') {
+            ++i;
+         }
+         if (i != n) {
+            return -1;
+         }
+      }
+      try {
+         return (long) (Double.parseDouble(number) * multiplier);
+      } catch (NumberFormatException e) {
+         return -1;
+      }
+   }
+
+   private static long parseDate(String s) {
+      if (s.length() < 8 || s.indexOf(':') < 0) {
+         return -1;
+      }
+      for (String format : DATE_FORMATS) {
+         try {
+            // SimpleDateFormat is not thread safe, one per call
+            return new SimpleDateFormat(format, Locale.US).parse(s).getTime();
+         } catch (ParseException e) {
+            // try the next format
+         }
+      }
+      return -1;
+   }
+}
@@ -0,0 +1,290 @@
+package com.vmware.apputils.vim25;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ * DatastoreUploader
+ *
+ * Uploads local files to a datastore through the HTTP file access interface
+ * (https://server/folder/path?dcPath=...&dsName=...).
+ *
+ * A fixed pool of {@link #setParallelism(int)} threads uploads that many files
+ * at the same time, each over its own connection. Files are read through
+ * their FileChannel into a pool of large buffers that are reused for every
+ * file, and sent with a fixed Content-Length, so files larger than 2 GB are
+ * not limited by an int sized chunk length.
+ *
+ * For every finished file the bytes, time and throughput are printed and
+ * returned by {@link #await()} as {@link FileMetrics}.
+ *
+ * Usage:
+ * DatastoreUploader uploader = new DatastoreUploader(cookie);
+ * uploader.submit(fileUrl, new File("vm/vm-flat.vmdk"));
+ * for (DatastoreUploader.FileMetrics m : uploader.await()) { ... }
+ * uploader.close();
+ * </pre>
+ */
+public class DatastoreUploader implements Closeable {
+
+   public static final int DEFAULT_PARALLELISM = 4;
+   public static final int BUFFER_SIZE = 1024 * 1024;
+
+   /**
+    * Result of one upload.
+    */
+   public static class FileMetrics {
+      private final File file;
+      private final String url;
+      private final long bytes;
+      private final long elapsedMillis;
+      private final Throwable failure;
+
+      private FileMetrics(File file, String url, long bytes,
+            long elapsedMillis, Throwable failure) {
+         this.file = file;
+         this.url = url;
+         this.bytes = bytes;
+         this.elapsedMillis = elapsedMillis;
+         this.failure = failure;
+      }
+
+      public File getFile() {
+         return file;
+      }
+
+      public String getUrl() {
+         return url;
+      }
+
+      /**
+       * @return bytes sent, also for a failed upload
+       */
+      public long getBytes() {
+         return bytes;
+      }
+
+      public long getElapsedMillis() {
+         return elapsedMillis;
+      }
+
+      /**
+       * @return megabytes (2^20 bytes) per second
+       */
+      public double getMegabytesPerSecond() {
+         return elapsedMillis == 0 ? 0 : bytes * 1000.0 / elapsedMillis
+               / (1024 * 1024);
+      }
+
+      /**
+       * @return the cause of a failed upload, or null
+       */
+      public Throwable getFailure() {
+         return failure;
+      }
+
+      @Override
+      public String toString() {
+         return file + ": " + bytes + " bytes in " + elapsedMillis + " ms ("
+               + String.format("%.1f", getMegabytesPerSecond()) + " MB/s)"
+               + (failure == null ? "" : " failed - " + failure.getMessage());
+      }
+   }
+
+   private final String cookie;
+   private final AtomicLong bytesUploaded = new AtomicLong();
+   private final List<FileMetrics> results = new ArrayList<FileMetrics>();
+
+   private int parallelism = DEFAULT_PARALLELISM;
+   private ExecutorService executor = null;
+   private BlockingQueue<ByteBuffer> buffers = null;
+   private int pending = 0;
+
+   /**
+    * @param cookie
+    *           session cookie sent with every request, e.g.
+    *           vmware_soap_session="..."
+    */
+   public DatastoreUploader(String cookie) {
+      this.cookie = cookie;
+   }
+
+   /**
+    * @param parallelism
+    *           number of files uploaded at the same time
+    */
+   public synchronized void setParallelism(int parallelism) {
+      if (parallelism < 1) {
+         throw new IllegalArgumentException("parallelism must be positive");
+      }
+      if (executor != null) {
+         throw new IllegalStateException("uploader already started");
+      }
+      this.parallelism = parallelism;
+   }
+
+   /**
+    * @return bytes sent so far, over all files
+    */
+   public long getBytesUploaded() {
+      return bytesUploaded.get();
+   }
+
+   /**
+    * Starts uploading a file in the background.
+    *
+    * @param url
+    *           datastore URL of the file, with blanks already escaped
+    * @param file
+    *           local file
+    */
+   public synchronized void submit(final String url, final File file) {
+      if (executor == null) {
+         buffers = new ArrayBlockingQueue<ByteBuffer>(parallelism);
+         for (int i = 0; i < parallelism; ++i) {
+            buffers.add(ByteBuffer.allocate(BUFFER_SIZE));
+         }
+         executor =
+               Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable r) {
+                     Thread t = new Thread(r, "DatastoreUploader");
+                     t.setDaemon(true);
+                     return t;
+                  }
+               });
+      }
+      ++pending;
+      executor.execute(new Runnable() {
+         @Override
+         public void run() {
+            long start = System.currentTimeMillis();
+            long[] sent = new long[1];
+            Throwable failure = null;
+            try {
+               upload(url, file, sent);
+            } catch (Throwable t) {
+               failure = t;
+            }
+            finish(new FileMetrics(file, url, sent[0],
+                  System.currentTimeMillis() - start, failure));
+         }
+      });
+   }
+
+   /**
+    * Waits until every submitted file is uploaded or failed.
+    *
+    * @return metrics of every file submitted since the last call
+    * @throws IOException
+    *            if an upload failed; the other uploads are completed first
+    * @throws InterruptedException
+    */
+   public synchronized List<FileMetrics> await() throws IOException,
+         InterruptedException {
+      while (pending > 0) {
+         wait();
+      }
+      List<FileMetrics> done = new ArrayList<FileMetrics>(results);
+      results.clear();
+      int failed = 0;
+      Throwable first = null;
+      for (FileMetrics metrics : done) {
+         if (metrics.getFailure() != null) {
+            if (first == null) {
+               first = metrics.getFailure();
+            }
+            ++failed;
+         }
+      }
+      if (first != null) {
+         throw new IOException(failed + " of " + done.size()
+               + " uploads failed", first);
+      }
+      return done;
+   }
+
+   /**
+    * Stops the uploader threads.
+    */
+   @Override
+   public synchronized void close() {
+      if (executor != null) {
+         executor.shutdownNow();
+      }
+   }
+
+   private void upload(String url, File file, long[] sent)
+         throws IOException, InterruptedException {
+      long length = file.length();
+      // open first, a missing file must not cost a pooled buffer
+      FileChannel channel = new FileInputStream(file).getChannel();
+      ByteBuffer buffer = null;
+      HttpURLConnection conn = null;
+      try {
+         buffer = buffers.take();
+         conn = (HttpURLConnection) new URL(url).openConnection();
+         conn.setDoInput(true);
+         conn.setDoOutput(true);
+         conn.setUseCaches(false);
+         conn.setRequestMethod("PUT");
+         conn.setRequestProperty("Cookie", cookie);
+         conn.setRequestProperty("Content-Type", "application/octet-stream");
+         conn.setFixedLengthStreamingMode(length);
+         OutputStream out = conn.getOutputStream();
+         try {
+            byte[] array = buffer.array();
+            long position = 0;
+            while (position < length) {
+               buffer.clear();
+               int n = channel.read(buffer, position);
+               if (n < 0) {
+                  throw new IOException(file + " shrank during the upload");
+               }
+               out.write(array, 0, n);
+               position += n;
+               sent[0] = position;
+               bytesUploaded.addAndGet(n);
+            }
+         } finally {
+            out.close();
+         }
+         int status = conn.getResponseCode();
+         if (status >= 300) {
+            throw new IOException("PUT " + url + " failed: HTTP " + status
+                  + " " + conn.getResponseMessage());
+         }
+      } finally {
+         if (buffer != null) {
+            buffers.put(buffer);
+         }
+         channel.close();
+         if (conn != null) {
+            conn.disconnect();
+         }
+      }
+   }
+
+   private synchronized void finish(FileMetrics metrics) {
+      System.out.println("Uploaded " + metrics);
+      results.add(metrics);
+      --pending;
+      notifyAll();
+   }
+}
@@ -0,0 +1,284 @@
+package com.vmware.apputils.vim25;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RuntimeFaultFaultMsg;
+import com.vmware.vim25.ServiceContent;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.VimPortType;
+
+/**
+ * <pre>
+ * EntityLookup
+ *
+ * Resolves managed entities by name, inventory path and UUID without
+ * scanning the inventory once per lookup.
+ *
+ * Names: the first lookup for a type retrieves the name of every object of
+ * that type through one ContainerView (paged with {@link PropertyPager}) and
+ * builds a hash index; all later lookups for the type are map hits. When the
+ * lookup is backed by an {@link InventoryCache} the cache's index, kept
+ * current by WaitForUpdatesEx, is used instead and nothing is retrieved.
+ *
+ * Inventory paths and UUIDs are resolved on the server with
+ * SearchIndex.FindByInventoryPath / FindByUuid and the hits are remembered.
+ *
+ * Snapshot indexes are not refreshed on their own; long running jobs either
+ * use the InventoryCache backed variant or call {@link #invalidate()}.
+ *
+ * Usage:
+ * EntityLookup lookup = new EntityLookup(vimPort, serviceContent);
+ * ManagedObjectReference host = lookup.findByName("HostSystem", hostName);
+ * ManagedObjectReference vm = lookup.findByInventoryPath("DC/vm/web01");
+ * </pre>
+ */
+public class EntityLookup {
+
+   private final VimPortType vimPort;
+   private final ServiceContent serviceContent;
+   private final InventoryCache cache;
+
+   private final ConcurrentMap<String, Map<String, List<ManagedObjectReference>>> nameIndex =
+         new ConcurrentHashMap<String, Map<String, List<ManagedObjectReference>>>();
+   private final ConcurrentMap<String, ManagedObjectReference> pathIndex =
+         new ConcurrentHashMap<String, ManagedObjectReference>();
+   private final ConcurrentMap<String, ManagedObjectReference> uuidIndex =
+         new ConcurrentHashMap<String, ManagedObjectReference>();
+
+   /**
+    * Creates a lookup that builds its name indexes on demand.
+    *
+    * @param vimPort
+    *           service stub
+    * @param serviceContent
+    *           service content of the session
+    */
+   public EntityLookup(VimPortType vimPort, ServiceContent serviceContent) {
+      this(vimPort, serviceContent, null);
+   }
+
+   /**
+    * Creates a lookup whose name lookups are answered by a started
+    * {@link InventoryCache}.
+    */
+   public EntityLookup(VimPortType vimPort, ServiceContent serviceContent,
+         InventoryCache cache) {
+      this.vimPort = vimPort;
+      this.serviceContent = serviceContent;
+      this.cache = cache;
+   }
+
+   /**
+    * Convenience constructor for a pooled session.
+    */
+   public EntityLookup(ServiceConnection connection) {
+      this(connection.getVimPort(), connection.getServiceContent(), null);
+   }
+
+   /**
+    * Finds an entity by its exact name. When several entities of the type
+    * share the name the first one retrieved is returned.
+    *
+    * @param type
+    *           managed object type, e.g. HostSystem
+    * @param name
+    *           entity name
+    * @return the managed object reference, or null if there is none
+    * @throws RuntimeFaultFaultMsg
+    */
+   public ManagedObjectReference findByName(String type, String name)
+         throws RuntimeFaultFaultMsg {
+      if (cache != null) {
+         return cache.findByName(type, name);
+      }
+      List<ManagedObjectReference> mors = getNameIndex(type).get(name);
+      return mors == null ? null : mors.get(0);
+   }
+
+   /**
+    * @return every entity of the type with the given name, empty if none
+    * @throws RuntimeFaultFaultMsg
+    */
+   public List<ManagedObjectReference> findAllByName(String type, String name)
+         throws RuntimeFaultFaultMsg {
+      if (cache != null) {
+         return cache.findAllByName(type, name);
+      }
+      List<ManagedObjectReference> mors = getNameIndex(type).get(name);
+      return mors == null ? Collections.<ManagedObjectReference> emptyList()
+            : Collections.unmodifiableList(mors);
+   }
+
+   /**
+    * Resolves many names of one type at once; costs at most one retrieval.
+    *
+    * @return map of name to managed object reference, names that were not
+    *         found are left out
+    * @throws RuntimeFaultFaultMsg
+    */
+   public Map<String, ManagedObjectReference> findByNames(String type,
+         Collection<String> names) throws RuntimeFaultFaultMsg {
+      Map<String, ManagedObjectReference> result =
+            new HashMap<String, ManagedObjectReference>();
+      for (String name : names) {
+         ManagedObjectReference mor = findByName(type, name);
+         if (mor != null) {
+            result.put(name, mor);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Finds an entity by its inventory path, e.g. "DC1/host/cluster/esx01".
+    *
+    * @return the managed object reference, or null if there is none
+    * @throws RuntimeFaultFaultMsg
+    */
+   public ManagedObjectReference findByInventoryPath(String inventoryPath)
+         throws RuntimeFaultFaultMsg {
+      ManagedObjectReference mor = pathIndex.get(inventoryPath);
+      if (mor == null) {
+         mor =
+               vimPort.findByInventoryPath(serviceContent.getSearchIndex(),
+                     inventoryPath);
+         if (mor != null) {
+            pathIndex.put(inventoryPath, mor);
+         }
+      }
+      return mor;
+   }
+
+   /**
+    * Finds a virtual machine or host by UUID anywhere in the inventory.
+    *
+    * @param uuid
+    *           the UUID
+    * @param vmSearch
+    *           true for virtual machines, false for hosts
+    * @param instanceUuid
+    *           for virtual machines, true if uuid is the vCenter instance
+    *           UUID rather than the BIOS UUID
+    * @return the managed object reference, or null if there is none
+    * @throws RuntimeFaultFaultMsg
+    */
+   public ManagedObjectReference findByUuid(String uuid, boolean vmSearch,
+         boolean instanceUuid) throws RuntimeFaultFaultMsg {
+      String key =
+            (vmSearch ? (instanceUuid ? "instance:" : "vm:") : "host:") + uuid;
+      ManagedObjectReference mor = uuidIndex.get(key);
+      if (mor == null) {
+         mor =
+               vimPort.findByUuid(serviceContent.getSearchIndex(), null, uuid,
+                     vmSearch, vmSearch ? instanceUuid : null);
+         if (mor != null) {
+            uuidIndex.put(key, mor);
+         }
+      }
+      return mor;
+   }
+
+   /**
+    * Drops every index built so far; the next lookups go to the server again.
+    */
+   public void invalidate() {
+      nameIndex.clear();
+      pathIndex.clear();
+      uuidIndex.clear();
+   }
+
+   private Map<String, List<ManagedObjectReference>> getNameIndex(String type)
+         throws RuntimeFaultFaultMsg {
+      Map<String, List<ManagedObjectReference>> byName = nameIndex.get(type);
+      if (byName == null) {
+         synchronized (this) {
+            byName = nameIndex.get(type);
+            if (byName == null) {
+               byName = loadNames(type);
+               nameIndex.put(type, byName);
+            }
+         }
+      }
+      return byName;
+   }
+
+   /*
+    * One ContainerView over the whole inventory, limited to the type, with
+    * only the name property.
+    */
+   private Map<String, List<ManagedObjectReference>> loadNames(String type)
+         throws RuntimeFaultFaultMsg {
+      List<String> types = new ArrayList<String>(1);
+      types.add(type);
+      ManagedObjectReference view =
+            vimPort.createContainerView(serviceContent.getViewManager(),
+                  serviceContent.getRootFolder(), types, true);
+      try {
+         TraversalSpec tSpec = new TraversalSpec();
+         tSpec.setName("traverseEntities");
+         tSpec.setPath("view");
+         tSpec.setSkip(Boolean.FALSE);
+         tSpec.setType("ContainerView");
+
+         ObjectSpec oSpec = new ObjectSpec();
+         oSpec.setObj(view);
+         oSpec.setSkip(Boolean.TRUE);
+         oSpec.getSelectSet().add(tSpec);
+
+         PropertySpec pSpec = new PropertySpec();
+         pSpec.setType(type);
+         pSpec.setAll(Boolean.FALSE);
+         pSpec.getPathSet().add("name");
+
+         PropertyFilterSpec fSpec = new PropertyFilterSpec();
+         fSpec.getObjectSet().add(oSpec);
+         fSpec.getPropSet().add(pSpec);
+         List<PropertyFilterSpec> fSpecList =
+               new ArrayList<PropertyFilterSpec>(1);
+         fSpecList.add(fSpec);
+
+         Map<String, List<ManagedObjectReference>> byName =
+               new HashMap<String, List<ManagedObjectReference>>();
+         PropertyPager pager =
+               new PropertyPager(vimPort, serviceContent.getPropertyCollector(),
+                     fSpecList, PropertyPager.DEFAULT_PAGE_SIZE);
+         try {
+            for (ObjectContent oc : pager) {
+               List<DynamicProperty> dps = oc.getPropSet();
+               if (dps == null || dps.isEmpty()) {
+                  continue;
+               }
+               String name = (String) dps.get(0).getVal();
+               List<ManagedObjectReference> mors = byName.get(name);
+               if (mors == null) {
+                  mors = new ArrayList<ManagedObjectReference>(1);
+                  byName.put(name, mors);
+               }
+               mors.add(oc.getObj());
+            }
+         } finally {
+            pager.close();
+         }
+         return byName;
+      } finally {
+         try {
+            vimPort.destroyView(view);
+         } catch (Exception e) {
+            // the view is released with the session
+         }
+      }
+   }
+}
@@ -0,0 +1,715 @@
+package com.vmware.apputils.vim25;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.FileTransferInformation;
+import com.vmware.vim25.GuestAuthentication;
+import com.vmware.vim25.GuestFileAttributes;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.ServiceContent;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.VirtualMachinePowerState;
+
+/**
+ * <pre>
+ * GuestFileDistributor
+ *
+ * Copies files into (or out of) the guests of many virtual machines at once.
+ *
+ * The host, power state and guest operations state of every virtual machine
+ * are retrieved with one property collector call. The machines are then
+ * queued per host, and at most {@link #setPerHostLimit(int)} transfers run
+ * against one host at the same time, while {@link #setParallelism(int)}
+ * transfers run in total. Machines that are not powered on or whose guest
+ * operations are not ready are reported as failed without a transfer.
+ *
+ * Every source file is read only once: a local file is mapped read-only and
+ * its pages are shared by all the uploads, content given in memory is sent
+ * from the caller's array. Each upload asks for its own URL with
+ * InitiateFileTransferToGuest and PUTs the content with a fixed length.
+ *
+ * For every virtual machine the bytes, time and outcome are printed and
+ * returned as {@link VmResult}, in the order the machines were given.
+ *
+ * Usage:
+ * GuestFileDistributor distributor = new GuestFileDistributor(vimPort,
+ *       serviceContent, serverHost);
+ * List&lt;GuestFile&gt; files = Arrays.asList(
+ *       GuestFile.fromFile(new File("bundle.tgz"), "/tmp/bundle.tgz"));
+ * for (VmResult r : distributor.distribute(vms, auth, files, null, true)) {
+ *    ...
+ * }
+ * distributor.close();
+ * </pre>
+ */
+public class GuestFileDistributor implements Closeable {
+
+   public static final int DEFAULT_PARALLELISM = 16;
+   public static final int DEFAULT_PER_HOST_LIMIT = 2;
+   public static final int BUFFER_SIZE = 1024 * 1024;
+
+   // largest part of a local file mapped at once
+   private static final long SEGMENT_SIZE = 256L * 1024 * 1024;
+
+   /**
+    * A file to place in the guests: its content and the path in the guest.
+    * The content is read when the first transfer starts and is shared by all
+    * transfers.
+    */
+   public static class GuestFile {
+      private final File localFile;
+      private final byte[] content;
+      private final String guestPath;
+      private final long size;
+      private ByteBuffer[] segments = null;
+
+      private GuestFile(File localFile, byte[] content, String guestPath,
+            long size) {
+         this.localFile = localFile;
+         this.content = content;
+         this.guestPath = guestPath;
+         this.size = size;
+      }
+
+      /**
+       * @param localFile
+       *           file to upload; must not change while it is distributed
+       * @param guestPath
+       *           full path of the file in the guests
+       */
+      public static GuestFile fromFile(File localFile, String guestPath) {
+         return new GuestFile(localFile, null, guestPath, localFile.length());
+      }
+
+      /**
+       * @param content
+       *           content to upload; not copied, must not be modified while
+       *           it is distributed
+       * @param guestPath
+       *           full path of the file in the guests
+       */
+      public static GuestFile fromBytes(byte[] content, String guestPath) {
+         return new GuestFile(null, content, guestPath, content.length);
+      }
+
+      public String getGuestPath() {
+         return guestPath;
+      }
+
+      public long getSize() {
+         return size;
+      }
+
+      @Override
+      public String toString() {
+         return (localFile != null ? localFile.getPath() : "<memory>")
+               + " -> " + guestPath;
+      }
+
+      /*
+       * Maps a local file read-only, in segments because a single mapping
+       * is limited to 2 GB.
+       */
+      private synchronized void open() throws IOException {
+         if (content != null || segments != null) {
+            return;
+         }
+         FileChannel channel = new FileInputStream(localFile).getChannel();
+         try {
+            if (channel.size() != size) {
+               throw new IOException(localFile + " changed size");
+            }
+            int count = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            ByteBuffer[] mapped = new ByteBuffer[count];
+            for (int i = 0; i < count; ++i) {
+               long position = i * SEGMENT_SIZE;
+               mapped[i] =
+                     channel.map(FileChannel.MapMode.READ_ONLY, position,
+                           Math.min(SEGMENT_SIZE, size - position));
+            }
+            segments = mapped;
+         } finally {
+            // the mappings stay valid after the channel is closed
+            channel.close();
+         }
+      }
+
+      private void writeTo(OutputStream out, byte[] buffer, long[] sent)
+            throws IOException {
+         if (content != null) {
+            for (int offset = 0; offset < content.length; offset +=
+                  BUFFER_SIZE) {
+               int n = Math.min(BUFFER_SIZE, content.length - offset);
+               out.write(content, offset, n);
+               sent[0] += n;
+            }
+            return;
+         }
+         ByteBuffer[] shared;
+         synchronized (this) {
+            shared = segments;
+         }
+         for (ByteBuffer segment : shared) {
+            // own position and limit, the pages are shared
+            ByteBuffer view = segment.duplicate();
+            while (view.hasRemaining()) {
+               int n = Math.min(buffer.length, view.remaining());
+               view.get(buffer, 0, n);
+               out.write(buffer, 0, n);
+               sent[0] += n;
+            }
+         }
+      }
+   }
+
+   /**
+    * Outcome of the transfers to or from one virtual machine.
+    */
+   public static class VmResult {
+      private final ManagedObjectReference vm;
+      private final ManagedObjectReference host;
+      private final long bytes;
+      private final long elapsedMillis;
+      private final Throwable failure;
+
+      private VmResult(ManagedObjectReference vm, ManagedObjectReference host,
+            long bytes, long elapsedMillis, Throwable failure) {
+         this.vm = vm;
+         this.host = host;
+         this.bytes = bytes;
+         this.elapsedMillis = elapsedMillis;
+         this.failure = failure;
+      }
+
+      public ManagedObjectReference getVm() {
+         return vm;
+      }
+
+      /**
+       * @return host the virtual machine runs on, null if unknown
+       */
+      public ManagedObjectReference getHost() {
+         return host;
+      }
+
+      /**
+       * @return bytes transferred, also for a failed virtual machine
+       */
+      public long getBytes() {
+         return bytes;
+      }
+
+      /**
+       * @return time from the first transfer request until the last
+       *         transfer ended, not counting the time queued for the host
+       */
+      public long getElapsedMillis() {
+         return elapsedMillis;
+      }
+
+      public boolean isSucceeded() {
+         return failure == null;
+      }
+
+      /**
+       * @return the cause of the failure, or null
+       */
+      public Throwable getFailure() {
+         return failure;
+      }
+
+      @Override
+      public String toString() {
+         return vm.getValue() + (host == null ? "" : " on " + host.getValue())
+               + ": " + bytes + " bytes in " + elapsedMillis + " ms"
+               + (failure == null ? "" : " failed - " + failure.getMessage());
+      }
+   }
+
+   /*
+    * A virtual machine with the state needed to schedule its transfers.
+    */
+   private static class Target {
+      private final int index;
+      private final ManagedObjectReference vm;
+      private ManagedObjectReference host = null;
+      private VirtualMachinePowerState powerState = null;
+      private Boolean guestOperationsReady = null;
+
+      private Target(int index, ManagedObjectReference vm) {
+         this.index = index;
+         this.vm = vm;
+      }
+   }
+
+   /*
+    * The transfers of one virtual machine.
+    */
+   private interface Transfer {
+      void run(ManagedObjectReference vm, byte[] buffer, long[] sent)
+            throws Exception;
+   }
+
+   /*
+    * Works off the queue of one host. Every target is polled from the queue
+    * exactly once, by a drainer or by abandon(), so each one is finished
+    * once whatever close() discards.
+    */
+   private class Drainer implements Runnable {
+      private final Queue<Target> queue;
+      private final VmResult[] results;
+      private final CountDownLatch done;
+      private final Transfer transfer;
+
+      private Drainer(Queue<Target> queue, VmResult[] results,
+            CountDownLatch done, Transfer transfer) {
+         this.queue = queue;
+         this.results = results;
+         this.done = done;
+         this.transfer = transfer;
+      }
+
+      @Override
+      public void run() {
+         Target target;
+         while (!closed && (target = queue.poll()) != null) {
+            finish(results, done, transfer(target, transfer), target);
+         }
+         if (closed) {
+            abandon();
+         }
+      }
+
+      private void abandon() {
+         Target target;
+         while ((target = queue.poll()) != null) {
+            finish(results, done, new VmResult(target.vm, target.host, 0, 0,
+                  new IllegalStateException(
+                        "GuestFileDistributor closed before the transfer")),
+                  target);
+         }
+      }
+   }
+
+   private final VimPortType vimPort;
+   private final ServiceContent serviceContent;
+   private final String transferHost;
+
+   private int parallelism = DEFAULT_PARALLELISM;
+   private int perHostLimit = DEFAULT_PER_HOST_LIMIT;
+   private ManagedObjectReference fileManager = null;
+   private ExecutorService executor = null;
+   private BlockingQueue<byte[]> buffers = null;
+   private volatile boolean closed = false;
+
+   /**
+    * @param transferHost
+    *           host name that replaces the "*" in guest file transfer URLs,
+    *           usually the host of the web service url
+    */
+   public GuestFileDistributor(VimPortType vimPort,
+         ServiceContent serviceContent, String transferHost) {
+      this.vimPort = vimPort;
+      this.serviceContent = serviceContent;
+      this.transferHost = transferHost;
+   }
+
+   /**
+    * Convenience constructor transferring through the host of the
+    * connection's url.
+    */
+   public GuestFileDistributor(ServiceConnection connection)
+         throws MalformedURLException {
+      this(connection.getVimPort(), connection.getServiceContent(), new URL(
+            connection.getUrl()).getHost());
+   }
+
+   /**
+    * @param parallelism
+    *           number of transfers run at the same time over all hosts
+    */
+   public synchronized void setParallelism(int parallelism) {
+      if (parallelism < 1) {
+         throw new IllegalArgumentException("parallelism must be positive");
+      }
+      if (executor != null) {
+         throw new IllegalStateException("distributor already started");
+      }
+      this.parallelism = parallelism;
+   }
+
+   /**
+    * @param perHostLimit
+    *           number of transfers run at the same time against one host
+    */
+   public synchronized void setPerHostLimit(int perHostLimit) {
+      if (perHostLimit < 1) {
+         throw new IllegalArgumentException("perHostLimit must be positive");
+      }
+      this.perHostLimit = perHostLimit;
+   }
+
+   /**
+    * Uploads files into the guests of many virtual machines. The files are
+    * uploaded one after the other to each machine; a machine stops at its
+    * first failed file.
+    *
+    * @param vms
+    *           virtual machines, powered on with guest operations ready
+    * @param auth
+    *           guest credentials, the same in every guest
+    * @param files
+    *           files to upload
+    * @param attributes
+    *           attributes of the created files, e.g.
+    *           GuestPosixFileAttributes; null for the guest's defaults
+    * @param overwrite
+    *           true to replace files that already exist in the guests
+    * @return one result per virtual machine, in the order given
+    */
+   public List<VmResult> distribute(Collection<ManagedObjectReference> vms,
+         final GuestAuthentication auth, final List<GuestFile> files,
+         GuestFileAttributes attributes, final boolean overwrite)
+         throws Exception {
+      for (GuestFile file : files) {
+         file.open();
+      }
+      final ManagedObjectReference fileMgr = getFileManager();
+      final GuestFileAttributes attrs =
+            attributes != null ? attributes : new GuestFileAttributes();
+      return run(vms, new Transfer() {
+         @Override
+         public void run(ManagedObjectReference vm, byte[] buffer,
+               long[] sent) throws Exception {
+            for (GuestFile file : files) {
+               String url =
+                     vimPort.initiateFileTransferToGuest(fileMgr, vm, auth,
+                           file.getGuestPath(), attrs, file.getSize(),
+                           overwrite);
+               put(url, file, buffer, sent);
+            }
+         }
+      });
+   }
+
+   /**
+    * Downloads one file from the guests of many virtual machines.
+    *
+    * @param localFiles
+    *           virtual machines and the local file to store the guest file
+    *           of each in; results are in the iteration order of the map
+    * @param auth
+    *           guest credentials, the same in every guest
+    * @param guestPath
+    *           full path of the file in the guests
+    * @return one result per virtual machine
+    */
+   public List<VmResult> collect(
+         final Map<ManagedObjectReference, File> localFiles,
+         final GuestAuthentication auth, final String guestPath)
+         throws Exception {
+      final ManagedObjectReference fileMgr = getFileManager();
+      return run(localFiles.keySet(), new Transfer() {
+         @Override
+         public void run(ManagedObjectReference vm, byte[] buffer,
+               long[] sent) throws Exception {
+            FileTransferInformation info =
+                  vimPort.initiateFileTransferFromGuest(fileMgr, vm, auth,
+                        guestPath);
+            get(info.getUrl(), localFiles.get(vm), buffer, sent);
+         }
+      });
+   }
+
+   /**
+    * Stops the transfer threads. Transfers that did not start yet fail.
+    */
+   @Override
+   public synchronized void close() {
+      closed = true;
+      if (executor != null) {
+         for (Runnable drainer : executor.shutdownNow()) {
+            ((Drainer) drainer).abandon();
+         }
+      }
+   }
+
+   /*
+    * Queues the virtual machines per host and starts at most perHostLimit
+    * drainers per host queue, so no thread blocks on a busy host while
+    * another host has work.
+    */
+   private List<VmResult> run(Collection<ManagedObjectReference> vms,
+         final Transfer transfer) throws Exception {
+      List<Target> targets = new ArrayList<Target>(vms.size());
+      for (ManagedObjectReference vm : vms) {
+         targets.add(new Target(targets.size(), vm));
+      }
+      retrieveState(targets);
+
+      final VmResult[] results = new VmResult[targets.size()];
+      final CountDownLatch done = new CountDownLatch(targets.size());
+      Map<String, Queue<Target>> byHost =
+            new LinkedHashMap<String, Queue<Target>>();
+      for (Target target : targets) {
+         String skip = null;
+         if (target.host == null) {
+            skip = "virtual machine not found or not on a host";
+         } else if (target.powerState != VirtualMachinePowerState.POWERED_ON) {
+            skip = "virtual machine needs to be powered on";
+         } else if (!Boolean.TRUE.equals(target.guestOperationsReady)) {
+            skip = "guest operations are not ready";
+         }
+         if (skip != null) {
+            finish(results, done, new VmResult(target.vm, target.host, 0, 0,
+                  new IllegalStateException(skip)), target);
+            continue;
+         }
+         Queue<Target> queue = byHost.get(target.host.getValue());
+         if (queue == null) {
+            queue = new ConcurrentLinkedQueue<Target>();
+            byHost.put(target.host.getValue(), queue);
+         }
+         queue.add(target);
+      }
+
+      ExecutorService pool = start();
+      int limit;
+      synchronized (this) {
+         limit = perHostLimit;
+      }
+      for (Queue<Target> queue : byHost.values()) {
+         for (int i = Math.min(limit, queue.size()); i > 0; --i) {
+            Drainer drainer = new Drainer(queue, results, done, transfer);
+            try {
+               pool.execute(drainer);
+            } catch (RejectedExecutionException e) {
+               // closed meanwhile
+               drainer.abandon();
+            }
+         }
+      }
+      done.await();
+      return Arrays.asList(results);
+   }
+
+   private VmResult transfer(Target target, Transfer transfer) {
+      long start = System.nanoTime();
+      long[] sent = new long[1];
+      Throwable failure = null;
+      byte[] buffer = null;
+      try {
+         buffer = buffers.take();
+         transfer.run(target.vm, buffer, sent);
+      } catch (Throwable t) {
+         failure = t;
+      } finally {
+         if (buffer != null) {
+            buffers.add(buffer);
+         }
+      }
+      return new VmResult(target.vm, target.host, sent[0],
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failure);
+   }
+
+   private void finish(VmResult[] results, CountDownLatch done,
+         VmResult result, Target target) {
+      System.out.println((result.isSucceeded() ? "Transferred " : "Failed ")
+            + result);
+      results[target.index] = result;
+      done.countDown();
+   }
+
+   private synchronized ExecutorService start() {
+      if (closed) {
+         throw new IllegalStateException("GuestFileDistributor is closed");
+      }
+      if (executor == null) {
+         buffers = new ArrayBlockingQueue<byte[]>(parallelism);
+         for (int i = 0; i < parallelism; ++i) {
+            buffers.add(new byte[BUFFER_SIZE]);
+         }
+         executor =
+               Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable r) {
+                     Thread t = new Thread(r, "GuestFileDistributor");
+                     t.setDaemon(true);
+                     return t;
+                  }
+               });
+      }
+      return executor;
+   }
+
+   private synchronized ManagedObjectReference getFileManager()
+         throws Exception {
+      if (fileManager == null) {
+         ObjectSpec objectSpec = new ObjectSpec();
+         objectSpec.setObj(serviceContent.getGuestOperationsManager());
+         PropertySpec propertySpec = new PropertySpec();
+         propertySpec.setType("GuestOperationsManager");
+         propertySpec.getPathSet().add("fileManager");
+         PropertyFilterSpec spec = new PropertyFilterSpec();
+         spec.getObjectSet().add(objectSpec);
+         spec.getPropSet().add(propertySpec);
+         for (ObjectContent oc : PropertyPager.retrieveAll(vimPort,
+               serviceContent.getPropertyCollector(), Arrays.asList(spec),
+               PropertyPager.DEFAULT_PAGE_SIZE)) {
+            for (DynamicProperty dp : oc.getPropSet()) {
+               fileManager = (ManagedObjectReference) dp.getVal();
+            }
+         }
+         if (fileManager == null) {
+            throw new IllegalStateException(
+                  "Guest operations are not supported by the server");
+         }
+      }
+      return fileManager;
+   }
+
+   /*
+    * Retrieves host, power state and guest operations state of all the
+    * virtual machines with one filter.
+    */
+   private void retrieveState(List<Target> targets) {
+      if (targets.isEmpty()) {
+         return;
+      }
+      Map<String, Target> byVm = new HashMap<String, Target>();
+      PropertySpec propertySpec = new PropertySpec();
+      propertySpec.setType("VirtualMachine");
+      propertySpec.getPathSet().add("runtime.host");
+      propertySpec.getPathSet().add("runtime.powerState");
+      propertySpec.getPathSet().add("guest.guestOperationsReady");
+      PropertyFilterSpec spec = new PropertyFilterSpec();
+      spec.getPropSet().add(propertySpec);
+      for (Target target : targets) {
+         if (byVm.put(target.vm.getValue(), target) == null) {
+            ObjectSpec objectSpec = new ObjectSpec();
+            objectSpec.setObj(target.vm);
+            spec.getObjectSet().add(objectSpec);
+         }
+      }
+      for (ObjectContent oc : PropertyPager.retrieveAll(vimPort,
+            serviceContent.getPropertyCollector(), Arrays.asList(spec),
+            PropertyPager.DEFAULT_PAGE_SIZE)) {
+         Target target = byVm.get(oc.getObj().getValue());
+         if (target == null) {
+            continue;
+         }
+         for (DynamicProperty dp : oc.getPropSet()) {
+            if (dp.getName().equals("runtime.host")) {
+               target.host = (ManagedObjectReference) dp.getVal();
+            } else if (dp.getName().equals("runtime.powerState")) {
+               target.powerState = (VirtualMachinePowerState) dp.getVal();
+            } else if (dp.getName().equals("guest.guestOperationsReady")) {
+               target.guestOperationsReady = (Boolean) dp.getVal();
+            }
+         }
+      }
+      // a virtual machine given twice shares the state of the first
+      for (Target target : targets) {
+         Target first = byVm.get(target.vm.getValue());
+         target.host = first.host;
+         target.powerState = first.powerState;
+         target.guestOperationsReady = first.guestOperationsReady;
+      }
+   }
+
+   private void put(String url, GuestFile file, byte[] buffer, long[] sent)
+         throws IOException {
+      HttpURLConnection conn =
+            (HttpURLConnection) new URL(url.replaceAll("\\*", transferHost))
+                  .openConnection();
+      try {
+         conn.setDoInput(true);
+         conn.setDoOutput(true);
+         conn.setUseCaches(false);
+         conn.setRequestMethod("PUT");
+         conn.setRequestProperty("Content-Type", "application/octet-stream");
+         conn.setFixedLengthStreamingMode(file.getSize());
+         OutputStream out = conn.getOutputStream();
+         try {
+            file.writeTo(out, buffer, sent);
+         } finally {
+            out.close();
+         }
+         int status = conn.getResponseCode();
+         if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Upload of " + file + " failed: HTTP "
+                  + status + " " + conn.getResponseMessage());
+         }
+      } finally {
+         conn.disconnect();
+      }
+   }
+
+   private void get(String url, File localFile, byte[] buffer, long[] sent)
+         throws IOException {
+      HttpURLConnection conn =
+            (HttpURLConnection) new URL(url.replaceAll("\\*", transferHost))
+                  .openConnection();
+      try {
+         conn.setDoInput(true);
+         conn.setUseCaches(false);
+         conn.setRequestMethod("GET");
+         int status = conn.getResponseCode();
+         if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Download to " + localFile
+                  + " failed: HTTP " + status + " "
+                  + conn.getResponseMessage());
+         }
+         InputStream in = conn.getInputStream();
+         try {
+            OutputStream out = new FileOutputStream(localFile);
+            try {
+               int n;
+               while ((n = in.read(buffer)) >= 0) {
+                  out.write(buffer, 0, n);
+                  sent[0] += n;
+               }
+            } finally {
+               out.close();
+            }
+         } finally {
+            in.close();
+         }
+      } finally {
+         conn.disconnect();
+      }
+   }
+}
@@ -0,0 +1,745 @@
+package com.vmware.apputils.vim25;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.vmware.vim25.FileTransferInformation;
+import com.vmware.vim25.GuestAuthentication;
+import com.vmware.vim25.GuestProcessInfo;
+import com.vmware.vim25.GuestProgramSpec;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.NamePasswordAuthentication;
+import com.vmware.vim25.VimPortType;
+
+/**
+ * <pre>
+ * GuestProcessExecutor
+ *
+ * Runs programs inside any number of virtual machines and waits for all of
+ * them with a single poller thread.
+ *
+ * submit() starts the program with StartProgramInGuest on a small worker
+ * pool and returns a {@link ProcessFuture} at once. The processes are
+ * grouped per virtual machine; the poller lists all the processes of a
+ * virtual machine with one ListProcessesInGuest call. A virtual machine is
+ * polled soon after a program was started on it, and then less and less
+ * often (the interval doubles up to a maximum), so short programs finish
+ * quickly and long ones cost few calls.
+ *
+ * When the output is captured, stdout and stderr are redirected to a
+ * temporary file in the guest, which is downloaded and deleted once the
+ * process has ended. The redirection is done by the guest's shell, so the
+ * program must be started through one (e.g. /bin/sh -c or cmd.exe /c).
+ *
+ * Usage:
+ * GuestProcessExecutor executor = new GuestProcessExecutor(vimPort,
+ *       processManager, fileManager, serverHost);
+ * ProcessFuture f = executor.submit(vm, auth, spec, true);
+ * ProcessResult result = f.get();
+ * System.out.println(result.getExitCode() + ": " + result.getOutputAsString());
+ * executor.close();
+ * </pre>
+ */
+public class GuestProcessExecutor implements Closeable {
+
+   public static final int DEFAULT_PARALLELISM = 4;
+   public static final long DEFAULT_INITIAL_POLL_MILLIS = 250;
+   public static final long DEFAULT_MAX_POLL_MILLIS = 5 * 1000;
+
+   // consecutive failed listings of a virtual machine before its processes
+   // are given up
+   private static final int MAX_LIST_FAILURES = 3;
+
+   /**
+    * Outcome of a program that ran to its end.
+    */
+   public static class ProcessResult {
+      private final ManagedObjectReference vm;
+      private final long pid;
+      private final Integer exitCode;
+      private final byte[] output;
+      private final long elapsedMillis;
+
+      private ProcessResult(ManagedObjectReference vm, long pid,
+            Integer exitCode, byte[] output, long elapsedMillis) {
+         this.vm = vm;
+         this.pid = pid;
+         this.exitCode = exitCode;
+         this.output = output;
+         this.elapsedMillis = elapsedMillis;
+      }
+
+      public ManagedObjectReference getVm() {
+         return vm;
+      }
+
+      public long getPid() {
+         return pid;
+      }
+
+      /**
+       * @return exit code, null if the guest did not report one
+       */
+      public Integer getExitCode() {
+         return exitCode;
+      }
+
+      /**
+       * @return stdout and stderr of the program, null if not captured
+       */
+      public byte[] getOutput() {
+         return output == null ? null : output.clone();
+      }
+
+      /**
+       * @return the output decoded as UTF-8, null if not captured
+       */
+      public String getOutputAsString() {
+         if (output == null) {
+            return null;
+         }
+         try {
+            return new String(output, "UTF-8");
+         } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+         }
+      }
+
+      /**
+       * @return time from the start request until the end was seen
+       */
+      public long getElapsedMillis() {
+         return elapsedMillis;
+      }
+
+      @Override
+      public String toString() {
+         return vm.getValue() + " pid " + pid + ": exit code " + exitCode
+               + " after " + elapsedMillis + " ms";
+      }
+   }
+
+   /**
+    * Result of a submitted program. Programs are not cancelled through the
+    * future; use TerminateProcessInGuest with {@link #getPid()}.
+    */
+   public static class ProcessFuture implements Future<ProcessResult> {
+
+      private final ManagedObjectReference vm;
+      private final CountDownLatch done = new CountDownLatch(1);
+      private volatile long pid = -1;
+      private ProcessResult result = null;
+      private Throwable failure = null;
+
+      ProcessFuture(ManagedObjectReference vm) {
+         this.vm = vm;
+      }
+
+      public ManagedObjectReference getVm() {
+         return vm;
+      }
+
+      /**
+       * @return process id in the guest, -1 until the program is started
+       */
+      public long getPid() {
+         return pid;
+      }
+
+      void complete(ProcessResult processResult) {
+         finish(processResult, null);
+      }
+
+      void fail(Throwable cause) {
+         finish(null, cause);
+      }
+
+      private synchronized void finish(ProcessResult processResult,
+            Throwable cause) {
+         if (done.getCount() == 0) {
+            return;
+         }
+         result = processResult;
+         failure = cause;
+         done.countDown();
+      }
+
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+         return false;
+      }
+
+      @Override
+      public boolean isCancelled() {
+         return false;
+      }
+
+      @Override
+      public boolean isDone() {
+         return done.getCount() == 0;
+      }
+
+      @Override
+      public ProcessResult get() throws InterruptedException,
+            ExecutionException {
+         done.await();
+         return result();
+      }
+
+      @Override
+      public ProcessResult get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+         if (!done.await(timeout, unit)) {
+            throw new TimeoutException("Process " + pid + " in "
+                  + vm.getValue() + " still running");
+         }
+         return result();
+      }
+
+      private synchronized ProcessResult result() throws ExecutionException {
+         if (failure != null) {
+            throw new ExecutionException(failure);
+         }
+         return result;
+      }
+   }
+
+   /*
+    * A started program that has not been seen ending yet.
+    */
+   private static class GuestProcess {
+      private final ProcessFuture future;
+      private final long pid;
+      private final String outputFile;
+      private final long startNanos;
+
+      private GuestProcess(ProcessFuture future, long pid, String outputFile,
+            long startNanos) {
+         this.future = future;
+         this.pid = pid;
+         this.outputFile = outputFile;
+         this.startNanos = startNanos;
+      }
+   }
+
+   /*
+    * The processes of one virtual machine that are listed together. The
+    * credentials of the first process are used for the listing, so processes
+    * started with different credentials are kept in separate groups; equal
+    * credentials share a group even when they are different objects.
+    */
+   private static class VmGroup implements Delayed {
+      private final ManagedObjectReference vm;
+      private final GuestAuthentication auth;
+      private final Map<Long, GuestProcess> processes =
+            new LinkedHashMap<Long, GuestProcess>();
+      private long dueNanos;
+      private long intervalMillis;
+      private int listFailures = 0;
+
+      private VmGroup(ManagedObjectReference vm, GuestAuthentication auth) {
+         this.vm = vm;
+         this.auth = auth;
+      }
+
+      @Override
+      public long getDelay(TimeUnit unit) {
+         return unit.convert(dueNanos - System.nanoTime(),
+               TimeUnit.NANOSECONDS);
+      }
+
+      @Override
+      public int compareTo(Delayed other) {
+         long diff = dueNanos - ((VmGroup) other).dueNanos;
+         return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+      }
+   }
+
+   /*
+    * Work queued on the workers. A start or output download carries its
+    * future, so that close() can fail the futures of the work it discards.
+    */
+   private abstract static class Job implements Runnable {
+      private final ProcessFuture future;
+
+      private Job(ProcessFuture future) {
+         this.future = future;
+      }
+   }
+
+   private final VimPortType vimPort;
+   private final ManagedObjectReference processManager;
+   private final ManagedObjectReference fileManager;
+   private final String transferHost;
+
+   // guarded by this
+   private final Map<String, List<VmGroup>> groups =
+         new HashMap<String, List<VmGroup>>();
+   private final DelayQueue<VmGroup> due = new DelayQueue<VmGroup>();
+
+   private final ExecutorService workers;
+   private final Thread poller;
+   private volatile boolean running = true;
+   private long initialPollMillis = DEFAULT_INITIAL_POLL_MILLIS;
+   private long maxPollMillis = DEFAULT_MAX_POLL_MILLIS;
+
+   /**
+    * Creates the executor and starts the poller thread.
+    *
+    * @param vimPort
+    *           service stub
+    * @param processManager
+    *           GuestOperationsManager.processManager
+    * @param fileManager
+    *           GuestOperationsManager.fileManager, used for the output
+    * @param transferHost
+    *           host name that replaces the "*" in guest file transfer URLs,
+    *           usually the host of the web service url
+    */
+   public GuestProcessExecutor(VimPortType vimPort,
+         ManagedObjectReference processManager,
+         ManagedObjectReference fileManager, String transferHost) {
+      this(vimPort, processManager, fileManager, transferHost,
+            DEFAULT_PARALLELISM);
+   }
+
+   /**
+    * @param parallelism
+    *           number of guest operations (starts, listings, output
+    *           downloads) run at the same time
+    */
+   public GuestProcessExecutor(VimPortType vimPort,
+         ManagedObjectReference processManager,
+         ManagedObjectReference fileManager, String transferHost,
+         int parallelism) {
+      if (parallelism < 1) {
+         throw new IllegalArgumentException("parallelism must be positive");
+      }
+      this.vimPort = vimPort;
+      this.processManager = processManager;
+      this.fileManager = fileManager;
+      this.transferHost = transferHost;
+      workers =
+            Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+               @Override
+               public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "GuestProcessExecutor");
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+      poller = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            pollLoop();
+         }
+      }, "GuestProcessPoller");
+      poller.setDaemon(true);
+      poller.start();
+   }
+
+   /**
+    * @param initialMillis
+    *           delay of the first listing after a program was started
+    * @param maxMillis
+    *           longest delay between two listings of a virtual machine
+    */
+   public synchronized void setPollInterval(long initialMillis,
+         long maxMillis) {
+      if (initialMillis < 1 || maxMillis < initialMillis) {
+         throw new IllegalArgumentException("invalid poll interval");
+      }
+      this.initialPollMillis = initialMillis;
+      this.maxPollMillis = maxMillis;
+   }
+
+   /**
+    * Starts a program in a guest.
+    *
+    * @param vm
+    *           virtual machine, with guest operations ready
+    * @param auth
+    *           guest credentials
+    * @param spec
+    *           program to run; not modified
+    * @param captureOutput
+    *           true to redirect stdout and stderr to a temporary file and
+    *           return its contents with the result
+    * @return future completed when the program has ended
+    */
+   public ProcessFuture submit(final ManagedObjectReference vm,
+         final GuestAuthentication auth, final GuestProgramSpec spec,
+         final boolean captureOutput) {
+      final ProcessFuture future = new ProcessFuture(vm);
+      if (!running) {
+         future.fail(new IllegalStateException(
+               "GuestProcessExecutor is closed"));
+         return future;
+      }
+      boolean queued = execute(new Job(future) {
+         @Override
+         public void run() {
+            start(future, vm, auth, spec, captureOutput);
+         }
+      });
+      if (!queued) {
+         future.fail(closed());
+      }
+      return future;
+   }
+
+   /**
+    * @return number of programs started and not seen ending yet
+    */
+   public synchronized int getRunningCount() {
+      int count = 0;
+      for (List<VmGroup> list : groups.values()) {
+         for (VmGroup group : list) {
+            count += group.processes.size();
+         }
+      }
+      return count;
+   }
+
+   private void start(ProcessFuture future, ManagedObjectReference vm,
+         GuestAuthentication auth, GuestProgramSpec spec,
+         boolean captureOutput) {
+      String outputFile = null;
+      try {
+         GuestProgramSpec toStart = spec;
+         if (captureOutput) {
+            outputFile =
+                  vimPort.createTemporaryFileInGuest(fileManager, vm, auth,
+                        "", ".out", "");
+            toStart = new GuestProgramSpec();
+            toStart.setProgramPath(spec.getProgramPath());
+            toStart.setWorkingDirectory(spec.getWorkingDirectory());
+            toStart.getEnvVariables().addAll(spec.getEnvVariables());
+            String arguments = spec.getArguments() == null ? "" : spec
+                  .getArguments();
+            toStart.setArguments(arguments + " > " + outputFile + " 2>&1");
+         }
+         long startNanos = System.nanoTime();
+         long pid =
+               vimPort.startProgramInGuest(processManager, vm, auth, toStart);
+         future.pid = pid;
+         if (!track(new GuestProcess(future, pid, outputFile, startNanos), vm,
+               auth)) {
+            deleteQuietly(vm, auth, outputFile);
+            future.fail(closed());
+         }
+      } catch (Exception e) {
+         deleteQuietly(vm, auth, outputFile);
+         future.fail(e);
+      }
+   }
+
+   /*
+    * A group is either waiting in the due queue or taken by the poller and
+    * being listed, never both. It is only put on the queue here when it is
+    * new or was waiting; a taken group is put back by poll(), which then
+    * uses the reset interval.
+    *
+    * @return false if the executor is closed
+    */
+   private synchronized boolean track(GuestProcess process,
+         ManagedObjectReference vm, GuestAuthentication auth) {
+      if (!running) {
+         return false;
+      }
+      List<VmGroup> list = groups.get(vm.getValue());
+      if (list == null) {
+         list = new ArrayList<VmGroup>(1);
+         groups.put(vm.getValue(), list);
+      }
+      VmGroup group = null;
+      for (VmGroup candidate : list) {
+         if (sameCredentials(candidate.auth, auth)) {
+            group = candidate;
+         }
+      }
+      boolean waiting = false;
+      if (group == null) {
+         group = new VmGroup(vm, auth);
+         list.add(group);
+         waiting = true;
+      } else {
+         waiting = due.remove(group);
+      }
+      group.processes.put(process.pid, process);
+      // a new program: poll fast again
+      group.intervalMillis = initialPollMillis;
+      if (waiting) {
+         group.dueNanos =
+               System.nanoTime()
+                     + TimeUnit.MILLISECONDS.toNanos(initialPollMillis);
+         due.add(group);
+      }
+      return true;
+   }
+
+   /*
+    * GuestAuthentication has no equals(), and callers commonly build new
+    * credentials for every submit. Other kinds of credentials than user name
+    * and password are only grouped when they are the same object.
+    */
+   private static boolean sameCredentials(GuestAuthentication a,
+         GuestAuthentication b) {
+      if (a == b) {
+         return true;
+      }
+      if (!(a instanceof NamePasswordAuthentication)
+            || !(b instanceof NamePasswordAuthentication)
+            || a.isInteractiveSession() != b.isInteractiveSession()) {
+         return false;
+      }
+      NamePasswordAuthentication x = (NamePasswordAuthentication) a;
+      NamePasswordAuthentication y = (NamePasswordAuthentication) b;
+      return Objects.equals(x.getUsername(), y.getUsername())
+            && Objects.equals(x.getPassword(), y.getPassword());
+   }
+
+   private void pollLoop() {
+      while (running) {
+         final VmGroup group;
+         try {
+            group = due.take();
+         } catch (InterruptedException e) {
+            break;
+         }
+         boolean queued = execute(new Job(null) {
+            @Override
+            public void run() {
+               poll(group);
+            }
+         });
+         if (!queued) {
+            List<GuestProcess> pending;
+            synchronized (this) {
+               pending = new ArrayList<GuestProcess>(group.processes.values());
+            }
+            for (GuestProcess process : pending) {
+               process.future.fail(closed());
+            }
+         }
+      }
+   }
+
+   private void poll(VmGroup group) {
+      List<Long> pids;
+      synchronized (this) {
+         pids = new ArrayList<Long>(group.processes.keySet());
+      }
+      List<GuestProcess> ended = new ArrayList<GuestProcess>();
+      Map<Long, GuestProcessInfo> infos = new HashMap<Long, GuestProcessInfo>();
+      Exception failure = null;
+      try {
+         for (GuestProcessInfo info : vimPort.listProcessesInGuest(
+               processManager, group.vm, group.auth, pids)) {
+            infos.put(info.getPid(), info);
+         }
+      } catch (Exception e) {
+         failure = e;
+      }
+
+      synchronized (this) {
+         if (failure == null) {
+            group.listFailures = 0;
+         } else if (++group.listFailures < MAX_LIST_FAILURES) {
+            // the processes are still running, try again next interval
+            System.out.println("Listing processes in " + group.vm.getValue()
+                  + " failed - " + failure.getMessage());
+            pids.clear();
+         }
+         for (Long pid : pids) {
+            GuestProcessInfo info = infos.get(pid);
+            if (failure != null || info == null || info.getEndTime() != null) {
+               GuestProcess process = group.processes.remove(pid);
+               if (process != null) {
+                  ended.add(process);
+               }
+            }
+         }
+         if (group.processes.isEmpty()) {
+            List<VmGroup> list = groups.get(group.vm.getValue());
+            list.remove(group);
+            if (list.isEmpty()) {
+               groups.remove(group.vm.getValue());
+            }
+         } else if (running) {
+            group.dueNanos =
+                  System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(group.intervalMillis);
+            group.intervalMillis =
+                  Math.min(group.intervalMillis * 2, maxPollMillis);
+            due.add(group);
+         }
+      }
+
+      for (final GuestProcess process : ended) {
+         if (failure != null) {
+            deleteQuietly(group.vm, group.auth, process.outputFile);
+            process.future.fail(failure);
+            continue;
+         }
+         final GuestProcessInfo info = infos.get(process.pid);
+         if (info == null) {
+            deleteQuietly(group.vm, group.auth, process.outputFile);
+            process.future.fail(new IllegalStateException("Process "
+                  + process.pid + " is no longer listed in "
+                  + group.vm.getValue()));
+            continue;
+         }
+         final VmGroup owner = group;
+         boolean queued = execute(new Job(process.future) {
+            @Override
+            public void run() {
+               finish(owner, process, info);
+            }
+         });
+         if (!queued) {
+            process.future.fail(closed());
+         }
+      }
+   }
+
+   private void finish(VmGroup group, GuestProcess process,
+         GuestProcessInfo info) {
+      long elapsed =
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+                  - process.startNanos);
+      byte[] output = null;
+      try {
+         if (process.outputFile != null) {
+            output = download(group.vm, group.auth, process.outputFile);
+         }
+      } catch (Exception e) {
+         process.future.fail(e);
+         return;
+      } finally {
+         deleteQuietly(group.vm, group.auth, process.outputFile);
+      }
+      process.future.complete(new ProcessResult(group.vm, process.pid, info
+            .getExitCode(), output, elapsed));
+   }
+
+   private byte[] download(ManagedObjectReference vm,
+         GuestAuthentication auth, String path) throws Exception {
+      FileTransferInformation transfer =
+            vimPort.initiateFileTransferFromGuest(fileManager, vm, auth, path);
+      String url = transfer.getUrl().replaceAll("\\*", transferHost);
+      HttpURLConnection conn =
+            (HttpURLConnection) new URL(url).openConnection();
+      try {
+         conn.setDoInput(true);
+         conn.setUseCaches(false);
+         conn.setRequestMethod("GET");
+         int status = conn.getResponseCode();
+         if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Download of " + path + " failed: HTTP "
+                  + status + " " + conn.getResponseMessage());
+         }
+         ByteArrayOutputStream out =
+               new ByteArrayOutputStream((int) Math.max(0,
+                     Math.min(transfer.getSize(), Integer.MAX_VALUE - 8)));
+         InputStream in = conn.getInputStream();
+         try {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+               out.write(buffer, 0, n);
+            }
+         } finally {
+            in.close();
+         }
+         return out.toByteArray();
+      } finally {
+         conn.disconnect();
+      }
+   }
+
+   private void deleteQuietly(ManagedObjectReference vm,
+         GuestAuthentication auth, String path) {
+      if (path == null) {
+         return;
+      }
+      try {
+         vimPort.deleteFileInGuest(fileManager, vm, auth, path);
+      } catch (Exception e) {
+         System.out.println("Failed to delete " + path + " in "
+               + vm.getValue() + " - " + e.getMessage());
+      }
+   }
+
+   /**
+    * Stops the poller and the workers. Programs still running in the guests
+    * are not terminated, but their futures fail.
+    */
+   @Override
+   public void close() {
+      if (!running) {
+         return;
+      }
+      List<GuestProcess> pending = new ArrayList<GuestProcess>();
+      synchronized (this) {
+         running = false;
+         for (List<VmGroup> list : groups.values()) {
+            for (VmGroup group : list) {
+               pending.addAll(group.processes.values());
+            }
+         }
+         groups.clear();
+         due.clear();
+      }
+      poller.interrupt();
+      for (Runnable job : workers.shutdownNow()) {
+         if (((Job) job).future != null) {
+            ((Job) job).future.fail(closed());
+         }
+      }
+      for (GuestProcess process : pending) {
+         process.future.fail(closed());
+      }
+   }
+
+   /*
+    * Queues work on the workers.
+    *
+    * @return false if the executor is closed
+    */
+   private boolean execute(Job job) {
+      try {
+         workers.execute(job);
+         return true;
+      } catch (RejectedExecutionException e) {
+         return false;
+      }
+   }
+
+   private static IllegalStateException closed() {
+      return new IllegalStateException(
+            "GuestProcessExecutor closed before the process ended");
+   }
+}
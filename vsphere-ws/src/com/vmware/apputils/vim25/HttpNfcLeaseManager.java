@@ -0,0 +1,269 @@
+package com.vmware.apputils.vim25;
+
+import java.io.Closeable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.MethodFault;
+import com.vmware.vim25.VimPortType;
+
+/**
+ * <pre>
+ * HttpNfcLeaseManager
+ *
+ * Keeps the HttpNfcLeases of OVF imports and exports alive.
+ *
+ * Every lease registered with the manager gets a {@link Lease} handle. The
+ * transfer code adds the bytes it moved to the handle, and one shared
+ * scheduler calls HttpNfcLeaseProgress for every active lease every
+ * {@link #DEFAULT_PROGRESS_INTERVAL_SECONDS} seconds with the real percentage
+ * of bytes transferred. The call also renews the lease, which otherwise times
+ * out after 5 minutes without progress. Any number of leases share the one
+ * scheduler thread.
+ *
+ * {@link Lease#complete()} and {@link Lease#abort(Throwable)} stop the
+ * progress reports before they complete or abort the lease on the server;
+ * only the first of them has an effect. {@link Lease#close()} aborts a lease
+ * that was neither completed nor aborted, so a lease used in a finally block
+ * is never left open.
+ *
+ * Usage:
+ * HttpNfcLeaseManager.Lease lease = HttpNfcLeaseManager.getDefault().register(
+ *       vimPort, httpNfcLease, totalBytes);
+ * try {
+ *    ... lease.addBytes(n) while transferring ...
+ *    lease.complete();
+ * } finally {
+ *    lease.close();
+ * }
+ * </pre>
+ */
+public class HttpNfcLeaseManager {
+
+   /** Well below the 5 minute default lease timeout. */
+   public static final long DEFAULT_PROGRESS_INTERVAL_SECONDS = 60;
+
+   private static final int ACTIVE = 0;
+   private static final int COMPLETED = 1;
+   private static final int ABORTED = 2;
+
+   private static HttpNfcLeaseManager defaultManager = null;
+
+   /**
+    * Handle of one registered lease.
+    */
+   public class Lease implements Closeable {
+      private final VimPortType vimPort;
+      private final ManagedObjectReference lease;
+      private final long totalBytes;
+      private final AtomicLong bytes = new AtomicLong();
+      private final AtomicInteger state = new AtomicInteger(ACTIVE);
+      private ScheduledFuture<?> progressTask = null;
+
+      private Lease(VimPortType vimPort, ManagedObjectReference lease,
+            long totalBytes) {
+         this.vimPort = vimPort;
+         this.lease = lease;
+         this.totalBytes = totalBytes;
+      }
+
+      /**
+       * @return the HttpNfcLease
+       */
+      public ManagedObjectReference getLease() {
+         return lease;
+      }
+
+      /**
+       * Adds transferred bytes; safe to call from several threads.
+       */
+      public void addBytes(long count) {
+         bytes.addAndGet(count);
+      }
+
+      public long getBytes() {
+         return bytes.get();
+      }
+
+      /**
+       * @return percentage of the total bytes transferred so far, 0 - 100
+       */
+      public int getProgressPercent() {
+         if (totalBytes <= 0) {
+            return 0;
+         }
+         return (int) Math.min(100, bytes.get() * 100 / totalBytes);
+      }
+
+      /**
+       * @return true until the lease was completed or aborted
+       */
+      public boolean isActive() {
+         return state.get() == ACTIVE;
+      }
+
+      /**
+       * Reports 100% and completes the lease. If the server rejects either
+       * call the lease is aborted, so it is not left open until it times
+       * out.
+       *
+       * @throws IllegalStateException
+       *            if the lease was aborted
+       */
+      public void complete() throws Exception {
+         if (!state.compareAndSet(ACTIVE, COMPLETED)) {
+            if (state.get() == ABORTED) {
+               throw new IllegalStateException("Lease " + lease.getValue()
+                     + " was aborted");
+            }
+            return;
+         }
+         stopProgress();
+         try {
+            vimPort.httpNfcLeaseProgress(lease, 100);
+            vimPort.httpNfcLeaseComplete(lease);
+         } catch (Exception e) {
+            state.set(ABORTED);
+            abortOnServer(e);
+            throw e;
+         }
+      }
+
+      /**
+       * Aborts the lease; the server discards the imported entities.
+       *
+       * @param cause
+       *           reason passed on to the server, may be null
+       */
+      public void abort(Throwable cause) {
+         if (!state.compareAndSet(ACTIVE, ABORTED)) {
+            return;
+         }
+         stopProgress();
+         abortOnServer(cause);
+      }
+
+      private void abortOnServer(Throwable cause) {
+         LocalizedMethodFault fault = null;
+         if (cause != null) {
+            fault = new LocalizedMethodFault();
+            fault.setFault(new MethodFault());
+            fault.setLocalizedMessage(String.valueOf(cause.getMessage()));
+         }
+         try {
+            vimPort.httpNfcLeaseAbort(lease, fault);
+         } catch (Exception e) {
+            System.out.println("Failed to abort lease " + lease.getValue()
+                  + " - " + e.getMessage());
+         }
+      }
+
+      /**
+       * Aborts the lease unless it was completed or aborted already.
+       */
+      @Override
+      public void close() {
+         abort(null);
+      }
+
+      private void reportProgress() {
+         if (!isActive()) {
+            return;
+         }
+         try {
+            vimPort.httpNfcLeaseProgress(lease, getProgressPercent());
+         } catch (Exception e) {
+            System.out.println("Failed to report progress of lease "
+                  + lease.getValue() + " - " + e.getMessage());
+         }
+      }
+
+      private synchronized void startProgress(long intervalSeconds) {
+         progressTask =
+               scheduler.scheduleAtFixedRate(new Runnable() {
+                  @Override
+                  public void run() {
+                     reportProgress();
+                  }
+               }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+      }
+
+      private synchronized void stopProgress() {
+         if (progressTask != null) {
+            progressTask.cancel(false);
+            progressTask = null;
+         }
+      }
+   }
+
+   private final ScheduledExecutorService scheduler;
+   private final long intervalSeconds;
+
+   /**
+    * @param intervalSeconds
+    *           seconds between progress reports of a lease
+    */
+   public HttpNfcLeaseManager(long intervalSeconds) {
+      if (intervalSeconds < 1) {
+         throw new IllegalArgumentException("interval must be positive");
+      }
+      this.intervalSeconds = intervalSeconds;
+      ScheduledThreadPoolExecutor executor =
+            new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+               @Override
+               public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "HttpNfcLeaseManager");
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+      // Completed leases do not linger in the queue until their next report
+      executor.setRemoveOnCancelPolicy(true);
+      this.scheduler = Executors.unconfigurableScheduledExecutorService(executor);
+   }
+
+   /**
+    * @return the manager shared by the whole JVM
+    */
+   public static synchronized HttpNfcLeaseManager getDefault() {
+      if (defaultManager == null) {
+         defaultManager =
+               new HttpNfcLeaseManager(DEFAULT_PROGRESS_INTERVAL_SECONDS);
+      }
+      return defaultManager;
+   }
+
+   /**
+    * Starts keeping a lease alive.
+    *
+    * @param vimPort
+    *           service stub of the session that owns the lease
+    * @param lease
+    *           the HttpNfcLease, in state ready
+    * @param totalBytes
+    *           bytes the whole transfer will move, used for the percentage
+    * @return the handle to report bytes and to complete or abort the lease
+    */
+   public Lease register(VimPortType vimPort, ManagedObjectReference lease,
+         long totalBytes) {
+      Lease handle = new Lease(vimPort, lease, totalBytes);
+      handle.startProgress(intervalSeconds);
+      return handle;
+   }
+
+   /**
+    * Convenience variant for a pooled session.
+    */
+   public Lease register(ServiceConnection connection,
+         ManagedObjectReference lease, long totalBytes) {
+      return register(connection.getVimPort(), lease, totalBytes);
+   }
+}
@@ -0,0 +1,639 @@
+package com.vmware.apputils.vim25;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vim25.InvalidCollectorVersionFaultMsg;
+import com.vmware.vim25.InvalidPropertyFaultMsg;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RuntimeFaultFaultMsg;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.ServiceContent;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.WaitOptions;
+
+/**
+ * <pre>
+ * InventoryCache
+ *
+ * In-memory copy of selected inventory properties, kept current by
+ * WaitForUpdatesEx.
+ *
+ * {@link #start()} installs one filter on a private PropertyCollector that
+ * starts at the root folder and follows {@link #buildFullTraversal()}. The
+ * first WaitForUpdatesEx call returns every object (the seed); afterwards a
+ * daemon thread applies the ObjectUpdate / PropertyChange deltas. Lookups by
+ * managed object and by name are hash lookups and never call the server.
+ *
+ * Property maps handed out are immutable snapshots; an update replaces the
+ * map of an object instead of changing it in place.
+ *
+ * Entity names are not unique (two virtual machines in different folders
+ * may share one), so the name index keeps every entity with the name in the
+ * order they were seen; {@link #findByName(String, String)} returns the
+ * first, {@link #findAllByName(String, String)} all of them.
+ *
+ * Failed calls are retried with an increasing delay, and on
+ * InvalidCollectorVersion the whole inventory is loaded again. Meanwhile
+ * {@link #isStale()} reports that the content may be out of date. The cache
+ * stops on NotAuthenticated or after MAX_CONSECUTIVE_FAILURES failures in a
+ * row; {@link #getFailure()} then tells why.
+ *
+ * Usage:
+ * InventoryCache cache = new InventoryCache(vimPort, serviceContent,
+ *       new String[][] { new String[] { "VirtualMachine", "runtime.powerState" } });
+ * cache.start();
+ * ManagedObjectReference vm = cache.findByName("VirtualMachine", vmName);
+ * Object state = cache.getProperty(vm, "runtime.powerState");
+ * cache.close();
+ * </pre>
+ */
+public class InventoryCache implements Closeable {
+
+   private static final int MAX_WAIT_SECONDS = 30;
+   private static final int MAX_OBJECT_UPDATES = 1000;
+   private static final int MAX_CONSECUTIVE_FAILURES = 5;
+   private static final long RETRY_DELAY_MILLIS = 1000;
+   private static final long MAX_RETRY_DELAY_MILLIS = 30 * 1000;
+
+   private final VimPortType vimPort;
+   private final ServiceContent serviceContent;
+   private final String[][] typeinfo;
+
+   private final ConcurrentMap<String, ManagedObjectReference> objects =
+         new ConcurrentHashMap<String, ManagedObjectReference>();
+   private final ConcurrentMap<String, Map<String, Object>> properties =
+         new ConcurrentHashMap<String, Map<String, Object>>();
+   private final ConcurrentMap<String, ConcurrentMap<String, List<ManagedObjectReference>>> nameIndex =
+         new ConcurrentHashMap<String, ConcurrentMap<String, List<ManagedObjectReference>>>();
+
+   private ManagedObjectReference propCollectorRef = null;
+   private Thread updater = null;
+   private volatile String version = "";
+   private volatile boolean running = false;
+   private volatile Exception failure = null;
+
+   /**
+    * @param vimPort
+    *           service stub
+    * @param serviceContent
+    *           service content of the session
+    * @param typeinfo
+    *           properties to cache, one array per type: { type, prop, ... }.
+    *           The name of every managed entity is always cached.
+    */
+   public InventoryCache(VimPortType vimPort, ServiceContent serviceContent,
+         String[][] typeinfo) {
+      this.vimPort = vimPort;
+      this.serviceContent = serviceContent;
+      this.typeinfo = typeinfo == null ? new String[0][] : typeinfo;
+   }
+
+   /**
+    * Convenience constructor for a pooled session.
+    */
+   public InventoryCache(ServiceConnection connection, String[][] typeinfo) {
+      this(connection.getVimPort(), connection.getServiceContent(), typeinfo);
+   }
+
+   /**
+    * Creates the filter, loads the whole inventory and starts applying
+    * updates in the background. Returns once the seed is complete.
+    *
+    * @throws RuntimeFaultFaultMsg
+    * @throws InvalidPropertyFaultMsg
+    * @throws InvalidCollectorVersionFaultMsg
+    */
+   public synchronized void start() throws RuntimeFaultFaultMsg,
+         InvalidPropertyFaultMsg, InvalidCollectorVersionFaultMsg {
+      if (running) {
+         return;
+      }
+      propCollectorRef =
+            vimPort.createPropertyCollector(serviceContent
+                  .getPropertyCollector());
+
+      ObjectSpec oSpec = new ObjectSpec();
+      oSpec.setObj(serviceContent.getRootFolder());
+      oSpec.setSkip(Boolean.FALSE);
+      oSpec.getSelectSet().addAll(buildFullTraversal());
+
+      PropertyFilterSpec spec = new PropertyFilterSpec();
+      spec.getObjectSet().add(oSpec);
+      spec.getPropSet().addAll(buildPropertySpecs());
+      vimPort.createFilter(propCollectorRef, spec, false);
+      seed();
+
+      failure = null;
+      running = true;
+      updater = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            updateLoop();
+         }
+      }, "InventoryCache");
+      updater.setDaemon(true);
+      updater.start();
+   }
+
+   private List<PropertySpec> buildPropertySpecs() {
+      Map<String, Set<String>> tInfo = new HashMap<String, Set<String>>();
+      tInfo.put("ManagedEntity", new HashSet<String>());
+      tInfo.get("ManagedEntity").add("name");
+      for (String[] type : typeinfo) {
+         Set<String> props = tInfo.get(type[0]);
+         if (props == null) {
+            props = new HashSet<String>();
+            tInfo.put(type[0], props);
+         }
+         for (int pi = 1; pi < type.length; ++pi) {
+            props.add(type[pi]);
+         }
+      }
+      List<PropertySpec> pSpecs = new ArrayList<PropertySpec>();
+      for (Map.Entry<String, Set<String>> entry : tInfo.entrySet()) {
+         PropertySpec pSpec = new PropertySpec();
+         pSpec.setType(entry.getKey());
+         pSpec.setAll(Boolean.FALSE);
+         pSpec.getPathSet().addAll(entry.getValue());
+         pSpecs.add(pSpec);
+      }
+      return pSpecs;
+   }
+
+   /*
+    * The initial version returns every object; it may come in several
+    * truncated chunks. Objects cached before that are no longer in the
+    * inventory are dropped.
+    */
+   private void seed() throws RuntimeFaultFaultMsg,
+         InvalidCollectorVersionFaultMsg {
+      Set<String> stale = new HashSet<String>(objects.keySet());
+      WaitOptions seedOptions = new WaitOptions();
+      seedOptions.setMaxObjectUpdates(MAX_OBJECT_UPDATES);
+      seedOptions.setMaxWaitSeconds(0);
+      version = "";
+      UpdateSet updateset;
+      do {
+         updateset =
+               vimPort.waitForUpdatesEx(propCollectorRef, version, seedOptions);
+         if (updateset != null) {
+            if (updateset.getFilterSet() != null) {
+               for (PropertyFilterUpdate filtup : updateset.getFilterSet()) {
+                  for (ObjectUpdate objup : filtup.getObjectSet()) {
+                     stale.remove(key(objup.getObj()));
+                  }
+               }
+            }
+            apply(updateset);
+         }
+      } while (updateset != null && Boolean.TRUE.equals(updateset.isTruncated()));
+      for (String key : stale) {
+         ManagedObjectReference mor = objects.remove(key);
+         if (mor != null) {
+            unindexName(mor, properties.remove(key));
+         }
+      }
+   }
+
+   private void updateLoop() {
+      WaitOptions options = new WaitOptions();
+      options.setMaxWaitSeconds(MAX_WAIT_SECONDS);
+      options.setMaxObjectUpdates(MAX_OBJECT_UPDATES);
+      int failures = 0;
+      while (running) {
+         try {
+            UpdateSet updateset =
+                  vimPort.waitForUpdatesEx(propCollectorRef, version, options);
+            if (updateset != null) {
+               apply(updateset);
+            }
+            failures = 0;
+            failure = null;
+         } catch (InvalidCollectorVersionFaultMsg e) {
+            // the server forgot our version, start over from scratch
+            failure = e;
+            try {
+               seed();
+               failures = 0;
+               failure = null;
+            } catch (Exception se) {
+               if (!retry(se, ++failures)) {
+                  return;
+               }
+            }
+         } catch (Exception e) {
+            if (!retry(e, ++failures)) {
+               return;
+            }
+         }
+      }
+   }
+
+   /*
+    * Records a failure and sleeps before the next attempt.
+    *
+    * @return false if the updater is to stop
+    */
+   private boolean retry(Exception e, int failures) {
+      if (!running) {
+         return false;
+      }
+      failure = e;
+      // the port of a ServiceConnection already logged in again before a
+      // NotAuthenticated gets here
+      if (ServiceConnection.isNotAuthenticated(e)
+            || failures >= MAX_CONSECUTIVE_FAILURES) {
+         System.out.println("InventoryCache stopped - " + e.getMessage());
+         running = false;
+         return false;
+      }
+      long delay =
+            Math.min(MAX_RETRY_DELAY_MILLIS,
+                  RETRY_DELAY_MILLIS << (failures - 1));
+      System.out.println("InventoryCache retrying in " + delay + " ms - "
+            + e.getMessage());
+      try {
+         Thread.sleep(delay);
+      } catch (InterruptedException ie) {
+         return false;
+      }
+      return true;
+   }
+
+   private void apply(UpdateSet updateset) {
+      if (updateset.getFilterSet() != null) {
+         for (PropertyFilterUpdate filtup : updateset.getFilterSet()) {
+            for (ObjectUpdate objup : filtup.getObjectSet()) {
+               applyObjectUpdate(objup);
+            }
+         }
+      }
+      version = updateset.getVersion();
+   }
+
+   private void applyObjectUpdate(ObjectUpdate objup) {
+      ManagedObjectReference mor = objup.getObj();
+      String key = key(mor);
+      Map<String, Object> oldProps = properties.get(key);
+      if (objup.getKind() == ObjectUpdateKind.LEAVE) {
+         objects.remove(key);
+         properties.remove(key);
+         unindexName(mor, oldProps);
+         return;
+      }
+      Map<String, Object> newProps =
+            objup.getKind() == ObjectUpdateKind.ENTER || oldProps == null ? new HashMap<String, Object>()
+                  : new HashMap<String, Object>(oldProps);
+      for (PropertyChange propchg : objup.getChangeSet()) {
+         if (propchg.getOp() == PropertyChangeOp.REMOVE
+               || propchg.getOp() == PropertyChangeOp.INDIRECT_REMOVE
+               || propchg.getVal() == null) {
+            newProps.remove(propchg.getName());
+         } else {
+            newProps.put(propchg.getName(), propchg.getVal());
+         }
+      }
+      objects.put(key, mor);
+      properties.put(key, Collections.unmodifiableMap(newProps));
+      Object oldName = oldProps == null ? null : oldProps.get("name");
+      Object newName = newProps.get("name");
+      if (oldName != null && !oldName.equals(newName)) {
+         unindexName(mor, oldProps);
+      }
+      if (newName instanceof String) {
+         indexName(mor, (String) newName);
+      }
+   }
+
+   /*
+    * The lists of the name index are only written by one thread at a time
+    * and replaced rather than changed, so readers never see them change.
+    */
+   private void indexName(ManagedObjectReference mor, String name) {
+      ConcurrentMap<String, List<ManagedObjectReference>> byName =
+            nameIndex.get(mor.getType());
+      if (byName == null) {
+         nameIndex.putIfAbsent(mor.getType(),
+               new ConcurrentHashMap<String, List<ManagedObjectReference>>());
+         byName = nameIndex.get(mor.getType());
+      }
+      List<ManagedObjectReference> indexed = byName.get(name);
+      if (indexed == null) {
+         byName.put(name, Collections.singletonList(mor));
+         return;
+      }
+      for (ManagedObjectReference other : indexed) {
+         if (other.getValue().equals(mor.getValue())) {
+            return;
+         }
+      }
+      List<ManagedObjectReference> mors =
+            new ArrayList<ManagedObjectReference>(indexed);
+      mors.add(mor);
+      byName.put(name, Collections.unmodifiableList(mors));
+   }
+
+   private void unindexName(ManagedObjectReference mor,
+         Map<String, Object> oldProps) {
+      if (oldProps == null || !(oldProps.get("name") instanceof String)) {
+         return;
+      }
+      ConcurrentMap<String, List<ManagedObjectReference>> byName =
+            nameIndex.get(mor.getType());
+      if (byName == null) {
+         return;
+      }
+      String oldName = (String) oldProps.get("name");
+      List<ManagedObjectReference> indexed = byName.get(oldName);
+      if (indexed == null) {
+         return;
+      }
+      List<ManagedObjectReference> mors =
+            new ArrayList<ManagedObjectReference>(indexed.size());
+      for (ManagedObjectReference other : indexed) {
+         if (!other.getValue().equals(mor.getValue())) {
+            mors.add(other);
+         }
+      }
+      if (mors.isEmpty()) {
+         byName.remove(oldName);
+      } else if (mors.size() < indexed.size()) {
+         byName.put(oldName, Collections.unmodifiableList(mors));
+      }
+   }
+
+   /*
+    * ManagedObjectReference has no equals/hashCode, the type and value are
+    * used as key instead.
+    */
+   private static String key(ManagedObjectReference mor) {
+      return mor.getType() + ":" + mor.getValue();
+   }
+
+   /**
+    * Finds an entity by its exact name. When several entities of the type
+    * share the name the first one cached is returned.
+    *
+    * @param type
+    *           managed object type, e.g. VirtualMachine
+    * @param name
+    *           entity name
+    * @return the managed object reference, or null if not in the inventory
+    */
+   public ManagedObjectReference findByName(String type, String name) {
+      List<ManagedObjectReference> mors = findAllByName(type, name);
+      return mors.isEmpty() ? null : mors.get(0);
+   }
+
+   /**
+    * @return every cached entity of the type with the given name (immutable),
+    *         empty if none
+    */
+   public List<ManagedObjectReference> findAllByName(String type, String name) {
+      Map<String, List<ManagedObjectReference>> byName = nameIndex.get(type);
+      List<ManagedObjectReference> mors =
+            byName == null ? null : byName.get(name);
+      return mors == null ? Collections.<ManagedObjectReference> emptyList()
+            : mors;
+   }
+
+   /**
+    * @return cached properties of the object (immutable), or null if the
+    *         object is not in the inventory
+    */
+   public Map<String, Object> getProperties(ManagedObjectReference mor) {
+      return properties.get(key(mor));
+   }
+
+   /**
+    * @return the cached property value, or null if unset or unknown
+    */
+   public Object getProperty(ManagedObjectReference mor, String path) {
+      Map<String, Object> props = getProperties(mor);
+      return props == null ? null : props.get(path);
+   }
+
+   /**
+    * Typed variant of {@link #getProperty(ManagedObjectReference, String)}.
+    *
+    * @throws ClassCastException
+    *            if the value is not of the requested type
+    */
+   public <T> T getProperty(ManagedObjectReference mor, String path,
+         Class<T> clazz) {
+      return clazz.cast(getProperty(mor, path));
+   }
+
+   /**
+    * @return all cached objects of the given type
+    */
+   public List<ManagedObjectReference> getObjects(String type) {
+      List<ManagedObjectReference> result =
+            new ArrayList<ManagedObjectReference>();
+      for (Iterator<ManagedObjectReference> it = objects.values().iterator(); it
+            .hasNext();) {
+         ManagedObjectReference mor = it.next();
+         if (mor.getType().equals(type)) {
+            result.add(mor);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * @return number of cached objects
+    */
+   public int size() {
+      return objects.size();
+   }
+
+   /**
+    * @return true while updates are being applied
+    */
+   public boolean isRunning() {
+      return running;
+   }
+
+   /**
+    * @return true if the last attempt to fetch updates failed, or the cache
+    *         stopped because of a failure; the content may be out of date
+    */
+   public boolean isStale() {
+      return failure != null;
+   }
+
+   /**
+    * @return the failure behind {@link #isStale()}, or null
+    */
+   public Exception getFailure() {
+      return failure;
+   }
+
+   /**
+    * Stops applying updates and destroys the PropertyCollector (and with it
+    * the filter). The cached content stays readable.
+    */
+   @Override
+   public synchronized void close() {
+      if (propCollectorRef == null) {
+         return;
+      }
+      running = false;
+      try {
+         vimPort.cancelWaitForUpdates(propCollectorRef);
+      } catch (Exception e) {
+         // the updater wakes up after MAX_WAIT_SECONDS anyway
+      }
+      if (updater != null) {
+         // cuts short a retry delay
+         updater.interrupt();
+         try {
+            updater.join(TimeUnit.SECONDS.toMillis(MAX_WAIT_SECONDS));
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+      try {
+         vimPort.destroyPropertyCollector(propCollectorRef);
+      } catch (Exception e) {
+         System.out.println("Failed to destroy the property collector - "
+               + e.getMessage());
+      }
+      propCollectorRef = null;
+   }
+
+   /**
+    * @return A list of SelectionSpec reaching every Folder, Datacenter,
+    *         ComputeResource, HostSystem, ResourcePool, VirtualApp,
+    *         VirtualMachine, Datastore and Network from the root folder.
+    */
+   public static List<SelectionSpec> buildFullTraversal() {
+      // Terminal traversal specs
+      // RP -> VM
+      TraversalSpec rpToVm = new TraversalSpec();
+      rpToVm.setName("rpToVm");
+      rpToVm.setType("ResourcePool");
+      rpToVm.setPath("vm");
+      rpToVm.setSkip(Boolean.FALSE);
+
+      // vApp -> VM
+      TraversalSpec vAppToVM = new TraversalSpec();
+      vAppToVM.setName("vAppToVM");
+      vAppToVM.setType("VirtualApp");
+      vAppToVM.setPath("vm");
+
+      // HostSystem -> VM
+      TraversalSpec hToVm = new TraversalSpec();
+      hToVm.setType("HostSystem");
+      hToVm.setPath("vm");
+      hToVm.setName("HToVm");
+      hToVm.setSkip(Boolean.FALSE);
+
+      // DC -> DS
+      TraversalSpec dcToDs = new TraversalSpec();
+      dcToDs.setType("Datacenter");
+      dcToDs.setPath("datastore");
+      dcToDs.setName("dcToDs");
+      dcToDs.setSkip(Boolean.FALSE);
+
+      // DC -> Network
+      TraversalSpec dcToNet = new TraversalSpec();
+      dcToNet.setType("Datacenter");
+      dcToNet.setPath("network");
+      dcToNet.setName("dcToNet");
+      dcToNet.setSkip(Boolean.FALSE);
+
+      // For RP -> RP recursion
+      SelectionSpec rpToRpSpec = new SelectionSpec();
+      rpToRpSpec.setName("rpToRp");
+
+      // Recurse through all ResourcePools
+      TraversalSpec rpToRp = new TraversalSpec();
+      rpToRp.setType("ResourcePool");
+      rpToRp.setPath("resourcePool");
+      rpToRp.setSkip(Boolean.FALSE);
+      rpToRp.setName("rpToRp");
+      rpToRp.getSelectSet().add(rpToRpSpec);
+
+      TraversalSpec crToRp = new TraversalSpec();
+      crToRp.setType("ComputeResource");
+      crToRp.setPath("resourcePool");
+      crToRp.setSkip(Boolean.FALSE);
+      crToRp.setName("crToRp");
+      crToRp.getSelectSet().add(rpToRp);
+
+      TraversalSpec crToH = new TraversalSpec();
+      crToH.setSkip(Boolean.FALSE);
+      crToH.setType("ComputeResource");
+      crToH.setPath("host");
+      crToH.setName("crToH");
+      crToH.getSelectSet().add(hToVm);
+
+      // For Folder -> Folder recursion
+      SelectionSpec sspecvfolders = new SelectionSpec();
+      sspecvfolders.setName("VisitFolders");
+
+      TraversalSpec dcToHf = new TraversalSpec();
+      dcToHf.setSkip(Boolean.FALSE);
+      dcToHf.setType("Datacenter");
+      dcToHf.setPath("hostFolder");
+      dcToHf.setName("dcToHf");
+      dcToHf.getSelectSet().add(sspecvfolders);
+
+      TraversalSpec vAppToRp = new TraversalSpec();
+      vAppToRp.setName("vAppToRp");
+      vAppToRp.setType("VirtualApp");
+      vAppToRp.setPath("resourcePool");
+      vAppToRp.getSelectSet().add(rpToRpSpec);
+
+      TraversalSpec dcToVmf = new TraversalSpec();
+      dcToVmf.setType("Datacenter");
+      dcToVmf.setSkip(Boolean.FALSE);
+      dcToVmf.setPath("vmFolder");
+      dcToVmf.setName("dcToVmf");
+      dcToVmf.getSelectSet().add(sspecvfolders);
+
+      TraversalSpec visitFolders = new TraversalSpec();
+      visitFolders.setType("Folder");
+      visitFolders.setPath("childEntity");
+      visitFolders.setSkip(Boolean.FALSE);
+      visitFolders.setName("VisitFolders");
+      List<SelectionSpec> sspecarrvf = new ArrayList<SelectionSpec>();
+      sspecarrvf.add(crToRp);
+      sspecarrvf.add(crToH);
+      sspecarrvf.add(dcToVmf);
+      sspecarrvf.add(dcToHf);
+      sspecarrvf.add(vAppToRp);
+      sspecarrvf.add(vAppToVM);
+      sspecarrvf.add(dcToDs);
+      sspecarrvf.add(dcToNet);
+      sspecarrvf.add(rpToVm);
+      sspecarrvf.add(sspecvfolders);
+      visitFolders.getSelectSet().addAll(sspecarrvf);
+
+      List<SelectionSpec> result = new ArrayList<SelectionSpec>();
+      result.add(visitFolders);
+      return result;
+   }
+}
@@ -0,0 +1,296 @@
+package com.vmware.apputils.vim25;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ * NfcDownloader
+ *
+ * Downloads the disks of an OVF export from the device URLs of an
+ * HttpNfcLease.
+ *
+ * Up to {@link #setParallelism(int)} disks are downloaded at the same time,
+ * each over its own HTTP connection. Data is read into a small pool of large
+ * buffers that are reused for the whole export and written to the target
+ * through its FileChannel. While a buffer passes through, it is also added
+ * to a digest of the disk, so the digests for the OVF manifest are ready when
+ * the download ends and the disks are never read a second time.
+ *
+ * The bytes received are added to the {@link HttpNfcLeaseManager.Lease},
+ * which reports them as lease progress. Completing or aborting the lease is
+ * left to the caller.
+ *
+ * Usage:
+ * NfcDownloader downloader = new NfcDownloader(lease, cookie);
+ * downloader.addDisk(deviceUrl, new File("export/disk-0.vmdk"));
+ * for (NfcDownloader.Disk disk : downloader.download()) {
+ *    manifest.addDigest(disk.getFile().getName(), disk.getDigest());
+ * }
+ * </pre>
+ */
+public class NfcDownloader {
+
+   public static final int DEFAULT_PARALLELISM = 4;
+   public static final int BUFFER_SIZE = 1024 * 1024;
+   public static final String DEFAULT_DIGEST_ALGORITHM = "SHA-256";
+
+   /**
+    * One disk of the export.
+    */
+   public static class Disk {
+      private final String url;
+      private final File file;
+      private long bytes = 0;
+      private long elapsedMillis = 0;
+      private byte[] digest = null;
+
+      private Disk(String url, File file) {
+         this.url = url;
+         this.file = file;
+      }
+
+      public String getUrl() {
+         return url;
+      }
+
+      public File getFile() {
+         return file;
+      }
+
+      /**
+       * @return bytes written to the file
+       */
+      public long getBytes() {
+         return bytes;
+      }
+
+      public long getElapsedMillis() {
+         return elapsedMillis;
+      }
+
+      /**
+       * @return digest of the file contents, null until it is downloaded
+       */
+      public byte[] getDigest() {
+         return digest == null ? null : digest.clone();
+      }
+
+      @Override
+      public String toString() {
+         return file + ": " + bytes + " bytes in " + elapsedMillis + " ms";
+      }
+   }
+
+   private final HttpNfcLeaseManager.Lease lease;
+   private final String cookie;
+
+   private final List<Disk> disks = new ArrayList<Disk>();
+   private final AtomicLong bytesRead = new AtomicLong();
+   private int parallelism = DEFAULT_PARALLELISM;
+   private String digestAlgorithm = DEFAULT_DIGEST_ALGORITHM;
+
+   /**
+    * @param lease
+    *           the registered HttpNfcLease, in state ready
+    * @param cookie
+    *           session cookie sent with the downloads, e.g.
+    *           vmware_soap_session="..."
+    */
+   public NfcDownloader(HttpNfcLeaseManager.Lease lease, String cookie) {
+      this.lease = lease;
+      this.cookie = cookie;
+   }
+
+   /**
+    * @param parallelism
+    *           number of disks downloaded at the same time
+    */
+   public void setParallelism(int parallelism) {
+      if (parallelism < 1) {
+         throw new IllegalArgumentException("parallelism must be positive");
+      }
+      this.parallelism = parallelism;
+   }
+
+   /**
+    * @param algorithm
+    *           MessageDigest algorithm of the disk digests, "SHA-256" or
+    *           "SHA-1" for an OVF 1.0 manifest
+    */
+   public void setDigestAlgorithm(String algorithm) {
+      try {
+         MessageDigest.getInstance(algorithm);
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalArgumentException("Unknown digest algorithm "
+               + algorithm);
+      }
+      this.digestAlgorithm = algorithm;
+   }
+
+   public String getDigestAlgorithm() {
+      return digestAlgorithm;
+   }
+
+   /**
+    * Adds a disk to download.
+    *
+    * @param url
+    *           device URL of the lease, with the host already filled in
+    * @param file
+    *           local target, replaced if it exists
+    */
+   public void addDisk(String url, File file) {
+      disks.add(new Disk(url, file));
+   }
+
+   /**
+    * @return bytes received so far
+    */
+   public long getBytesRead() {
+      return bytesRead.get();
+   }
+
+   /**
+    * Downloads all disks and returns once they are all written. If one disk
+    * fails the others are cancelled and the failure is thrown.
+    *
+    * @return the disks in the order they were added, with size and digest
+    * @throws IOException
+    *            if a download failed
+    * @throws InterruptedException
+    */
+   public List<Disk> download() throws IOException, InterruptedException {
+      int threads = Math.min(parallelism, Math.max(1, disks.size()));
+      final BlockingQueue<ByteBuffer> buffers =
+            new ArrayBlockingQueue<ByteBuffer>(threads);
+      for (int i = 0; i < threads; ++i) {
+         buffers.add(ByteBuffer.allocate(BUFFER_SIZE));
+      }
+      ExecutorService workers =
+            Executors.newFixedThreadPool(threads, new ThreadFactory() {
+               @Override
+               public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "NfcDownloader");
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+      try {
+         CompletionService<Disk> completion =
+               new ExecutorCompletionService<Disk>(workers);
+         for (final Disk disk : disks) {
+            completion.submit(new Callable<Disk>() {
+               @Override
+               public Disk call() throws Exception {
+                  ByteBuffer buffer = buffers.take();
+                  try {
+                     downloadDisk(disk, buffer);
+                     return disk;
+                  } finally {
+                     buffers.put(buffer);
+                  }
+               }
+            });
+         }
+         for (int i = 0; i < disks.size(); ++i) {
+            try {
+               Disk disk = completion.take().get();
+               System.out.println("   Exported " + disk);
+            } catch (ExecutionException e) {
+               Throwable cause = e.getCause();
+               if (cause instanceof IOException) {
+                  throw (IOException) cause;
+               }
+               throw new IOException("Download failed: " + cause.getMessage(),
+                     cause);
+            }
+         }
+      } finally {
+         workers.shutdownNow();
+      }
+      return new ArrayList<Disk>(disks);
+   }
+
+   private void downloadDisk(Disk disk, ByteBuffer buffer)
+         throws IOException, NoSuchAlgorithmException {
+      long start = System.currentTimeMillis();
+      MessageDigest md = MessageDigest.getInstance(digestAlgorithm);
+      HttpURLConnection conn =
+            (HttpURLConnection) new URL(disk.url).openConnection();
+      try {
+         conn.setDoInput(true);
+         conn.setUseCaches(false);
+         conn.setRequestMethod("GET");
+         conn.setRequestProperty("Cookie", cookie);
+         int status = conn.getResponseCode();
+         if (status >= 300) {
+            throw new IOException("Download of " + disk.url
+                  + " failed: HTTP " + status + " "
+                  + conn.getResponseMessage());
+         }
+         InputStream in = conn.getInputStream();
+         FileChannel out = new FileOutputStream(disk.file).getChannel();
+         try {
+            byte[] array = buffer.array();
+            int n;
+            // fill the buffer before each write, the stream returns far
+            // less than a buffer per read
+            while ((n = fill(in, array)) > 0) {
+               if (Thread.currentThread().isInterrupted()) {
+                  throw new IOException("Download of " + disk.file
+                        + " cancelled");
+               }
+               md.update(array, 0, n);
+               buffer.clear();
+               buffer.limit(n);
+               while (buffer.hasRemaining()) {
+                  out.write(buffer);
+               }
+               disk.bytes += n;
+               bytesRead.addAndGet(n);
+               lease.addBytes(n);
+            }
+         } finally {
+            in.close();
+            out.close();
+         }
+      } finally {
+         conn.disconnect();
+      }
+      disk.digest = md.digest();
+      disk.elapsedMillis = System.currentTimeMillis() - start;
+   }
+
+   private static int fill(InputStream in, byte[] array) throws IOException {
+      int total = 0;
+      while (total < array.length) {
+         int n = in.read(array, total, array.length - total);
+         if (n < 0) {
+            break;
+         }
+         total += n;
+      }
+      return total;
+   }
+}
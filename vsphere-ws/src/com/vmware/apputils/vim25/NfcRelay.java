@@ -0,0 +1,321 @@
+package com.vmware.apputils.vim25;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ * NfcRelay
+ *
+ * Streams the disks of an OVF import straight from a web server to the
+ * device URLs of an HttpNfcLease, without staging them locally.
+ *
+ * Every disk is relayed by two threads: one reads the source connection
+ * ahead into buffers, the other writes the filled buffers to the target
+ * connection, so reading and writing overlap. Up to
+ * {@link #setParallelism(int)} disks are relayed at the same time. All of
+ * them share one fixed pool of {@link #READ_AHEAD} buffers per disk; nothing
+ * is allocated per chunk.
+ *
+ * The bytes sent are added to the {@link HttpNfcLeaseManager.Lease}, which
+ * reports them as lease progress. Completing or aborting the lease is left to
+ * the caller.
+ *
+ * Usage:
+ * NfcRelay relay = new NfcRelay(lease, cookie);
+ * relay.addDisk("http://server/vapp/disk1.vmdk", deviceUrl, false);
+ * relay.relay();
+ * lease.complete();
+ * </pre>
+ */
+public class NfcRelay {
+
+   public static final int DEFAULT_PARALLELISM = 4;
+   public static final int BUFFER_SIZE = 1024 * 1024;
+   /** Buffers per disk that the reader may fill ahead of the writer. */
+   public static final int READ_AHEAD = 4;
+
+   private static class Disk {
+      private final String source;
+      private final String target;
+      private final boolean put;
+
+      private Disk(String source, String target, boolean put) {
+         this.source = source;
+         this.target = target;
+         this.put = put;
+      }
+   }
+
+   /*
+    * A filled buffer on its way from the reader to the writer. A chunk with
+    * a negative length ends the stream.
+    */
+   private static class Chunk {
+      private final byte[] buffer;
+      private final int length;
+
+      private Chunk(byte[] buffer, int length) {
+         this.buffer = buffer;
+         this.length = length;
+      }
+   }
+
+   private final HttpNfcLeaseManager.Lease lease;
+   private final String cookie;
+   private String sourceCookie = null;
+
+   private final List<Disk> disks = new ArrayList<Disk>();
+   private final AtomicLong bytesWritten = new AtomicLong();
+   private int parallelism = DEFAULT_PARALLELISM;
+
+   /**
+    * @param lease
+    *           the registered HttpNfcLease, in state ready
+    * @param cookie
+    *           session cookie sent with the uploads, e.g.
+    *           vmware_soap_session="..."
+    */
+   public NfcRelay(HttpNfcLeaseManager.Lease lease, String cookie) {
+      this.lease = lease;
+      this.cookie = cookie;
+   }
+
+   /**
+    * @param parallelism
+    *           number of disks relayed at the same time
+    */
+   public void setParallelism(int parallelism) {
+      if (parallelism < 1) {
+         throw new IllegalArgumentException("parallelism must be positive");
+      }
+      this.parallelism = parallelism;
+   }
+
+   /**
+    * @param sourceCookie
+    *           cookie sent with the source requests, none by default
+    */
+   public void setSourceCookie(String sourceCookie) {
+      this.sourceCookie = sourceCookie;
+   }
+
+   /**
+    * Adds a disk to relay.
+    *
+    * @param source
+    *           URL of the disk on the web server
+    * @param target
+    *           device URL of the lease, with the host already filled in
+    * @param put
+    *           true to PUT (OvfFileItem.create), false to POST
+    */
+   public void addDisk(String source, String target, boolean put) {
+      disks.add(new Disk(source, target, put));
+   }
+
+   /**
+    * @return bytes sent so far
+    */
+   public long getBytesWritten() {
+      return bytesWritten.get();
+   }
+
+   /**
+    * Relays all disks and returns once they are all sent. If one disk fails
+    * the others are cancelled and the failure is thrown.
+    *
+    * @return number of bytes sent
+    * @throws IOException
+    *            if a transfer failed
+    * @throws InterruptedException
+    */
+   public long relay() throws IOException, InterruptedException {
+      int threads = Math.min(parallelism, Math.max(1, disks.size()));
+      final BlockingQueue<byte[]> buffers =
+            new ArrayBlockingQueue<byte[]>(threads * READ_AHEAD);
+      for (int i = 0; i < threads * READ_AHEAD; ++i) {
+         buffers.add(new byte[BUFFER_SIZE]);
+      }
+      ThreadFactory factory = new ThreadFactory() {
+         @Override
+         public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "NfcRelay");
+            t.setDaemon(true);
+            return t;
+         }
+      };
+      // a writer only waits for its own reader, so the two pools of the
+      // same size can not starve each other
+      final ExecutorService readers =
+            Executors.newFixedThreadPool(threads, factory);
+      ExecutorService writers = Executors.newFixedThreadPool(threads, factory);
+      try {
+         CompletionService<Long> completion =
+               new ExecutorCompletionService<Long>(writers);
+         for (final Disk disk : disks) {
+            completion.submit(new Callable<Long>() {
+               @Override
+               public Long call() throws Exception {
+                  return relayDisk(disk, buffers, readers);
+               }
+            });
+         }
+         for (int i = 0; i < disks.size(); ++i) {
+            try {
+               completion.take().get();
+            } catch (ExecutionException e) {
+               Throwable cause = e.getCause();
+               if (cause instanceof IOException) {
+                  throw (IOException) cause;
+               }
+               throw new IOException("Relay failed: " + cause.getMessage(),
+                     cause);
+            }
+         }
+      } finally {
+         writers.shutdownNow();
+         readers.shutdownNow();
+      }
+      return bytesWritten.get();
+   }
+
+   private long relayDisk(Disk disk, final BlockingQueue<byte[]> buffers,
+         ExecutorService readers) throws Exception {
+      final HttpURLConnection in =
+            (HttpURLConnection) new URL(disk.source).openConnection();
+      in.setUseCaches(false);
+      if (sourceCookie != null) {
+         in.setRequestProperty("Cookie", sourceCookie);
+      }
+      int status = in.getResponseCode();
+      if (status >= 300) {
+         in.disconnect();
+         throw new IOException("Download of " + disk.source
+               + " failed: HTTP " + status + " " + in.getResponseMessage());
+      }
+      long length = in.getContentLengthLong();
+
+      final BlockingQueue<Chunk> chunks =
+            new ArrayBlockingQueue<Chunk>(READ_AHEAD + 1);
+      Future<Void> reader = readers.submit(new Callable<Void>() {
+         @Override
+         public Void call() throws Exception {
+            InputStream stream = in.getInputStream();
+            byte[] buffer = null;
+            try {
+               while (true) {
+                  buffer = buffers.take();
+                  int n = fill(stream, buffer);
+                  if (n == 0) {
+                     break;
+                  }
+                  chunks.put(new Chunk(buffer, n));
+                  buffer = null;
+               }
+            } finally {
+               if (buffer != null) {
+                  buffers.offer(buffer);
+               }
+               stream.close();
+               chunks.put(new Chunk(null, -1));
+            }
+            return null;
+         }
+      });
+
+      HttpURLConnection out =
+            (HttpURLConnection) new URL(disk.target).openConnection();
+      long sent = 0;
+      try {
+         out.setDoInput(true);
+         out.setDoOutput(true);
+         out.setUseCaches(false);
+         if (length >= 0) {
+            out.setFixedLengthStreamingMode(length);
+         } else {
+            out.setChunkedStreamingMode(BUFFER_SIZE);
+         }
+         out.setRequestMethod(disk.put ? "PUT" : "POST");
+         out.setRequestProperty("Cookie", cookie);
+         out.setRequestProperty("Connection", "Keep-Alive");
+         out.setRequestProperty("Content-Type",
+               "application/x-vnd.vmware-streamVmdk");
+         OutputStream stream = out.getOutputStream();
+         boolean complete = false;
+         try {
+            Chunk chunk;
+            while ((chunk = chunks.take()).length >= 0) {
+               try {
+                  stream.write(chunk.buffer, 0, chunk.length);
+               } finally {
+                  buffers.put(chunk.buffer);
+               }
+               sent += chunk.length;
+               bytesWritten.addAndGet(chunk.length);
+               lease.addBytes(chunk.length);
+            }
+            // rethrows a read failure
+            reader.get();
+            complete = true;
+         } finally {
+            // closing a short fixed length stream would hide the failure,
+            // disconnect() below drops it
+            if (complete) {
+               stream.close();
+            }
+         }
+         status = out.getResponseCode();
+         if (status >= 300) {
+            throw new IOException("Upload of " + disk.source
+                  + " failed: HTTP " + status + " "
+                  + out.getResponseMessage());
+         }
+      } catch (ExecutionException e) {
+         throw new IOException("Download of " + disk.source + " failed: "
+               + e.getCause().getMessage(), e.getCause());
+      } finally {
+         if (!reader.isDone()) {
+            reader.cancel(true);
+         }
+         // hand back what the reader filled but nobody will write
+         Chunk chunk;
+         while ((chunk = chunks.poll()) != null) {
+            if (chunk.buffer != null) {
+               buffers.offer(chunk.buffer);
+            }
+         }
+         out.disconnect();
+         in.disconnect();
+      }
+      return sent;
+   }
+
+   private static int fill(InputStream in, byte[] array) throws IOException {
+      int total = 0;
+      while (total < array.length) {
+         int n = in.read(array, total, array.length - total);
+         if (n < 0) {
+            break;
+         }
+         total += n;
+      }
+      return total;
+   }
+}
@@ -0,0 +1,219 @@
+package com.vmware.apputils.vim25;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ * NfcUploader
+ *
+ * Uploads the disks of an OVF import to the device URLs of an HttpNfcLease.
+ *
+ * Every disk is streamed over its own HTTP connection and up to
+ * {@link #setParallelism(int)} disks are uploaded at the same time. Data is
+ * copied through a small pool of large buffers that are reused for the whole
+ * import; nothing is allocated per read and the stream is not flushed per
+ * chunk.
+ *
+ * The bytes sent are added to the {@link HttpNfcLeaseManager.Lease}, which
+ * reports them as lease progress and keeps the lease from timing out.
+ * Completing or aborting the lease is left to the caller.
+ *
+ * Usage:
+ * HttpNfcLeaseManager.Lease lease = HttpNfcLeaseManager.getDefault().register(
+ *       vimPort, httpNfcLease, totalBytes);
+ * NfcUploader uploader = new NfcUploader(lease, cookie);
+ * uploader.addDisk(new File("disk1.vmdk"), deviceUrl, false);
+ * uploader.upload();
+ * lease.complete();
+ * </pre>
+ */
+public class NfcUploader {
+
+   public static final int DEFAULT_PARALLELISM = 4;
+   public static final int BUFFER_SIZE = 1024 * 1024;
+
+   private static class Disk {
+      private final File file;
+      private final String url;
+      private final boolean put;
+
+      private Disk(File file, String url, boolean put) {
+         this.file = file;
+         this.url = url;
+         this.put = put;
+      }
+   }
+
+   private final HttpNfcLeaseManager.Lease lease;
+   private final String cookie;
+
+   private final List<Disk> disks = new ArrayList<Disk>();
+   private final AtomicLong bytesWritten = new AtomicLong();
+   private int parallelism = DEFAULT_PARALLELISM;
+
+   /**
+    * @param lease
+    *           the registered HttpNfcLease, in state ready
+    * @param cookie
+    *           session cookie sent with the uploads, e.g. vmware_soap_session="..."
+    */
+   public NfcUploader(HttpNfcLeaseManager.Lease lease, String cookie) {
+      this.lease = lease;
+      this.cookie = cookie;
+   }
+
+   /**
+    * @param parallelism
+    *           number of disks uploaded at the same time
+    */
+   public void setParallelism(int parallelism) {
+      if (parallelism < 1) {
+         throw new IllegalArgumentException("parallelism must be positive");
+      }
+      this.parallelism = parallelism;
+   }
+
+   /**
+    * Adds a disk to upload.
+    *
+    * @param file
+    *           local file
+    * @param url
+    *           device URL of the lease, with the host already filled in
+    * @param put
+    *           true to PUT (OvfFileItem.create), false to POST
+    */
+   public void addDisk(File file, String url, boolean put) {
+      disks.add(new Disk(file, url, put));
+   }
+
+   /**
+    * @return bytes sent so far
+    */
+   public long getBytesWritten() {
+      return bytesWritten.get();
+   }
+
+   /**
+    * Uploads all disks and returns once they are all sent. If one disk fails
+    * the others are cancelled and the failure is thrown.
+    *
+    * @return number of bytes sent
+    * @throws IOException
+    *            if an upload failed
+    * @throws InterruptedException
+    */
+   public long upload() throws IOException, InterruptedException {
+      int threads = Math.min(parallelism, Math.max(1, disks.size()));
+      final BlockingQueue<byte[]> buffers =
+            new ArrayBlockingQueue<byte[]>(threads);
+      for (int i = 0; i < threads; ++i) {
+         buffers.add(new byte[BUFFER_SIZE]);
+      }
+      ExecutorService workers =
+            Executors.newFixedThreadPool(threads, new ThreadFactory() {
+               @Override
+               public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "NfcUploader");
+                  t.setDaemon(true);
+                  return t;
+               }
+            });
+      try {
+         CompletionService<Long> completion =
+               new ExecutorCompletionService<Long>(workers);
+         for (final Disk disk : disks) {
+            completion.submit(new Callable<Long>() {
+               @Override
+               public Long call() throws IOException, InterruptedException {
+                  byte[] buffer = buffers.take();
+                  try {
+                     return uploadDisk(disk, buffer);
+                  } finally {
+                     buffers.put(buffer);
+                  }
+               }
+            });
+         }
+         for (int i = 0; i < disks.size(); ++i) {
+            try {
+               completion.take().get();
+            } catch (ExecutionException e) {
+               Throwable cause = e.getCause();
+               if (cause instanceof IOException) {
+                  throw (IOException) cause;
+               }
+               throw new IOException("Upload failed: " + cause.getMessage(),
+                     cause);
+            }
+         }
+      } finally {
+         workers.shutdownNow();
+      }
+      return bytesWritten.get();
+   }
+
+   private long uploadDisk(Disk disk, byte[] buffer) throws IOException {
+      HttpURLConnection conn =
+            (HttpURLConnection) new URL(disk.url).openConnection();
+      long sent = 0;
+      try {
+         conn.setDoInput(true);
+         conn.setDoOutput(true);
+         conn.setUseCaches(false);
+         conn.setChunkedStreamingMode(BUFFER_SIZE);
+         conn.setRequestMethod(disk.put ? "PUT" : "POST");
+         conn.setRequestProperty("Cookie", cookie);
+         conn.setRequestProperty("Connection", "Keep-Alive");
+         conn.setRequestProperty("Content-Type",
+               "application/x-vnd.vmware-streamVmdk");
+         conn.setRequestProperty("Content-Length",
+               String.valueOf(disk.file.length()));
+         conn.setRequestProperty("Expect", "100-continue");
+         OutputStream out = conn.getOutputStream();
+         InputStream in = new FileInputStream(disk.file);
+         try {
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) >= 0) {
+               if (Thread.currentThread().isInterrupted()) {
+                  throw new IOException("Upload of " + disk.file
+                        + " cancelled");
+               }
+               out.write(buffer, 0, bytesRead);
+               sent += bytesRead;
+               bytesWritten.addAndGet(bytesRead);
+               lease.addBytes(bytesRead);
+            }
+         } finally {
+            in.close();
+            out.close();
+         }
+         int status = conn.getResponseCode();
+         if (status >= 300) {
+            throw new IOException("Upload of " + disk.file + " failed: HTTP "
+                  + status + " " + conn.getResponseMessage());
+         }
+      } finally {
+         conn.disconnect();
+      }
+      return sent;
+   }
+}
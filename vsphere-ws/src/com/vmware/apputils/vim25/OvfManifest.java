@@ -0,0 +1,101 @@
+package com.vmware.apputils.vim25;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <pre>
+ * OvfManifest
+ *
+ * Builds the manifest (.mf) of an OVF package from digests that were computed
+ * while the files were written, e.g. by {@link NfcDownloader}. Every line has
+ * the form
+ *
+ * SHA256(disk-0.vmdk)= 5e88...
+ *
+ * Usage:
+ * OvfManifest manifest = new OvfManifest("SHA-256");
+ * manifest.addContent("vapp.ovf", descriptorBytes);
+ * manifest.addDigest("disk-0.vmdk", disk.getDigest());
+ * manifest.write(new File(localpath, "vapp.mf"));
+ * </pre>
+ */
+public class OvfManifest {
+
+   private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+   private final String algorithm;
+   private final Map<String, byte[]> digests =
+         new LinkedHashMap<String, byte[]>();
+
+   /**
+    * @param algorithm
+    *           MessageDigest algorithm the digests were computed with,
+    *           "SHA-256" or "SHA-1"
+    */
+   public OvfManifest(String algorithm) {
+      try {
+         MessageDigest.getInstance(algorithm);
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalArgumentException("Unknown digest algorithm "
+               + algorithm);
+      }
+      this.algorithm = algorithm;
+   }
+
+   /**
+    * Adds the digest of a file of the package.
+    *
+    * @param fileName
+    *           name of the file relative to the manifest
+    */
+   public void addDigest(String fileName, byte[] digest) {
+      digests.put(fileName, digest.clone());
+   }
+
+   /**
+    * Adds a file whose contents are still in memory, e.g. the descriptor.
+    */
+   public void addContent(String fileName, byte[] content) {
+      try {
+         digests.put(fileName, MessageDigest.getInstance(algorithm).digest(
+               content));
+      } catch (NoSuchAlgorithmException e) {
+         // checked in the constructor
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * Writes the manifest, one line per file in the order they were added.
+    */
+   public void write(File file) throws IOException {
+      // "SHA-256" is written as "SHA256"
+      String name = algorithm.replace("-", "");
+      Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      try {
+         for (Map.Entry<String, byte[]> entry : digests.entrySet()) {
+            out.write(name + "(" + entry.getKey() + ")= "
+                  + toHex(entry.getValue()) + "\n");
+         }
+      } finally {
+         out.close();
+      }
+   }
+
+   private static String toHex(byte[] bytes) {
+      char[] chars = new char[bytes.length * 2];
+      for (int i = 0; i < bytes.length; ++i) {
+         chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+         chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+      }
+      return new String(chars);
+   }
+}
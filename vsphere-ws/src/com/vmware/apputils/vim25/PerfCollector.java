@@ -0,0 +1,379 @@
+package com.vmware.apputils.vim25;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.datatype.XMLGregorianCalendar;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfEntityMetricBase;
+import com.vmware.vim25.PerfEntityMetricCSV;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfQuerySpec;
+import com.vmware.vim25.PerfSampleInfo;
+import com.vmware.vim25.VimPortType;
+
+/**
+ * <pre>
+ * PerfCollector
+ *
+ * Collects performance statistics for many entities with few QueryPerf calls.
+ *
+ * Each collection cycle splits the entities into batches of
+ * {@link #setBatchSize(int)} entities; every batch is one QueryPerf call
+ * carrying one PerfQuerySpec per entity. Up to {@link #setParallelism(int)}
+ * batches are in flight against the PerformanceManager at the same time.
+ *
+ * The timestamp of the newest sample received for an entity is kept as its
+ * watermark and sent as startTime in the next cycle. QueryPerf only returns
+ * samples newer than startTime, so no sample is fetched twice. Entities
+ * without a watermark yet get the newest {@link #setInitialMaxSample(int)}
+ * samples.
+ *
+ * {@link #run(List)} repeats the cycle on the caller's thread, aligned to the
+ * boundaries of the sampling interval (20 seconds for real-time statistics).
+ *
+ * Results are handed to a {@link Sink}; entities that had no new sample are
+ * left out. The sink is called from the collector threads, concurrently for
+ * different batches. With {@link #setFormat(String)} "csv" the sink receives
+ * PerfEntityMetricCSV, which {@link PerfSamples} turns into primitive arrays
+ * far cheaper than the boxed series of the normal format.
+ *
+ * Usage:
+ * PerfCollector collector = new PerfCollector(vimPort,
+ *       serviceContent.getPerfManager(), metricIds, sink);
+ * collector.setParallelism(8);
+ * collector.run(vms);
+ * </pre>
+ */
+public class PerfCollector implements Closeable {
+
+   /**
+    * Receives the collected statistics.
+    */
+   public interface Sink {
+      /**
+       * Called once per batch with the entities that had new samples.
+       */
+      void metrics(List<PerfEntityMetricBase> metrics);
+
+      /**
+       * Called when the QueryPerf call of a batch failed.
+       */
+      void failed(List<ManagedObjectReference> entities, Throwable t);
+   }
+
+   /** QueryPerf result formats. */
+   public static final String NORMAL_FORMAT = "normal";
+   public static final String CSV_FORMAT = "csv";
+
+   /** Real-time statistics interval, in seconds. */
+   public static final int REAL_TIME_INTERVAL = 20;
+   public static final int DEFAULT_BATCH_SIZE = 250;
+   public static final int DEFAULT_PARALLELISM = 4;
+
+   /*
+    * vCenter publishes a real-time sample a few seconds after the end of its
+    * interval; collecting right on the boundary would miss it.
+    */
+   private static final long COLLECTION_DELAY_MILLIS = 5000;
+
+   private final VimPortType vimPort;
+   private final ManagedObjectReference perfManager;
+   private final List<PerfMetricId> metricIds;
+   private final Sink sink;
+
+   private final ConcurrentMap<String, XMLGregorianCalendar> watermarks =
+         new ConcurrentHashMap<String, XMLGregorianCalendar>();
+
+   private int batchSize = DEFAULT_BATCH_SIZE;
+   private int parallelism = DEFAULT_PARALLELISM;
+   private int intervalId = REAL_TIME_INTERVAL;
+   private int initialMaxSample = 1;
+   private String format = NORMAL_FORMAT;
+   private DatatypeFactory datatypeFactory = null;
+   private ExecutorService executor = null;
+   private Thread runner = null;
+   private volatile boolean closed = false;
+
+   /**
+    * @param vimPort
+    *           service stub
+    * @param perfManager
+    *           the PerformanceManager
+    * @param metricIds
+    *           metrics to query for every entity; an empty list queries all
+    *           available metrics
+    * @param sink
+    *           receiver of the results
+    */
+   public PerfCollector(VimPortType vimPort,
+         ManagedObjectReference perfManager, List<PerfMetricId> metricIds,
+         Sink sink) {
+      this.vimPort = vimPort;
+      this.perfManager = perfManager;
+      this.metricIds = new ArrayList<PerfMetricId>(metricIds);
+      this.sink = sink;
+   }
+
+   /**
+    * Convenience constructor for a pooled session.
+    */
+   public PerfCollector(ServiceConnection connection,
+         List<PerfMetricId> metricIds, Sink sink) {
+      this(connection.getVimPort(), connection.getServiceContent()
+            .getPerfManager(), metricIds, sink);
+   }
+
+   /**
+    * @param batchSize
+    *           number of entities (PerfQuerySpecs) per QueryPerf call
+    */
+   public void setBatchSize(int batchSize) {
+      if (batchSize < 1) {
+         throw new IllegalArgumentException("batch size must be positive");
+      }
+      this.batchSize = batchSize;
+   }
+
+   /**
+    * @param parallelism
+    *           number of QueryPerf calls in flight at the same time
+    */
+   public synchronized void setParallelism(int parallelism) {
+      if (parallelism < 1) {
+         throw new IllegalArgumentException("parallelism must be positive");
+      }
+      if (executor != null) {
+         throw new IllegalStateException("collector already started");
+      }
+      this.parallelism = parallelism;
+   }
+
+   /**
+    * @param intervalId
+    *           sampling interval in seconds, 20 for real-time statistics or
+    *           the key of a historical interval
+    */
+   public void setIntervalId(int intervalId) {
+      this.intervalId = intervalId;
+   }
+
+   /**
+    * @param initialMaxSample
+    *           number of samples requested for an entity seen for the first
+    *           time
+    */
+   public void setInitialMaxSample(int initialMaxSample) {
+      this.initialMaxSample = initialMaxSample;
+   }
+
+   /**
+    * @param format
+    *           {@link #NORMAL_FORMAT} or {@link #CSV_FORMAT}
+    */
+   public void setFormat(String format) {
+      if (!NORMAL_FORMAT.equals(format) && !CSV_FORMAT.equals(format)) {
+         throw new IllegalArgumentException("Unknown format " + format);
+      }
+      this.format = format;
+   }
+
+   /**
+    * Runs one collection cycle and returns once every batch was answered.
+    *
+    * @param entities
+    *           entities to collect statistics for
+    * @return number of entities that had new samples
+    */
+   public int collect(List<ManagedObjectReference> entities) {
+      ExecutorService pool = getExecutor();
+      List<Future<Integer>> batches = new ArrayList<Future<Integer>>();
+      List<List<ManagedObjectReference>> batchEntities =
+            new ArrayList<List<ManagedObjectReference>>();
+      for (int from = 0; from < entities.size(); from += batchSize) {
+         final List<ManagedObjectReference> batch =
+               new ArrayList<ManagedObjectReference>(entities.subList(from,
+                     Math.min(from + batchSize, entities.size())));
+         batchEntities.add(batch);
+         batches.add(pool.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+               return queryBatch(batch);
+            }
+         }));
+      }
+      int collected = 0;
+      for (int i = 0; i < batches.size(); ++i) {
+         try {
+            collected += batches.get(i).get();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            break;
+         } catch (ExecutionException e) {
+            // QueryPerf failures were reported by queryBatch; this is the
+            // sink itself failing on the metrics of the batch
+            try {
+               sink.failed(batchEntities.get(i), e.getCause());
+            } catch (RuntimeException again) {
+               System.out.println("Failed to handle the statistics of "
+                     + batchEntities.get(i).size() + " entities - "
+                     + e.getCause());
+            }
+         }
+      }
+      return collected;
+   }
+
+   /**
+    * Collects every interval until {@link #close()} is called or the
+    * calling thread is interrupted.
+    *
+    * @param entities
+    *           entities to collect statistics for
+    */
+   public void run(List<ManagedObjectReference> entities) {
+      runner = Thread.currentThread();
+      while (!closed && !Thread.currentThread().isInterrupted()) {
+         collect(entities);
+         long intervalMillis = intervalId * 1000L;
+         long now = System.currentTimeMillis();
+         long next =
+               (now / intervalMillis + 1) * intervalMillis
+                     + COLLECTION_DELAY_MILLIS;
+         try {
+            Thread.sleep(next - now);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
+   /**
+    * Forgets the watermark of the given entity, e.g. once it was removed.
+    */
+   public void forget(ManagedObjectReference entity) {
+      watermarks.remove(key(entity));
+   }
+
+   /**
+    * Stops {@link #run(List)} and the collector threads.
+    */
+   @Override
+   public synchronized void close() {
+      closed = true;
+      if (runner != null) {
+         runner.interrupt();
+      }
+      if (executor != null) {
+         executor.shutdownNow();
+      }
+   }
+
+   private synchronized ExecutorService getExecutor() {
+      if (executor == null) {
+         executor =
+               Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+                  @Override
+                  public Thread newThread(Runnable r) {
+                     Thread t = new Thread(r, "PerfCollector");
+                     t.setDaemon(true);
+                     return t;
+                  }
+               });
+      }
+      return executor;
+   }
+
+   private int queryBatch(List<ManagedObjectReference> batch) {
+      List<PerfQuerySpec> qSpecs = new ArrayList<PerfQuerySpec>(batch.size());
+      for (ManagedObjectReference entity : batch) {
+         PerfQuerySpec qSpec = new PerfQuerySpec();
+         qSpec.setEntity(entity);
+         qSpec.getMetricId().addAll(metricIds);
+         qSpec.setIntervalId(new Integer(intervalId));
+         qSpec.setFormat(format);
+         XMLGregorianCalendar watermark = watermarks.get(key(entity));
+         if (watermark != null) {
+            qSpec.setStartTime(watermark);
+         } else {
+            qSpec.setMaxSample(new Integer(initialMaxSample));
+         }
+         qSpecs.add(qSpec);
+      }
+      List<PerfEntityMetricBase> result;
+      try {
+         result = vimPort.queryPerf(perfManager, qSpecs);
+      } catch (Exception e) {
+         sink.failed(batch, e);
+         return 0;
+      }
+      List<PerfEntityMetricBase> fresh = new ArrayList<PerfEntityMetricBase>();
+      if (result != null) {
+         for (PerfEntityMetricBase metric : result) {
+            XMLGregorianCalendar newest = newestSample(metric);
+            if (newest != null) {
+               watermarks.put(key(metric.getEntity()), newest);
+               fresh.add(metric);
+            }
+         }
+      }
+      if (!fresh.isEmpty()) {
+         sink.metrics(fresh);
+      }
+      return fresh.size();
+   }
+
+   /**
+    * @return timestamp of the newest sample in the metric, or null if it has
+    *         no sample
+    */
+   protected XMLGregorianCalendar newestSample(PerfEntityMetricBase metric) {
+      if (metric instanceof PerfEntityMetric) {
+         List<PerfSampleInfo> sampleInfo =
+               ((PerfEntityMetric) metric).getSampleInfo();
+         if (!sampleInfo.isEmpty()) {
+            return sampleInfo.get(sampleInfo.size() - 1).getTimestamp();
+         }
+      } else if (metric instanceof PerfEntityMetricCSV) {
+         String newest =
+               PerfSamples.lastTimestamp(((PerfEntityMetricCSV) metric)
+                     .getSampleInfoCSV());
+         if (newest != null) {
+            return getDatatypeFactory().newXMLGregorianCalendar(newest);
+         }
+      }
+      return null;
+   }
+
+   private synchronized DatatypeFactory getDatatypeFactory() {
+      if (datatypeFactory == null) {
+         try {
+            datatypeFactory = DatatypeFactory.newInstance();
+         } catch (DatatypeConfigurationException e) {
+            throw new RuntimeException(e);
+         }
+      }
+      return datatypeFactory;
+   }
+
+   /*
+    * ManagedObjectReference has no equals/hashCode, the type and value are
+    * used as key instead.
+    */
+   private static String key(ManagedObjectReference mor) {
+      return mor.getType() + ":" + mor.getValue();
+   }
+}
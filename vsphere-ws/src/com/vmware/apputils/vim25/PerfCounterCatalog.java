@@ -0,0 +1,291 @@
+package com.vmware.apputils.vim25;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+
+import com.vmware.vim25.AboutInfo;
+import com.vmware.vim25.ArrayOfPerfCounterInfo;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PerfCounterInfo;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.ServiceContent;
+import com.vmware.vim25.VimPortType;
+
+/**
+ * <pre>
+ * PerfCounterCatalog
+ *
+ * The PerformanceManager.perfCounter array of one vCenter, retrieved once
+ * and indexed by counter id and by "group.name.rollup" (e.g.
+ * "cpu.usage.average").
+ *
+ * Catalogs are shared JVM wide per vCenter instance UUID. They are also
+ * written to a file named after the instance UUID, API version and build, so
+ * the next run against the same vCenter loads the counters from disk instead
+ * of transferring the whole array again. An upgraded vCenter reports a new
+ * build and gets a new file. The directory is taken from the
+ * "perfcounter.cache.dir" system property and defaults to
+ * ~/.vsphere-perfcounters. Servers without an instance UUID (ESX hosts) are
+ * not persisted.
+ *
+ * Usage:
+ * PerfCounterCatalog catalog = PerfCounterCatalog.getInstance(vimPort, serviceContent);
+ * PerfCounterInfo usage = catalog.getCounter("cpu.usage.average");
+ * PerfCounterInfo counter = catalog.getCounter(metricId.getCounterId());
+ * </pre>
+ */
+public class PerfCounterCatalog {
+
+   public static final String CACHE_DIR_PROPERTY = "perfcounter.cache.dir";
+
+   private static final String VIM25_NAMESPACE = "urn:vim25";
+
+   private static final ConcurrentMap<String, PerfCounterCatalog> catalogs =
+         new ConcurrentHashMap<String, PerfCounterCatalog>();
+
+   private static JAXBContext jaxbContext = null;
+
+   private final List<PerfCounterInfo> counters;
+   private final Map<Integer, PerfCounterInfo> byId =
+         new HashMap<Integer, PerfCounterInfo>();
+   private final Map<String, PerfCounterInfo> byFullName =
+         new HashMap<String, PerfCounterInfo>();
+   private final Map<String, List<PerfCounterInfo>> byGroupAndName =
+         new HashMap<String, List<PerfCounterInfo>>();
+
+   private PerfCounterCatalog(List<PerfCounterInfo> counters) {
+      this.counters = Collections.unmodifiableList(counters);
+      for (PerfCounterInfo counter : counters) {
+         byId.put(Integer.valueOf(counter.getKey()), counter);
+         byFullName.put(getFullName(counter), counter);
+         String groupAndName =
+               counter.getGroupInfo().getKey() + "."
+                     + counter.getNameInfo().getKey();
+         List<PerfCounterInfo> rollups = byGroupAndName.get(groupAndName);
+         if (rollups == null) {
+            rollups = new ArrayList<PerfCounterInfo>(2);
+            byGroupAndName.put(groupAndName, rollups);
+         }
+         rollups.add(counter);
+      }
+   }
+
+   /**
+    * Returns the catalog of the server, from memory, from the local file or,
+    * failing both, from the PerformanceManager.
+    *
+    * @param vimPort
+    *           service stub
+    * @param serviceContent
+    *           service content of the session
+    * @return the counter catalog
+    */
+   public static PerfCounterCatalog getInstance(VimPortType vimPort,
+         ServiceContent serviceContent) {
+      AboutInfo about = serviceContent.getAbout();
+      String instanceUuid = about.getInstanceUuid();
+      if (instanceUuid == null || instanceUuid.isEmpty()) {
+         return new PerfCounterCatalog(retrieve(vimPort, serviceContent));
+      }
+      String key =
+            instanceUuid + "-" + about.getApiVersion() + "-" + about.getBuild();
+      PerfCounterCatalog catalog = catalogs.get(key);
+      if (catalog == null) {
+         File file = new File(getCacheDir(), "perfcounters-" + key + ".xml");
+         List<PerfCounterInfo> counters = load(file);
+         if (counters == null) {
+            counters = retrieve(vimPort, serviceContent);
+            save(file, counters);
+         }
+         catalogs.putIfAbsent(key, new PerfCounterCatalog(counters));
+         catalog = catalogs.get(key);
+      }
+      return catalog;
+   }
+
+   /**
+    * Convenience variant for a pooled session.
+    */
+   public static PerfCounterCatalog getInstance(ServiceConnection connection) {
+      return getInstance(connection.getVimPort(),
+            connection.getServiceContent());
+   }
+
+   /**
+    * Drops the in-memory and on-disk catalog of the server, e.g. after an
+    * extension registered new counters. The next
+    * {@link #getInstance(VimPortType, ServiceContent)} retrieves it again.
+    */
+   public static void invalidate(ServiceContent serviceContent) {
+      AboutInfo about = serviceContent.getAbout();
+      String key =
+            about.getInstanceUuid() + "-" + about.getApiVersion() + "-"
+                  + about.getBuild();
+      catalogs.remove(key);
+      new File(getCacheDir(), "perfcounters-" + key + ".xml").delete();
+   }
+
+   /**
+    * @return "group.name.rollup" of the counter, e.g. "cpu.usage.average"
+    */
+   public static String getFullName(PerfCounterInfo counter) {
+      return counter.getGroupInfo().getKey() + "."
+            + counter.getNameInfo().getKey() + "."
+            + counter.getRollupType().value();
+   }
+
+   /**
+    * @return every counter, in the order the server lists them
+    */
+   public List<PerfCounterInfo> getCounters() {
+      return counters;
+   }
+
+   /**
+    * @return the counter with the given id, or null
+    */
+   public PerfCounterInfo getCounter(int counterId) {
+      return byId.get(Integer.valueOf(counterId));
+   }
+
+   /**
+    * @param fullName
+    *           "group.name.rollup", e.g. "mem.usage.maximum"
+    * @return the counter, or null
+    */
+   public PerfCounterInfo getCounter(String fullName) {
+      return byFullName.get(fullName);
+   }
+
+   /**
+    * @return the counter, or null
+    */
+   public PerfCounterInfo getCounter(String group, String name, String rollup) {
+      return byFullName.get(group + "." + name + "." + rollup);
+   }
+
+   /**
+    * @return the counters of every rollup type for group and name, empty if
+    *         there is none
+    */
+   public List<PerfCounterInfo> getCounters(String group, String name) {
+      List<PerfCounterInfo> rollups = byGroupAndName.get(group + "." + name);
+      return rollups == null ? Collections.<PerfCounterInfo> emptyList()
+            : Collections.unmodifiableList(rollups);
+   }
+
+   private static File getCacheDir() {
+      String dir = System.getProperty(CACHE_DIR_PROPERTY);
+      if (dir == null) {
+         dir =
+               System.getProperty("user.home") + File.separator
+                     + ".vsphere-perfcounters";
+      }
+      return new File(dir);
+   }
+
+   private static List<PerfCounterInfo> retrieve(VimPortType vimPort,
+         ServiceContent serviceContent) {
+      PropertySpec propertySpec = new PropertySpec();
+      propertySpec.setAll(Boolean.FALSE);
+      propertySpec.getPathSet().add("perfCounter");
+      propertySpec.setType("PerformanceManager");
+
+      ObjectSpec objectSpec = new ObjectSpec();
+      objectSpec.setObj(serviceContent.getPerfManager());
+
+      PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
+      propertyFilterSpec.getPropSet().add(propertySpec);
+      propertyFilterSpec.getObjectSet().add(objectSpec);
+      List<PropertyFilterSpec> listpfs = new ArrayList<PropertyFilterSpec>(1);
+      listpfs.add(propertyFilterSpec);
+
+      List<PerfCounterInfo> counters = new ArrayList<PerfCounterInfo>();
+      for (ObjectContent oc : PropertyPager.retrieveAll(vimPort,
+            serviceContent.getPropertyCollector(), listpfs,
+            PropertyPager.DEFAULT_PAGE_SIZE)) {
+         for (DynamicProperty dp : oc.getPropSet()) {
+            counters.addAll(((ArrayOfPerfCounterInfo) dp.getVal())
+                  .getPerfCounterInfo());
+         }
+      }
+      return counters;
+   }
+
+   private static synchronized JAXBContext getJaxbContext()
+         throws JAXBException {
+      if (jaxbContext == null) {
+         jaxbContext = JAXBContext.newInstance(ArrayOfPerfCounterInfo.class);
+      }
+      return jaxbContext;
+   }
+
+   /*
+    * A missing or unreadable file is not an error, the counters are simply
+    * retrieved again.
+    */
+   private static List<PerfCounterInfo> load(File file) {
+      if (!file.isFile()) {
+         return null;
+      }
+      try {
+         ArrayOfPerfCounterInfo array =
+               getJaxbContext().createUnmarshaller()
+                     .unmarshal(new StreamSource(file),
+                           ArrayOfPerfCounterInfo.class).getValue();
+         return new ArrayList<PerfCounterInfo>(array.getPerfCounterInfo());
+      } catch (Exception e) {
+         System.out.println("Ignoring perf counter cache " + file + " - "
+               + e.getMessage());
+         return null;
+      }
+   }
+
+   private static void save(File file, List<PerfCounterInfo> counters) {
+      File dir = file.getParentFile();
+      File tmp = null;
+      try {
+         if (!dir.isDirectory() && !dir.mkdirs()) {
+            return;
+         }
+         // A temp file of its own, as other processes may save the same
+         // catalog at the same time
+         tmp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+         ArrayOfPerfCounterInfo array = new ArrayOfPerfCounterInfo();
+         array.getPerfCounterInfo().addAll(counters);
+         Marshaller marshaller = getJaxbContext().createMarshaller();
+         marshaller.marshal(new JAXBElement<ArrayOfPerfCounterInfo>(
+               new QName(VIM25_NAMESPACE, "perfCounter"),
+               ArrayOfPerfCounterInfo.class, array), tmp);
+         // Readers never see a partially written file
+         if (!tmp.renameTo(file)) {
+            file.delete();
+            tmp.renameTo(file);
+         }
+      } catch (Exception e) {
+         System.out.println("Failed to write perf counter cache " + file
+               + " - " + e.getMessage());
+      } finally {
+         // still there only if it could not be renamed
+         if (tmp != null) {
+            tmp.delete();
+         }
+      }
+   }
+}
@@ -0,0 +1,321 @@
+package com.vmware.apputils.vim25;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfEntityMetricBase;
+import com.vmware.vim25.PerfEntityMetricCSV;
+import com.vmware.vim25.PerfMetricIntSeries;
+import com.vmware.vim25.PerfMetricSeries;
+import com.vmware.vim25.PerfMetricSeriesCSV;
+import com.vmware.vim25.PerfSampleInfo;
+
+/**
+ * <pre>
+ * PerfSamples
+ *
+ * The samples QueryPerf returned for one entity, held in primitive arrays.
+ *
+ * With the "normal" format every value of a PerfMetricIntSeries is a boxed
+ * Long and every sample time an XMLGregorianCalendar. With format "csv" the
+ * server sends one string per series instead; {@link #parse(PerfEntityMetricCSV)}
+ * scans those strings once, straight into long[] values and epoch millisecond
+ * timestamps, without splitting them into substrings.
+ *
+ * The arrays returned by the getters are not copied and must not be
+ * modified.
+ * </pre>
+ */
+public class PerfSamples {
+
+   /** Value the server reports for a sample that was not collected. */
+   public static final long MISSING = -1;
+
+   private final ManagedObjectReference entity;
+   private final int[] intervals;
+   private final long[] timestamps;
+   private final int[] counterIds;
+   private final String[] instances;
+   private final long[][] values;
+
+   private PerfSamples(ManagedObjectReference entity, int[] intervals,
+         long[] timestamps, int[] counterIds, String[] instances,
+         long[][] values) {
+      this.entity = entity;
+      this.intervals = intervals;
+      this.timestamps = timestamps;
+      this.counterIds = counterIds;
+      this.instances = instances;
+      this.values = values;
+   }
+
+   /**
+    * Converts a QueryPerf result of either format.
+    */
+   public static PerfSamples from(PerfEntityMetricBase metric) {
+      if (metric instanceof PerfEntityMetricCSV) {
+         return parse((PerfEntityMetricCSV) metric);
+      }
+      if (metric instanceof PerfEntityMetric) {
+         return convert((PerfEntityMetric) metric);
+      }
+      throw new IllegalArgumentException("Unsupported metric type "
+            + metric.getClass().getName());
+   }
+
+   /**
+    * Parses a result retrieved with PerfQuerySpec.format "csv".
+    */
+   public static PerfSamples parse(PerfEntityMetricCSV metric) {
+      String sampleInfo = metric.getSampleInfoCSV();
+      // sampleInfoCSV alternates interval and timestamp
+      int count = countFields(sampleInfo) / 2;
+      int[] intervals = new int[count];
+      long[] timestamps = new long[count];
+      int pos = 0;
+      for (int i = 0; i < count; ++i) {
+         int comma = sampleInfo.indexOf(',', pos);
+         intervals[i] = (int) parseLong(sampleInfo, pos, comma);
+         pos = comma + 1;
+         int end = sampleInfo.indexOf(',', pos);
+         if (end < 0) {
+            end = sampleInfo.length();
+         }
+         timestamps[i] = parseTimestamp(sampleInfo, pos, end);
+         pos = end + 1;
+      }
+
+      List<PerfMetricSeriesCSV> series = metric.getValue();
+      int[] counterIds = new int[series.size()];
+      String[] instances = new String[series.size()];
+      long[][] values = new long[series.size()][];
+      for (int s = 0; s < series.size(); ++s) {
+         PerfMetricSeriesCSV csv = series.get(s);
+         counterIds[s] = csv.getId().getCounterId();
+         instances[s] = csv.getId().getInstance();
+         values[s] = parseLongs(csv.getValue(), count);
+      }
+      return new PerfSamples(metric.getEntity(), intervals, timestamps,
+            counterIds, instances, values);
+   }
+
+   private static PerfSamples convert(PerfEntityMetric metric) {
+      List<PerfSampleInfo> sampleInfo = metric.getSampleInfo();
+      int count = sampleInfo.size();
+      int[] intervals = new int[count];
+      long[] timestamps = new long[count];
+      for (int i = 0; i < count; ++i) {
+         intervals[i] = sampleInfo.get(i).getInterval();
+         timestamps[i] =
+               sampleInfo.get(i).getTimestamp().toGregorianCalendar()
+                     .getTimeInMillis();
+      }
+
+      List<PerfMetricSeries> series = metric.getValue();
+      int[] counterIds = new int[series.size()];
+      String[] instances = new String[series.size()];
+      long[][] values = new long[series.size()][];
+      for (int s = 0; s < series.size(); ++s) {
+         PerfMetricSeries pms = series.get(s);
+         counterIds[s] = pms.getId().getCounterId();
+         instances[s] = pms.getId().getInstance();
+         long[] longs = new long[count];
+         Arrays.fill(longs, MISSING);
+         if (pms instanceof PerfMetricIntSeries) {
+            List<Long> boxed = ((PerfMetricIntSeries) pms).getValue();
+            for (int i = 0; i < boxed.size() && i < count; ++i) {
+               longs[i] = boxed.get(i).longValue();
+            }
+         }
+         values[s] = longs;
+      }
+      return new PerfSamples(metric.getEntity(), intervals, timestamps,
+            counterIds, instances, values);
+   }
+
+   public ManagedObjectReference getEntity() {
+      return entity;
+   }
+
+   public int getSampleCount() {
+      return timestamps.length;
+   }
+
+   public int getSeriesCount() {
+      return values.length;
+   }
+
+   /**
+    * @return sample times in milliseconds since the epoch, oldest first
+    */
+   public long[] getTimestamps() {
+      return timestamps;
+   }
+
+   public long getTimestamp(int sample) {
+      return timestamps[sample];
+   }
+
+   /**
+    * @return sampling interval of the sample in seconds
+    */
+   public int getInterval(int sample) {
+      return intervals[sample];
+   }
+
+   public int getCounterId(int series) {
+      return counterIds[series];
+   }
+
+   public String getInstance(int series) {
+      return instances[series];
+   }
+
+   /**
+    * @return values of the series, one per sample; {@link #MISSING} where the
+    *         server had no value
+    */
+   public long[] getValues(int series) {
+      return values[series];
+   }
+
+   /**
+    * @return index of the series for the counter and instance, or -1
+    */
+   public int findSeries(int counterId, String instance) {
+      for (int s = 0; s < counterIds.length; ++s) {
+         if (counterIds[s] == counterId
+               && (instance == null || instance.equals(instances[s]))) {
+            return s;
+         }
+      }
+      return -1;
+   }
+
+   /**
+    * Returns the last timestamp of a sampleInfoCSV string, as sent by the
+    * server, or null if there is no sample.
+    */
+   public static String lastTimestamp(String sampleInfoCSV) {
+      if (sampleInfoCSV == null || sampleInfoCSV.isEmpty()) {
+         return null;
+      }
+      return sampleInfoCSV.substring(sampleInfoCSV.lastIndexOf(',') + 1);
+   }
+
+   private static int countFields(String csv) {
+      if (csv == null || csv.isEmpty()) {
+         return 0;
+      }
+      int fields = 1;
+      for (int i = 0; i < csv.length(); ++i) {
+         if (csv.charAt(i) == ',') {
+            ++fields;
+         }
+      }
+      return fields;
+   }
+
+   /*
+    * Reads up to count comma separated values; missing or empty fields are
+    * MISSING.
+    */
+   private static long[] parseLongs(String csv, int count) {
+      long[] result = new long[count];
+      if (csv == null) {
+         Arrays.fill(result, MISSING);
+         return result;
+      }
+      int pos = 0;
+      int len = csv.length();
+      for (int i = 0; i < count; ++i) {
+         if (pos > len) {
+            result[i] = MISSING;
+            continue;
+         }
+         int end = csv.indexOf(',', pos);
+         if (end < 0) {
+            end = len;
+         }
+         result[i] = end == pos ? MISSING : parseLong(csv, pos, end);
+         pos = end + 1;
+      }
+      return result;
+   }
+
+   private static long parseLong(String s, int from, int to) {
+      boolean negative = s.charAt(from) == '-';
+      long value = 0;
+      for (int i = negative ? from + 1 : from; i < to; ++i) {
+         char c = s.charAt(i);
+         if (c < '0' || c > '9') {
+            throw new NumberFormatException("Not a number: "
+                  + s.substring(from, to));
+         }
+         value = value * 10 + (c - '0');
+      }
+      return negative ? -value : value;
+   }
+
+   /**
+    * Parses an xsd:dateTime of the form yyyy-MM-ddTHH:mm:ss[.SSS][Z|+hh:mm]
+    * without creating a calendar.
+    *
+    * @return milliseconds since the epoch
+    */
+   public static long parseTimestamp(String s, int from, int to) {
+      if (to - from < 19 || s.charAt(from + 10) != 'T') {
+         throw new IllegalArgumentException("Not a timestamp: "
+               + s.substring(from, to));
+      }
+      int year = (int) parseLong(s, from, from + 4);
+      int month = (int) parseLong(s, from + 5, from + 7);
+      int day = (int) parseLong(s, from + 8, from + 10);
+      int hour = (int) parseLong(s, from + 11, from + 13);
+      int minute = (int) parseLong(s, from + 14, from + 16);
+      int second = (int) parseLong(s, from + 17, from + 19);
+      int pos = from + 19;
+      long millis = 0;
+      if (pos < to && s.charAt(pos) == '.') {
+         ++pos;
+         int scale = 100;
+         while (pos < to && s.charAt(pos) >= '0' && s.charAt(pos) <= '9') {
+            millis += (s.charAt(pos) - '0') * scale;
+            scale /= 10;
+            ++pos;
+         }
+      }
+      long offsetMinutes = 0;
+      if (pos < to) {
+         char sign = s.charAt(pos);
+         if (sign == '+' || sign == '-') {
+            offsetMinutes =
+                  parseLong(s, pos + 1, pos + 3) * 60
+                        + parseLong(s, pos + 4, pos + 6);
+            if (sign == '-') {
+               offsetMinutes = -offsetMinutes;
+            }
+         } else if (sign != 'Z') {
+            throw new IllegalArgumentException("Not a timestamp: "
+                  + s.substring(from, to));
+         }
+      }
+      long days = daysFromCivil(year, month, day);
+      return (((days * 24 + hour) * 60 + minute) * 60 + second) * 1000L
+            + millis - offsetMinutes * 60000L;
+   }
+
+   /*
+    * Days since 1970-01-01 of a proleptic Gregorian date.
+    */
+   private static long daysFromCivil(int year, int month, int day) {
+      long y = month <= 2 ? year - 1 : year;
+      long era = (y >= 0 ? y : y - 399) / 400;
+      long yoe = y - era * 400;
+      long doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+      long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+      return era * 146097 + doe - 719468;
+   }
+}
@@ -0,0 +1,225 @@
+package com.vmware.apputils.vim25;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.VimPortType;
+
+/**
+ * <pre>
+ * PropertyPager
+ *
+ * Streams the result of a RetrievePropertiesEx call page by page.
+ *
+ * The first page is requested with RetrieveOptions.maxObjects set to the page
+ * size. As soon as a page arrives the ContinueRetrievePropertiesEx call for the
+ * following page is issued on a background thread, so the server and network
+ * work for page N+1 overlaps with the caller consuming page N. At most two
+ * pages are held in memory regardless of the inventory size.
+ *
+ * The pager is single use. Callers that stop before the end must call
+ * {@link #close()} so the server side result set is released with
+ * CancelRetrievePropertiesEx.
+ *
+ * Usage:
+ * PropertyPager pager = new PropertyPager(vimPort, propCollectorRef, specs, 500);
+ * try {
+ *    for (ObjectContent oc : pager) {
+ *       ...
+ *    }
+ * } finally {
+ *    pager.close();
+ * }
+ * </pre>
+ */
+public class PropertyPager implements Iterator<ObjectContent>,
+      Iterable<ObjectContent>, Closeable {
+
+   /** Page size used when the caller does not specify one. */
+   public static final int DEFAULT_PAGE_SIZE = 500;
+
+   private static final ExecutorService prefetcher = Executors
+         .newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, "PropertyPager-prefetch");
+               t.setDaemon(true);
+               return t;
+            }
+         });
+
+   private final VimPortType vimPort;
+   private final ManagedObjectReference propCollectorRef;
+
+   private Future<RetrieveResult> nextPage = null;
+   private Iterator<ObjectContent> currentPage = Collections
+         .<ObjectContent> emptyList().iterator();
+   private boolean closed = false;
+
+   /**
+    * Issues the first RetrievePropertiesEx call in the background.
+    *
+    * @param vimPort
+    *           service stub
+    * @param propCollectorRef
+    *           property collector to retrieve from
+    * @param specs
+    *           filter specs describing the objects and properties
+    * @param pageSize
+    *           maximum number of objects per page, values below 1 use
+    *           {@link #DEFAULT_PAGE_SIZE}
+    */
+   public PropertyPager(final VimPortType vimPort,
+         final ManagedObjectReference propCollectorRef,
+         final List<PropertyFilterSpec> specs, int pageSize) {
+      this.vimPort = vimPort;
+      this.propCollectorRef = propCollectorRef;
+      final RetrieveOptions options = new RetrieveOptions();
+      options.setMaxObjects(pageSize > 0 ? pageSize : DEFAULT_PAGE_SIZE);
+      nextPage = prefetcher.submit(new Callable<RetrieveResult>() {
+         @Override
+         public RetrieveResult call() throws Exception {
+            return vimPort.retrievePropertiesEx(propCollectorRef, specs,
+                  options);
+         }
+      });
+   }
+
+   /**
+    * Convenience constructor using the session's default property collector.
+    */
+   public PropertyPager(ServiceConnection connection,
+         List<PropertyFilterSpec> specs, int pageSize) {
+      this(connection.getVimPort(), connection.getServiceContent()
+            .getPropertyCollector(), specs, pageSize);
+   }
+
+   /**
+    * Retrieves every object into a list. Kept for callers that really need
+    * the whole result; it still benefits from the overlapped page fetches.
+    *
+    * @return list of object content, empty if nothing matched
+    */
+   public static List<ObjectContent> retrieveAll(VimPortType vimPort,
+         ManagedObjectReference propCollectorRef,
+         List<PropertyFilterSpec> specs, int pageSize) {
+      List<ObjectContent> listobjcontent = new ArrayList<ObjectContent>();
+      PropertyPager pager =
+            new PropertyPager(vimPort, propCollectorRef, specs, pageSize);
+      try {
+         while (pager.hasNext()) {
+            listobjcontent.add(pager.next());
+         }
+      } finally {
+         pager.close();
+      }
+      return listobjcontent;
+   }
+
+   @Override
+   public Iterator<ObjectContent> iterator() {
+      return this;
+   }
+
+   @Override
+   public boolean hasNext() {
+      while (!currentPage.hasNext()) {
+         if (closed || nextPage == null) {
+            return false;
+         }
+         RetrieveResult rslts = awaitNextPage();
+         if (rslts == null) {
+            continue;
+         }
+         if (rslts.getToken() != null && !rslts.getToken().isEmpty()) {
+            prefetch(rslts.getToken());
+         }
+         if (rslts.getObjects() != null) {
+            currentPage = rslts.getObjects().iterator();
+         }
+      }
+      return true;
+   }
+
+   @Override
+   public ObjectContent next() {
+      if (!hasNext()) {
+         throw new NoSuchElementException();
+      }
+      return currentPage.next();
+   }
+
+   @Override
+   public void remove() {
+      throw new UnsupportedOperationException();
+   }
+
+   /**
+    * Stops paging. If the result set was not fully read the outstanding page
+    * is awaited and the server side result is cancelled.
+    */
+   @Override
+   public void close() {
+      if (closed) {
+         return;
+      }
+      closed = true;
+      currentPage = Collections.<ObjectContent> emptyList().iterator();
+      if (nextPage == null) {
+         return;
+      }
+      try {
+         RetrieveResult rslts = awaitNextPage();
+         if (rslts != null && rslts.getToken() != null
+               && !rslts.getToken().isEmpty()) {
+            vimPort.cancelRetrievePropertiesEx(propCollectorRef,
+                  rslts.getToken());
+         }
+      } catch (Exception e) {
+         // The result set expires on the server anyway.
+      }
+   }
+
+   private void prefetch(final String pageToken) {
+      nextPage = prefetcher.submit(new Callable<RetrieveResult>() {
+         @Override
+         public RetrieveResult call() throws Exception {
+            return vimPort.continueRetrievePropertiesEx(propCollectorRef,
+                  pageToken);
+         }
+      });
+   }
+
+   private RetrieveResult awaitNextPage() {
+      Future<RetrieveResult> page = nextPage;
+      nextPage = null;
+      try {
+         return page.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted while retrieving properties",
+               e);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+         }
+         throw new RuntimeException("Failed to retrieve properties: "
+               + e.getCause().getMessage(), e.getCause());
+      }
+   }
+}
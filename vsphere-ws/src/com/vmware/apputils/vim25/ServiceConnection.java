@@ -0,0 +1,299 @@
+package com.vmware.apputils.vim25;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.MessageDigest;
+import java.util.Map;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSession;
+import javax.xml.ws.BindingProvider;
+import javax.xml.ws.soap.SOAPFaultException;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.NotAuthenticated;
+import com.vmware.vim25.RuntimeFaultFaultMsg;
+import com.vmware.vim25.ServiceContent;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.VimService;
+
+/**
+ * <pre>
+ * ServiceConnection
+ *
+ * A single, reusable session with a vCenter / ESX web service.
+ *
+ * The WSDL backed {@link VimService} is loaded only once per JVM and shared by
+ * every connection. Each connection owns one JAX-WS port whose HTTP session
+ * cookie is maintained across calls, so the underlying keep-alive connections
+ * are reused. The port handed out by {@link #getVimPort()} transparently logs
+ * in again and retries the call once when vCenter answers with
+ * NotAuthenticated (session timed out, vCenter restarted, ...).
+ *
+ * Instances are normally obtained from {@link ServiceConnectionPool}.
+ * </pre>
+ */
+public class ServiceConnection {
+
+   private static class TrustAllTrustManager implements
+         javax.net.ssl.TrustManager, javax.net.ssl.X509TrustManager {
+
+      @Override
+      public java.security.cert.X509Certificate[] getAcceptedIssuers() {
+         return null;
+      }
+
+      @Override
+      public void checkServerTrusted(
+            java.security.cert.X509Certificate[] certs, String authType)
+            throws java.security.cert.CertificateException {
+         return;
+      }
+
+      @Override
+      public void checkClientTrusted(
+            java.security.cert.X509Certificate[] certs, String authType)
+            throws java.security.cert.CertificateException {
+         return;
+      }
+   }
+
+   /*
+    * Re-authenticates and retries calls that failed with NotAuthenticated.
+    * Session management calls are passed through untouched.
+    */
+   private class ReloginHandler implements InvocationHandler {
+
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+         if (method.getDeclaringClass() != VimPortType.class
+               || method.getName().startsWith("login")
+               || method.getName().equals("logout")
+               || method.getName().equals("retrieveServiceContent")) {
+            return call(method, args);
+         }
+         long observedGeneration = sessionGeneration;
+         try {
+            return call(method, args);
+         } catch (Throwable t) {
+            if (!isNotAuthenticated(t)) {
+               throw t;
+            }
+            relogin(observedGeneration);
+            return call(method, args);
+         }
+      }
+
+      private Object call(Method method, Object[] args) throws Throwable {
+         try {
+            return method.invoke(port, args);
+         } catch (InvocationTargetException ite) {
+            throw ite.getCause();
+         }
+      }
+   }
+
+   private static final String SVC_INST_NAME = "ServiceInstance";
+   private static final ManagedObjectReference SVC_INST_REF =
+         new ManagedObjectReference();
+
+   static {
+      SVC_INST_REF.setType(SVC_INST_NAME);
+      SVC_INST_REF.setValue(SVC_INST_NAME);
+   }
+
+   private static VimService vimService = null;
+   private static boolean trustInstalled = false;
+
+   private final String url;
+   private final String userName;
+   private final String password;
+
+   private VimPortType port = null;
+   private VimPortType reloginPort = null;
+   private volatile ServiceContent serviceContent = null;
+   private volatile boolean isConnected = false;
+   private volatile long sessionGeneration = 0;
+
+   /**
+    * Creates a connection. No network call is made until {@link #connect()}.
+    *
+    * @param url
+    *           url of the web service, e.g. https://vcenter/sdk
+    * @param userName
+    *           username for the authentication
+    * @param password
+    *           password for the authentication
+    */
+   public ServiceConnection(String url, String userName, String password) {
+      this.url = url;
+      this.userName = userName;
+      this.password = password;
+   }
+
+   /**
+    * Installs the trust-all certificate and host name checks used by all the
+    * samples. Done once per JVM.
+    *
+    * @throws Exception
+    */
+   public static synchronized void trustAllHttpsCertificates()
+         throws Exception {
+      if (trustInstalled) {
+         return;
+      }
+      HostnameVerifier hv = new HostnameVerifier() {
+         @Override
+         public boolean verify(String urlHostName, SSLSession session) {
+            return true;
+         }
+      };
+      javax.net.ssl.TrustManager[] trustAllCerts =
+            new javax.net.ssl.TrustManager[1];
+      javax.net.ssl.TrustManager tm = new TrustAllTrustManager();
+      trustAllCerts[0] = tm;
+      javax.net.ssl.SSLContext sc = javax.net.ssl.SSLContext.getInstance("SSL");
+      javax.net.ssl.SSLSessionContext sslsc = sc.getServerSessionContext();
+      sslsc.setSessionTimeout(0);
+      sc.init(null, trustAllCerts, null);
+      HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
+      HttpsURLConnection.setDefaultHostnameVerifier(hv);
+      trustInstalled = true;
+   }
+
+   /*
+    * Parsing the vim WSDL is the expensive part of creating a port, so the
+    * service is created once and shared.
+    */
+   private static synchronized VimService getVimService() {
+      if (vimService == null) {
+         vimService = new VimService();
+      }
+      return vimService;
+   }
+
+   /**
+    * Establishes session with the virtual center server. Calling it on an
+    * already connected instance does nothing.
+    *
+    * @throws Exception
+    *            the exception
+    */
+   public synchronized void connect() throws Exception {
+      if (isConnected) {
+         return;
+      }
+      trustAllHttpsCertificates();
+      if (port == null) {
+         port = getVimService().getVimPort();
+         Map<String, Object> ctxt = ((BindingProvider) port).getRequestContext();
+         ctxt.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, url);
+         ctxt.put(BindingProvider.SESSION_MAINTAIN_PROPERTY, true);
+         reloginPort =
+               (VimPortType) Proxy.newProxyInstance(
+                     VimPortType.class.getClassLoader(), new Class<?>[] {
+                           VimPortType.class, BindingProvider.class },
+                     new ReloginHandler());
+      }
+      login();
+   }
+
+   private void login() throws Exception {
+      serviceContent = port.retrieveServiceContent(SVC_INST_REF);
+      port.login(serviceContent.getSessionManager(), userName, password, null);
+      sessionGeneration++;
+      isConnected = true;
+   }
+
+   /*
+    * Logs in again unless another thread already did so since the failing call
+    * was issued.
+    */
+   private synchronized void relogin(long observedGeneration) throws Exception {
+      if (observedGeneration != sessionGeneration && isConnected) {
+         return;
+      }
+      isConnected = false;
+      login();
+   }
+
+   /**
+    * Disconnects the user session.
+    *
+    * @throws Exception
+    */
+   public synchronized void disconnect() throws Exception {
+      if (isConnected) {
+         port.logout(serviceContent.getSessionManager());
+      }
+      isConnected = false;
+   }
+
+   static boolean isNotAuthenticated(Throwable t) {
+      if (t instanceof RuntimeFaultFaultMsg) {
+         return ((RuntimeFaultFaultMsg) t).getFaultInfo() instanceof NotAuthenticated;
+      }
+      if (t instanceof SOAPFaultException) {
+         SOAPFaultException sfe = (SOAPFaultException) t;
+         return sfe.getFault().hasDetail()
+               && sfe.getFault().getDetail().getFirstChild() != null
+               && "NotAuthenticatedFault".equals(sfe.getFault().getDetail()
+                     .getFirstChild().getLocalName());
+      }
+      return false;
+   }
+
+   /**
+    * Returns the service stub. The stub is thread safe for invocations and
+    * re-authenticates on NotAuthenticated; it also implements
+    * {@link BindingProvider} so the request and response contexts are still
+    * reachable.
+    *
+    * @return VimPortType
+    */
+   public VimPortType getVimPort() {
+      return reloginPort;
+   }
+
+   /**
+    * Returns the service content retrieved by the last login.
+    *
+    * @return ServiceContent
+    */
+   public ServiceContent getServiceContent() {
+      return serviceContent;
+   }
+
+   public boolean isConnected() {
+      return isConnected;
+   }
+
+   public String getUrl() {
+      return url;
+   }
+
+   public String getUserName() {
+      return userName;
+   }
+
+   /**
+    * @return true if the session was opened with the given password; the
+    *         comparison takes the same time wherever the passwords differ
+    */
+   boolean hasPassword(String candidate) {
+      if (password == null || candidate == null) {
+         return password == candidate;
+      }
+      try {
+         return MessageDigest.isEqual(password.getBytes("UTF-8"),
+               candidate.getBytes("UTF-8"));
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+}
@@ -0,0 +1,153 @@
+package com.vmware.apputils.vim25;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <pre>
+ * ServiceConnectionPool
+ *
+ * Thread safe registry of logged in {@link ServiceConnection}s keyed by
+ * vCenter url and user name. Long running jobs talking to many vCenters ask
+ * the pool for a connection instead of building a new VimService, parsing the
+ * WSDL and logging in for every operation; the second and later requests for
+ * the same url/user are a map lookup. A pooled session is only handed to a
+ * caller that gives the password it was opened with; a different password
+ * is checked by logging in again. A session replaced that way stays with
+ * its current users and is logged out when they close it, or by
+ * {@link #shutdown()}.
+ *
+ * The JDK keeps at most "http.maxConnections" idle keep-alive sockets per
+ * destination (5 by default). Unless the property is already set, the pool
+ * raises it so concurrent callers sharing a connection do not keep reopening
+ * TLS sessions.
+ * </pre>
+ */
+public class ServiceConnectionPool {
+
+   private static final String KEEP_ALIVE_PROPERTY = "http.maxConnections";
+   private static final String KEEP_ALIVE_CONNECTIONS = "32";
+
+   private static final ServiceConnectionPool instance =
+         new ServiceConnectionPool();
+
+   private final ConcurrentMap<String, ServiceConnection> connections =
+         new ConcurrentHashMap<String, ServiceConnection>();
+   // sessions replaced by a login with a new password, still logged in
+   private final Set<ServiceConnection> replaced =
+         Collections.newSetFromMap(
+               new ConcurrentHashMap<ServiceConnection, Boolean>());
+
+   private ServiceConnectionPool() {
+      if (System.getProperty(KEEP_ALIVE_PROPERTY) == null) {
+         System.setProperty(KEEP_ALIVE_PROPERTY, KEEP_ALIVE_CONNECTIONS);
+      }
+   }
+
+   /**
+    * @return the JVM wide pool
+    */
+   public static ServiceConnectionPool getInstance() {
+      return instance;
+   }
+
+   private static String key(String url, String userName) {
+      return url + "|" + userName;
+   }
+
+   /**
+    * Returns a connected session for the given url and user, logging in only
+    * if no such session is pooled yet. If the pooled session was opened with
+    * a different password a new session is logged in with the given one,
+    * which fails for a wrong password; a successful login (e.g. after a
+    * password change) replaces the pooled session, which is left to its
+    * current users until they close it.
+    *
+    * @param url
+    *           url of the web service
+    * @param userName
+    *           username for the authentication
+    * @param password
+    *           password for the authentication
+    * @return connected {@link ServiceConnection}
+    * @throws Exception
+    */
+   public ServiceConnection getConnection(String url, String userName,
+         String password) throws Exception {
+      String key = key(url, userName);
+      ServiceConnection connection = connections.get(key);
+      if (connection == null) {
+         ServiceConnection created =
+               new ServiceConnection(url, userName, password);
+         connection = connections.putIfAbsent(key, created);
+         if (connection == null) {
+            connection = created;
+         }
+      }
+      if (connection.hasPassword(password)) {
+         // connect() is a no-op once logged in
+         connection.connect();
+         return connection;
+      }
+      ServiceConnection relogged =
+            new ServiceConnection(url, userName, password);
+      relogged.connect();
+      while (!connections.replace(key, connection, relogged)) {
+         // another caller replaced or closed the session meanwhile
+         connection = connections.putIfAbsent(key, relogged);
+         if (connection == null) {
+            return relogged;
+         }
+         if (connection.hasPassword(password)) {
+            try {
+               relogged.disconnect();
+            } catch (Exception e) {
+               System.out.println("Failed to disconnect from " + url + " - "
+                     + e.getMessage());
+            }
+            connection.connect();
+            return connection;
+         }
+      }
+      replaced.add(connection);
+      return relogged;
+   }
+
+   /**
+    * Logs out the given session and removes it from the pool.
+    *
+    * @param connection
+    *           connection obtained from this pool
+    * @throws Exception
+    */
+   public void close(ServiceConnection connection) throws Exception {
+      if (connection == null) {
+         return;
+      }
+      connections.remove(key(connection.getUrl(), connection.getUserName()),
+            connection);
+      replaced.remove(connection);
+      connection.disconnect();
+   }
+
+   /**
+    * Logs out every pooled session, and every replaced one still open.
+    */
+   public void shutdown() {
+      List<ServiceConnection> all =
+            new ArrayList<ServiceConnection>(connections.values());
+      all.addAll(replaced);
+      for (ServiceConnection connection : all) {
+         try {
+            close(connection);
+         } catch (Exception e) {
+            System.out.println("Failed to disconnect from "
+                  + connection.getUrl() + " - " + e.getMessage());
+         }
+      }
+   }
+}
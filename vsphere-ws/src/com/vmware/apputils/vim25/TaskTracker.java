@@ -0,0 +1,488 @@
+package com.vmware.apputils.vim25;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.vmware.vim25.InvalidCollectorVersionFaultMsg;
+import com.vmware.vim25.InvalidPropertyFaultMsg;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RuntimeFaultFaultMsg;
+import com.vmware.vim25.ServiceContent;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VimPortType;
+import com.vmware.vim25.WaitOptions;
+
+/**
+ * <pre>
+ * TaskTracker
+ *
+ * Waits for the completion of any number of Task managed objects with a
+ * single PropertyCollector filter and a single thread.
+ *
+ * The tracker creates its own PropertyCollector (so it never sees the
+ * filters of other code on the same session) and a ListView. One filter
+ * watches Task.info for everything in the ListView. Tracking a task only
+ * adds it to the ListView; one background thread drives WaitForUpdatesEx
+ * and completes the {@link TaskFuture} of every task that reaches the
+ * success or error state, then drops the task from the view again.
+ *
+ * Failed calls are retried with an increasing delay. The tracker only gives
+ * up, failing every pending future, on InvalidCollectorVersion, on a
+ * NotAuthenticated that logging in again did not cure, or after
+ * MAX_CONSECUTIVE_FAILURES failures in a row.
+ *
+ * Usage:
+ * TaskTracker tracker = new TaskTracker(vimPort, serviceContent);
+ * List&lt;TaskTracker.TaskFuture&gt; futures = tracker.trackAll(tasks);
+ * for (TaskTracker.TaskFuture f : futures) {
+ *    TaskInfo info = f.get();
+ * }
+ * tracker.close();
+ * </pre>
+ */
+public class TaskTracker implements Closeable {
+
+   /**
+    * Notified on the tracker thread when a task finishes. Implementations
+    * must not block.
+    */
+   public interface TaskCallback {
+
+      /**
+       * @param task
+       *           the task that reached success or error
+       * @param info
+       *           final task info, check {@link TaskInfo#getState()}
+       */
+      void completed(ManagedObjectReference task, TaskInfo info);
+
+      /**
+       * @param task
+       *           the task that could not be tracked
+       * @param cause
+       *           why the outcome is unknown
+       */
+      void failed(ManagedObjectReference task, Throwable cause);
+   }
+
+   /**
+    * Result of a tracked task. {@link #get()} returns the final
+    * {@link TaskInfo} whatever its state; it only throws when the tracker
+    * itself could not determine the outcome.
+    */
+   public static class TaskFuture implements Future<TaskInfo> {
+
+      private final ManagedObjectReference task;
+      private final CountDownLatch done = new CountDownLatch(1);
+      private final List<TaskCallback> callbacks = new ArrayList<TaskCallback>();
+      private TaskInfo info = null;
+      private Throwable failure = null;
+
+      TaskFuture(ManagedObjectReference task) {
+         this.task = task;
+      }
+
+      public ManagedObjectReference getTask() {
+         return task;
+      }
+
+      /**
+       * Registers a callback. If the task already finished the callback runs
+       * immediately on the calling thread.
+       */
+      public void addCallback(TaskCallback callback) {
+         synchronized (this) {
+            if (done.getCount() > 0) {
+               callbacks.add(callback);
+               return;
+            }
+         }
+         deliver(callback);
+      }
+
+      void complete(TaskInfo taskInfo) {
+         finish(taskInfo, null);
+      }
+
+      void fail(Throwable cause) {
+         finish(null, cause);
+      }
+
+      private void finish(TaskInfo taskInfo, Throwable cause) {
+         List<TaskCallback> toNotify;
+         synchronized (this) {
+            if (done.getCount() == 0) {
+               return;
+            }
+            info = taskInfo;
+            failure = cause;
+            done.countDown();
+            toNotify = new ArrayList<TaskCallback>(callbacks);
+            callbacks.clear();
+         }
+         for (TaskCallback callback : toNotify) {
+            deliver(callback);
+         }
+      }
+
+      private void deliver(TaskCallback callback) {
+         try {
+            if (failure != null) {
+               callback.failed(task, failure);
+            } else {
+               callback.completed(task, info);
+            }
+         } catch (RuntimeException e) {
+            System.out.println("Task callback failed for " + task.getValue()
+                  + " - " + e.getMessage());
+         }
+      }
+
+      /**
+       * Tasks are not cancelled through the future; use CancelTask.
+       */
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+         return false;
+      }
+
+      @Override
+      public boolean isCancelled() {
+         return false;
+      }
+
+      @Override
+      public boolean isDone() {
+         return done.getCount() == 0;
+      }
+
+      @Override
+      public TaskInfo get() throws InterruptedException, ExecutionException {
+         done.await();
+         return result();
+      }
+
+      @Override
+      public TaskInfo get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+         if (!done.await(timeout, unit)) {
+            throw new TimeoutException("Task " + task.getValue()
+                  + " still running");
+         }
+         return result();
+      }
+
+      private synchronized TaskInfo result() throws ExecutionException {
+         if (failure != null) {
+            throw new ExecutionException(failure);
+         }
+         return info;
+      }
+   }
+
+   private static final int MAX_WAIT_SECONDS = 30;
+   private static final int MAX_CONSECUTIVE_FAILURES = 5;
+   private static final long RETRY_DELAY_MILLIS = 1000;
+   private static final long MAX_RETRY_DELAY_MILLIS = 30 * 1000;
+
+   private final VimPortType vimPort;
+   private final ManagedObjectReference propCollectorRef;
+   private final ManagedObjectReference listViewRef;
+   private final ConcurrentMap<String, TaskFuture> pending =
+         new ConcurrentHashMap<String, TaskFuture>();
+   private final Thread waiter;
+   private volatile boolean running = true;
+
+   /**
+    * Creates the PropertyCollector, ListView and filter and starts the
+    * waiting thread.
+    *
+    * @param vimPort
+    *           service stub
+    * @param serviceContent
+    *           service content of the session
+    * @throws RuntimeFaultFaultMsg
+    * @throws InvalidPropertyFaultMsg
+    */
+   public TaskTracker(VimPortType vimPort, ServiceContent serviceContent)
+         throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
+      this.vimPort = vimPort;
+      propCollectorRef =
+            vimPort.createPropertyCollector(serviceContent
+                  .getPropertyCollector());
+      listViewRef =
+            vimPort.createListView(serviceContent.getViewManager(),
+                  Collections.<ManagedObjectReference> emptyList());
+
+      TraversalSpec ts = new TraversalSpec();
+      ts.setName("view");
+      ts.setPath("view");
+      ts.setSkip(false);
+      ts.setType("ListView");
+
+      ObjectSpec oSpec = new ObjectSpec();
+      oSpec.setObj(listViewRef);
+      oSpec.setSkip(Boolean.TRUE);
+      oSpec.getSelectSet().add(ts);
+
+      PropertySpec pSpec = new PropertySpec();
+      pSpec.setType("Task");
+      pSpec.getPathSet().add("info");
+
+      PropertyFilterSpec spec = new PropertyFilterSpec();
+      spec.getObjectSet().add(oSpec);
+      spec.getPropSet().add(pSpec);
+      // no partial updates: every change delivers the whole TaskInfo
+      vimPort.createFilter(propCollectorRef, spec, false);
+
+      waiter = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            waitLoop();
+         }
+      }, "TaskTracker");
+      waiter.setDaemon(true);
+      waiter.start();
+   }
+
+   /**
+    * Convenience constructor for a pooled session.
+    */
+   public TaskTracker(ServiceConnection connection)
+         throws RuntimeFaultFaultMsg, InvalidPropertyFaultMsg {
+      this(connection.getVimPort(), connection.getServiceContent());
+   }
+
+   /**
+    * Starts tracking a task.
+    *
+    * @param task
+    *           Task managed object reference
+    * @return future completed when the task succeeds or fails
+    */
+   public TaskFuture track(ManagedObjectReference task) {
+      return trackAll(Collections.singletonList(task)).get(0);
+   }
+
+   /**
+    * Starts tracking several tasks with one ModifyListView call.
+    *
+    * @param tasks
+    *           Task managed object references
+    * @return one future per task, in the same order
+    */
+   public List<TaskFuture> trackAll(List<ManagedObjectReference> tasks) {
+      List<TaskFuture> futures = new ArrayList<TaskFuture>(tasks.size());
+      List<ManagedObjectReference> added =
+            new ArrayList<ManagedObjectReference>(tasks.size());
+      for (ManagedObjectReference task : tasks) {
+         TaskFuture future = new TaskFuture(task);
+         TaskFuture existing = pending.putIfAbsent(task.getValue(), future);
+         if (existing != null) {
+            futures.add(existing);
+         } else {
+            futures.add(future);
+            added.add(task);
+         }
+      }
+      if (added.isEmpty()) {
+         return futures;
+      }
+      if (!running) {
+         failAll(added, new IllegalStateException("TaskTracker is closed"));
+         return futures;
+      }
+      try {
+         // objects that could not be resolved are handed back
+         List<ManagedObjectReference> unresolved =
+               vimPort.modifyListView(listViewRef, added, null);
+         if (unresolved != null && !unresolved.isEmpty()) {
+            failAll(unresolved, new IllegalArgumentException(
+                  "Task no longer exists on the server"));
+         }
+      } catch (Exception e) {
+         failAll(added, e);
+      }
+      return futures;
+   }
+
+   /**
+    * Waits for all the given futures.
+    *
+    * @return the final task infos in the same order; null for tasks whose
+    *         outcome could not be determined
+    * @throws InterruptedException
+    */
+   public static List<TaskInfo> awaitAll(Collection<TaskFuture> futures)
+         throws InterruptedException {
+      List<TaskInfo> infos = new ArrayList<TaskInfo>(futures.size());
+      for (TaskFuture future : futures) {
+         try {
+            infos.add(future.get());
+         } catch (ExecutionException e) {
+            infos.add(null);
+         }
+      }
+      return infos;
+   }
+
+   /**
+    * @return number of tasks still being waited for
+    */
+   public int getPendingCount() {
+      return pending.size();
+   }
+
+   private void failAll(List<ManagedObjectReference> tasks, Throwable cause) {
+      for (ManagedObjectReference task : tasks) {
+         TaskFuture future = pending.remove(task.getValue());
+         if (future != null) {
+            future.fail(cause);
+         }
+      }
+   }
+
+   private void waitLoop() {
+      String version = "";
+      WaitOptions options = new WaitOptions();
+      options.setMaxWaitSeconds(MAX_WAIT_SECONDS);
+      // finished tasks still to be dropped from the view
+      List<ManagedObjectReference> finished =
+            new ArrayList<ManagedObjectReference>();
+      int failures = 0;
+      while (running) {
+         try {
+            if (!finished.isEmpty()) {
+               vimPort.modifyListView(listViewRef, null, finished);
+               finished.clear();
+            }
+            UpdateSet updateset =
+                  vimPort.waitForUpdatesEx(propCollectorRef, version, options);
+            failures = 0;
+            if (updateset == null || updateset.getFilterSet() == null) {
+               continue;
+            }
+            version = updateset.getVersion();
+            for (PropertyFilterUpdate filtup : updateset.getFilterSet()) {
+               for (ObjectUpdate objup : filtup.getObjectSet()) {
+                  TaskInfo info = extractInfo(objup);
+                  if (info != null && isFinished(info)) {
+                     finished.add(objup.getObj());
+                     TaskFuture future =
+                           pending.remove(objup.getObj().getValue());
+                     if (future != null) {
+                        future.complete(info);
+                     }
+                  }
+               }
+            }
+         } catch (Exception e) {
+            if (!running) {
+               return;
+            }
+            if (isFatal(e) || ++failures >= MAX_CONSECUTIVE_FAILURES) {
+               System.out.println("TaskTracker stopped - " + e.getMessage());
+               running = false;
+               failAll(pendingTasks(), e);
+               return;
+            }
+            long delay =
+                  Math.min(MAX_RETRY_DELAY_MILLIS,
+                        RETRY_DELAY_MILLIS << (failures - 1));
+            System.out.println("TaskTracker retrying in " + delay + " ms - "
+                  + e.getMessage());
+            try {
+               Thread.sleep(delay);
+            } catch (InterruptedException ie) {
+               return;
+            }
+         }
+      }
+   }
+
+   /*
+    * The port of a ServiceConnection already logged in again before a
+    * NotAuthenticated gets here, so it is not worth another attempt.
+    */
+   private static boolean isFatal(Exception e) {
+      return e instanceof InvalidCollectorVersionFaultMsg
+            || ServiceConnection.isNotAuthenticated(e);
+   }
+
+   private List<ManagedObjectReference> pendingTasks() {
+      List<ManagedObjectReference> tasks =
+            new ArrayList<ManagedObjectReference>();
+      for (TaskFuture future : pending.values()) {
+         tasks.add(future.getTask());
+      }
+      return tasks;
+   }
+
+   private static TaskInfo extractInfo(ObjectUpdate objup) {
+      TaskInfo info = null;
+      for (PropertyChange propchg : objup.getChangeSet()) {
+         if ("info".equals(propchg.getName())
+               && propchg.getVal() instanceof TaskInfo) {
+            info = (TaskInfo) propchg.getVal();
+         }
+      }
+      return info;
+   }
+
+   private static boolean isFinished(TaskInfo info) {
+      return info.getState() == TaskInfoState.SUCCESS
+            || info.getState() == TaskInfoState.ERROR;
+   }
+
+   /**
+    * Stops the waiting thread and destroys the ListView and PropertyCollector
+    * (which also destroys the filter). Tasks still pending are failed.
+    */
+   @Override
+   public void close() {
+      if (!running) {
+         return;
+      }
+      running = false;
+      try {
+         vimPort.cancelWaitForUpdates(propCollectorRef);
+      } catch (Exception e) {
+         // the waiter wakes up after MAX_WAIT_SECONDS anyway
+      }
+      // cuts short a retry delay
+      waiter.interrupt();
+      try {
+         waiter.join(TimeUnit.SECONDS.toMillis(MAX_WAIT_SECONDS));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      try {
+         vimPort.destroyView(listViewRef);
+         vimPort.destroyPropertyCollector(propCollectorRef);
+      } catch (Exception e) {
+         System.out.println("Failed to clean up TaskTracker - "
+               + e.getMessage());
+      }
+      failAll(pendingTasks(), new IllegalStateException(
+            "TaskTracker closed before the task finished"));
+   }
+}
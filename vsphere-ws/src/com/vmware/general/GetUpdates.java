@@ -18,11 +18,10 @@ import javax.xml.datatype.XMLGregorianCalendar;
 import javax.xml.ws.BindingProvider;
 import javax.xml.ws.soap.SOAPFaultException;
 
-import com.vmware.vim25.DynamicProperty;
+import com.vmware.apputils.vim25.EntityLookup;
 import com.vmware.vim25.HostListSummaryQuickStats;
 import com.vmware.vim25.HostRuntimeInfo;
 import com.vmware.vim25.ManagedObjectReference;
-import com.vmware.vim25.ObjectContent;
 import com.vmware.vim25.ObjectSpec;
 import com.vmware.vim25.ObjectUpdate;
 import com.vmware.vim25.ObjectUpdateKind;
@@ -96,6 +95,7 @@ public class GetUpdates {
    private static VimService vimService;
    private static VimPortType vimPort;
    private static ServiceContent serviceContent;
+   private static EntityLookup entityLookup = null;
 
    private static String url;
    private static String userName;
@@ -205,6 +205,7 @@ public class GetUpdates {
       vimPort.login(serviceContent.getSessionManager(), userName, password,
             null);
       isConnected = true;
+      entityLookup = new EntityLookup(vimPort, serviceContent);
 
       propCollectorRef = serviceContent.getPropertyCollector();
       rootRef = serviceContent.getRootFolder();
@@ -222,66 +223,6 @@ public class GetUpdates {
       isConnected = false;
    }
 
-   /**
-    * 
-    * @return TraversalSpec specification to get to the VirtualMachine managed
-    *         object.
-    */
-   private static TraversalSpec getVMTraversalSpec() {
-      // Create a traversal spec that starts from the 'root' objects
-      // and traverses the inventory tree to get to the VirtualMachines.
-      // Build the traversal specs bottoms up
-
-      //Traversal to get to the VM in a VApp
-      TraversalSpec vAppToVM = new TraversalSpec();
-      vAppToVM.setName("vAppToVM");
-      vAppToVM.setType("VirtualApp");
-      vAppToVM.setPath("vm");
-
-      //Traversal spec for VApp to VApp
-      TraversalSpec vAppToVApp = new TraversalSpec();
-      vAppToVApp.setName("vAppToVApp");
-      vAppToVApp.setType("VirtualApp");
-      vAppToVApp.setPath("resourcePool");
-      //SelectionSpec for VApp to VApp recursion
-      SelectionSpec vAppRecursion = new SelectionSpec();
-      vAppRecursion.setName("vAppToVApp");
-      //SelectionSpec to get to a VM in the VApp
-      SelectionSpec vmInVApp = new SelectionSpec();
-      vmInVApp.setName("vAppToVM");
-      //SelectionSpec for both VApp to VApp and VApp to VM
-      List<SelectionSpec> vAppToVMSS = new ArrayList<SelectionSpec>();
-      vAppToVMSS.add(vAppRecursion);
-      vAppToVMSS.add(vmInVApp);
-      vAppToVApp.getSelectSet().addAll(vAppToVMSS);
-
-      //This SelectionSpec is used for recursion for Folder recursion
-      SelectionSpec sSpec = new SelectionSpec();
-      sSpec.setName("VisitFolders");
-
-      // Traversal to get to the vmFolder from DataCenter
-      TraversalSpec dataCenterToVMFolder = new TraversalSpec();
-      dataCenterToVMFolder.setName("DataCenterToVMFolder");
-      dataCenterToVMFolder.setType("Datacenter");
-      dataCenterToVMFolder.setPath("vmFolder");
-      dataCenterToVMFolder.setSkip(false);
-      dataCenterToVMFolder.getSelectSet().add(sSpec);
-
-      // TraversalSpec to get to the DataCenter from rootFolder
-      TraversalSpec traversalSpec = new TraversalSpec();
-      traversalSpec.setName("VisitFolders");
-      traversalSpec.setType("Folder");
-      traversalSpec.setPath("childEntity");
-      traversalSpec.setSkip(false);
-      List<SelectionSpec> sSpecArr = new ArrayList<SelectionSpec>();
-      sSpecArr.add(sSpec);
-      sSpecArr.add(dataCenterToVMFolder);
-      sSpecArr.add(vAppToVM);
-      sSpecArr.add(vAppToVApp);
-      traversalSpec.getSelectSet().addAll(sSpecArr);
-      return traversalSpec;
-   }
-
    /**
     * Get the MOR of the Virtual Machine by its name.
     * 
@@ -291,49 +232,9 @@ public class GetUpdates {
     */
    private static ManagedObjectReference getVmByVMname(String vmName) {
       ManagedObjectReference retVal = null;
-      ManagedObjectReference rootFolder = serviceContent.getRootFolder();
       try {
-         TraversalSpec tSpec = getVMTraversalSpec();
-         // Create Property Spec
-         PropertySpec propertySpec = new PropertySpec();
-         propertySpec.setAll(Boolean.FALSE);
-         propertySpec.getPathSet().add("name");
-         propertySpec.setType("VirtualMachine");
-
-         // Now create Object Spec
-         ObjectSpec objectSpec = new ObjectSpec();
-         objectSpec.setObj(rootFolder);
-         objectSpec.setSkip(Boolean.TRUE);
-         objectSpec.getSelectSet().add(tSpec);
-
-         // Create PropertyFilterSpec using the PropertySpec and ObjectPec
-         // created above.
-         PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
-         propertyFilterSpec.getPropSet().add(propertySpec);
-         propertyFilterSpec.getObjectSet().add(objectSpec);
-
-         List<PropertyFilterSpec> listpfs =
-               new ArrayList<PropertyFilterSpec>(1);
-         listpfs.add(propertyFilterSpec);
-         List<ObjectContent> listobcont =
-               vimPort.retrieveProperties(propCollectorRef, listpfs);
-
-         if (listobcont != null) {
-            for (ObjectContent oc : listobcont) {
-               ManagedObjectReference mr = oc.getObj();
-               String vmnm = null;
-               List<DynamicProperty> dps = oc.getPropSet();
-               if (dps != null) {
-                  for (DynamicProperty dp : dps) {
-                     vmnm = (String) dp.getVal();
-                  }
-               }
-               if (vmnm != null && vmnm.equals(vmName)) {
-                  retVal = mr;
-                  break;
-               }
-            }
-         }
+         // Indexed by name on the first call, later calls are map lookups
+         retVal = entityLookup.findByName("VirtualMachine", vmName);
       } catch (SOAPFaultException sfe) {
          printSoapFaultException(sfe);
       } catch (Exception e) {
@@ -6,16 +6,14 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSession;
 import javax.xml.datatype.XMLGregorianCalendar;
-import javax.xml.ws.BindingProvider;
 import javax.xml.ws.soap.SOAPFaultException;
 
+import com.vmware.apputils.vim25.PropertyPager;
+import com.vmware.apputils.vim25.ServiceConnection;
+import com.vmware.apputils.vim25.ServiceConnectionPool;
 import com.vmware.vim25.DynamicProperty;
 import com.vmware.vim25.HostListSummaryQuickStats;
 import com.vmware.vim25.HostRuntimeInfo;
@@ -41,7 +39,6 @@ import com.vmware.vim25.TaskInfoState;
 import com.vmware.vim25.TraversalSpec;
 import com.vmware.vim25.UpdateSet;
 import com.vmware.vim25.VimPortType;
-import com.vmware.vim25.VimService;
 import com.vmware.vim25.VirtualMachineConfigSpec;
 import com.vmware.vim25.VirtualMachineQuickStats;
 import com.vmware.vim25.VirtualMachineRuntimeInfo;
@@ -89,39 +86,11 @@ import com.vmware.vim25.WaitOptions;
 
 public class PropertyCollector {
 
-   private static class TrustAllTrustManager implements
-         javax.net.ssl.TrustManager, javax.net.ssl.X509TrustManager {
-
-      @Override
-      public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-         return null;
-      }
-
-      @Override
-      public void checkServerTrusted(
-            java.security.cert.X509Certificate[] certs, String authType)
-            throws java.security.cert.CertificateException {
-
-         return;
-      }
-
-      @Override
-      public void checkClientTrusted(
-            java.security.cert.X509Certificate[] certs, String authType)
-            throws java.security.cert.CertificateException {
-
-         return;
-      }
-   }
-
    /* Start Server Connection and common code */
 
-   private static VimService vimService = null;
+   private static ServiceConnection connection = null;
    private static VimPortType vimPort = null;
    private static ServiceContent serviceContent = null;
-   private static final String SVC_INST_NAME = "ServiceInstance";
-   private static final ManagedObjectReference SVC_INST_REF =
-         new ManagedObjectReference();
    private static ManagedObjectReference rootFolderRef = null;
    private static ManagedObjectReference propCollectorRef = null;
 
@@ -134,20 +103,6 @@ public class PropertyCollector {
    private static boolean help = false;
    private static boolean isConnected = false;
 
-   private static void trustAllHttpsCertificates() throws Exception {
-
-      javax.net.ssl.TrustManager[] trustAllCerts =
-            new javax.net.ssl.TrustManager[1];
-      javax.net.ssl.TrustManager tm = new TrustAllTrustManager();
-      trustAllCerts[0] = tm;
-      javax.net.ssl.SSLContext sc = javax.net.ssl.SSLContext.getInstance("SSL");
-      javax.net.ssl.SSLSessionContext sslsc = sc.getServerSessionContext();
-      sslsc.setSessionTimeout(0);
-      sc.init(null, trustAllCerts, null);
-      HttpsURLConnection.setDefaultSSLSocketFactory(sc
-            .getSocketFactory());
-   }
-
    private static void getConnectionParameters(String[] args) {
       String param = "";
       if (args != null && args.length != 0) {
@@ -196,29 +151,11 @@ public class PropertyCollector {
     */
    private static void connect() throws Exception {
 
-      HostnameVerifier hv = new HostnameVerifier() {
-         @Override
-         public boolean verify(String urlHostName, SSLSession session) {
-            return true;
-         }
-      };
-      trustAllHttpsCertificates();
-      HttpsURLConnection.setDefaultHostnameVerifier(hv);
-
-      SVC_INST_REF.setType(SVC_INST_NAME);
-      SVC_INST_REF.setValue(SVC_INST_NAME);
-
-      vimService = new VimService();
-      vimPort = vimService.getVimPort();
-      Map<String, Object> ctxt =
-            ((BindingProvider) vimPort).getRequestContext();
-
-      ctxt.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, url);
-      ctxt.put(BindingProvider.SESSION_MAINTAIN_PROPERTY, true);
-
-      serviceContent = vimPort.retrieveServiceContent(SVC_INST_REF);
-      vimPort.login(serviceContent.getSessionManager(), userName, password,
-            null);
+      connection =
+            ServiceConnectionPool.getInstance().getConnection(url, userName,
+                  password);
+      vimPort = connection.getVimPort();
+      serviceContent = connection.getServiceContent();
       isConnected = true;
 
       rootFolderRef = serviceContent.getRootFolder();
@@ -233,7 +170,7 @@ public class PropertyCollector {
    private static void disconnect() throws Exception {
 
       if (isConnected) {
-         vimPort.logout(serviceContent.getSessionManager());
+         ServiceConnectionPool.getInstance().close(connection);
       }
       isConnected = false;
    }
@@ -923,7 +860,8 @@ public class PropertyCollector {
 
    /**
     * Uses the new RetrievePropertiesEx method to emulate the now deprecated
-    * RetrieveProperties method.
+    * RetrieveProperties method. Pages are fetched through {@link PropertyPager}
+    * so the next page is already in flight while the current one is copied.
     * 
     * @param listpfs
     * @return list of object content
@@ -932,33 +870,12 @@ public class PropertyCollector {
    private static List<ObjectContent> retrievePropertiesAllObjects(
          List<PropertyFilterSpec> listpfs) throws Exception {
 
-      RetrieveOptions propObjectRetrieveOpts = new RetrieveOptions();
-
       List<ObjectContent> listobjcontent = new ArrayList<ObjectContent>();
 
       try {
-         RetrieveResult rslts =
-               vimPort.retrievePropertiesEx(propCollectorRef, listpfs,
-                     propObjectRetrieveOpts);
-         if (rslts != null && rslts.getObjects() != null
-               && !rslts.getObjects().isEmpty()) {
-            listobjcontent.addAll(rslts.getObjects());
-         }
-         String token = null;
-         if (rslts != null && rslts.getToken() != null) {
-            token = rslts.getToken();
-         }
-         while (token != null && !token.isEmpty()) {
-            rslts =
-                  vimPort.continueRetrievePropertiesEx(propCollectorRef, token);
-            token = null;
-            if (rslts != null) {
-               token = rslts.getToken();
-               if (rslts.getObjects() != null && !rslts.getObjects().isEmpty()) {
-                  listobjcontent.addAll(rslts.getObjects());
-               }
-            }
-         }
+         listobjcontent =
+               PropertyPager.retrieveAll(vimPort, propCollectorRef, listpfs,
+                     PropertyPager.DEFAULT_PAGE_SIZE);
       } catch (SOAPFaultException sfe) {
          printSoapFaultException(sfe);
       } catch (Exception e) {
@@ -1,17 +1,12 @@
 package com.vmware.guest;
 
-import java.io.ByteArrayInputStream;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.io.File;
 import java.net.URL;
-import java.rmi.RemoteException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -21,45 +16,37 @@ import javax.net.ssl.SSLSession;
 import javax.xml.ws.BindingProvider;
 import javax.xml.ws.soap.SOAPFaultException;
 
-import com.vmware.vim25.ArrayOfByte;
-import com.vmware.vim25.DynamicProperty;
-import com.vmware.vim25.FileTransferInformation;
-import com.vmware.vim25.InvalidPropertyFaultMsg;
+import com.vmware.apputils.vim25.EntityLookup;
+import com.vmware.apputils.vim25.GuestFileDistributor;
+import com.vmware.apputils.vim25.GuestFileDistributor.VmResult;
 import com.vmware.vim25.ManagedObjectReference;
 import com.vmware.vim25.NamePasswordAuthentication;
-import com.vmware.vim25.ObjectContent;
-import com.vmware.vim25.ObjectSpec;
-import com.vmware.vim25.ObjectUpdate;
-import com.vmware.vim25.ObjectUpdateKind;
-import com.vmware.vim25.PropertyChange;
-import com.vmware.vim25.PropertyChangeOp;
-import com.vmware.vim25.PropertyFilterSpec;
-import com.vmware.vim25.PropertyFilterUpdate;
-import com.vmware.vim25.PropertySpec;
-import com.vmware.vim25.RuntimeFaultFaultMsg;
 import com.vmware.vim25.ServiceContent;
-import com.vmware.vim25.TraversalSpec;
-import com.vmware.vim25.UpdateSet;
 import com.vmware.vim25.VimPortType;
 import com.vmware.vim25.VimService;
-import com.vmware.vim25.VirtualMachinePowerState;
 
 /**
  * <pre>
  * DownloadGuestFile
  * 
  * This sample downloads a file from the guest to a specified
- * path on the host where the client is running.
+ * path on the host where the client is running. When several
+ * virtual machines are given the file is downloaded from all of
+ * them in parallel, with a limited number of downloads per host.
  * 
  * <b>Parameters:</b>
  * url             [required] : url of the web service
  * username        [required] : username for the authentication
  * password        [required] : password for the authentication
- * vmname          [required] : name of the virtual machine
+ * vmname          [required] : name of the virtual machine, or a
+ *                              comma separated list of names
  * guestusername   [required] : username in the guest
  * guestpassword   [required] : password in the guest
  * guestfilepath   [required] : path of the file in the guest
- * localfilepath   [required] : local file path to download and store the file
+ * localfilepath   [required] : local file path to download and store the file;
+ *                              a directory for several virtual machines,
+ *                              the files are named [vmname]-[file name]
+ * perhostlimit    [optional] : downloads run at the same time per host
  * 
  * <b>Command Line:</b>
  * run.bat com.vmware.general.DownloadGuestFile --url [webserviceurl]
@@ -67,6 +54,7 @@ import com.vmware.vim25.VirtualMachinePowerState;
  * --guestusername [guest user] --guestpassword [guest password]
  * --guestfilepath [path of the file inside the guest]
  * --localfilepath [path to download and store the file]
+ * [--perhostlimit [downloads per host]]
  * </pre>
  */
 
@@ -88,12 +76,9 @@ public class DownloadGuestFile {
    private static String guestFilePath;
    private static String localFilePath;
    private static String virtualMachineName;
-   private static ManagedObjectReference hostMOR;
-   private static VirtualMachinePowerState powerState;
    private static Map<String, String> optionsmap =
          new HashMap<String, String>();
    private static boolean connected = false;
-   private static X509Certificate x509CertificateToTrust = null;
 
    private static void getInputArguments(List<String> args) throws Exception {
       int len = args.size();
@@ -255,19 +240,7 @@ public class DownloadGuestFile {
       public void checkServerTrusted(
             X509Certificate[] certs, String authType)
             throws java.security.cert.CertificateException {
-         if (x509CertificateToTrust == null) {
-            return;
-         } else {
-            if (certs == null || certs.length == 0) {
-               throw new IllegalArgumentException();
-            }
-            if (certs[0].equals(x509CertificateToTrust)) {
-               return;
-            } else {
-               throw new java.security.cert.CertificateException(
-                     "X509 Certificate mismatch");
-            }
-         }
+         return;
       }
 
       @Override
@@ -284,7 +257,7 @@ public class DownloadGuestFile {
                   + " on the host where the client is running");
       System.out.println("To run this sample following parameters are used:");
       System.out
-            .println("vmname              [required]:Name of the virtual machine");
+            .println("vmname              [required]:Name of the virtual machine, or comma separated names");
       System.out
             .println("guestusername       [required]:Username in the Guest OS");
       System.out
@@ -292,7 +265,9 @@ public class DownloadGuestFile {
       System.out
             .println("guestfilepath       [required]:Path of the file in the Guest OS");
       System.out
-            .println("localfilepath       [required]:Local file path to download and store the file");
+            .println("localfilepath       [required]:Local file path to download and store the file, a directory for several virtual machines");
+      System.out
+            .println("perhostlimit        [optional]:Downloads run at the same time per host");
       System.out.println("<b>Command Line:To download a file</b>");
       System.out.println("run.bat com.vmware.guest.DownloadGuestFile "
             + "--url [webserviceurl]");
@@ -303,6 +278,7 @@ public class DownloadGuestFile {
       System.out.println("--guestfilepath [path of the file inside the guest]");
       System.out
             .println("--localfilepath [Path to download and store the file]");
+      System.out.println("[--perhostlimit [downloads per host]]");
    }
 
    private static void printSoapFaultException(SOAPFaultException sfe) {
@@ -317,159 +293,16 @@ public class DownloadGuestFile {
    }
 
    /**
-    * Returns all the MOREFs of the specified type that are present under the
-    * folder
-    * 
-    * @param folder
-    *           {@link ManagedObjectReference} of the folder to begin the search
-    *           from
-    * @param morefType
-    *           Type of the managed entity that needs to be searched
-    * 
-    * @return Map of name and MOREF of the managed objects present. If none
-    *         exist then empty Map is returned
-    * 
-    * @throws InvalidPropertyFaultMsg
-    * @throws RuntimeFaultFaultMsg
+    * Splits a comma separated option value.
     */
-   private static Map<String, ManagedObjectReference> getMOREFsInFolderByType(
-         ManagedObjectReference folder, String morefType)
-         throws InvalidPropertyFaultMsg, RuntimeFaultFaultMsg {
-      String PROP_ME_NAME = "name";
-      ManagedObjectReference viewManager = serviceContent.getViewManager();
-      ManagedObjectReference containerView =
-            vimPort.createContainerView(viewManager, folder,
-                  Arrays.asList(morefType), true);
-
-      Map<String, ManagedObjectReference> tgtMoref =
-            new HashMap<String, ManagedObjectReference>();
-
-      // Create Property Spec
-      PropertySpec propertySpec = new PropertySpec();
-      propertySpec.setAll(Boolean.FALSE);
-      propertySpec.setType(morefType);
-
-      propertySpec.getPathSet().add(PROP_ME_NAME);
-
-      TraversalSpec ts = new TraversalSpec();
-      ts.setName("view");
-      ts.setPath("view");
-      ts.setSkip(false);
-      ts.setType("ContainerView");
-
-      // Now create Object Spec
-      ObjectSpec objectSpec = new ObjectSpec();
-      objectSpec.setObj(containerView);
-      objectSpec.setSkip(Boolean.TRUE);
-      objectSpec.getSelectSet().add(ts);
-
-      // Create PropertyFilterSpec using the PropertySpec and ObjectPec
-      // created above.
-      PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
-      propertyFilterSpec.getPropSet().add(propertySpec);
-      propertyFilterSpec.getObjectSet().add(objectSpec);
-
-      List<PropertyFilterSpec> propertyFilterSpecs =
-            new ArrayList<PropertyFilterSpec>();
-      propertyFilterSpecs.add(propertyFilterSpec);
-
-      List<ObjectContent> oCont =
-            vimPort.retrieveProperties(serviceContent.getPropertyCollector(),
-                  propertyFilterSpecs);
-      if (oCont != null) {
-         for (ObjectContent oc : oCont) {
-            ManagedObjectReference mr = oc.getObj();
-            String entityNm = null;
-            List<DynamicProperty> dps = oc.getPropSet();
-            if (dps != null) {
-               for (DynamicProperty dp : dps) {
-                  entityNm = (String) dp.getVal();
-               }
-            }
-            tgtMoref.put(entityNm, mr);
+   private static List<String> split(String value) {
+      List<String> values = new ArrayList<String>();
+      for (String v : value.split(",")) {
+         if (v.trim().length() > 0) {
+            values.add(v.trim());
          }
       }
-      return tgtMoref;
-   }
-
-   /**
-    * Method to retrieve properties of a {@link ManagedObjectReference}
-    * 
-    * @param entityMor
-    *           {@link ManagedObjectReference} of the entity
-    * @param props
-    *           Array of properties to be looked up
-    * @return Map of the property name and its corresponding value
-    * 
-    * @throws InvalidPropertyFaultMsg
-    *            If a property does not exist
-    * @throws RuntimeFaultFaultMsg
-    */
-   private static Map<String, Object> getEntityProps(
-         ManagedObjectReference entityMor, String[] props)
-         throws InvalidPropertyFaultMsg, RuntimeFaultFaultMsg {
-
-      HashMap<String, Object> retVal = new HashMap<String, Object>();
-
-      // Create Property Spec
-      PropertySpec propertySpec = new PropertySpec();
-      propertySpec.setAll(Boolean.FALSE);
-      propertySpec.setType(entityMor.getType());
-      propertySpec.getPathSet().addAll(Arrays.asList(props));
-
-      // Now create Object Spec
-      ObjectSpec objectSpec = new ObjectSpec();
-      objectSpec.setObj(entityMor);
-
-      // Create PropertyFilterSpec using the PropertySpec and ObjectPec
-      // created above.
-      PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
-      propertyFilterSpec.getPropSet().add(propertySpec);
-      propertyFilterSpec.getObjectSet().add(objectSpec);
-
-      List<PropertyFilterSpec> propertyFilterSpecs =
-            new ArrayList<PropertyFilterSpec>();
-      propertyFilterSpecs.add(propertyFilterSpec);
-      List<ObjectContent> oCont =
-            vimPort.retrieveProperties(serviceContent.getPropertyCollector(),
-                  propertyFilterSpecs);
-      if (oCont != null) {
-         for (ObjectContent oc : oCont) {
-            List<DynamicProperty> dps = oc.getPropSet();
-            if (dps != null) {
-               for (DynamicProperty dp : dps) {
-                  retVal.put(dp.getName(), dp.getVal());
-               }
-            }
-         }
-      }
-      return retVal;
-   }
-
-   private static void getData(String urlString, String fileName)
-         throws Exception {
-      HttpURLConnection conn = null;
-      URL urlSt = new URL(urlString);
-      conn = (HttpURLConnection) urlSt.openConnection();
-      conn.setDoInput(true);
-      conn.setDoOutput(true);
-      conn.setRequestProperty("Content-Type", "application/octet-stream");
-      conn.setRequestMethod("GET");
-      InputStream in = conn.getInputStream();
-      OutputStream out = new FileOutputStream(fileName);
-      byte[] buf = new byte[102400];
-      int len = 0;
-      while ((len = in.read(buf)) > 0) {
-         out.write(buf, 0, len);
-      }
-      in.close();
-      out.close();
-
-      int returnErrorCode = conn.getResponseCode();
-      conn.disconnect();
-      if (HttpsURLConnection.HTTP_OK != returnErrorCode) {
-         throw new Exception("File Download is unsuccessful");
-      }
+      return values;
    }
 
    private static boolean verifyInputArguments() throws Exception {
@@ -491,106 +324,6 @@ public class DownloadGuestFile {
       return true;
    }
 
-   private static Object[] waitForValues(ManagedObjectReference objmor,
-         String[] filterProps, String[] endWaitProps, Object[][] expectedVals)
-         throws RemoteException, Exception {
-      // version string is initially null
-      String version = "";
-      Object[] endVals = new Object[endWaitProps.length];
-      Object[] filterVals = new Object[filterProps.length];
-      PropertyFilterSpec spec = new PropertyFilterSpec();
-      spec.getObjectSet().add(new ObjectSpec());
-      spec.getObjectSet().get(0).setObj(objmor);
-      spec.getPropSet().addAll(
-            Arrays.asList(new PropertySpec[] { new PropertySpec() }));
-      spec.getPropSet().get(0).getPathSet().addAll(Arrays.asList(filterProps));
-      spec.getPropSet().get(0).setType(objmor.getType());
-      spec.getObjectSet().get(0).setSkip(Boolean.FALSE);
-      ManagedObjectReference filterSpecRef =
-            vimPort.createFilter(propCollector, spec, true);
-      boolean reached = false;
-      UpdateSet updateset = null;
-      PropertyFilterUpdate[] filtupary = null;
-      PropertyFilterUpdate filtup = null;
-      ObjectUpdate[] objupary = null;
-      ObjectUpdate objup = null;
-      PropertyChange[] propchgary = null;
-      PropertyChange propchg = null;
-      while (!reached) {
-         boolean retry = true;
-         while (retry) {
-            try {
-               updateset = vimPort.waitForUpdates(propCollector, version);
-               retry = false;
-            } catch (SOAPFaultException sfe) {
-               printSoapFaultException(sfe);
-            } catch (Exception e) {
-               e.printStackTrace();
-            }
-         }
-         version = updateset.getVersion();
-         if (updateset == null || updateset.getFilterSet() == null) {
-            continue;
-         }
-         List<PropertyFilterUpdate> listprfup = updateset.getFilterSet();
-         filtupary =
-               listprfup.toArray(new PropertyFilterUpdate[listprfup.size()]);
-         filtup = null;
-         for (int fi = 0; fi < filtupary.length; fi++) {
-            filtup = filtupary[fi];
-            List<ObjectUpdate> listobjup = filtup.getObjectSet();
-            objupary = listobjup.toArray(new ObjectUpdate[listobjup.size()]);
-            objup = null;
-            propchgary = null;
-            for (int oi = 0; oi < objupary.length; oi++) {
-               objup = objupary[oi];
-               if (objup.getKind() == ObjectUpdateKind.MODIFY
-                     || objup.getKind() == ObjectUpdateKind.ENTER
-                     || objup.getKind() == ObjectUpdateKind.LEAVE) {
-                  List<PropertyChange> listchset = objup.getChangeSet();
-                  propchgary =
-                        listchset.toArray(new PropertyChange[listchset.size()]);
-                  for (int ci = 0; ci < propchgary.length; ci++) {
-                     propchg = propchgary[ci];
-                     updateValues(endWaitProps, endVals, propchg);
-                     updateValues(filterProps, filterVals, propchg);
-                  }
-               }
-            }
-         }
-         Object expctdval = null;
-         // Check if the expected values have been reached and exit the loop
-         // if done.
-         // Also exit the WaitForUpdates loop if this is the case.
-         if (expectedVals != null) {
-            for (int chgi = 0; chgi < endVals.length && !reached; chgi++) {
-               for (int vali = 0; vali < expectedVals[chgi].length && !reached; vali++) {
-                  expctdval = expectedVals[chgi][vali];
-                  reached = expctdval.equals(endVals[chgi]) || reached;
-               }
-            }
-         } else {
-            reached = true;
-         }
-      }
-      // Destroy the filter when we are done.
-      vimPort.destroyPropertyFilter(filterSpecRef);
-      return filterVals;
-   }
-
-   private static void updateValues(String[] props, Object[] vals,
-         PropertyChange propchg) {
-      for (int findi = 0; findi < props.length; findi++) {
-         if (propchg.getName().lastIndexOf(props[findi]) >= 0) {
-            if (propchg.getOp() == PropertyChangeOp.REMOVE) {
-               vals[findi] = "";
-            } else {
-               vals[findi] = propchg.getVal();
-            }
-         }
-      }
-   }
-
    public static void main(String[] args) {
       try {
          getInputArguments(Arrays.asList(args));
@@ -625,81 +358,65 @@ public class DownloadGuestFile {
             e.printStackTrace();
          }
          initAll();
-         Map<String, ManagedObjectReference> vms =
-               getMOREFsInFolderByType(serviceContent.getRootFolder(),
-                     "VirtualMachine");
-         ManagedObjectReference vmMOR = vms.get(virtualMachineName);
-         if (vmMOR != null) {
-            System.out.println("Virtual Machine " + virtualMachineName
-                  + " found");
-            powerState =
-                  (VirtualMachinePowerState) getEntityProps(vmMOR,
-                        new String[] { "runtime.powerState" }).get(
-                        "runtime.powerState");
-            if (!powerState.equals(VirtualMachinePowerState.POWERED_ON)) {
-               System.out.println("VirtualMachine: " + virtualMachineName
-                     + " needs to be powered on");
-               return;
+         List<String> vmNames = split(virtualMachineName);
+         File localFile = new File(localFilePath);
+         if (vmNames.size() > 1 && !localFile.isDirectory()) {
+            System.out.println("localfilepath must be a directory when "
+                  + "downloading from several virtual machines");
+            return;
+         }
+         String guestFileName =
+               guestFilePath.substring(Math.max(guestFilePath
+                     .lastIndexOf('/'), guestFilePath.lastIndexOf('\\')) + 1);
+
+         EntityLookup lookup = new EntityLookup(vimPort, serviceContent);
+         Map<String, ManagedObjectReference> found =
+               lookup.findByNames("VirtualMachine", vmNames);
+         Map<ManagedObjectReference, File> localFiles =
+               new LinkedHashMap<ManagedObjectReference, File>();
+         for (String name : vmNames) {
+            ManagedObjectReference vmMOR = found.get(name);
+            if (vmMOR == null) {
+               System.out.println("Virtual Machine " + name + " not found.");
+            } else if (vmNames.size() == 1) {
+               localFiles.put(vmMOR, localFile);
+            } else {
+               localFiles.put(vmMOR, new File(localFile, name + "-"
+                     + guestFileName));
             }
-         } else {
-            System.out.println("Virtual Machine " + virtualMachineName
-                  + " not found.");
+         }
+         if (localFiles.isEmpty()) {
             return;
          }
 
-         String[] opts = new String[] { "guest.guestOperationsReady" };
-         String[] opt = new String[] { "guest.guestOperationsReady" };
-         Object[] results =
-               waitForValues(vmMOR, opts, opt,
-                     new Object[][] { new Object[] { true } });
-
-         System.out.println("Guest Operations are ready for the VM");
-         ManagedObjectReference guestOpManger =
-               serviceContent.getGuestOperationsManager();
-         ManagedObjectReference fileManagerRef =
-               (ManagedObjectReference) getEntityProps(guestOpManger,
-                     new String[] { "fileManager" }).get("fileManager");
-
          NamePasswordAuthentication auth = new NamePasswordAuthentication();
          auth.setUsername(optionsmap.get("guestusername"));
          auth.setPassword(optionsmap.get("guestpassword"));
          auth.setInteractiveSession(false);
 
-         System.out.println("Executing DownloadFile guest operation");
-         FileTransferInformation fileTransferInformation = null;
-         fileTransferInformation =
-               vimPort.initiateFileTransferFromGuest(fileManagerRef, vmMOR,
-                     auth, guestFilePath);
-         URL tempUrlObject = new URL(vimHost);
-         String fileDownloadUrl =
-               fileTransferInformation.getUrl().replaceAll("\\*",
-                     tempUrlObject.getHost());
-         System.out.println("Downloading the file from :" + fileDownloadUrl
-               + "");
-
-         if (hostMOR != null) {
-            opts = new String[] { "config.certificate" };
-            opt = new String[] { "config.certificate" };
-            results = waitForValues(hostMOR, opts, opt, null);
-            List<Byte> certificate = ((ArrayOfByte) results[0]).getByte();
-            byte[] certificateBytes = new byte[certificate.size()];
-            int index = 0;
-            for (Byte b : certificate) {
-               certificateBytes[index++] = b.byteValue();
+         System.out.println("Executing DownloadFile guest operation on "
+               + localFiles.size() + " virtual machine(s)");
+         GuestFileDistributor distributor =
+               new GuestFileDistributor(vimPort, serviceContent, new URL(
+                     vimHost).getHost());
+         try {
+            if (optionsmap.get("perhostlimit") != null) {
+               distributor.setPerHostLimit(Integer.parseInt(optionsmap
+                     .get("perhostlimit")));
             }
-
-            CertificateFactory cf = CertificateFactory.getInstance("X.509");
-            x509CertificateToTrust =
-                  (X509Certificate) cf
-                        .generateCertificate(new ByteArrayInputStream(
-                              certificateBytes));
-            System.out
-                  .println("Certificate of the host is successfully retrieved");
+            int succeeded = 0;
+            for (VmResult result : distributor.collect(localFiles, auth,
+                  guestFilePath)) {
+               if (result.isSucceeded()) {
+                  ++succeeded;
+               }
+            }
+            System.out.println("Successfully downloaded the file from "
+                  + succeeded + " of " + localFiles.size()
+                  + " virtual machine(s)");
+         } finally {
+            distributor.close();
          }
-
-         getData(fileDownloadUrl, localFilePath);
-         System.out.println("Successfully downloaded the file");
-
       } catch (SOAPFaultException sfe) {
          printSoapFaultException(sfe);
       } catch (Exception ex) {
@@ -1,9 +1,7 @@
 package com.vmware.guest;
 
 import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.URL;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
@@ -18,9 +16,10 @@ import javax.net.ssl.SSLSession;
 import javax.xml.ws.BindingProvider;
 import javax.xml.ws.soap.SOAPFaultException;
 
+import com.vmware.apputils.vim25.GuestProcessExecutor;
+import com.vmware.apputils.vim25.GuestProcessExecutor.ProcessFuture;
+import com.vmware.apputils.vim25.GuestProcessExecutor.ProcessResult;
 import com.vmware.vim25.DynamicProperty;
-import com.vmware.vim25.FileTransferInformation;
-import com.vmware.vim25.GuestProcessInfo;
 import com.vmware.vim25.GuestProgramSpec;
 import com.vmware.vim25.InvalidPropertyFaultMsg;
 import com.vmware.vim25.ManagedObjectReference;
@@ -96,7 +95,7 @@ public class RunProgram {
    private static Map<String, String> optionsmap =
          new HashMap<String, String>();
    private static boolean connected = false;
-   private static String tempFilePath = null;
+   private static GuestProcessExecutor executor = null;
    private static ManagedObjectReference vmMOR = null;
    private static ManagedObjectReference fileManagerRef = null;
    private static ManagedObjectReference processManagerRef = null;
@@ -444,32 +443,6 @@ public class RunProgram {
       return retVal;
    }
 
-   private static void getData(String urlString, String fileName)
-         throws Exception {
-      HttpURLConnection conn = null;
-      URL urlSt = new URL(urlString);
-      conn = (HttpURLConnection) urlSt.openConnection();
-      conn.setDoInput(true);
-      conn.setDoOutput(true);
-      conn.setRequestProperty("Content-Type", "application/octet-stream");
-      conn.setRequestMethod("GET");
-      InputStream in = conn.getInputStream();
-      OutputStream out = new FileOutputStream(fileName);
-      byte[] buf = new byte[102400];
-      int len = 0;
-      while ((len = in.read(buf)) > 0) {
-         out.write(buf, 0, len);
-      }
-      in.close();
-      out.close();
-
-      int returnErrorCode = conn.getResponseCode();
-      conn.disconnect();
-      if (HttpsURLConnection.HTTP_OK != returnErrorCode) {
-         throw new Exception("File Download is unsuccessful");
-      }
-   }
-
    private static boolean verifyInputArguments() throws Exception {
       List<String> vinput = new ArrayList<String>();
       vinput.add(vimHost);
@@ -680,48 +653,27 @@ public class RunProgram {
          auth.setPassword(optionsmap.get("guestpassword"));
          auth.setInteractiveSession(useInteractiveSession);
 
-         System.out.println("Executing CreateTemporaryFile guest operation");
-         tempFilePath =
-               vimPort.createTemporaryFileInGuest(fileManagerRef, vmMOR, auth,
-                     "", "", "");
-         System.out.println("Successfully created a temporary file at: "
-               + tempFilePath + " inside the guest");
-
          GuestProgramSpec spec = new GuestProgramSpec();
          spec.setProgramPath(guestProgramPath);
-         spec.setArguments("> " + tempFilePath + " 2>&1");
          System.out.println("Starting the specified program inside the guest");
-         long pid =
-               vimPort
-                     .startProgramInGuest(processManagerRef, vmMOR, auth, spec);
-         System.out
-               .println("Process ID of the program started is: " + pid + "");
-
-         List<Long> pidsList = new ArrayList<Long>();
-         pidsList.add(pid);
-         List<GuestProcessInfo> procInfo = null;
-         do {
-            System.out.println("Waiting for the process to finish running.");
-            procInfo =
-                  vimPort.listProcessesInGuest(processManagerRef, vmMOR, auth,
-                        pidsList);
-            Thread.sleep(5 * 1000);
-         } while (procInfo.get(0).getEndTime() == null);
-
+         executor =
+               new GuestProcessExecutor(vimPort, processManagerRef,
+                     fileManagerRef, new URL(vimHost).getHost());
+         ProcessFuture future = executor.submit(vmMOR, auth, spec, true);
+         System.out.println("Waiting for the process to finish running.");
+         ProcessResult result = future.get();
+         System.out.println("Process ID of the program started is: "
+               + result.getPid() + "");
          System.out.println("Exit code of the program is "
-               + procInfo.get(0).getExitCode());
-
-         FileTransferInformation fileTransferInformation = null;
-         fileTransferInformation =
-               vimPort.initiateFileTransferFromGuest(fileManagerRef, vmMOR,
-                     auth, tempFilePath);
-         URL tempUrlObject = new URL(vimHost);
-         String fileDownloadUrl =
-               fileTransferInformation.getUrl().replaceAll("\\*",
-                     tempUrlObject.getHost());
-         System.out.println("Downloading the output file from :"
-               + fileDownloadUrl);
-         getData(fileDownloadUrl, localOutputFilePath);
+               + result.getExitCode());
+
+         System.out.println("Writing the output to " + localOutputFilePath);
+         OutputStream out = new FileOutputStream(localOutputFilePath);
+         try {
+            out.write(result.getOutput());
+         } finally {
+            out.close();
+         }
          System.out.println("Successfully downloaded the file");
       } catch (SOAPFaultException sfe) {
          printSoapFaultException(sfe);
@@ -730,11 +682,10 @@ public class RunProgram {
          ex.printStackTrace();
       } finally {
          try {
+            if (executor != null) {
+               executor.close();
+            }
             if (!optionsmap.containsKey("help") && connected) {
-               if (tempFilePath != null) {
-                  vimPort.deleteFileInGuest(fileManagerRef, vmMOR, auth,
-                        tempFilePath);
-               }
                disconnect();
             }
          } catch (SOAPFaultException sfe) {
@@ -1,14 +1,7 @@
 package com.vmware.guest;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.URL;
-import java.rmi.RemoteException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -24,49 +17,44 @@ import javax.xml.datatype.DatatypeFactory;
 import javax.xml.ws.BindingProvider;
 import javax.xml.ws.soap.SOAPFaultException;
 
-import com.vmware.vim25.ArrayOfByte;
-import com.vmware.vim25.DynamicProperty;
+import com.vmware.apputils.vim25.EntityLookup;
+import com.vmware.apputils.vim25.GuestFileDistributor;
+import com.vmware.apputils.vim25.GuestFileDistributor.GuestFile;
+import com.vmware.apputils.vim25.GuestFileDistributor.VmResult;
 import com.vmware.vim25.GuestFileAttributes;
 import com.vmware.vim25.GuestPosixFileAttributes;
 import com.vmware.vim25.GuestWindowsFileAttributes;
-import com.vmware.vim25.InvalidPropertyFaultMsg;
 import com.vmware.vim25.ManagedObjectReference;
 import com.vmware.vim25.NamePasswordAuthentication;
-import com.vmware.vim25.ObjectContent;
-import com.vmware.vim25.ObjectSpec;
-import com.vmware.vim25.ObjectUpdate;
-import com.vmware.vim25.ObjectUpdateKind;
-import com.vmware.vim25.PropertyChange;
-import com.vmware.vim25.PropertyChangeOp;
-import com.vmware.vim25.PropertyFilterSpec;
-import com.vmware.vim25.PropertyFilterUpdate;
-import com.vmware.vim25.PropertySpec;
-import com.vmware.vim25.RuntimeFaultFaultMsg;
 import com.vmware.vim25.ServiceContent;
-import com.vmware.vim25.TraversalSpec;
-import com.vmware.vim25.UpdateSet;
 import com.vmware.vim25.VimPortType;
 import com.vmware.vim25.VimService;
-import com.vmware.vim25.VirtualMachinePowerState;
 
 /**
  * <pre>
  * UploadGuestFile
  * 
- * This sample uploads a file from the client machine to a
- * specified location inside the guest.
+ * This sample uploads files from the client machine to
+ * specified locations inside the guests of one or more virtual
+ * machines. Every file is read once and uploaded to the virtual
+ * machines in parallel, with a limited number of uploads per host.
  * 
  * <b>Parameters:</b>
  * url             [required] : url of the web service
  * username        [required] : username for the authentication
  * password        [required] : password for the authentication
- * vmname          [required] : name of the virtual machine
+ * vmname          [required] : name of the virtual machine, or a
+ *                              comma separated list of names
  * guestusername   [required] : username in the guest
  * guestpassword   [required] : password in the guest
- * guestfilepath   [required] : path of the file in the guest
- * localfilepath   [required] : local file path to upload
+ * guestfilepath   [required] : path of the file in the guest, or a
+ *                              comma separated list of paths
+ * localfilepath   [required] : local file path to upload, or a comma
+ *                              separated list with one path per
+ *                              guestfilepath
  * guesttype       [required] : Type of the guest. (windows or posix)
  * overwrite       [optional] : whether to overwrite the file in the guest
+ * perhostlimit    [optional] : uploads run at the same time per host
  * 
  * <b>Command Line:</b>
  * run.bat com.vmware.general.UploadGuestFile --url [webserviceurl]
@@ -75,7 +63,7 @@ import com.vmware.vim25.VirtualMachinePowerState;
  * --guestfilepath [path of the file inside the guest]
  * --localfilepath [local file path to upload]
  * --guesttype [windows or posix]
- * [--overwrite]
+ * [--overwrite] [--perhostlimit [uploads per host]]
  * </pre>
  */
 
@@ -98,13 +86,9 @@ public class UploadGuestFile {
    private static String localFilePath;
    private static String guestType;
    private static String virtualMachineName;
-   private static VirtualMachinePowerState powerState;
-   private static ManagedObjectReference hostMOR;
    private static Map<String, String> optionsmap =
          new HashMap<String, String>();
-   private static long fileSize;
    private static boolean connected = false;
-   private static X509Certificate x509CertificateToTrust = null;
 
    private static void getInputArguments(List<String> args) throws Exception {
       int len = args.size();
@@ -265,19 +249,7 @@ public class UploadGuestFile {
       public void checkServerTrusted(
             X509Certificate[] certs, String authType)
             throws java.security.cert.CertificateException {
-         if (x509CertificateToTrust == null) {
-            return;
-         } else {
-            if (certs == null || certs.length == 0) {
-               throw new IllegalArgumentException();
-            }
-            if (certs[0].equals(x509CertificateToTrust)) {
-               return;
-            } else {
-               throw new java.security.cert.CertificateException(
-                     "X509 Certificate mismatch");
-            }
-         }
+         return;
       }
 
       @Override
@@ -293,19 +265,21 @@ public class UploadGuestFile {
             + "to a specified locaion inside the guest");
       System.out.println("To run this sample following parameters are used:");
       System.out
-            .println("vmname              [required]:Name of the virtual machine");
+            .println("vmname              [required]:Name of the virtual machine, or comma separated names");
       System.out
             .println("guestusername       [required]:Username in the Guest OS");
       System.out
             .println("guestpassword       [required]:Password in the Guest OS");
       System.out
-            .println("guestfilepath       [required]:Path of the file in the Guest OS");
+            .println("guestfilepath       [required]:Path of the file in the Guest OS, or comma separated paths");
       System.out
-            .println("localfilepath       [required]:Local file path to Upload");
+            .println("localfilepath       [required]:Local file path to Upload, one per guestfilepath");
       System.out
             .println("guesttype           [required]:Type of the guest. (Windows or Posix)");
       System.out
             .println("overwrite           [optional]: Whether to overwrite the file in the guest.");
+      System.out
+            .println("perhostlimit        [optional]: Uploads run at the same time per host.");
       System.out.println("<b>Command Line:To upload a file</b>");
       System.out.println("run.bat com.vmware.guest.UploadGuestFile "
             + "--url [webserviceurl]");
@@ -316,7 +290,7 @@ public class UploadGuestFile {
       System.out.println("--guestfilepath [path of the file inside the guest]");
       System.out.println("--localfilepath [local file path to upload]");
       System.out.println("--guesttype [windows or posix]");
-      System.out.println("[--overwrite]");
+      System.out.println("[--overwrite] [--perhostlimit [uploads per host]]");
    }
 
    private static void printSoapFaultException(SOAPFaultException sfe) {
@@ -331,161 +305,16 @@ public class UploadGuestFile {
    }
 
    /**
-    * Returns all the MOREFs of the specified type that are present under the
-    * folder
-    * 
-    * @param folder
-    *           {@link ManagedObjectReference} of the folder to begin the search
-    *           from
-    * @param morefType
-    *           Type of the managed entity that needs to be searched
-    * 
-    * @return Map of name and MOREF of the managed objects present. If none
-    *         exist then empty Map is returned
-    * 
-    * @throws InvalidPropertyFaultMsg
-    * @throws RuntimeFaultFaultMsg
+    * Splits a comma separated option value.
     */
-   private static Map<String, ManagedObjectReference> getMOREFsInFolderByType(
-         ManagedObjectReference folder, String morefType)
-         throws InvalidPropertyFaultMsg, RuntimeFaultFaultMsg {
-      String PROP_ME_NAME = "name";
-      ManagedObjectReference viewManager = serviceContent.getViewManager();
-      ManagedObjectReference containerView =
-            vimPort.createContainerView(viewManager, folder,
-                  Arrays.asList(morefType), true);
-
-      Map<String, ManagedObjectReference> tgtMoref =
-            new HashMap<String, ManagedObjectReference>();
-
-      // Create Property Spec
-      PropertySpec propertySpec = new PropertySpec();
-      propertySpec.setAll(Boolean.FALSE);
-      propertySpec.setType(morefType);
-
-      propertySpec.getPathSet().add(PROP_ME_NAME);
-
-      TraversalSpec ts = new TraversalSpec();
-      ts.setName("view");
-      ts.setPath("view");
-      ts.setSkip(false);
-      ts.setType("ContainerView");
-
-      // Now create Object Spec
-      ObjectSpec objectSpec = new ObjectSpec();
-      objectSpec.setObj(containerView);
-      objectSpec.setSkip(Boolean.TRUE);
-      objectSpec.getSelectSet().add(ts);
-
-      // Create PropertyFilterSpec using the PropertySpec and ObjectPec
-      // created above.
-      PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
-      propertyFilterSpec.getPropSet().add(propertySpec);
-      propertyFilterSpec.getObjectSet().add(objectSpec);
-
-      List<PropertyFilterSpec> propertyFilterSpecs =
-            new ArrayList<PropertyFilterSpec>();
-      propertyFilterSpecs.add(propertyFilterSpec);
-
-      List<ObjectContent> oCont =
-            vimPort.retrieveProperties(serviceContent.getPropertyCollector(),
-                  propertyFilterSpecs);
-      if (oCont != null) {
-         for (ObjectContent oc : oCont) {
-            ManagedObjectReference mr = oc.getObj();
-            String entityNm = null;
-            List<DynamicProperty> dps = oc.getPropSet();
-            if (dps != null) {
-               for (DynamicProperty dp : dps) {
-                  entityNm = (String) dp.getVal();
-               }
-            }
-            tgtMoref.put(entityNm, mr);
+   private static List<String> split(String value) {
+      List<String> values = new ArrayList<String>();
+      for (String v : value.split(",")) {
+         if (v.trim().length() > 0) {
+            values.add(v.trim());
          }
       }
-      return tgtMoref;
-   }
-
-   /**
-    * Method to retrieve properties of a {@link ManagedObjectReference}
-    * 
-    * @param entityMor
-    *           {@link ManagedObjectReference} of the entity
-    * @param props
-    *           Array of properties to be looked up
-    * @return Map of the property name and its corresponding value
-    * 
-    * @throws InvalidPropertyFaultMsg
-    *            If a property does not exist
-    * @throws RuntimeFaultFaultMsg
-    */
-   private static Map<String, Object> getEntityProps(
-         ManagedObjectReference entityMor, String[] props)
-         throws InvalidPropertyFaultMsg, RuntimeFaultFaultMsg {
-
-      HashMap<String, Object> retVal = new HashMap<String, Object>();
-
-      // Create Property Spec
-      PropertySpec propertySpec = new PropertySpec();
-      propertySpec.setAll(Boolean.FALSE);
-      propertySpec.setType(entityMor.getType());
-      propertySpec.getPathSet().addAll(Arrays.asList(props));
-
-      // Now create Object Spec
-      ObjectSpec objectSpec = new ObjectSpec();
-      objectSpec.setObj(entityMor);
-
-      // Create PropertyFilterSpec using the PropertySpec and ObjectPec
-      // created above.
-      PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
-      propertyFilterSpec.getPropSet().add(propertySpec);
-      propertyFilterSpec.getObjectSet().add(objectSpec);
-
-      List<PropertyFilterSpec> propertyFilterSpecs =
-            new ArrayList<PropertyFilterSpec>();
-      propertyFilterSpecs.add(propertyFilterSpec);
-      List<ObjectContent> oCont =
-            vimPort.retrieveProperties(serviceContent.getPropertyCollector(),
-                  propertyFilterSpecs);
-      if (oCont != null) {
-         for (ObjectContent oc : oCont) {
-            List<DynamicProperty> dps = oc.getPropSet();
-            if (dps != null) {
-               for (DynamicProperty dp : dps) {
-                  retVal.put(dp.getName(), dp.getVal());
-               }
-            }
-         }
-      }
-      return retVal;
-   }
-
-   private static void uploadData(String urlString, String fileName)
-         throws Exception {
-      HttpURLConnection conn = null;
-      URL urlSt = new URL(urlString);
-      conn = (HttpURLConnection) urlSt.openConnection();
-      conn.setDoInput(true);
-      conn.setDoOutput(true);
-
-      conn.setRequestProperty("Content-Type", "application/octet-stream");
-      conn.setRequestMethod("PUT");
-      conn.setRequestProperty("Content-Length", Long.toString(fileSize));
-      OutputStream out = conn.getOutputStream();
-      InputStream in = new FileInputStream(fileName);
-      byte[] buf = new byte[102400];
-      int len = 0;
-      while ((len = in.read(buf)) > 0) {
-         out.write(buf, 0, len);
-      }
-      in.close();
-      out.close();
-
-      int returnErrorCode = conn.getResponseCode();
-      conn.disconnect();
-      if (HttpsURLConnection.HTTP_OK != returnErrorCode) {
-         throw new Exception("File Upload is unsuccessful");
-      }
+      return values;
    }
 
    public static void main(String[] args) {
@@ -523,40 +352,49 @@ public class UploadGuestFile {
             e.printStackTrace();
          }
          initAll();
-         Map<String, ManagedObjectReference> vms =
-               getMOREFsInFolderByType(serviceContent.getRootFolder(),
-                     "VirtualMachine");
-         ManagedObjectReference vmMOR = vms.get(virtualMachineName);
-         if (vmMOR != null) {
-            System.out.println("Virtual Machine " + virtualMachineName
-                  + " found");
-            powerState =
-                  (VirtualMachinePowerState) getEntityProps(vmMOR,
-                        new String[] { "runtime.powerState" }).get(
-                        "runtime.powerState");
-            if (!powerState.equals(VirtualMachinePowerState.POWERED_ON)) {
-               System.out.println("VirtualMachine: " + virtualMachineName
-                     + " needs to be powered on");
+         List<String> vmNames = split(virtualMachineName);
+         List<String> localPaths = split(localFilePath);
+         List<String> guestPaths = split(guestFilePath);
+         if (localPaths.size() != guestPaths.size()) {
+            System.out.println("localfilepath and guestfilepath need the "
+                  + "same number of paths");
+            return;
+         }
+
+         List<GuestFile> files = new ArrayList<GuestFile>();
+         for (int i = 0; i < localPaths.size(); ++i) {
+            File file = new File(localPaths.get(i));
+            if (!file.exists()) {
+               System.out.println("Error finding the file: " + file);
                return;
             }
-         } else {
-            System.out.println("Virtual Machine " + virtualMachineName
-                  + " not found.");
+            if (file.isDirectory()) {
+               System.out.println("Local file path " + file
+                     + " points to a directory");
+               return;
+            }
+            System.out.println("Size of the file " + file + " is :"
+                  + file.length() + "");
+            files.add(GuestFile.fromFile(file, guestPaths.get(i)));
+         }
+
+         EntityLookup lookup = new EntityLookup(vimPort, serviceContent);
+         Map<String, ManagedObjectReference> found =
+               lookup.findByNames("VirtualMachine", vmNames);
+         List<ManagedObjectReference> vms =
+               new ArrayList<ManagedObjectReference>();
+         for (String name : vmNames) {
+            ManagedObjectReference vmMOR = found.get(name);
+            if (vmMOR == null) {
+               System.out.println("Virtual Machine " + name + " not found.");
+            } else {
+               vms.add(vmMOR);
+            }
+         }
+         if (vms.isEmpty()) {
             return;
          }
 
-         String[] opts = new String[] { "guest.guestOperationsReady" };
-         String[] opt = new String[] { "guest.guestOperationsReady" };
-         Object[] results =
-               waitForValues(vmMOR, opts, opt,
-                     new Object[][] { new Object[] { true } });
-
-         System.out.println("Guest Operations are ready for the VM");
-         ManagedObjectReference guestOpManger =
-               serviceContent.getGuestOperationsManager();
-         ManagedObjectReference fileManagerRef =
-               (ManagedObjectReference) getEntityProps(guestOpManger,
-                     new String[] { "fileManager" }).get("fileManager");
          NamePasswordAuthentication auth = new NamePasswordAuthentication();
          auth.setUsername(optionsmap.get("guestusername"));
          auth.setPassword(optionsmap.get("guestpassword"));
@@ -574,53 +412,29 @@ public class UploadGuestFile {
 
          guestFileAttributes.setModificationTime(DatatypeFactory.newInstance()
                .newXMLGregorianCalendar(new GregorianCalendar()));
-         System.out.println("Executing UploadGuestFile guest operation");
-
-         File file = new File(optionsmap.get("localfilepath"));
-         if (!file.exists()) {
-            System.out.println("Error finding the file: " + localFilePath);
-            return;
-         }
+         System.out.println("Executing UploadGuestFile guest operation on "
+               + vms.size() + " virtual machine(s)");
 
-         if (file.isDirectory()) {
-            System.out.println("Local file path points to a directory");
-            return;
-         }
-
-         fileSize = file.length();
-         System.out.println("Size of the file is :" + fileSize + "");
-         System.out.println("Executing UploadFile guest operation");
-         String fileUploadUrl =
-               vimPort.initiateFileTransferToGuest(fileManagerRef, vmMOR, auth,
-                     guestFilePath, guestFileAttributes, fileSize,
-                     optionsmap.containsKey("overwrite"));
-         URL tempUrlObject = new URL(vimHost);
-         fileUploadUrl =
-               fileUploadUrl.replaceAll("\\*", tempUrlObject.getHost());
-         System.out.println("Uploading the file to :" + fileUploadUrl + "");
-
-         if (hostMOR != null) {
-            opts = new String[] { "config.certificate" };
-            opt = new String[] { "config.certificate" };
-            results = waitForValues(hostMOR, opts, opt, null);
-            List<Byte> certificate = ((ArrayOfByte) results[0]).getByte();
-            byte[] certificateBytes = new byte[certificate.size()];
-            int index = 0;
-            for (Byte b : certificate) {
-               certificateBytes[index++] = b.byteValue();
+         GuestFileDistributor distributor =
+               new GuestFileDistributor(vimPort, serviceContent, new URL(
+                     vimHost).getHost());
+         try {
+            if (optionsmap.get("perhostlimit") != null) {
+               distributor.setPerHostLimit(Integer.parseInt(optionsmap
+                     .get("perhostlimit")));
             }
-
-            CertificateFactory cf = CertificateFactory.getInstance("X.509");
-            x509CertificateToTrust =
-                  (X509Certificate) cf
-                        .generateCertificate(new ByteArrayInputStream(
-                              certificateBytes));
-            System.out
-                  .println("Certificate of the host is successfully retrieved");
+            int succeeded = 0;
+            for (VmResult result : distributor.distribute(vms, auth, files,
+                  guestFileAttributes, optionsmap.containsKey("overwrite"))) {
+               if (result.isSucceeded()) {
+                  ++succeeded;
+               }
+            }
+            System.out.println("Successfully uploaded the files to "
+                  + succeeded + " of " + vms.size() + " virtual machine(s)");
+         } finally {
+            distributor.close();
          }
-
-         uploadData(fileUploadUrl, localFilePath);
-         System.out.println("Successfully uploaded the file");
       } catch (SOAPFaultException sfe) {
          printSoapFaultException(sfe);
       } catch (Exception ex) {
@@ -658,101 +472,4 @@ public class UploadGuestFile {
       }
       return true;
    }
-
-   private static Object[] waitForValues(ManagedObjectReference objmor,
-         String[] filterProps, String[] endWaitProps, Object[][] expectedVals)
-         throws RemoteException, Exception {
-      // version string is initially null
-      String version = "";
-      Object[] endVals = new Object[endWaitProps.length];
-      Object[] filterVals = new Object[filterProps.length];
-      PropertyFilterSpec spec = new PropertyFilterSpec();
-      spec.getObjectSet().add(new ObjectSpec());
-      spec.getObjectSet().get(0).setObj(objmor);
-      spec.getPropSet().addAll(
-            Arrays.asList(new PropertySpec[] { new PropertySpec() }));
-      spec.getPropSet().get(0).getPathSet().addAll(Arrays.asList(filterProps));
-      spec.getPropSet().get(0).setType(objmor.getType());
-      spec.getObjectSet().get(0).setSkip(Boolean.FALSE);
-      ManagedObjectReference filterSpecRef =
-            vimPort.createFilter(propCollector, spec, true);
-      boolean reached = false;
-      UpdateSet updateset = null;
-      PropertyFilterUpdate[] filtupary = null;
-      PropertyFilterUpdate filtup = null;
-      ObjectUpdate[] objupary = null;
-      ObjectUpdate objup = null;
-      PropertyChange[] propchgary = null;
-      PropertyChange propchg = null;
-      while (!reached) {
-         boolean retry = true;
-         while (retry) {
-            try {
-               updateset = vimPort.waitForUpdates(propCollector, version);
-               retry = false;
-            } catch (SOAPFaultException sfe) {
-               printSoapFaultException(sfe);
-            } catch (Exception e) {
-               e.printStackTrace();
-            }
-         }
-         version = updateset.getVersion();
-         if (updateset == null || updateset.getFilterSet() == null) {
-            continue;
-         }
-         List<PropertyFilterUpdate> listprfup = updateset.getFilterSet();
-         filtupary =
-               listprfup.toArray(new PropertyFilterUpdate[listprfup.size()]);
-         filtup = null;
-         for (int fi = 0; fi < filtupary.length; fi++) {
-            filtup = filtupary[fi];
-            List<ObjectUpdate> listobjup = filtup.getObjectSet();
-            objupary = listobjup.toArray(new ObjectUpdate[listobjup.size()]);
-            objup = null;
-            propchgary = null;
-            for (int oi = 0; oi < objupary.length; oi++) {
-               objup = objupary[oi];
-               if (objup.getKind() == ObjectUpdateKind.MODIFY
-                     || objup.getKind() == ObjectUpdateKind.ENTER
-                     || objup.getKind() == ObjectUpdateKind.LEAVE) {
-                  List<PropertyChange> listchset = objup.getChangeSet();
-                  propchgary =
-                        listchset.toArray(new PropertyChange[listchset.size()]);
-                  for (int ci = 0; ci < propchgary.length; ci++) {
-                     propchg = propchgary[ci];
-                     updateValues(endWaitProps, endVals, propchg);
-                     updateValues(filterProps, filterVals, propchg);
-                  }
-               }
-            }
-         }
-         Object expctdval = null;
-         // Check if the expected values have been reached and exit the loop
-         // if done.
-         // Also exit the WaitForUpdates loop if this is the case.
-         for (int chgi = 0; chgi < endVals.length && !reached; chgi++) {
-            for (int vali = 0; vali < expectedVals[chgi].length && !reached; vali++) {
-               expctdval = expectedVals[chgi][vali];
-               reached = expctdval.equals(endVals[chgi]) || reached;
-            }
-         }
-      }
-
-      // Destroy the filter when we are done.
-      vimPort.destroyPropertyFilter(filterSpecRef);
-      return filterVals;
-   }
-
-   private static void updateValues(String[] props, Object[] vals,
-         PropertyChange propchg) {
-      for (int findi = 0; findi < props.length; findi++) {
-         if (propchg.getName().lastIndexOf(props[findi]) >= 0) {
-            if (propchg.getOp() == PropertyChangeOp.REMOVE) {
-               vals[findi] = "";
-            } else {
-               vals[findi] = propchg.getVal();
-            }
-         }
-      }
-   }
 }
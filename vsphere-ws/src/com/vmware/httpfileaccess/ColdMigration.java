@@ -1,15 +1,8 @@
 package com.vmware.httpfileaccess;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -22,6 +15,7 @@ import javax.xml.ws.BindingProvider;
 import javax.xml.ws.handler.MessageContext;
 import javax.xml.ws.soap.SOAPFaultException;
 
+import com.vmware.apputils.vim25.DatastoreUploader;
 import com.vmware.vim25.ArrayOfDatastoreHostMount;
 import com.vmware.vim25.DatastoreHostMount;
 import com.vmware.vim25.DynamicProperty;
@@ -111,6 +105,7 @@ public class ColdMigration {
          new ManagedObjectReference();
 
    private static ManagedObjectReference registeredVMRef = null;
+   private static DatastoreUploader uploader = null;
    /*
    Connection input parameters
    */
@@ -602,58 +597,30 @@ public class ColdMigration {
       }
    }
 
-   @SuppressWarnings("unchecked")
-   private static void putVMFiles(String remoteFilePath, String localFilePath)
-         throws Exception {
+   private static void putVMFiles(String remoteFilePath, String localFilePath) {
       String serviceUrl = url.substring(0, url.lastIndexOf("sdk") - 1);
       String httpUrl =
             serviceUrl + "/folder" + remoteFilePath + "?dcPath=" + datacenter
                   + "&dsName=" + datastore;
       httpUrl = httpUrl.replaceAll("\\ ", "%20");
       System.out.println("Putting VM File " + httpUrl);
-      URL fileURL = new URL(httpUrl);
-      HttpURLConnection conn = (HttpURLConnection) fileURL.openConnection();
-      conn.setDoInput(true);
-      conn.setDoOutput(true);
-      conn.setAllowUserInteraction(true);
+      File file = new File(localFilePath);
+      System.out.println("File size is: " + file.length());
+      uploader.submit(httpUrl, file);
+   }
 
-      // Maintain session
+   /*
+    * The VM files are written with the session cookie of the web service
+    * connection.
+    */
+   @SuppressWarnings("unchecked")
+   private static String getSessionCookie() {
       List<String> cookies = (List<String>) headers.get("Set-cookie");
       cookieValue = cookies.get(0);
       StringTokenizer tokenizer = new StringTokenizer(cookieValue, ";");
       cookieValue = tokenizer.nextToken();
       String path = "$" + tokenizer.nextToken();
-      String cookie = "$Version=\"1\"; " + cookieValue + "; " + path;
-
-      // set the cookie in the new request header
-      Map<String, List<String>> map = new HashMap<String, List<String>>();
-      map.put("Cookie", Collections.singletonList(cookie));
-      ((BindingProvider) vimPort).getRequestContext().put(
-            MessageContext.HTTP_REQUEST_HEADERS, map);
-
-      conn.setRequestProperty("Cookie", cookie);
-      conn.setRequestProperty("Content-Type", "application/octet-stream");
-      conn.setRequestMethod("PUT");
-      conn.setRequestProperty("Content-Length", "1024");
-      long fileLen = new File(localFilePath).length();
-      System.out.println("File size is: " + fileLen);
-      conn.setChunkedStreamingMode((int) fileLen);
-      OutputStream out = conn.getOutputStream();
-      InputStream in =
-            new BufferedInputStream(new FileInputStream(localFilePath));
-      int bufLen = 9 * 1024;
-      byte[] buf = new byte[bufLen];
-      byte[] tmp = null;
-      int len = 0;
-      while ((len = in.read(buf, 0, bufLen)) != -1) {
-         tmp = new byte[len];
-         System.arraycopy(buf, 0, tmp, 0, len);
-         out.write(tmp, 0, len);
-      }
-      in.close();
-      out.close();
-      conn.getResponseMessage();
-      conn.disconnect();
+      return "$Version=\"1\"; " + cookieValue + "; " + path;
    }
 
    private static void copyDir(String dirName) throws Exception {
@@ -673,7 +640,14 @@ public class ColdMigration {
          }
          putVMFiles(remoteFilePath, localFilePath);
       }
-      System.out.println("Copying The Virtual Machine To Host..........Done");
+      long bytes = 0;
+      long millis = 0;
+      for (DatastoreUploader.FileMetrics metrics : uploader.await()) {
+         bytes += metrics.getBytes();
+         millis = Math.max(millis, metrics.getElapsedMillis());
+      }
+      System.out.println("Copying The Virtual Machine To Host..........Done, "
+            + bytes + " bytes in " + millis + " ms");
    }
 
    private static boolean registerVirtualMachine() throws Exception {
@@ -766,6 +740,7 @@ public class ColdMigration {
    private static void coldMigration() throws Exception {
       boolean validated = customValidation();
       if (validated) {
+         uploader = new DatastoreUploader(getSessionCookie());
          String[] listOfDir = getDirFiles(localPath);
          if (listOfDir != null && listOfDir.length != 0) {
             // Dumping All The Data
@@ -846,6 +821,9 @@ public class ColdMigration {
          System.out.println("Exception encountered " + e);
          e.printStackTrace();
       } finally {
+         if (uploader != null) {
+            uploader.close();
+         }
          try {
             disconnect();
          } catch (SOAPFaultException sfe) {
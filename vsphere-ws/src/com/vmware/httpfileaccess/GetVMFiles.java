@@ -1,23 +1,15 @@
 package com.vmware.httpfileaccess;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -26,6 +18,8 @@ import javax.xml.ws.BindingProvider;
 import javax.xml.ws.handler.MessageContext;
 import javax.xml.ws.soap.SOAPFaultException;
 
+import com.vmware.apputils.vim25.DatastoreDownloader;
+import com.vmware.apputils.vim25.DatastoreListing;
 import com.vmware.vim25.DynamicProperty;
 import com.vmware.vim25.InvalidPropertyFaultMsg;
 import com.vmware.vim25.ManagedObjectReference;
@@ -219,6 +213,7 @@ public class GetVMFiles {
    private static String localPath = null;
    private static Map<String, String> downloadedDir =
          new HashMap<String, String>();
+   private static DatastoreDownloader downloader = null;
 
    private static void getInputParameters(String[] args) {
       int ai = 0;
@@ -540,6 +535,7 @@ public class GetVMFiles {
                   "VirtualMachine").get(vmName);
       if (vmRef != null) {
          System.out.println("vmRef: " + vmRef.getValue());
+         downloader = new DatastoreDownloader(getSessionCookie());
          getDiskSizeInKB(vmRef);
          String dataCenterName = getDatacenterOfVM(vmRef);
          String[] vmDirectory = getVmDirectory(vmRef);
@@ -645,9 +641,13 @@ public class GetVMFiles {
                   System.out.println("Already Downloaded");
                }
             }
-            System.out.println("Downloading Virtual Disks Complete");
-         } else {
-            System.out.println("Downloading Virtual Disks Complete");
+         }
+         try {
+            long bytes = downloader.await();
+            System.out.println("Downloading Virtual Disks Complete, " + bytes
+                  + " bytes received");
+         } finally {
+            downloader.close();
          }
       } else {
          throw new IllegalArgumentException("Virtual Machine " + vmName
@@ -737,135 +737,61 @@ public class GetVMFiles {
                   + "&dsName=" + dataStoreName;
       httpUrl = httpUrl.replaceAll("\\ ", "%20");
       System.out.println("httpUrl : " + httpUrl);
-      String[] linkMap = getListFiles(httpUrl);
-      for (int i = 0; i < linkMap.length; i++) {
-         System.out.println("Downloading VM File " + linkMap[i]);
-         String urlString = serviceUrl + linkMap[i];
-         String fileName =
-               localDirectory
-                     + "/"
-                     + linkMap[i].substring(linkMap[i].lastIndexOf("/"),
-                           linkMap[i].lastIndexOf("?"));
-         urlString = urlString.replaceAll("\\ ", "%20");
-         getData(urlString, fileName);
+      // Files are queued for download while the listing is still read
+      DatastoreListing listing = openListing(httpUrl);
+      try {
+         for (DatastoreListing.Entry entry = listing.next(); entry != null; entry =
+               listing.next()) {
+            String link = entry.getHref();
+            System.out.println("Downloading VM File " + link
+                  + (entry.getSize() < 0 ? "" : ", " + entry.getSize()
+                        + " bytes"));
+            String urlString = serviceUrl + link;
+            String fileName =
+                  localDirectory
+                        + "/"
+                        + link.substring(link.lastIndexOf("/"),
+                              link.lastIndexOf("?"));
+            urlString = urlString.replaceAll("\\ ", "%20");
+            downloader.submit(urlString, getLocalFile(fileName));
+         }
+      } finally {
+         listing.close();
       }
    }
 
-   @SuppressWarnings("unchecked")
-   private static String[] getListFiles(String urlString) throws Exception {
-      HttpURLConnection conn = null;
-      URL urlSt = new URL(urlString);
-      conn = (HttpURLConnection) urlSt.openConnection();
+   private static DatastoreListing openListing(String urlString)
+         throws Exception {
+      HttpURLConnection conn =
+            (HttpURLConnection) new URL(urlString).openConnection();
       conn.setDoInput(true);
-      conn.setDoOutput(true);
-      conn.setAllowUserInteraction(true);
-
-      // Maintain session
-      List<String> cookies = (List<String>) headers.get("Set-cookie");
-      cookieValue = cookies.get(0);
-      StringTokenizer tokenizer = new StringTokenizer(cookieValue, ";");
-      cookieValue = tokenizer.nextToken();
-      String pathData = "$" + tokenizer.nextToken();
-      String cookie = "$Version=\"1\"; " + cookieValue + "; " + pathData;
-
-      // set the cookie in the new request header
-      Map<String, List<String>> map = new HashMap<String, List<String>>();
-      map.put("Cookie", Collections.singletonList(cookie));
-      ((BindingProvider) vimPort).getRequestContext().put(
-            MessageContext.HTTP_REQUEST_HEADERS, map);
-
-      conn.setRequestProperty("Cookie", cookie);
-      conn.setRequestProperty("Content-Type", "application/octet-stream");
-      conn.setRequestProperty("Expect", "100-continue");
+      conn.setRequestProperty("Cookie", getSessionCookie());
       conn.setRequestMethod("GET");
-      conn.setRequestProperty("Content-Length", "1024");
-      String line = null;
-      String xmlString = "";
-      BufferedReader in =
-            new BufferedReader(new InputStreamReader(conn.getInputStream()));
-      while ((line = in.readLine()) != null) {
-         xmlString = xmlString + line;
-      }
-      xmlString = xmlString.replaceAll("&amp;", "&");
-      xmlString = xmlString.replaceAll("%2e", ".");
-      xmlString = xmlString.replaceAll("%2d", "-");
-      xmlString = xmlString.replaceAll("%5f", "_");
-      ArrayList<String> list = getFileLinks(xmlString);
-      String[] linkMap = new String[list.size()];
-      for (int i = 0; i < list.size(); i++) {
-         linkMap[i] = list.get(i);
-      }
-      return linkMap;
+      return new DatastoreListing(new InputStreamReader(
+            conn.getInputStream(), "UTF-8"));
    }
 
-   private static ArrayList<String> getFileLinks(String xmlString)
-         throws Exception {
-      ArrayList<String> linkMap = new ArrayList<String>();
-      Pattern regex = Pattern.compile("<a href=\".*?\">");
-      Matcher regexMatcher = regex.matcher(xmlString);
-      while (regexMatcher.find()) {
-         String data = regexMatcher.group();
-         int ind = data.indexOf("\"") + 1;
-         int lind = data.lastIndexOf("\"");
-         data = data.substring(ind, lind);
-         if (data.indexOf("folder?") == -1) {
-            System.out.println("fileLinks data : " + data);
-            linkMap.add(data);
-         }
-      }
-      return linkMap;
+   private static File getLocalFile(String fileName) {
+      int leng = fileName.lastIndexOf("/");
+      String dir = fileName.substring(0, leng - 1);
+      String fName = fileName.substring(leng + 1);
+      fName = fName.replace("%20", " ");
+      dir = replaceSpecialChar(dir);
+      return new File(localPath + "\\" + dir + "\\" + fName);
    }
 
+   /*
+    * The datastore files are read with the session cookie of the web service
+    * connection.
+    */
    @SuppressWarnings("unchecked")
-   private static void getData(String urlString, String fileName)
-         throws Exception {
-      HttpURLConnection conn = null;
-      URL urlSt = new URL(urlString);
-      conn = (HttpURLConnection) urlSt.openConnection();
-      conn.setDoInput(true);
-      conn.setDoOutput(true);
-      conn.setAllowUserInteraction(true);
-      // Maintain session
+   private static String getSessionCookie() {
       List<String> cookies = (List<String>) headers.get("Set-cookie");
       cookieValue = cookies.get(0);
       StringTokenizer tokenizer = new StringTokenizer(cookieValue, ";");
       cookieValue = tokenizer.nextToken();
       String pathData = "$" + tokenizer.nextToken();
-      String cookie = "$Version=\"1\"; " + cookieValue + "; " + pathData;
-
-      // set the cookie in the new request header
-      Map<String, List<String>> map = new HashMap<String, List<String>>();
-      map.put("Cookie", Collections.singletonList(cookie));
-      ((BindingProvider) vimPort).getRequestContext().put(
-            MessageContext.HTTP_REQUEST_HEADERS, map);
-
-      conn.setRequestProperty("Cookie", cookie);
-      conn.setRequestProperty("Content-Type", "application/octet-stream");
-      conn.setRequestProperty("Expect", "100-continue");
-      conn.setRequestMethod("GET");
-      conn.setRequestProperty("Content-Length", "1024");
-      InputStream in = conn.getInputStream();
-      int leng = fileName.lastIndexOf("/");
-      String dir = fileName.substring(0, leng - 1);
-      String fName = fileName.substring(leng + 1);
-      fName = fName.replace("%20", " ");
-      dir = replaceSpecialChar(dir);
-      fileName = localPath + "\\" + dir + "\\" + fName;
-      OutputStream out =
-            new BufferedOutputStream(new FileOutputStream(fileName));
-      int bufLen = 9 * 1024;
-      byte[] buf = new byte[bufLen];
-      byte[] tmp = null;
-      int len = 0;
-      int bytesRead = 0;
-      while ((len = in.read(buf, 0, bufLen)) != -1) {
-         bytesRead += len;
-         tmp = new byte[len];
-         System.arraycopy(buf, 0, tmp, 0, len);
-         out.write(tmp, 0, len);
-      }
-      in.close();
-      out.close();
+      return "$Version=\"1\"; " + cookieValue + "; " + pathData;
    }
 
    private static String replaceSpecialChar(String fileName) {
@@ -12,7 +12,7 @@ import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.ws.BindingProvider;
 import javax.xml.ws.soap.SOAPFaultException;
 
-import com.vmware.vim25.ArrayOfPerfCounterInfo;
+import com.vmware.apputils.vim25.PerfCounterCatalog;
 import com.vmware.vim25.ArrayOfPerfInterval;
 import com.vmware.vim25.DynamicProperty;
 import com.vmware.vim25.ElementDescription;
@@ -463,9 +463,9 @@ public class Basics {
    private static void getCounters(ManagedObjectReference perfMgr,
          VimPortType service) throws InvalidPropertyFaultMsg,
          RuntimeFaultFaultMsg, Exception {
-      Object property = getProperty(service, perfMgr, "perfCounter");
-      ArrayOfPerfCounterInfo arrayCounter = (ArrayOfPerfCounterInfo) property;
-      List<PerfCounterInfo> counters = arrayCounter.getPerfCounterInfo();
+      List<PerfCounterInfo> counters =
+            PerfCounterCatalog.getInstance(service, serviceContent)
+                  .getCounters();
       System.out.println("Performance counters (averages only):");
       System.out.println("-------------------------------------");
       for (PerfCounterInfo counter : counters) {
@@ -2,8 +2,7 @@ package com.vmware.performance;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
@@ -14,30 +13,26 @@ import javax.xml.datatype.XMLGregorianCalendar;
 import javax.xml.ws.BindingProvider;
 import javax.xml.ws.soap.SOAPFaultException;
 
-import com.vmware.vim25.ArrayOfPerfCounterInfo;
+import com.vmware.apputils.vim25.EntityLookup;
+import com.vmware.apputils.vim25.PerfCounterCatalog;
+import com.vmware.apputils.vim25.PerfSamples;
 import com.vmware.vim25.ArrayOfPerfInterval;
 import com.vmware.vim25.DynamicProperty;
 import com.vmware.vim25.ManagedObjectReference;
 import com.vmware.vim25.ObjectContent;
 import com.vmware.vim25.ObjectSpec;
 import com.vmware.vim25.PerfCounterInfo;
-import com.vmware.vim25.PerfEntityMetric;
 import com.vmware.vim25.PerfEntityMetricBase;
 import com.vmware.vim25.PerfInterval;
 import com.vmware.vim25.PerfMetricId;
-import com.vmware.vim25.PerfMetricIntSeries;
-import com.vmware.vim25.PerfMetricSeries;
 import com.vmware.vim25.PerfQuerySpec;
-import com.vmware.vim25.PerfSampleInfo;
 import com.vmware.vim25.PerfStatsType;
 import com.vmware.vim25.PerfSummaryType;
 import com.vmware.vim25.PropertyFilterSpec;
 import com.vmware.vim25.PropertySpec;
 import com.vmware.vim25.RetrieveOptions;
 import com.vmware.vim25.RetrieveResult;
-import com.vmware.vim25.SelectionSpec;
 import com.vmware.vim25.ServiceContent;
-import com.vmware.vim25.TraversalSpec;
 import com.vmware.vim25.VimPortType;
 import com.vmware.vim25.VimService;
 
@@ -104,6 +99,7 @@ public class History {
    private static VimService vimService = null;
    private static VimPortType vimPort = null;
    private static ServiceContent serviceContent = null;
+   private static EntityLookup entityLookup = null;
    private static final String SVC_INST_NAME = "ServiceInstance";
    private static final ManagedObjectReference SVC_INST_REF =
          new ManagedObjectReference();
@@ -208,6 +204,7 @@ public class History {
       vimPort.login(serviceContent.getSessionManager(), userName, password,
             null);
       isConnected = true;
+      entityLookup = new EntityLookup(vimPort, serviceContent);
 
       propCollector = serviceContent.getPropertyCollector();
       rootFolder = serviceContent.getRootFolder();
@@ -233,8 +230,6 @@ public class History {
 
    private static String hostname = null;
    private static String groupname = null;
-   private static Map<String, Map<String, ArrayList<PerfCounterInfo>>> pci =
-         new HashMap<String, Map<String, ArrayList<PerfCounterInfo>>>();
    private static ManagedObjectReference perfManager;
    private static int duration = 0;
    private static int starttime = 0;
@@ -408,58 +403,6 @@ public class History {
       return pciArr;
    }
 
-   /**
-    * 
-    * @return TraversalSpec specification to get to the HostSystem managed
-    *         object.
-    */
-   private static TraversalSpec getHostSystemTraversalSpec() {
-      // Create a traversal spec that starts from the 'root' objects
-      // and traverses the inventory tree to get to the Host system.
-      // Build the traversal specs bottoms up
-      SelectionSpec ss = new SelectionSpec();
-      ss.setName("VisitFolders");
-
-      // Traversal to get to the host from ComputeResource
-      TraversalSpec computeResourceToHostSystem = new TraversalSpec();
-      computeResourceToHostSystem.setName("computeResourceToHostSystem");
-      computeResourceToHostSystem.setType("ComputeResource");
-      computeResourceToHostSystem.setPath("host");
-      computeResourceToHostSystem.setSkip(false);
-      computeResourceToHostSystem.getSelectSet().add(ss);
-
-      // Traversal to get to the ComputeResource from hostFolder
-      TraversalSpec hostFolderToComputeResource = new TraversalSpec();
-      hostFolderToComputeResource.setName("hostFolderToComputeResource");
-      hostFolderToComputeResource.setType("Folder");
-      hostFolderToComputeResource.setPath("childEntity");
-      hostFolderToComputeResource.setSkip(false);
-      hostFolderToComputeResource.getSelectSet().add(ss);
-
-      // Traversal to get to the hostFolder from DataCenter
-      TraversalSpec dataCenterToHostFolder = new TraversalSpec();
-      dataCenterToHostFolder.setName("DataCenterToHostFolder");
-      dataCenterToHostFolder.setType("Datacenter");
-      dataCenterToHostFolder.setPath("hostFolder");
-      dataCenterToHostFolder.setSkip(false);
-      dataCenterToHostFolder.getSelectSet().add(ss);
-
-      //TraversalSpec to get to the DataCenter from rootFolder
-      TraversalSpec traversalSpec = new TraversalSpec();
-      traversalSpec.setName("VisitFolders");
-      traversalSpec.setType("Folder");
-      traversalSpec.setPath("childEntity");
-      traversalSpec.setSkip(false);
-
-      List<SelectionSpec> sSpecArr = new ArrayList<SelectionSpec>();
-      sSpecArr.add(ss);
-      sSpecArr.add(dataCenterToHostFolder);
-      sSpecArr.add(hostFolderToComputeResource);
-      sSpecArr.add(computeResourceToHostSystem);
-      traversalSpec.getSelectSet().addAll(sSpecArr);
-      return traversalSpec;
-   }
-
    /**
     * Retrieves the MOREF of the host.
     * 
@@ -470,50 +413,8 @@ public class History {
    private static ManagedObjectReference getHostByHostName(String hostName) {
       ManagedObjectReference retVal = null;
       try {
-         TraversalSpec tSpec = getHostSystemTraversalSpec();
-         // Create Property Spec
-         PropertySpec propertySpec = new PropertySpec();
-         propertySpec.setAll(Boolean.FALSE);
-         propertySpec.getPathSet().add("name");
-         propertySpec.setType("HostSystem");
-
-         // Now create Object Spec
-         ObjectSpec objectSpec = new ObjectSpec();
-         objectSpec.setObj(rootFolder);
-         objectSpec.setSkip(Boolean.TRUE);
-         objectSpec.getSelectSet().add(tSpec);
-
-         // Create PropertyFilterSpec using the PropertySpec and ObjectPec
-         // created above.
-         PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
-         propertyFilterSpec.getPropSet().add(propertySpec);
-         propertyFilterSpec.getObjectSet().add(objectSpec);
-         List<PropertyFilterSpec> listPfs =
-               new ArrayList<PropertyFilterSpec>(1);
-         listPfs.add(propertyFilterSpec);
-         List<ObjectContent> oContList = retrievePropertiesAllObjects(listPfs);
-
-         if (oContList != null) {
-            for (ObjectContent oc : oContList) {
-               ManagedObjectReference mr = oc.getObj();
-               String hostnm = null;
-               List<DynamicProperty> listDynamicProps = oc.getPropSet();
-               DynamicProperty[] dps =
-                     listDynamicProps
-                           .toArray(new DynamicProperty[listDynamicProps.size()]);
-               if (dps != null) {
-                  for (DynamicProperty dp : dps) {
-                     hostnm = (String) dp.getVal();
-                  }
-               }
-               if (hostnm != null && hostnm.equals(hostName)) {
-                  retVal = mr;
-                  break;
-               }
-            }
-         } else {
-            System.out.println("The Object Content is Null");
-         }
+         // Indexed by name on the first call, later calls are map lookups
+         retVal = entityLookup.findByName("HostSystem", hostName);
       } catch (SOAPFaultException sfe) {
          printSoapFaultException(sfe);
       } catch (Exception e) {
@@ -528,7 +429,6 @@ public class History {
          System.out.println("Host " + hostname + " not found");
          return;
       }
-      counterInfo(perfManager);
       List<PerfInterval> intervals = getPerfInterval();
 
       // Integer interval = new Integer(Integer.parseInt(interval));
@@ -615,6 +515,8 @@ public class History {
          qSpec.getMetricId().addAll(
                Arrays.asList(new PerfMetricId[] { ourCounter }));
          qSpec.setIntervalId(Integer.valueOf(interval));
+         // Parsed straight into primitive arrays by PerfSamples
+         qSpec.setFormat("csv");
          qSpecs.add(qSpec);
 
          List<PerfQuerySpec> alpqs = new ArrayList<PerfQuerySpec>(1);
@@ -653,117 +555,16 @@ public class History {
       return flag;
    }
 
-   /**
-    * This method initializes all the performance counters available on the
-    * system it is connected to. The performance counters are stored in the
-    * hashmap counters with group.counter.rolluptype being the key and id being
-    * the value.
-    */
-   private static List<PerfCounterInfo> getPerfCounters() {
-
-      List<PerfCounterInfo> pciArr = null;
-      try {
-         // Create Property Spec
-         PropertySpec propertySpec = new PropertySpec();
-         propertySpec.setAll(Boolean.FALSE);
-         propertySpec.getPathSet().add("perfCounter");
-         propertySpec.setType("PerformanceManager");
-         List<PropertySpec> propertySpecs = new ArrayList<PropertySpec>();
-         propertySpecs.add(propertySpec);
-
-         // Now create Object Spec
-         ObjectSpec objectSpec = new ObjectSpec();
-         objectSpec.setObj(perfManager);
-
-         List<ObjectSpec> objectSpecs = new ArrayList<ObjectSpec>();
-         objectSpecs.add(objectSpec);
-
-         // Create PropertyFilterSpec using the PropertySpec and ObjectPec
-         // created above.
-         PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
-         propertyFilterSpec.getPropSet().add(propertySpec);
-         propertyFilterSpec.getObjectSet().add(objectSpec);
-
-         List<PropertyFilterSpec> propertyFilterSpecs =
-               new ArrayList<PropertyFilterSpec>();
-         propertyFilterSpecs.add(propertyFilterSpec);
-
-         List<PropertyFilterSpec> listpfs =
-               new ArrayList<PropertyFilterSpec>(1);
-         listpfs.add(propertyFilterSpec);
-         List<ObjectContent> listocont = retrievePropertiesAllObjects(listpfs);
-
-         if (listocont != null) {
-            for (ObjectContent oc : listocont) {
-               List<DynamicProperty> dps = oc.getPropSet();
-               if (dps != null) {
-                  for (DynamicProperty dp : dps) {
-                     List<PerfCounterInfo> pcinfolist =
-                           ((ArrayOfPerfCounterInfo) dp.getVal())
-                                 .getPerfCounterInfo();
-                     pciArr = pcinfolist;
-                  }
-               }
-            }
-         }
-      } catch (SOAPFaultException sfe) {
-         printSoapFaultException(sfe);
-      } catch (Exception e) {
-         e.printStackTrace();
-      }
-      return pciArr;
-   }
-
-   private static void counterInfo(ManagedObjectReference pmRef)
-         throws Exception {
-      List<PerfCounterInfo> cInfos = getPerfCounters();
-      for (int i = 0; i < cInfos.size(); ++i) {
-         PerfCounterInfo cInfo = cInfos.get(i);
-         String group = cInfo.getGroupInfo().getKey();
-         Map<String, ArrayList<PerfCounterInfo>> nameMap = null;
-         if (!pci.containsKey(group)) {
-            nameMap = new HashMap<String, ArrayList<PerfCounterInfo>>();
-            pci.put(group, nameMap);
-         } else {
-            nameMap = pci.get(group);
-         }
-         String name = cInfo.getNameInfo().getKey();
-         ArrayList<PerfCounterInfo> counters = null;
-         if (!nameMap.containsKey(name)) {
-            counters = new ArrayList<PerfCounterInfo>();
-            nameMap.put(name, counters);
-         } else {
-            counters = nameMap.get(name);
-         }
-         counters.add(cInfo);
-      }
-
-   }
-
-   private static ArrayList<PerfCounterInfo> getCounterInfos(String groupName,
-         String counterName) {
-      Map<String, ArrayList<PerfCounterInfo>> nameMap = pci.get(groupName);
-      if (nameMap != null) {
-         ArrayList<PerfCounterInfo> ret = nameMap.get(counterName);
-         if (ret != null) {
-            return ret;
-         }
-      }
-      return null;
-   }
-
    private static PerfCounterInfo getCounterInfo(String groupName,
          String counterName, PerfSummaryType rollupType, PerfStatsType statsType) {
-      ArrayList<PerfCounterInfo> counters =
-            getCounterInfos(groupName, counterName);
-      if (counters != null) {
-         for (Iterator<?> i = counters.iterator(); i.hasNext();) {
-            PerfCounterInfo pci = (PerfCounterInfo) i.next();
-            if ((statsType == null || statsType.equals(pci.getStatsType()))
-                  && (rollupType == null || rollupType.equals(pci
-                        .getRollupType()))) {
-               return pci;
-            }
+      List<PerfCounterInfo> counters =
+            PerfCounterCatalog.getInstance(vimPort, serviceContent)
+                  .getCounters(groupName, counterName);
+      for (PerfCounterInfo pci : counters) {
+         if ((statsType == null || statsType.equals(pci.getStatsType()))
+               && (rollupType == null || rollupType.equals(pci
+                     .getRollupType()))) {
+            return pci;
          }
       }
       return null;
@@ -772,40 +573,29 @@ public class History {
    private static void displayValues(List<PerfEntityMetricBase> values,
          PerfCounterInfo pci, PerfMetricId pmid, Integer inter) {
       for (int i = 0; i < values.size(); ++i) {
-         List<PerfMetricSeries> listperfmetser =
-               ((PerfEntityMetric) values.get(i)).getValue();
-         List<PerfSampleInfo> listperfsinfo =
-               ((PerfEntityMetric) values.get(i)).getSampleInfo();
-         if (listperfsinfo == null || listperfsinfo.size() == 0) {
+         PerfSamples samples = PerfSamples.from(values.get(i));
+         if (samples.getSampleCount() == 0) {
             System.out.println("No Samples available. Continuing.");
             continue;
          }
          System.out.println("Sample time range: "
-               + listperfsinfo.get(0).getTimestamp().toGregorianCalendar()
-                     .getTime().toString()
+               + new Date(samples.getTimestamp(0)).toString()
                + " - "
-               + (listperfsinfo.get(listperfsinfo.size() - 1)).getTimestamp()
-                     .toGregorianCalendar().getTime().toString()
-               + ", read every " + inter + " seconds");
-         for (int vi = 0; vi < listperfmetser.size(); ++vi) {
+               + new Date(samples.getTimestamp(samples.getSampleCount() - 1))
+                     .toString() + ", read every " + inter + " seconds");
+         for (int vi = 0; vi < samples.getSeriesCount(); ++vi) {
             if (pci != null) {
-               if (pci.getKey() != listperfmetser.get(vi).getId()
-                     .getCounterId()) {
+               if (pci.getKey() != samples.getCounterId(vi)) {
                   continue;
                }
                System.out.println(pci.getNameInfo().getSummary()
                      + " - Instance: " + pmid.getInstance());
             }
-            if (listperfmetser.get(vi) instanceof PerfMetricIntSeries) {
-               PerfMetricIntSeries val =
-                     (PerfMetricIntSeries) listperfmetser.get(vi);
-               List<Long> listlongs = val.getValue();
-               for (int j = 0; j < listlongs.size(); j++) {
-                  System.out.println("timestamp: "
-                        + listperfsinfo.get(j).getTimestamp()
-                              .toGregorianCalendar().getTime() + "\tvalue: "
-                        + listlongs.get(j));
-               }
+            long[] series = samples.getValues(vi);
+            for (int j = 0; j < series.length; j++) {
+               System.out.println("timestamp: "
+                     + new Date(samples.getTimestamp(j)) + "\tvalue: "
+                     + series[j]);
             }
          }
       }
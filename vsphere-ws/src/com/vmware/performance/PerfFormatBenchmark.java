@@ -0,0 +1,322 @@
+package com.vmware.performance;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.datatype.DatatypeFactory;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+
+import com.vmware.apputils.vim25.PerfSamples;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfEntityMetricCSV;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfMetricIntSeries;
+import com.vmware.vim25.PerfMetricSeries;
+import com.vmware.vim25.PerfMetricSeriesCSV;
+import com.vmware.vim25.PerfSampleInfo;
+
+/**
+ * <pre>
+ * PerfFormatBenchmark
+ *
+ * This sample compares the cost of ingesting QueryPerf results in the
+ * "normal" format (PerfEntityMetric with boxed PerfMetricIntSeries values)
+ * with the "csv" format parsed by PerfSamples into primitive arrays.
+ *
+ * No server is needed: synthetic results are marshalled with the vim25 JAXB
+ * bindings once, then each iteration unmarshals them again, the way the web
+ * service client does, and reads every value and timestamp. The time spent
+ * and the bytes allocated per iteration are printed for both paths.
+ *
+ * <b>Parameters:</b>
+ * entities     [optional] : number of entities, default 100
+ * samples      [optional] : samples per series, default 180 (one hour of
+ *                           real-time statistics)
+ * counters     [optional] : series per entity, default 10
+ * iterations   [optional] : measured iterations, default 20
+ *
+ * <b>Command Line:</b>
+ * run.bat com.vmware.performance.PerfFormatBenchmark
+ * --entities 500 --samples 180 --counters 10 --iterations 20
+ * </pre>
+ */
+public class PerfFormatBenchmark {
+
+   private static final String VIM25_NAMESPACE = "urn:vim25";
+   private static final int WARMUP_ITERATIONS = 5;
+
+   private static int entities = 100;
+   private static int samples = 180;
+   private static int counters = 10;
+   private static int iterations = 20;
+   private static boolean help = false;
+
+   private static JAXBContext jaxbContext;
+
+   // get input parameters to run the sample
+   private static void getInputParameters(String[] args) {
+      int ai = 0;
+      String param = "";
+      String val = "";
+      while (ai < args.length) {
+         param = args[ai].trim();
+         if (ai + 1 < args.length) {
+            val = args[ai + 1].trim();
+         }
+         if (param.equalsIgnoreCase("--help")) {
+            help = true;
+            break;
+         } else if (param.equalsIgnoreCase("--entities")
+               && !val.startsWith("--") && !val.isEmpty()) {
+            entities = Integer.parseInt(val);
+         } else if (param.equalsIgnoreCase("--samples")
+               && !val.startsWith("--") && !val.isEmpty()) {
+            samples = Integer.parseInt(val);
+         } else if (param.equalsIgnoreCase("--counters")
+               && !val.startsWith("--") && !val.isEmpty()) {
+            counters = Integer.parseInt(val);
+         } else if (param.equalsIgnoreCase("--iterations")
+               && !val.startsWith("--") && !val.isEmpty()) {
+            iterations = Integer.parseInt(val);
+         }
+         val = "";
+         ai += 2;
+      }
+      if (entities < 1 || samples < 1 || counters < 1 || iterations < 1) {
+         throw new IllegalArgumentException(
+               "Expected positive --entities, --samples, --counters "
+                     + "and --iterations values.");
+      }
+   }
+
+   /*
+    * Builds the same statistics in both formats and returns their marshalled
+    * form: index 0 holds the normal documents, index 1 the csv documents.
+    */
+   private static List<List<byte[]>> buildDocuments() throws Exception {
+      DatatypeFactory dtf = DatatypeFactory.newInstance();
+      GregorianCalendar start =
+            new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+      start.setTimeInMillis(1000000000000L);
+
+      List<byte[]> normal = new ArrayList<byte[]>(entities);
+      List<byte[]> csv = new ArrayList<byte[]>(entities);
+      for (int e = 0; e < entities; ++e) {
+         ManagedObjectReference vm = new ManagedObjectReference();
+         vm.setType("VirtualMachine");
+         vm.setValue("vm-" + e);
+
+         PerfEntityMetric metric = new PerfEntityMetric();
+         metric.setEntity(vm);
+         PerfEntityMetricCSV csvMetric = new PerfEntityMetricCSV();
+         csvMetric.setEntity(vm);
+
+         StringBuilder sampleInfo = new StringBuilder();
+         for (int s = 0; s < samples; ++s) {
+            GregorianCalendar time = (GregorianCalendar) start.clone();
+            time.setTimeInMillis(start.getTimeInMillis() + s * 20000L);
+            PerfSampleInfo info = new PerfSampleInfo();
+            info.setInterval(20);
+            info.setTimestamp(dtf.newXMLGregorianCalendar(time));
+            metric.getSampleInfo().add(info);
+            if (s > 0) {
+               sampleInfo.append(',');
+            }
+            sampleInfo.append(20).append(',')
+                  .append(info.getTimestamp().toXMLFormat());
+         }
+         csvMetric.setSampleInfoCSV(sampleInfo.toString());
+
+         for (int c = 0; c < counters; ++c) {
+            PerfMetricId id = new PerfMetricId();
+            id.setCounterId(c + 1);
+            id.setInstance("");
+            PerfMetricIntSeries series = new PerfMetricIntSeries();
+            series.setId(id);
+            PerfMetricSeriesCSV csvSeries = new PerfMetricSeriesCSV();
+            csvSeries.setId(id);
+            StringBuilder values = new StringBuilder();
+            for (int s = 0; s < samples; ++s) {
+               long value = (e * 7919L + c * 104729L + s * 31L) % 100000L;
+               series.getValue().add(Long.valueOf(value));
+               if (s > 0) {
+                  values.append(',');
+               }
+               values.append(value);
+            }
+            csvSeries.setValue(values.toString());
+            metric.getValue().add(series);
+            csvMetric.getValue().add(csvSeries);
+         }
+         normal.add(marshal(metric, PerfEntityMetric.class));
+         csv.add(marshal(csvMetric, PerfEntityMetricCSV.class));
+      }
+      List<List<byte[]>> documents = new ArrayList<List<byte[]>>(2);
+      documents.add(normal);
+      documents.add(csv);
+      return documents;
+   }
+
+   private static <T> byte[] marshal(T value, Class<T> clazz)
+         throws Exception {
+      Marshaller marshaller = jaxbContext.createMarshaller();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      marshaller.marshal(new JAXBElement<T>(new QName(VIM25_NAMESPACE,
+            "returnval"), clazz, value), out);
+      return out.toByteArray();
+   }
+
+   /*
+    * The normal path: boxed values and XMLGregorianCalendar timestamps.
+    */
+   private static long ingestNormal(List<byte[]> documents) throws Exception {
+      Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+      long checksum = 0;
+      for (byte[] document : documents) {
+         PerfEntityMetric metric =
+               unmarshaller.unmarshal(
+                     new StreamSource(new ByteArrayInputStream(document)),
+                     PerfEntityMetric.class).getValue();
+         for (PerfSampleInfo info : metric.getSampleInfo()) {
+            checksum +=
+                  info.getTimestamp().toGregorianCalendar().getTimeInMillis();
+         }
+         for (PerfMetricSeries series : metric.getValue()) {
+            for (Long value : ((PerfMetricIntSeries) series).getValue()) {
+               checksum += value;
+            }
+         }
+      }
+      return checksum;
+   }
+
+   /*
+    * The csv path: one string per series, parsed into long[].
+    */
+   private static long ingestCsv(List<byte[]> documents) throws Exception {
+      Unmarshaller unmarshaller = jaxbContext.createUnmarshaller();
+      long checksum = 0;
+      for (byte[] document : documents) {
+         PerfEntityMetricCSV metric =
+               unmarshaller.unmarshal(
+                     new StreamSource(new ByteArrayInputStream(document)),
+                     PerfEntityMetricCSV.class).getValue();
+         PerfSamples parsed = PerfSamples.parse(metric);
+         for (long timestamp : parsed.getTimestamps()) {
+            checksum += timestamp;
+         }
+         for (int s = 0; s < parsed.getSeriesCount(); ++s) {
+            for (long value : parsed.getValues(s)) {
+               checksum += value;
+            }
+         }
+      }
+      return checksum;
+   }
+
+   private static long allocatedBytes() {
+      ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      if (threads instanceof com.sun.management.ThreadMXBean) {
+         return ((com.sun.management.ThreadMXBean) threads)
+               .getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+      return -1;
+   }
+
+   private static long[] measure(List<byte[]> documents, boolean csv)
+         throws Exception {
+      long checksum = 0;
+      for (int i = 0; i < WARMUP_ITERATIONS; ++i) {
+         checksum = csv ? ingestCsv(documents) : ingestNormal(documents);
+      }
+      long allocatedBefore = allocatedBytes();
+      long startNanos = System.nanoTime();
+      for (int i = 0; i < iterations; ++i) {
+         checksum = csv ? ingestCsv(documents) : ingestNormal(documents);
+      }
+      long elapsedNanos = System.nanoTime() - startNanos;
+      long allocated =
+            allocatedBefore < 0 ? -1 : allocatedBytes() - allocatedBefore;
+      return new long[] { elapsedNanos / iterations,
+            allocated < 0 ? -1 : allocated / iterations, checksum };
+   }
+
+   private static long size(List<byte[]> documents) {
+      long total = 0;
+      for (byte[] document : documents) {
+         total += document.length;
+      }
+      return total;
+   }
+
+   private static void print(String name, long bytes, long[] result) {
+      System.out.println(name + "\t" + (bytes / 1024) + " KB\t"
+            + (result[0] / 1000000.0) + " ms\t"
+            + (result[1] < 0 ? "n/a" : (result[1] / 1024) + " KB"));
+   }
+
+   private static void runBenchmark() throws Exception {
+      jaxbContext =
+            JAXBContext.newInstance(PerfEntityMetric.class,
+                  PerfEntityMetricCSV.class);
+      List<List<byte[]>> documents = buildDocuments();
+      System.out.println(entities + " entities, " + counters + " series of "
+            + samples + " samples each, " + iterations + " iterations");
+
+      long[] normal = measure(documents.get(0), false);
+      long[] csv = measure(documents.get(1), true);
+      if (normal[2] != csv[2]) {
+         throw new RuntimeException("Checksum mismatch: " + normal[2]
+               + " != " + csv[2]);
+      }
+      System.out.println("Format\tXML size\tTime/iteration\tAllocated/iteration");
+      print("normal", size(documents.get(0)), normal);
+      print("csv", size(documents.get(1)), csv);
+   }
+
+   private static void printUsage() {
+      System.out.println("This sample compares ingesting performance "
+            + "statistics in normal and csv format.");
+      System.out.println("\nParameters:");
+      System.out.println("entities     [optional] : number of entities, "
+            + "default 100");
+      System.out.println("samples      [optional] : samples per series, "
+            + "default 180");
+      System.out.println("counters     [optional] : series per entity, "
+            + "default 10");
+      System.out.println("iterations   [optional] : measured iterations, "
+            + "default 20");
+      System.out.println("\nCommand:");
+      System.out.println("run.bat com.vmware.performance.PerfFormatBenchmark");
+      System.out
+            .println("--entities 500 --samples 180 --counters 10 --iterations 20");
+   }
+
+   public static void main(String[] args) {
+      try {
+         getInputParameters(args);
+         if (help) {
+            printUsage();
+            return;
+         }
+         runBenchmark();
+      } catch (IllegalArgumentException e) {
+         System.out.println(e.getMessage());
+         printUsage();
+      } catch (Exception e) {
+         e.printStackTrace();
+      }
+   }
+}
@@ -21,7 +21,7 @@ import javax.net.ssl.SSLSession;
 import javax.xml.ws.BindingProvider;
 import javax.xml.ws.soap.SOAPFaultException;
 
-import com.vmware.vim25.ArrayOfPerfCounterInfo;
+import com.vmware.apputils.vim25.PerfCounterCatalog;
 import com.vmware.vim25.DynamicProperty;
 import com.vmware.vim25.ElementDescription;
 import com.vmware.vim25.InvalidPropertyFaultMsg;
@@ -32,8 +32,6 @@ import com.vmware.vim25.PerfCounterInfo;
 import com.vmware.vim25.PerfMetricId;
 import com.vmware.vim25.PropertyFilterSpec;
 import com.vmware.vim25.PropertySpec;
-import com.vmware.vim25.RetrieveOptions;
-import com.vmware.vim25.RetrieveResult;
 import com.vmware.vim25.RuntimeFaultFaultMsg;
 import com.vmware.vim25.ServiceContent;
 import com.vmware.vim25.TraversalSpec;
@@ -309,54 +307,6 @@ public class PrintCounters {
       return tgtMoref;
    }
 
-   /**
-    * Uses the new RetrievePropertiesEx method to emulate the now deprecated
-    * RetrieveProperties method.
-    * 
-    * @param listpfs
-    * @return list of object content
-    * @throws Exception
-    */
-   private static List<ObjectContent> retrievePropertiesAllObjects(
-         List<PropertyFilterSpec> listpfs) throws Exception {
-
-      RetrieveOptions propObjectRetrieveOpts = new RetrieveOptions();
-
-      List<ObjectContent> listobjcontent = new ArrayList<ObjectContent>();
-
-      try {
-         RetrieveResult rslts =
-               vimPort.retrievePropertiesEx(propCollectorRef, listpfs,
-                     propObjectRetrieveOpts);
-         if (rslts != null && rslts.getObjects() != null
-               && !rslts.getObjects().isEmpty()) {
-            listobjcontent.addAll(rslts.getObjects());
-         }
-         String token = null;
-         if (rslts != null && rslts.getToken() != null) {
-            token = rslts.getToken();
-         }
-         while (token != null && !token.isEmpty()) {
-            rslts =
-                  vimPort.continueRetrievePropertiesEx(propCollectorRef, token);
-            token = null;
-            if (rslts != null) {
-               token = rslts.getToken();
-               if (rslts.getObjects() != null && !rslts.getObjects().isEmpty()) {
-                  listobjcontent.addAll(rslts.getObjects());
-               }
-            }
-         }
-      } catch (SOAPFaultException sfe) {
-         printSoapFaultException(sfe);
-      } catch (Exception e) {
-         System.out.println(" : Failed Getting Contents");
-         e.printStackTrace();
-      }
-
-      return listobjcontent;
-   }
-
    private static void printCounters() throws Exception {
       String entityType = entitytype;
 
@@ -381,47 +331,10 @@ public class PrintCounters {
    private static List<PerfCounterInfo> getPerfCounters() {
       List<PerfCounterInfo> pciArr = null;
       try {
-         // Create Property Spec
-         PropertySpec propertySpec = new PropertySpec();
-         propertySpec.setAll(Boolean.FALSE);
-         propertySpec.getPathSet().add("perfCounter");
-         propertySpec.setType("PerformanceManager");
-         List<PropertySpec> propertySpecs = new ArrayList<PropertySpec>();
-         propertySpecs.add(propertySpec);
-
-         // Now create Object Spec
-         ObjectSpec objectSpec = new ObjectSpec();
-         objectSpec.setObj(perfManager);
-         List<ObjectSpec> objectSpecs = new ArrayList<ObjectSpec>();
-         objectSpecs.add(objectSpec);
-
-         // Create PropertyFilterSpec using the PropertySpec and ObjectPec
-         // created above.
-         PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
-         propertyFilterSpec.getPropSet().add(propertySpec);
-         propertyFilterSpec.getObjectSet().add(objectSpec);
-         List<PropertyFilterSpec> propertyFilterSpecs =
-               new ArrayList<PropertyFilterSpec>();
-         propertyFilterSpecs.add(propertyFilterSpec);
-         List<PropertyFilterSpec> listpfs =
-               new ArrayList<PropertyFilterSpec>(1);
-         listpfs.add(propertyFilterSpec);
-         List<ObjectContent> listobjcont =
-               retrievePropertiesAllObjects(listpfs);
-
-         if (listobjcont != null) {
-            for (ObjectContent oc : listobjcont) {
-               List<DynamicProperty> dps = oc.getPropSet();
-               if (dps != null) {
-                  for (DynamicProperty dp : dps) {
-                     List<PerfCounterInfo> pcinfolist =
-                           ((ArrayOfPerfCounterInfo) dp.getVal())
-                                 .getPerfCounterInfo();
-                     pciArr = pcinfolist;
-                  }
-               }
-            }
-         }
+         // Retrieved once per vCenter and cached, see PerfCounterCatalog
+         pciArr =
+               PerfCounterCatalog.getInstance(vimPort, serviceContent)
+                     .getCounters();
       } catch (SOAPFaultException sfe) {
          printSoapFaultException(sfe);
       } catch (Exception e) {
@@ -3,39 +3,27 @@ package com.vmware.performance;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSession;
-import javax.xml.ws.BindingProvider;
 import javax.xml.ws.soap.SOAPFaultException;
 
-import com.vmware.vim25.ArrayOfPerfCounterInfo;
-import com.vmware.vim25.DynamicProperty;
+import com.vmware.apputils.vim25.EntityLookup;
+import com.vmware.apputils.vim25.PerfCollector;
+import com.vmware.apputils.vim25.PerfCounterCatalog;
+import com.vmware.apputils.vim25.PerfSamples;
+import com.vmware.apputils.vim25.ServiceConnection;
+import com.vmware.apputils.vim25.ServiceConnectionPool;
 import com.vmware.vim25.ManagedObjectReference;
-import com.vmware.vim25.ObjectContent;
-import com.vmware.vim25.ObjectSpec;
 import com.vmware.vim25.PerfCounterInfo;
-import com.vmware.vim25.PerfEntityMetric;
 import com.vmware.vim25.PerfEntityMetricBase;
 import com.vmware.vim25.PerfMetricId;
-import com.vmware.vim25.PerfMetricIntSeries;
-import com.vmware.vim25.PerfMetricSeries;
-import com.vmware.vim25.PerfQuerySpec;
-import com.vmware.vim25.PerfSampleInfo;
-import com.vmware.vim25.PropertyFilterSpec;
-import com.vmware.vim25.PropertySpec;
-import com.vmware.vim25.RetrieveOptions;
-import com.vmware.vim25.RetrieveResult;
-import com.vmware.vim25.SelectionSpec;
 import com.vmware.vim25.ServiceContent;
-import com.vmware.vim25.TraversalSpec;
 import com.vmware.vim25.VimPortType;
-import com.vmware.vim25.VimService;
 
 /**
  * <pre>
@@ -58,37 +46,11 @@ import com.vmware.vim25.VimService;
  */
 public class RealTime {
 
-   private static class TrustAllTrustManager implements
-         javax.net.ssl.TrustManager, javax.net.ssl.X509TrustManager {
-
-      @Override
-      public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-         return null;
-      }
-
-      @Override
-      public void checkServerTrusted(
-            java.security.cert.X509Certificate[] certs, String authType)
-            throws java.security.cert.CertificateException {
-         return;
-      }
-
-      @Override
-      public void checkClientTrusted(
-            java.security.cert.X509Certificate[] certs, String authType)
-            throws java.security.cert.CertificateException {
-         return;
-      }
-   }
-
-   private static final ManagedObjectReference SVC_INST_REF =
-         new ManagedObjectReference();
-   private static final String SVC_INST_NAME = "ServiceInstance";
-
    private static ManagedObjectReference propCollectorRef;
-   private static VimService vimService;
+   private static ServiceConnection connection = null;
    private static VimPortType vimPort;
    private static ServiceContent serviceContent;
+   private static EntityLookup entityLookup = null;
    private static Boolean isConnected = false;
 
    private static String url;
@@ -98,20 +60,6 @@ public class RealTime {
    private static ManagedObjectReference perfManager;
    private static String virtualmachinename;
 
-   private static void trustAllHttpsCertificates() throws Exception {
-      // Create a trust manager that does not validate certificate chains:
-      javax.net.ssl.TrustManager[] trustAllCerts =
-            new javax.net.ssl.TrustManager[1];
-      javax.net.ssl.TrustManager tm = new TrustAllTrustManager();
-      trustAllCerts[0] = tm;
-      javax.net.ssl.SSLContext sc = javax.net.ssl.SSLContext.getInstance("SSL");
-      javax.net.ssl.SSLSessionContext sslsc = sc.getServerSessionContext();
-      sslsc.setSessionTimeout(0);
-      sc.init(null, trustAllCerts, null);
-      HttpsURLConnection.setDefaultSSLSocketFactory(sc
-            .getSocketFactory());
-   }
-
    // get common parameters
    private static void getConnectionParameters(String[] args)
          throws IllegalArgumentException {
@@ -175,30 +123,13 @@ public class RealTime {
     */
    private static void connect() throws Exception {
 
-      HostnameVerifier hv = new HostnameVerifier() {
-         @Override
-         public boolean verify(String urlHostName, SSLSession session) {
-            return true;
-         }
-      };
-      trustAllHttpsCertificates();
-      HttpsURLConnection.setDefaultHostnameVerifier(hv);
-
-      SVC_INST_REF.setType(SVC_INST_NAME);
-      SVC_INST_REF.setValue(SVC_INST_NAME);
-
-      vimService = new VimService();
-      vimPort = vimService.getVimPort();
-      Map<String, Object> ctxt =
-            ((BindingProvider) vimPort).getRequestContext();
-
-      ctxt.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, url);
-      ctxt.put(BindingProvider.SESSION_MAINTAIN_PROPERTY, true);
-
-      serviceContent = vimPort.retrieveServiceContent(SVC_INST_REF);
-      vimPort.login(serviceContent.getSessionManager(), userName, password,
-            null);
+      connection =
+            ServiceConnectionPool.getInstance().getConnection(url, userName,
+                  password);
+      vimPort = connection.getVimPort();
+      serviceContent = connection.getServiceContent();
       isConnected = true;
+      entityLookup = new EntityLookup(vimPort, serviceContent);
 
       propCollectorRef = serviceContent.getPropertyCollector();
       perfManager = serviceContent.getPerfManager();
@@ -211,86 +142,33 @@ public class RealTime {
     */
    private static void disconnect() throws Exception {
       if (isConnected) {
-         vimPort.logout(serviceContent.getSessionManager());
+         ServiceConnectionPool.getInstance().close(connection);
       }
       isConnected = false;
    }
 
-   /**
-    * Uses the new RetrievePropertiesEx method to emulate the now deprecated
-    * RetrieveProperties method.
-    * 
-    * @param listpfs
-    * @return list of object content
-    * @throws Exception
-    */
-   private static List<ObjectContent> retrievePropertiesAllObjects(
-         List<PropertyFilterSpec> listpfs) throws Exception {
-
-      RetrieveOptions propObjectRetrieveOpts = new RetrieveOptions();
-
-      List<ObjectContent> listobjcontent = new ArrayList<ObjectContent>();
-
-      try {
-         RetrieveResult rslts =
-               vimPort.retrievePropertiesEx(propCollectorRef, listpfs,
-                     propObjectRetrieveOpts);
-         if (rslts != null && rslts.getObjects() != null
-               && !rslts.getObjects().isEmpty()) {
-            listobjcontent.addAll(rslts.getObjects());
-         }
-         String token = null;
-         if (rslts != null && rslts.getToken() != null) {
-            token = rslts.getToken();
-         }
-         while (token != null && !token.isEmpty()) {
-            rslts =
-                  vimPort.continueRetrievePropertiesEx(propCollectorRef, token);
-            token = null;
-            if (rslts != null) {
-               token = rslts.getToken();
-               if (rslts.getObjects() != null && !rslts.getObjects().isEmpty()) {
-                  listobjcontent.addAll(rslts.getObjects());
-               }
-            }
-         }
-      } catch (SOAPFaultException sfe) {
-         printSoapFaultException(sfe);
-      } catch (Exception e) {
-         System.out.println(" : Failed Getting Contents");
-         e.printStackTrace();
-      }
-
-      return listobjcontent;
-   }
-
    private static void displayValues(List<PerfEntityMetricBase> values,
          Map<Integer, PerfCounterInfo> counters) {
 
       for (int i = 0; i < values.size(); ++i) {
-         List<PerfMetricSeries> listpems =
-               ((PerfEntityMetric) values.get(i)).getValue();
-         List<PerfSampleInfo> listinfo =
-               ((PerfEntityMetric) values.get(i)).getSampleInfo();
-
+         PerfSamples samples = PerfSamples.from(values.get(i));
+         if (samples.getSampleCount() == 0) {
+            continue;
+         }
          System.out.println("Sample time range: "
-               + listinfo.get(0).getTimestamp().toString() + " - "
-               + listinfo.get(listinfo.size() - 1).getTimestamp().toString());
-         for (int vi = 0; vi < listpems.size(); ++vi) {
+               + new Date(samples.getTimestamp(0)) + " - "
+               + new Date(samples.getTimestamp(samples.getSampleCount() - 1)));
+         for (int vi = 0; vi < samples.getSeriesCount(); ++vi) {
             PerfCounterInfo pci =
-                  counters.get(new Integer(listpems.get(vi).getId()
-                        .getCounterId()));
+                  counters.get(new Integer(samples.getCounterId(vi)));
             if (pci != null) {
                System.out.println(pci.getNameInfo().getSummary());
             }
-            if (listpems.get(vi) instanceof PerfMetricIntSeries) {
-               PerfMetricIntSeries val = (PerfMetricIntSeries) listpems.get(vi);
-               List<Long> lislon = val.getValue();
-               for (Long k : lislon) {
-                  System.out.print(k + " ");
-               }
-               System.out.println();
+            long[] series = samples.getValues(vi);
+            for (int k = 0; k < series.length; ++k) {
+               System.out.print(series[k] + " ");
             }
+            System.out.println();
          }
       }
    }
@@ -305,49 +183,10 @@ public class RealTime {
       List<PerfCounterInfo> pciArr = null;
 
       try {
-         // Create Property Spec
-         PropertySpec propertySpec = new PropertySpec();
-         propertySpec.setAll(Boolean.FALSE);
-         propertySpec.getPathSet().add("perfCounter");
-         propertySpec.setType("PerformanceManager");
-         List<PropertySpec> propertySpecs = new ArrayList<PropertySpec>();
-         propertySpecs.add(propertySpec);
-
-         // Now create Object Spec
-         ObjectSpec objectSpec = new ObjectSpec();
-         objectSpec.setObj(perfManager);
-         List<ObjectSpec> objectSpecs = new ArrayList<ObjectSpec>();
-         objectSpecs.add(objectSpec);
-
-         // Create PropertyFilterSpec using the PropertySpec and ObjectPec
-         // created above.
-         PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
-         propertyFilterSpec.getPropSet().add(propertySpec);
-         propertyFilterSpec.getObjectSet().add(objectSpec);
-
-         List<PropertyFilterSpec> propertyFilterSpecs =
-               new ArrayList<PropertyFilterSpec>();
-         propertyFilterSpecs.add(propertyFilterSpec);
-
-         List<PropertyFilterSpec> listpfs =
-               new ArrayList<PropertyFilterSpec>(1);
-         listpfs.add(propertyFilterSpec);
-         List<ObjectContent> listobjcont =
-               retrievePropertiesAllObjects(listpfs);
-
-         if (listobjcont != null) {
-            for (ObjectContent oc : listobjcont) {
-               List<DynamicProperty> dps = oc.getPropSet();
-               if (dps != null) {
-                  for (DynamicProperty dp : dps) {
-                     List<PerfCounterInfo> pcinfolist =
-                           ((ArrayOfPerfCounterInfo) dp.getVal())
-                                 .getPerfCounterInfo();
-                     pciArr = pcinfolist;
-                  }
-               }
-            }
-         }
+         // Retrieved once per vCenter and cached, see PerfCounterCatalog
+         pciArr =
+               PerfCounterCatalog.getInstance(vimPort, serviceContent)
+                     .getCounters();
       } catch (SOAPFaultException sfe) {
          printSoapFaultException(sfe);
       } catch (Exception e) {
@@ -356,66 +195,6 @@ public class RealTime {
       return pciArr;
    }
 
-   /**
-    * 
-    * @return TraversalSpec specification to get to the VirtualMachine managed
-    *         object.
-    */
-   private static TraversalSpec getVMTraversalSpec() {
-      // Create a traversal spec that starts from the 'root' objects
-      // and traverses the inventory tree to get to the VirtualMachines.
-      // Build the traversal specs bottoms up
-
-      // Traversal to get to the VM in a VApp
-      TraversalSpec vAppToVM = new TraversalSpec();
-      vAppToVM.setName("vAppToVM");
-      vAppToVM.setType("VirtualApp");
-      vAppToVM.setPath("vm");
-
-      // Traversal spec for VApp to VApp
-      TraversalSpec vAppToVApp = new TraversalSpec();
-      vAppToVApp.setName("vAppToVApp");
-      vAppToVApp.setType("VirtualApp");
-      vAppToVApp.setPath("resourcePool");
-      // SelectionSpec for VApp to VApp recursion
-      SelectionSpec vAppRecursion = new SelectionSpec();
-      vAppRecursion.setName("vAppToVApp");
-      // SelectionSpec to get to a VM in the VApp
-      SelectionSpec vmInVApp = new SelectionSpec();
-      vmInVApp.setName("vAppToVM");
-      // SelectionSpec for both VApp to VApp and VApp to VM
-      List<SelectionSpec> vAppToVMSS = new ArrayList<SelectionSpec>();
-      vAppToVMSS.add(vAppRecursion);
-      vAppToVMSS.add(vmInVApp);
-      vAppToVApp.getSelectSet().addAll(vAppToVMSS);
-
-      // This SelectionSpec is used for recursion for Folder recursion
-      SelectionSpec sSpec = new SelectionSpec();
-      sSpec.setName("VisitFolders");
-
-      // Traversal to get to the vmFolder from DataCenter
-      TraversalSpec dataCenterToVMFolder = new TraversalSpec();
-      dataCenterToVMFolder.setName("DataCenterToVMFolder");
-      dataCenterToVMFolder.setType("Datacenter");
-      dataCenterToVMFolder.setPath("vmFolder");
-      dataCenterToVMFolder.setSkip(false);
-      dataCenterToVMFolder.getSelectSet().add(sSpec);
-
-      // TraversalSpec to get to the DataCenter from rootFolder
-      TraversalSpec traversalSpec = new TraversalSpec();
-      traversalSpec.setName("VisitFolders");
-      traversalSpec.setType("Folder");
-      traversalSpec.setPath("childEntity");
-      traversalSpec.setSkip(false);
-      List<SelectionSpec> sSpecArr = new ArrayList<SelectionSpec>();
-      sSpecArr.add(sSpec);
-      sSpecArr.add(dataCenterToVMFolder);
-      sSpecArr.add(vAppToVM);
-      sSpecArr.add(vAppToVApp);
-      traversalSpec.getSelectSet().addAll(sSpecArr);
-      return traversalSpec;
-   }
-
    /**
     * Get the MOR of the Virtual Machine by its name.
     * 
@@ -425,49 +204,9 @@ public class RealTime {
     */
    private static ManagedObjectReference getVmByVMname(String vmName) {
       ManagedObjectReference retVal = null;
-      ManagedObjectReference rootFolder = serviceContent.getRootFolder();
       try {
-         TraversalSpec tSpec = getVMTraversalSpec();
-         // Create Property Spec
-         PropertySpec propertySpec = new PropertySpec();
-         propertySpec.setAll(Boolean.FALSE);
-         propertySpec.getPathSet().add("name");
-         propertySpec.setType("VirtualMachine");
-
-         // Now create Object Spec
-         ObjectSpec objectSpec = new ObjectSpec();
-         objectSpec.setObj(rootFolder);
-         objectSpec.setSkip(Boolean.TRUE);
-         objectSpec.getSelectSet().add(tSpec);
-
-         // Create PropertyFilterSpec using the PropertySpec and ObjectPec
-         // created above.
-         PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
-         propertyFilterSpec.getPropSet().add(propertySpec);
-         propertyFilterSpec.getObjectSet().add(objectSpec);
-
-         List<PropertyFilterSpec> listpfs =
-               new ArrayList<PropertyFilterSpec>(1);
-         listpfs.add(propertyFilterSpec);
-         List<ObjectContent> listobjcont =
-               retrievePropertiesAllObjects(listpfs);
-
-         if (listobjcont != null) {
-            for (ObjectContent oc : listobjcont) {
-               ManagedObjectReference mr = oc.getObj();
-               String vmnm = null;
-               List<DynamicProperty> dps = oc.getPropSet();
-               if (dps != null) {
-                  for (DynamicProperty dp : dps) {
-                     vmnm = (String) dp.getVal();
-                  }
-               }
-               if (vmnm != null && vmnm.equals(vmName)) {
-                  retVal = mr;
-                  break;
-               }
-            }
-         }
+         // Indexed by name on the first call, later calls are map lookups
+         retVal = entityLookup.findByName("VirtualMachine", vmName);
       } catch (SOAPFaultException sfe) {
          printSoapFaultException(sfe);
       } catch (Exception e) {
@@ -534,6 +273,9 @@ public class RealTime {
    }
 
    /**
+    * Prints the new samples of the VM every real-time interval. The VM is
+    * queried through {@link PerfCollector}, which only asks for samples newer
+    * than the last one printed.
     * 
     * @param pmRef
     * @param vmRef
@@ -543,23 +285,30 @@ public class RealTime {
     */
    private static void monitorPerformance(ManagedObjectReference pmRef,
          ManagedObjectReference vmRef, List<PerfMetricId> mMetrics,
-         Map<Integer, PerfCounterInfo> counters) throws Exception {
-      PerfQuerySpec qSpec = new PerfQuerySpec();
-      qSpec.setEntity(vmRef);
-      qSpec.setMaxSample(new Integer(10));
-      qSpec.getMetricId().addAll(mMetrics);
-      qSpec.setIntervalId(new Integer(20));
-
-      List<PerfQuerySpec> qSpecs = new ArrayList<PerfQuerySpec>();
-      qSpecs.add(qSpec);
-      while (true) {
-         List<PerfEntityMetricBase> listpemb = vimPort.queryPerf(pmRef, qSpecs);
-         List<PerfEntityMetricBase> pValues = listpemb;
-         if (pValues != null) {
-            displayValues(pValues, counters);
-         }
-         System.out.println("Sleeping 10 seconds...");
-         Thread.sleep(10 * 1000);
+         final Map<Integer, PerfCounterInfo> counters) throws Exception {
+      PerfCollector collector =
+            new PerfCollector(vimPort, pmRef, mMetrics,
+                  new PerfCollector.Sink() {
+                     @Override
+                     public void metrics(List<PerfEntityMetricBase> pValues) {
+                        displayValues(pValues, counters);
+                     }
+
+                     @Override
+                     public void failed(
+                           List<ManagedObjectReference> entities, Throwable t) {
+                        System.out.println("Failed to query performance - "
+                              + t.getMessage());
+                     }
+                  });
+      collector.setInitialMaxSample(10);
+      collector.setFormat(PerfCollector.CSV_FORMAT);
+      try {
+         System.out.println("Collecting every "
+               + PerfCollector.REAL_TIME_INTERVAL + " seconds...");
+         collector.run(Collections.singletonList(vmRef));
+      } finally {
+         collector.close();
       }
    }
 
@@ -21,6 +21,7 @@ import javax.xml.datatype.XMLGregorianCalendar;
 import javax.xml.ws.BindingProvider;
 import javax.xml.ws.soap.SOAPFaultException;
 
+import com.vmware.apputils.vim25.PerfCounterCatalog;
 import com.vmware.performance.widgets.StatsTable;
 import com.vmware.vim25.DynamicProperty;
 import com.vmware.vim25.InvalidPropertyFaultMsg;
@@ -444,14 +445,9 @@ public class VITop {
    }
 
    private static PerfCounterInfo getCounterInfo(
-         List<PerfCounterInfo> counterInfo, String groupName, String counterName) {
-      for (PerfCounterInfo info : counterInfo) {
-         if (info.getGroupInfo().getKey().equals(groupName)
-               && info.getNameInfo().getKey().equals(counterName)) {
-            return info;
-         }
-      }
-      return null;
+         PerfCounterCatalog catalog, String groupName, String counterName) {
+      List<PerfCounterInfo> rollups = catalog.getCounters(groupName, counterName);
+      return rollups.isEmpty() ? null : rollups.get(0);
    }
 
    /**
@@ -622,16 +618,15 @@ public class VITop {
          return;
       }
 
-      @SuppressWarnings("unchecked")
-      List<PerfCounterInfo> props =
-            (List<PerfCounterInfo>) getDynamicProperty(perfManager,
-                  "perfCounter");
+      // Retrieved once per vCenter and cached
+      PerfCounterCatalog catalog =
+            PerfCounterCatalog.getInstance(vimPort, serviceContent);
 
       List<PerfMetricId> midVector = new ArrayList<PerfMetricId>();
       List<String> statNames = new ArrayList<String>();
       for (int i = 0; i < statsList.length; i++) {
          PerfCounterInfo counterInfo =
-               getCounterInfo(props, statsList[i][0], statsList[i][1]);
+               getCounterInfo(catalog, statsList[i][0], statsList[i][1]);
          if (counterInfo == null) {
             System.out.println("Warning: Unable to find stat "
                   + statsList[i][0] + " " + statsList[i][1]);
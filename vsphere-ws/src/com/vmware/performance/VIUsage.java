@@ -9,7 +9,6 @@ import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -29,6 +28,7 @@ import javax.xml.datatype.XMLGregorianCalendar;
 import javax.xml.ws.BindingProvider;
 import javax.xml.ws.soap.SOAPFaultException;
 
+import com.vmware.apputils.vim25.PerfCounterCatalog;
 import com.vmware.performance.widgets.LineChart;
 import com.vmware.vim25.DynamicProperty;
 import com.vmware.vim25.ManagedObjectReference;
@@ -615,35 +615,25 @@ public class VIUsage implements ActionListener {
       }
    }
 
-   @SuppressWarnings("unchecked")
    private void updateChart() throws DatatypeConfigurationException {
-      List<PerfCounterInfo> counterInfoList = new ArrayList<PerfCounterInfo>();
+      // Retrieved once per vCenter, later interval changes are map lookups
+      PerfCounterCatalog catalog = null;
       try {
-         counterInfoList =
-               (List<PerfCounterInfo>) getDynamicProperty(perfManager,
-                     "perfCounter");
+         catalog = PerfCounterCatalog.getInstance(vimPort, serviceContent);
       } catch (SOAPFaultException sfe) {
          printSoapFaultException(sfe);
+         return;
       } catch (Exception x) {
          System.out.println("Error in getting perfCounter property: " + x);
          return;
       }
-      if (counterInfoList != null && !counterInfoList.isEmpty()) {
-         Map<String, PerfCounterInfo> counterMap =
-               new HashMap<String, PerfCounterInfo>();
-         for (PerfCounterInfo counterInfo : counterInfoList) {
-            String group = counterInfo.getGroupInfo().getKey();
-            String counter = counterInfo.getNameInfo().getKey();
-            String rollup = counterInfo.getRollupType().value();
-            String key = group + "." + counter + "." + rollup;
-            counterMap.put(key, counterInfo);
-         }
-
+      List<PerfCounterInfo> counterInfoList = catalog.getCounters();
+      if (!counterInfoList.isEmpty()) {
          List<PerfMetricId> metricIds = new ArrayList<PerfMetricId>();
          String[] statNames = new String[1];
          String key = stats;
-         if (counterMap.containsKey(key)) {
-            PerfCounterInfo counterInfo = counterMap.get(key);
+         if (catalog.getCounter(key) != null) {
+            PerfCounterInfo counterInfo = catalog.getCounter(key);
             statNames[0] = counterInfo.getNameInfo().getLabel();
             String instance = "";
             PerfMetricId pmfids = new PerfMetricId();
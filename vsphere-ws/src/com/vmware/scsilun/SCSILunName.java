@@ -1,8 +1,12 @@
 package com.vmware.scsilun;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -77,6 +81,22 @@ public class SCSILunName {
       }
    }
 
+   /*
+    * One VMFS extent on a SCSI LUN, with the datastore it belongs to and the
+    * virtual machines on that datastore.
+    */
+   private static class LunExtent {
+      private final int partition;
+      private final String datastore;
+      private final List<String> vms;
+
+      private LunExtent(int partition, String datastore, List<String> vms) {
+         this.partition = partition;
+         this.datastore = datastore;
+         this.vms = vms;
+      }
+   }
+
    /* Start Server Connection and common code */
    private static VimService vimService = null;
    private static VimPortType vimPort = null;
@@ -88,6 +108,13 @@ public class SCSILunName {
    private static ManagedObjectReference propCollectorRef = null;
    private static ManagedObjectReference host = null;
 
+   /*
+   Storage topology of the host, see buildLunIndex()
+   */
+   private static List<ScsiLun> scsiLuns = new ArrayList<ScsiLun>();
+   private static Map<String, List<LunExtent>> lunIndex =
+         new HashMap<String, List<LunExtent>>();
+
    /*
    Connection input parameters
    */
@@ -380,263 +407,152 @@ public class SCSILunName {
    }
 
    /*
-    * @return An array of SelectionSpec covering VM, Host, Resource pool,
-    * Cluster Compute Resource and Datastore.
+    * Retrieves the SCSI LUNs of the host, the info and the virtual machines
+    * of its datastores and the names of those virtual machines with a single
+    * RetrievePropertiesEx, and indexes them as LUN -> extent -> datastore ->
+    * virtual machines.
     */
-   private static List<SelectionSpec> buildFullTraversal() {
-      // Terminal traversal specs
-
-      // RP -> VM
-      TraversalSpec rpToVm = new TraversalSpec();
-      rpToVm.setName("rpToVm");
-      rpToVm.setType("ResourcePool");
-      rpToVm.setPath("vm");
-      rpToVm.setSkip(Boolean.FALSE);
-
-      // vApp -> VM
-      TraversalSpec vAppToVM = new TraversalSpec();
-      vAppToVM.setName("vAppToVM");
-      vAppToVM.setType("VirtualApp");
-      vAppToVM.setPath("vm");
-
-      // HostSystem -> VM
-      TraversalSpec hToVm = new TraversalSpec();
-      hToVm.setType("HostSystem");
-      hToVm.setPath("vm");
-      hToVm.setName("hToVm");
-      hToVm.getSelectSet().add(getSelectionSpec("VisitFolders"));
-      hToVm.setSkip(Boolean.FALSE);
-
-      // DC -> DS
-      TraversalSpec dcToDs = new TraversalSpec();
-      dcToDs.setType("Datacenter");
-      dcToDs.setPath("datastore");
-      dcToDs.setName("dcToDs");
-      dcToDs.setSkip(Boolean.FALSE);
-
-      // Recurse through all ResourcePools
-      TraversalSpec rpToRp = new TraversalSpec();
-      rpToRp.setType("ResourcePool");
-      rpToRp.setPath("resourcePool");
-      rpToRp.setSkip(Boolean.FALSE);
-      rpToRp.setName("rpToRp");
-      rpToRp.getSelectSet().add(getSelectionSpec("rpToRp"));
-
-      TraversalSpec crToRp = new TraversalSpec();
-      crToRp.setType("ComputeResource");
-      crToRp.setPath("resourcePool");
-      crToRp.setSkip(Boolean.FALSE);
-      crToRp.setName("crToRp");
-      crToRp.getSelectSet().add(getSelectionSpec("rpToRp"));
-
-      TraversalSpec crToH = new TraversalSpec();
-      crToH.setSkip(Boolean.FALSE);
-      crToH.setType("ComputeResource");
-      crToH.setPath("host");
-      crToH.setName("crToH");
-
-      TraversalSpec dcToHf = new TraversalSpec();
-      dcToHf.setSkip(Boolean.FALSE);
-      dcToHf.setType("Datacenter");
-      dcToHf.setPath("hostFolder");
-      dcToHf.setName("dcToHf");
-      dcToHf.getSelectSet().add(getSelectionSpec("VisitFolders"));
-
-      TraversalSpec vAppToRp = new TraversalSpec();
-      vAppToRp.setName("vAppToRp");
-      vAppToRp.setType("VirtualApp");
-      vAppToRp.setPath("resourcePool");
-      vAppToRp.getSelectSet().add(getSelectionSpec("rpToRp"));
-
-      TraversalSpec dcToVmf = new TraversalSpec();
-      dcToVmf.setType("Datacenter");
-      dcToVmf.setSkip(Boolean.FALSE);
-      dcToVmf.setPath("vmFolder");
-      dcToVmf.setName("dcToVmf");
-      dcToVmf.getSelectSet().add(getSelectionSpec("VisitFolders"));
-
-      // For Folder -> Folder recursion
-      TraversalSpec visitFolders = new TraversalSpec();
-      visitFolders.setType("Folder");
-      visitFolders.setPath("childEntity");
-      visitFolders.setSkip(Boolean.FALSE);
-      visitFolders.setName("VisitFolders");
-      List<SelectionSpec> sspecarrvf = new ArrayList<SelectionSpec>();
-      sspecarrvf.add(getSelectionSpec("crToRp"));
-      sspecarrvf.add(getSelectionSpec("crToH"));
-      sspecarrvf.add(getSelectionSpec("dcToVmf"));
-      sspecarrvf.add(getSelectionSpec("dcToHf"));
-      sspecarrvf.add(getSelectionSpec("vAppToRp"));
-      sspecarrvf.add(getSelectionSpec("vAppToVM"));
-      sspecarrvf.add(getSelectionSpec("dcToDs"));
-      sspecarrvf.add(getSelectionSpec("hToVm"));
-      sspecarrvf.add(getSelectionSpec("rpToVm"));
-      sspecarrvf.add(getSelectionSpec("VisitFolders"));
-
-      visitFolders.getSelectSet().addAll(sspecarrvf);
-
-      List<SelectionSpec> resultspec = new ArrayList<SelectionSpec>();
-      resultspec.add(visitFolders);
-      resultspec.add(crToRp);
-      resultspec.add(crToH);
-      resultspec.add(dcToVmf);
-      resultspec.add(dcToHf);
-      resultspec.add(vAppToRp);
-      resultspec.add(vAppToVM);
-      resultspec.add(dcToDs);
-      resultspec.add(hToVm);
-      resultspec.add(rpToVm);
-      resultspec.add(rpToRp);
-
-      return resultspec;
-   }
-
-   private static SelectionSpec getSelectionSpec(String name) {
-      SelectionSpec genericSpec = new SelectionSpec();
-      genericSpec.setName(name);
-      return genericSpec;
-   }
-
-   private static List<DynamicProperty> getDynamicPropArray(
-         ManagedObjectReference ref, String type, String propertyString)
-         throws Exception {
+   private static void buildLunIndex() throws Exception {
+      // Datastore -> VM
+      TraversalSpec dsToVm = new TraversalSpec();
+      dsToVm.setName("dsToVm");
+      dsToVm.setType("Datastore");
+      dsToVm.setPath("vm");
+      dsToVm.setSkip(Boolean.FALSE);
+
+      // HostSystem -> Datastore
+      TraversalSpec hToDs = new TraversalSpec();
+      hToDs.setName("hToDs");
+      hToDs.setType("HostSystem");
+      hToDs.setPath("datastore");
+      hToDs.setSkip(Boolean.FALSE);
+      hToDs.getSelectSet().add(dsToVm);
+
+      PropertySpec hostSpec = new PropertySpec();
+      hostSpec.setType("HostSystem");
+      hostSpec.getPathSet().add("config.storageDevice.scsiLun");
+      PropertySpec dsSpec = new PropertySpec();
+      dsSpec.setType("Datastore");
+      dsSpec.getPathSet().add("info");
+      dsSpec.getPathSet().add("vm");
+      PropertySpec vmSpec = new PropertySpec();
+      vmSpec.setType("VirtualMachine");
+      vmSpec.getPathSet().add("name");
 
-      PropertySpec propertySpec = new PropertySpec();
-      propertySpec.setAll(Boolean.FALSE);
-      propertySpec.getPathSet().add(propertyString);
-      propertySpec.setType(type);
-
-      // Now create Object Spec
       ObjectSpec objectSpec = new ObjectSpec();
-      objectSpec.setObj(ref);
+      objectSpec.setObj(host);
       objectSpec.setSkip(Boolean.FALSE);
-      objectSpec.getSelectSet().addAll(buildFullTraversal());
-      // Create PropertyFilterSpec using the PropertySpec and ObjectPec
-      // created above.
+      objectSpec.getSelectSet().add(hToDs);
+
       PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
-      propertyFilterSpec.getPropSet().add(propertySpec);
+      propertyFilterSpec.getPropSet().add(hostSpec);
+      propertyFilterSpec.getPropSet().add(dsSpec);
+      propertyFilterSpec.getPropSet().add(vmSpec);
       propertyFilterSpec.getObjectSet().add(objectSpec);
       List<PropertyFilterSpec> listpfs = new ArrayList<PropertyFilterSpec>(1);
       listpfs.add(propertyFilterSpec);
       List<ObjectContent> listobjcont = retrievePropertiesAllObjects(listpfs);
-      ObjectContent contentObj = listobjcont.get(0);
-      List<DynamicProperty> objList = contentObj.getPropSet();
-      return objList;
+
+      // The objects arrive in any order, so collect first and link after
+      Map<String, String> vmNames = new HashMap<String, String>();
+      Map<String, VmfsDatastoreInfo> dsInfos =
+            new LinkedHashMap<String, VmfsDatastoreInfo>();
+      Map<String, List<ManagedObjectReference>> dsVms =
+            new HashMap<String, List<ManagedObjectReference>>();
+      for (ObjectContent oc : listobjcont) {
+         String type = oc.getObj().getType();
+         String key = oc.getObj().getValue();
+         for (DynamicProperty dp : oc.getPropSet()) {
+            Object val = dp.getVal();
+            if (type.equals("HostSystem")) {
+               scsiLuns = ((ArrayOfScsiLun) val).getScsiLun();
+            } else if (type.equals("VirtualMachine")) {
+               vmNames.put(key, (String) val);
+            } else if (dp.getName().equals("info")) {
+               if (val instanceof VmfsDatastoreInfo) {
+                  dsInfos.put(key, (VmfsDatastoreInfo) val);
+               }
+            } else if (dp.getName().equals("vm")) {
+               dsVms.put(key,
+                     ((ArrayOfManagedObjectReference) val)
+                           .getManagedObjectReference());
+            }
+         }
+      }
+
+      for (Map.Entry<String, VmfsDatastoreInfo> entry : dsInfos.entrySet()) {
+         VmfsDatastoreInfo vds = entry.getValue();
+         List<String> vms = new ArrayList<String>();
+         List<ManagedObjectReference> vmRefs = dsVms.get(entry.getKey());
+         if (vmRefs != null) {
+            for (ManagedObjectReference vmRef : vmRefs) {
+               String vmName = vmNames.get(vmRef.getValue());
+               if (vmName != null) {
+                  vms.add(vmName);
+               }
+            }
+         }
+         HostVmfsVolume hvms = vds.getVmfs();
+         if (hvms == null) {
+            continue;
+         }
+         for (HostScsiDiskPartition hdp : hvms.getExtent()) {
+            List<LunExtent> extents = lunIndex.get(hdp.getDiskName());
+            if (extents == null) {
+               extents = new ArrayList<LunExtent>();
+               lunIndex.put(hdp.getDiskName(), extents);
+            }
+            extents.add(new LunExtent(hdp.getPartition(), vds.getName(), vms));
+         }
+      }
    }
 
    /*
     * This subroutine prints the virtual machine file
     * system volumes affected by the given SCSI LUN.
-    * @param  hmor      A HostSystem object of the given host.
     * @param canName    Canonical name of the SCSI logical unit
     */
-   private static void getVMFS(ManagedObjectReference hmor, String canName)
-         throws Exception {
-      List<DynamicProperty> dsArr =
-            getDynamicPropArray(host, "HostSystem", "datastore");
-      ArrayOfManagedObjectReference ds =
-            ((ArrayOfManagedObjectReference) (dsArr.get(0)).getVal());
-      List<ManagedObjectReference> dataStoresMOR =
-            ds.getManagedObjectReference();
-      boolean vmfsFlag = false;
-      try {
-         for (int j = 0; j < dataStoresMOR.size(); j++) {
-            List<DynamicProperty> infoArr =
-                  getDynamicPropArray(dataStoresMOR.get(j), "Datastore", "info");
-            String infoClass = infoArr.get(0).getVal().getClass().toString();
-            if (infoClass.equals("class com.vmware.vim.VmfsDatastoreInfo")) {
-               VmfsDatastoreInfo vds =
-                     (VmfsDatastoreInfo) infoArr.get(0).getVal();
-               HostVmfsVolume hvms = vds.getVmfs();
-               String vmfsName = vds.getName();
-               List<HostScsiDiskPartition> hdp = hvms.getExtent();
-               for (int k = 0; k < hdp.size(); k++) {
-                  if (hdp.get(k).getDiskName().equals(canName)) {
-                     vmfsFlag = true;
-                     System.out.println(" " + vmfsName + "\n");
-                  }
-               }
-            }
-         }
-         if (!vmfsFlag) {
-            System.out.println(" None\n");
+   private static void getVMFS(String canName) {
+      List<LunExtent> extents = lunIndex.get(canName);
+      if (extents == null) {
+         System.out.println(" None\n");
+         return;
+      }
+      Set<String> printed = new HashSet<String>();
+      for (LunExtent extent : extents) {
+         if (printed.add(extent.datastore)) {
+            System.out.println(" " + extent.datastore + " (partition "
+                  + extent.partition + ")\n");
          }
-      } catch (SOAPFaultException sfe) {
-         printSoapFaultException(sfe);
-      } catch (Exception e) {
-         System.out.println("error" + e);
-         e.printStackTrace();
       }
    }
 
    /*
     *This subroutine prints the virtual machine
     *affected by the given SCSI LUN.
-    *@param  hmor      ManagedObjectReference of the host
     *@param  canName   Canonical name of the SCSI logical unit
     */
-   private static void getVMs(ManagedObjectReference hmor, String canName)
-         throws Exception {
-      List<DynamicProperty> dsArr =
-            getDynamicPropArray(host, "HostSystem", "datastore");
-      ArrayOfManagedObjectReference ds =
-            ((ArrayOfManagedObjectReference) (dsArr.get(0)).getVal());
-      List<ManagedObjectReference> dataStoresMOR =
-            ds.getManagedObjectReference();
-      boolean vmfsFlag = false;
-      try {
-         for (int j = 0; j < dataStoresMOR.size(); j++) {
-            List<DynamicProperty> infoArr =
-                  getDynamicPropArray(dataStoresMOR.get(j), "Datastore", "info");
-            String infoClass = infoArr.get(0).getVal().getClass().toString();
-            if (infoClass.equals("class com.vmware.vim.VmfsDatastoreInfo")) {
-               VmfsDatastoreInfo vds =
-                     (VmfsDatastoreInfo) infoArr.get(0).getVal();
-               HostVmfsVolume hvms = vds.getVmfs();
-               List<HostScsiDiskPartition> hdp = hvms.getExtent();
-               for (int k = 0; k < hdp.size(); k++) {
-                  if (hdp.get(k).getDiskName().equals(canName)) {
-                     List<DynamicProperty> vmArr =
-                           getDynamicPropArray(dataStoresMOR.get(j),
-                                 "Datastore", "vm");
-                     ArrayOfManagedObjectReference vms =
-                           ((ArrayOfManagedObjectReference) vmArr.get(0)
-                                 .getVal());
-                     List<ManagedObjectReference> vmsMOR =
-                           vms.getManagedObjectReference();
-                     if (vmsMOR != null) {
-                        for (int l = 0; l < vmsMOR.size(); l++) {
-                           vmfsFlag = true;
-                           List<DynamicProperty> nameArr =
-                                 getDynamicPropArray(vmsMOR.get(l),
-                                       "VirtualMachine", "name");
-                           String vmname = nameArr.get(0).getVal().toString();
-                           System.out.println(" " + vmname);
-                        }
-                     }
-                  }
+   private static void getVMs(String canName) {
+      List<LunExtent> extents = lunIndex.get(canName);
+      Set<String> printed = new HashSet<String>();
+      if (extents != null) {
+         for (LunExtent extent : extents) {
+            for (String vmname : extent.vms) {
+               if (printed.add(vmname)) {
+                  System.out.println(" " + vmname);
                }
             }
          }
-         if (!vmfsFlag) {
-            System.out.println(" None\n");
-         }
-      } catch (SOAPFaultException sfe) {
-         printSoapFaultException(sfe);
-      } catch (Exception e) {
-         System.out.println("error" + e);
-         e.printStackTrace();
+      }
+      if (printed.isEmpty()) {
+         System.out.println(" None\n");
       }
    }
 
    private static void printLunInfo() {
       try {
-         List<DynamicProperty> scsiArry =
-               getDynamicPropArray(host, "HostSystem",
-                     "config.storageDevice.scsiLun");
-         ArrayOfScsiLun scsiLUNarr =
-               ((ArrayOfScsiLun) (scsiArry.get(0)).getVal());
-         List<ScsiLun> scsiLun = scsiLUNarr.getScsiLun();
+         buildLunIndex();
+         List<ScsiLun> scsiLun = scsiLuns;
          if (scsiLun != null && scsiLun.size() > 0) {
             for (int j = 0; j < scsiLun.size(); j++) {
                System.out.println("\nSCSI LUN " + (j + 1));
@@ -656,9 +572,9 @@ public class SCSILunName {
                   System.out.println("Namespace       : " + namespace);
                   System.out.println("Namespace ID    : " + namespaceId);
                   System.out.println("\nVMFS Affected ");
-                  getVMFS(host, canName);
+                  getVMFS(canName);
                   System.out.println("Virtual Machines ");
-                  getVMs(host, canName);
+                  getVMs(canName);
                } else {
                   System.out
                         .println("\nDurable name for "
@@ -1,6 +1,7 @@
 package com.vmware.security.credstore;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -37,6 +38,18 @@ public interface CredentialStore {
    boolean addPassword(String host, String username, char[] password)
          throws IOException;
 
+   /**
+    * Stores several passwords at once, holding the lock on the store only
+    * once and writing it only once. Existing passwords are overwritten.
+    * 
+    * @param passwords
+    *           maps each host to a map of username to password
+    * @return the number of host and username pairs that did not already have
+    *         a password
+    */
+   int addPasswords(Map<String, Map<String, char[]>> passwords)
+         throws IOException;
+
    /**
     * Removes the password for a given host and username. If no such password
     * exists, this method has no effect.
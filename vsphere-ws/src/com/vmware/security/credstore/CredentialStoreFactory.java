@@ -44,4 +44,29 @@ public class CredentialStoreFactory {
          throws IOException {
       return new CredentialStoreImpl(file);
    }
+
+   /**
+    * Returns the default credential store, keeping its entries in memory.
+    * 
+    * @see #getCachedCredentialStore(File)
+    */
+   public static CredentialStore getCachedCredentialStore()
+         throws IOException {
+      return new CredentialStoreImpl(null, true);
+   }
+
+   /**
+    * Returns a credential store that keeps its entries in memory between
+    * calls. Every call still takes the file lock, but the file is parsed
+    * again only when its modification time or length changed, so looking up
+    * many passwords costs one parse instead of one per lookup.
+    * 
+    * @param file
+    *           the file to use, or {@code null} to use the default
+    * @return the credential store for the specified file
+    */
+   public static CredentialStore getCachedCredentialStore(File file)
+         throws IOException {
+      return new CredentialStoreImpl(file, true);
+   }
 }
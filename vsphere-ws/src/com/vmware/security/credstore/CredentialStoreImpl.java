@@ -2,6 +2,8 @@ package com.vmware.security.credstore;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -14,6 +16,8 @@ class CredentialStoreImpl implements CredentialStore {
    private String vmwareDirName = ".vmware";
    private String credstoreDirName = "credstore";
    private String credstoreFileName = "vicredentials.xml";
+   private boolean cached;
+   private CredentialStoreStorage storage;
 
    private File getDefaultFilePath() {
       String path;
@@ -47,6 +51,14 @@ class CredentialStoreImpl implements CredentialStore {
    }
 
    public CredentialStoreImpl(File file) {
+      this(file, false);
+   }
+
+   /**
+    * @param cached
+    *           keep one storage with its entries in memory for all calls
+    */
+   public CredentialStoreImpl(File file, boolean cached) {
       synchronized (this) {
          if (file == null) {
             cachePath = getDefaultFilePath();
@@ -55,7 +67,19 @@ class CredentialStoreImpl implements CredentialStore {
             cachePath = file;
             defaultCachePath = false;
          }
+         this.cached = cached;
+      }
+   }
+
+   private CredentialStoreStorage getStorage() throws IOException {
+      if (!cached) {
+         return new CredentialStoreStorage(cachePath, defaultCachePath);
+      }
+      if (storage == null) {
+         storage =
+               new CredentialStoreStorage(cachePath, defaultCachePath, true);
       }
+      return storage;
    }
 
    /**
@@ -65,8 +89,7 @@ class CredentialStoreImpl implements CredentialStore {
     */
    public synchronized char[] getPassword(String host, String username)
          throws IOException {
-      CredentialStoreStorage store =
-            new CredentialStoreStorage(cachePath, defaultCachePath);
+      CredentialStoreStorage store = getStorage();
 
       char[] pwd = store.getPassword(host, username);
 
@@ -85,13 +108,34 @@ class CredentialStoreImpl implements CredentialStore {
     */
    public synchronized boolean addPassword(String host, String username,
          char[] password) throws IOException {
-      CredentialStoreStorage store =
-            new CredentialStoreStorage(cachePath, defaultCachePath);
+      CredentialStoreStorage store = getStorage();
 
       return store.addEntry(host, username,
             CredentialStoreObfuscate.obfuscate(host, username, password));
    }
 
+   /**
+    * Stores several passwords at once, holding the lock on the store only
+    * once and writing it only once. Existing passwords are overwritten.
+    * 
+    * @return the number of host and username pairs that did not already have
+    *         a password
+    */
+   public synchronized int addPasswords(
+         Map<String, Map<String, char[]>> passwords) throws IOException {
+      Map<String, Map<String, char[]>> obfuscated =
+            new HashMap<String, Map<String, char[]>>();
+      for (Map.Entry<String, Map<String, char[]>> host : passwords.entrySet()) {
+         Map<String, char[]> users = new HashMap<String, char[]>();
+         for (Map.Entry<String, char[]> user : host.getValue().entrySet()) {
+            users.put(user.getKey(), CredentialStoreObfuscate.obfuscate(
+                  host.getKey(), user.getKey(), user.getValue()));
+         }
+         obfuscated.put(host.getKey(), users);
+      }
+      return getStorage().addEntries(obfuscated);
+   }
+
    /**
     * Removes the password for a given host and username. If no such password
     * exists, this method has no effect.
@@ -100,8 +144,7 @@ class CredentialStoreImpl implements CredentialStore {
     */
    public synchronized boolean removePassword(String host, String username)
          throws IOException {
-      CredentialStoreStorage store =
-            new CredentialStoreStorage(cachePath, defaultCachePath);
+      CredentialStoreStorage store = getStorage();
 
       return store.deleteEntry(host, username);
    }
@@ -110,8 +153,7 @@ class CredentialStoreImpl implements CredentialStore {
     * Removes all passwords.
     */
    public synchronized void clearPasswords() throws IOException {
-      CredentialStoreStorage store =
-            new CredentialStoreStorage(cachePath, defaultCachePath);
+      CredentialStoreStorage store = getStorage();
 
       store.clearPasswords();
    }
@@ -120,8 +162,7 @@ class CredentialStoreImpl implements CredentialStore {
     * Returns all hosts that have entries in the credential store.
     */
    public synchronized Set<String> getHosts() throws IOException {
-      CredentialStoreStorage store =
-            new CredentialStoreStorage(cachePath, defaultCachePath);
+      CredentialStoreStorage store = getStorage();
 
       return store.getHosts();
    }
@@ -130,8 +171,7 @@ class CredentialStoreImpl implements CredentialStore {
     * Returns all usernames that have passwords stored for a given host.
     */
    public synchronized Set<String> getUsernames(String host) throws IOException {
-      CredentialStoreStorage store =
-            new CredentialStoreStorage(cachePath, defaultCachePath);
+      CredentialStoreStorage store = getStorage();
 
       return store.getUserNames(host);
    }
@@ -142,5 +182,6 @@ class CredentialStoreImpl implements CredentialStore {
     */
    public synchronized void close() {
       cachePath = null;
+      storage = null;
    }
 }
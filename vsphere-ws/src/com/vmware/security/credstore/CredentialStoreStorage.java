@@ -8,10 +8,14 @@ import java.io.RandomAccessFile;
 import java.io.StringWriter;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.zip.CRC32;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -65,8 +69,14 @@ class CredentialStoreStorage {
    private final String usernameTag = "username";
    private final String passwordTag = "password";
 
+   /*
+    * A file modified this close to the time it was read may be modified again
+    * without a visible change of its timestamp, so its contents are compared.
+    */
+   private static final long RACY_MILLIS = 2000;
+
    /**
-    * The Class Key.
+    * The Class Key. Hostnames compare ignoring case, usernames exactly.
     */
    private static class Key implements Comparable<Key> {
       String hostname;
@@ -85,6 +95,20 @@ class CredentialStoreStorage {
          }
          return comp;
       }
+
+      @Override
+      public boolean equals(Object obj) {
+         if (!(obj instanceof Key)) {
+            return false;
+         }
+         return compareTo((Key) obj) == 0;
+      }
+
+      @Override
+      public int hashCode() {
+         return hostname.toLowerCase(Locale.ENGLISH).hashCode() * 31
+               + username.hashCode();
+      }
    }
 
    private Map<Key, String> cacheData;
@@ -93,16 +117,34 @@ class CredentialStoreStorage {
 
    private final File cachePath;
    private final boolean defaultCachePath;
+   private final boolean cached;
    private FileLock lock;
    private RandomAccessFile inoutFile;
 
+   // Timestamp and length of the file when cacheData was read or written
+   private long loadedModified = -1;
+   private long loadedLength = -1;
+   private long loadedAt = 0;
+   private long loadedChecksum = 0;
+
    public CredentialStoreStorage(File path, boolean defaultPath)
          throws IOException {
+      this(path, defaultPath, false);
+   }
+
+   /**
+    * @param cached
+    *           keep the entries between calls and read the file again only
+    *           when its timestamp or length changed
+    */
+   public CredentialStoreStorage(File path, boolean defaultPath,
+         boolean cached) throws IOException {
       if (path == null) {
          throw new IOException("Store not initialised.");
       }
       cachePath = path;
       defaultCachePath = defaultPath;
+      this.cached = cached;
    }
 
    private void getReadLock() throws IOException {
@@ -184,7 +226,10 @@ class CredentialStoreStorage {
          root.appendChild(verNode);
 
          if (cacheData != null) {
-            for (Key key : cacheData.keySet()) {
+            // Entries are written sorted, as they always were
+            for (Map.Entry<Key, String> entry : new TreeMap<Key, String>(
+                  cacheData).entrySet()) {
+               Key key = entry.getKey();
                Element cacheEntry = doc.createElement(cacheEntryTag);
 
                Element hostnameEntry = doc.createElement(hostnameTag);
@@ -196,8 +241,7 @@ class CredentialStoreStorage {
                cacheEntry.appendChild(usernameEntry);
 
                Element passwordEntry = doc.createElement(passwordTag);
-               passwordEntry.appendChild(doc.createTextNode(cacheData
-                     .get(new Key(key.hostname, key.username))));
+               passwordEntry.appendChild(doc.createTextNode(entry.getValue()));
                cacheEntry.appendChild(passwordEntry);
 
                root.appendChild(cacheEntry);
@@ -218,8 +262,13 @@ class CredentialStoreStorage {
          String xmlString = sw.toString();
 
          // Truncate the file else the data will be appended to the existing one.
+         byte[] data = xmlString.getBytes("UTF-8");
          inoutFile.setLength(0);
-         inoutFile.write(xmlString.getBytes("UTF-8"));
+         inoutFile.seek(0);
+         inoutFile.write(data);
+         if (cached) {
+            markLoaded(checksum(data));
+         }
       } catch (ParserConfigurationException e) {
          throw (IOException) new IOException(e.toString()).initCause(e);
       } catch (TransformerConfigurationException e) {
@@ -236,6 +285,7 @@ class CredentialStoreStorage {
          DocumentBuilder domBuilder = domFactory.newDocumentBuilder();
          // Pass the FileInputStreamNoClose object to parse() so that the function
          // do not close the fd, as thats what it will do otherwise.
+         inoutFile.seek(0);
          FileInputStream inStream =
                new FileInputStreamNoClose(inoutFile.getFD());
          Document doc = domBuilder.parse(inStream);
@@ -258,7 +308,7 @@ class CredentialStoreStorage {
          // Load all the cache entries.
          NodeList entryList = doc.getElementsByTagName(cacheEntryTag);
          entryCount = entryList.getLength();
-         cacheData = new TreeMap<Key, String>();
+         cacheData = new HashMap<Key, String>(entryCount * 2);
          for (int i = 0; i < entryCount; ++i) {
             String hostname = null;
             String username = null;
@@ -283,6 +333,9 @@ class CredentialStoreStorage {
             }
             cacheData.put(new Key(hostname, username), password);
          }
+         if (cached) {
+            markLoaded(readChecksum());
+         }
       } catch (ParserConfigurationException e) {
          throw (IOException) new IOException(e.toString()).initCause(e);
       } catch (SAXException e) {
@@ -290,6 +343,47 @@ class CredentialStoreStorage {
       }
    }
 
+   /*
+    * Reads the file unless this is a cached store and the file has not
+    * changed since it was last read or written. A lock must be held.
+    */
+   private void loadCacheIfChanged() throws IOException {
+      if (cached && cacheData != null
+            && cachePath.lastModified() == loadedModified
+            && inoutFile.length() == loadedLength) {
+         if (loadedAt - loadedModified > RACY_MILLIS) {
+            return;
+         }
+         // Far cheaper than parsing the XML again. Once the timestamp is
+         // old enough a later write shows in it, so no need to check again.
+         if (readChecksum() == loadedChecksum) {
+            loadedAt = System.currentTimeMillis();
+            return;
+         }
+      }
+      loadCache();
+   }
+
+   private void markLoaded(long checksum) throws IOException {
+      loadedModified = cachePath.lastModified();
+      loadedLength = inoutFile.length();
+      loadedAt = System.currentTimeMillis();
+      loadedChecksum = checksum;
+   }
+
+   private long readChecksum() throws IOException {
+      byte[] data = new byte[(int) inoutFile.length()];
+      inoutFile.seek(0);
+      inoutFile.readFully(data);
+      return checksum(data);
+   }
+
+   private static long checksum(byte[] data) {
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      return crc.getValue();
+   }
+
    public char[] getPassword(String hostname, String username)
          throws IOException {
       if (cachePath.isDirectory()) {
@@ -303,17 +397,15 @@ class CredentialStoreStorage {
 
       try {
          getReadLock();
-         loadCache();
+         loadCacheIfChanged();
       } finally {
          releaseLock();
       }
 
-      Key compareKey = new Key(hostname, username);
       if (cacheData != null) {
-         for (Key key : cacheData.keySet()) {
-            if (key.compareTo(compareKey) == 0) {
-               return cacheData.get(key).toCharArray();
-            }
+         String password = cacheData.get(new Key(hostname, username));
+         if (password != null) {
+            return password.toCharArray();
          }
       }
 
@@ -334,11 +426,11 @@ class CredentialStoreStorage {
 
       try {
          getWriteLock();
-         loadCache();
+         loadCacheIfChanged();
 
          Key compareKey = new Key(hostname, username);
          if (cacheData != null) {
-            boolean removed = cacheData.keySet().remove(compareKey);
+            boolean removed = cacheData.remove(compareKey) != null;
             if (removed) {
                System.out.println("Removing entry from the credstore...");
                storeCache();
@@ -355,6 +447,22 @@ class CredentialStoreStorage {
 
    public boolean addEntry(String hostname, String username, char[] password)
          throws IOException {
+      Map<String, Map<String, char[]>> entries =
+            new HashMap<String, Map<String, char[]>>();
+      entries.put(hostname, Collections.singletonMap(username, password));
+      return addEntries(entries) == 1;
+   }
+
+   /**
+    * Adds or replaces several entries under one write lock and writes the
+    * file once.
+    *
+    * @param entries
+    *           hostname -> username -> obfuscated password
+    * @return the number of entries that did not exist before
+    */
+   public int addEntries(Map<String, Map<String, char[]>> entries)
+         throws IOException {
       if (cachePath.isDirectory()) {
          throw new IOException(
                "Credentials store file path do not contain filename.");
@@ -399,33 +507,38 @@ class CredentialStoreStorage {
          }
       }
 
+      int added = 0;
       try {
          getWriteLock();
          if (inoutFile.length() > 0) {
             // File was not created above but it already existed and contain some data, so try to read it.
-            loadCache();
+            loadCacheIfChanged();
+         } else {
+            // A cached store must not carry entries over into a new file.
+            cacheData = null;
          }
 
-         if (cacheData != null) {
-            boolean replaced =
-                  cacheData.put(new Key(hostname, username), new String(
-                        password)) != null;
-            storeCache();
-            return !replaced;
-         } else {
-            cacheData = new TreeMap<Key, String>();
+         if (cacheData == null) {
+            cacheData = new HashMap<Key, String>();
             cacheVersion = "1.0";
             entryCount = 0;
          }
 
-         // Add new username, password entry.
-         cacheData.put(new Key(hostname, username), new String(password));
+         for (Map.Entry<String, Map<String, char[]>> host : entries
+               .entrySet()) {
+            for (Map.Entry<String, char[]> user : host.getValue().entrySet()) {
+               if (cacheData.put(new Key(host.getKey(), user.getKey()),
+                     new String(user.getValue())) == null) {
+                  ++added;
+               }
+            }
+         }
 
          storeCache();
       } finally {
          releaseLock();
       }
-      return true;
+      return added;
    }
 
    public void clearPasswords() throws IOException {
@@ -441,7 +554,7 @@ class CredentialStoreStorage {
       try {
          getWriteLock();
          // Set the cache to empty state.
-         cacheData = null;
+         cacheData = new HashMap<Key, String>();
          cacheVersion = "1.0";
          entryCount = 0;
          System.out.println("Clearing all entries from the credstore...");
@@ -463,7 +576,7 @@ class CredentialStoreStorage {
 
       try {
          getReadLock();
-         loadCache();
+         loadCacheIfChanged();
       } finally {
          releaseLock();
       }
@@ -489,7 +602,7 @@ class CredentialStoreStorage {
 
       try {
          getReadLock();
-         loadCache();
+         loadCacheIfChanged();
       } finally {
          releaseLock();
       }
@@ -2,14 +2,11 @@ package com.vmware.vapp;
 
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -24,6 +21,9 @@ import javax.xml.ws.soap.SOAPFaultException;
 
 import org.w3c.dom.Element;
 
+import com.vmware.apputils.vim25.HttpNfcLeaseManager;
+import com.vmware.apputils.vim25.NfcDownloader;
+import com.vmware.apputils.vim25.OvfManifest;
 import com.vmware.vim25.DynamicProperty;
 import com.vmware.vim25.HttpNfcLeaseDeviceUrl;
 import com.vmware.vim25.HttpNfcLeaseInfo;
@@ -58,6 +58,8 @@ import com.vmware.vim25.VimService;
  * 
  * This sample demonstrates OVFManager.
  * Exports VMDK's and OVF Descriptor of all VM's in the vApps
+ * The VMDK's are downloaded concurrently and their digests are computed
+ * while they are written, for the OVF manifest (.mf) of the export
  * 
  * <b>Parameters:</b>
  * username         [required]: username for the authentication
@@ -65,11 +67,13 @@ import com.vmware.vim25.VimService;
  * host             [required]: Name of the host system
  * vapp             [required]: Name of the vapp
  * localpath        [required]: local System Folder path
+ * digest           [optional]: manifest digest, SHA256 (default) or SHA1
  * 
  * <b>Command Line:</b>
  * run.bat com.vmware.httpfileaccess.OVFManagerExportVAPP
  * --url [URLString] --username [username] --password [password]
  * --host [Host name] --vapp [Vapp Name] --localpath [Local Path]
+ * [--digest SHA1]
  * </pre>
  */
 
@@ -111,11 +115,6 @@ public class OVFManagerExportVAPP {
          new HashMap<String, List<String>>();
    private static String cookieValue = "";
 
-   private static volatile long TOTAL_BYTES = 0;
-   private static volatile long TOTAL_BYTES_WRITTEN = 0;
-   private static HttpNfcLeaseExtender leaseExtender;
-   private static boolean vmdkFlag = false;
-
    private static ManagedObjectReference propCollectorRef = null;
 
    /*
@@ -128,6 +127,8 @@ public class OVFManagerExportVAPP {
    private static String host = null;
    private static String vApp = null;
    private static String localpath = null;
+   private static String digestAlgorithm =
+         NfcDownloader.DEFAULT_DIGEST_ALGORITHM;
    private static boolean isConnected = false;
 
    private static void trustAllHttpsCertificates() throws Exception {
@@ -196,6 +197,15 @@ public class OVFManagerExportVAPP {
          } else if (param.equalsIgnoreCase("--localpath")
                && !val.startsWith("--") && !val.isEmpty()) {
             localpath = val;
+         } else if (param.equalsIgnoreCase("--digest")
+               && !val.startsWith("--") && !val.isEmpty()) {
+            if (val.equalsIgnoreCase("SHA1")) {
+               digestAlgorithm = "SHA-1";
+            } else if (val.equalsIgnoreCase("SHA256")) {
+               digestAlgorithm = "SHA-256";
+            } else {
+               throw new IllegalArgumentException("Unsupported digest " + val);
+            }
          }
          val = "";
          ai += 2;
@@ -414,47 +424,6 @@ public class OVFManagerExportVAPP {
       }
    }
 
-   /**
-    * The Class HttpNfcLeaseExtender.
-    */
-   private class HttpNfcLeaseExtender implements Runnable {
-      private ManagedObjectReference httpNfcLease = null;
-
-      public HttpNfcLeaseExtender(ManagedObjectReference mor,
-            VimPortType VIM_PORT) {
-         httpNfcLease = mor;
-         vimPort = VIM_PORT;
-      }
-
-      @Override
-      public void run() {
-         try {
-            System.out.println("---------------------- Thread for "
-                  + "Checking the HTTP NFCLEASE vmdkFlag: " + vmdkFlag
-                  + "----------------------");
-            while (!vmdkFlag) {
-               System.out.println("#### TOTAL_BYTES_WRITTEN "
-                     + TOTAL_BYTES_WRITTEN);
-               System.out.println("#### TOTAL_BYTES " + TOTAL_BYTES);
-               try {
-                  vimPort.httpNfcLeaseProgress(httpNfcLease, 0);
-                  Thread.sleep(290000000);
-               } catch (InterruptedException e) {
-                  System.out
-                        .println("---------------------- Thread interrupted "
-                              + "----------------------");
-               } catch (SOAPFaultException sfe) {
-                  printSoapFaultException(sfe);
-               }
-            }
-         } catch (SOAPFaultException sfe) {
-            printSoapFaultException(sfe);
-         } catch (Exception e) {
-            e.printStackTrace();
-         }
-      }
-   }
-
    private static TraversalSpec getVappTraversalSpec() {
       TraversalSpec dataCenterToVMFolder = new TraversalSpec();
       dataCenterToVMFolder.setName("DataCenterToVMFolder");
@@ -733,49 +702,13 @@ public class OVFManagerExportVAPP {
       }
    }
 
-   private static long writeVMDKFile(String absoluteFile, String urlString)
-         throws Exception {
-      URL urlCon = new URL(urlString);
-      HttpsURLConnection conn = (HttpsURLConnection) urlCon.openConnection();
-
-      conn.setDoInput(true);
-      conn.setDoOutput(true);
-      conn.setAllowUserInteraction(true);
-
-      // Maintain session
+   private static String getSessionCookie() {
       List<String> cookies = headers.get("Set-cookie");
       cookieValue = cookies.get(0);
       StringTokenizer tokenizer = new StringTokenizer(cookieValue, ";");
       cookieValue = tokenizer.nextToken();
       String path = "$" + tokenizer.nextToken();
-      String cookie = "$Version=\"1\"; " + cookieValue + "; " + path;
-
-      // set the cookie in the new request header
-      Map<String, List<String>> map = new HashMap<String, List<String>>();
-      map.put("Cookie", Collections.singletonList(cookie));
-      ((BindingProvider) vimPort).getRequestContext().put(
-            MessageContext.HTTP_REQUEST_HEADERS, map);
-
-      conn.setRequestProperty("Cookie", cookie);
-      conn.setRequestProperty("Content-Type", "application/octet-stream");
-      conn.setRequestProperty("Expect", "100-continue");
-      conn.setRequestMethod("GET");
-      conn.setRequestProperty("Content-Length", "1024");
-
-      InputStream in = conn.getInputStream();
-      String _localpath = localpath + "/" + absoluteFile;
-      OutputStream out = new FileOutputStream(new File(_localpath));
-      byte[] buf = new byte[102400];
-      int len = 0;
-      long written = 0;
-      while ((len = in.read(buf)) > 0) {
-         out.write(buf, 0, len);
-         written = written + len;
-      }
-      System.out.println("   Exported File " + absoluteFile + " : " + written);
-      in.close();
-      out.close();
-      return written;
+      return "$Version=\"1\"; " + cookieValue + "; " + path;
    }
 
    private static void exportVApp() throws Exception {
@@ -816,65 +749,80 @@ public class OVFManagerExportVAPP {
                         (httpNfcLeaseInfo.getTotalDiskCapacityInKB()) * 1024;
                   System.out.println("************ " + diskCapacity);
 
-                  TOTAL_BYTES = diskCapacity;
-                  leaseExtender =
-                        new OVFManagerExportVAPP().new HttpNfcLeaseExtender(
-                              httpNfcLease, vimPort);
-                  Thread t = new Thread(leaseExtender);
-                  t.start();
+                  HttpNfcLeaseManager.Lease lease =
+                        HttpNfcLeaseManager.getDefault().register(vimPort,
+                              httpNfcLease, diskCapacity);
 
                   List<HttpNfcLeaseDeviceUrl> deviceUrlArr =
                         httpNfcLeaseInfo.getDeviceUrl();
-                  if (deviceUrlArr != null) {
-                     List<OvfFile> ovfFiles = new ArrayList<OvfFile>();
-                     for (int i = 0; i < deviceUrlArr.size(); i++) {
+                  try {
+                     if (deviceUrlArr != null) {
+                        NfcDownloader downloader =
+                              new NfcDownloader(lease, getSessionCookie());
+                        downloader.setDigestAlgorithm(digestAlgorithm);
+                        List<String> deviceIds = new ArrayList<String>();
                         System.out.println("Downloading Files:");
-                        String deviceId = deviceUrlArr.get(i).getKey();
-                        String deviceUrlStr = deviceUrlArr.get(i).getUrl();
-                        String absoluteFile =
-                              deviceUrlStr.substring(deviceUrlStr
-                                    .lastIndexOf("/") + 1);
-                        System.out.println("   Absolute File Name: "
-                              + absoluteFile);
-                        System.out.println("   VMDK URL: "
-                              + deviceUrlStr.replace("*", host));
-                        long writtenSize =
-                              writeVMDKFile(absoluteFile,
-                                    deviceUrlStr.replace("*", host));
-                        OvfFile ovfFile = new OvfFile();
-                        ovfFile.setPath(absoluteFile);
-                        ovfFile.setDeviceId(deviceId);
-                        ovfFile.setSize(writtenSize);
-                        ovfFiles.add(ovfFile);
-                     }
-                     ovfCreateDescriptorParams.getOvfFiles().addAll(ovfFiles);
-                     OvfCreateDescriptorResult ovfCreateDescriptorResult =
-                           vimPort.createDescriptor(
-                                 serviceContent.getOvfManager(), vAppMoRef,
-                                 ovfCreateDescriptorParams);
-                     System.out.println();
-                     String outOVF = localpath + "/" + vApp + ".ovf";
-                     File outFile = new File(outOVF);
-                     FileWriter out = new FileWriter(outFile);
-                     out.write(ovfCreateDescriptorResult.getOvfDescriptor());
-                     out.close();
-                     System.out.println("OVF Desriptor Written to file " + vApp
-                           + ".ovf");
-                     System.out.println("DONE");
-                     if (!ovfCreateDescriptorResult.getError().isEmpty()) {
-                        System.out.println("SOME ERRORS");
-                     }
-                     if (!ovfCreateDescriptorResult.getWarning().isEmpty()) {
-                        System.out.println("SOME WARNINGS");
+                        for (HttpNfcLeaseDeviceUrl deviceUrl : deviceUrlArr) {
+                           String deviceUrlStr = deviceUrl.getUrl();
+                           String absoluteFile =
+                                 deviceUrlStr.substring(deviceUrlStr
+                                       .lastIndexOf("/") + 1);
+                           System.out.println("   Absolute File Name: "
+                                 + absoluteFile);
+                           System.out.println("   VMDK URL: "
+                                 + deviceUrlStr.replace("*", host));
+                           downloader.addDisk(deviceUrlStr.replace("*", host),
+                                 new File(localpath, absoluteFile));
+                           deviceIds.add(deviceUrl.getKey());
+                        }
+                        List<NfcDownloader.Disk> disks = downloader.download();
+
+                        OvfManifest manifest =
+                              new OvfManifest(digestAlgorithm);
+                        for (int i = 0; i < disks.size(); i++) {
+                           NfcDownloader.Disk disk = disks.get(i);
+                           OvfFile ovfFile = new OvfFile();
+                           ovfFile.setPath(disk.getFile().getName());
+                           ovfFile.setDeviceId(deviceIds.get(i));
+                           ovfFile.setSize(disk.getBytes());
+                           ovfCreateDescriptorParams.getOvfFiles().add(ovfFile);
+                           manifest.addDigest(disk.getFile().getName(),
+                                 disk.getDigest());
+                        }
+                        OvfCreateDescriptorResult ovfCreateDescriptorResult =
+                              vimPort.createDescriptor(
+                                    serviceContent.getOvfManager(), vAppMoRef,
+                                    ovfCreateDescriptorParams);
+                        System.out.println();
+                        byte[] descriptor =
+                              ovfCreateDescriptorResult.getOvfDescriptor()
+                                    .getBytes("UTF-8");
+                        OutputStream out =
+                              new FileOutputStream(new File(localpath, vApp
+                                    + ".ovf"));
+                        out.write(descriptor);
+                        out.close();
+                        System.out.println("OVF Desriptor Written to file "
+                              + vApp + ".ovf");
+                        manifest.addContent(vApp + ".ovf", descriptor);
+                        manifest.write(new File(localpath, vApp + ".mf"));
+                        System.out.println("OVF Manifest Written to file "
+                              + vApp + ".mf");
+                        System.out.println("DONE");
+                        if (!ovfCreateDescriptorResult.getError().isEmpty()) {
+                           System.out.println("SOME ERRORS");
+                        }
+                        if (!ovfCreateDescriptorResult.getWarning().isEmpty()) {
+                           System.out.println("SOME WARNINGS");
+                        }
+                     } else {
+                        System.out.println("No Device URLS");
                      }
-                  } else {
-                     System.out.println("No Device URLS");
+                     System.out.println("Completed Downloading the files");
+                     lease.complete();
+                  } finally {
+                     lease.close();
                   }
-                  System.out.println("Completed Downloading the files");
-                  vmdkFlag = true;
-                  t.interrupt();
-                  vimPort.httpNfcLeaseProgress(httpNfcLease, 100);
-                  vimPort.httpNfcLeaseComplete(httpNfcLease);
                } else {
                   System.out.println("HttpNfcLeaseState not ready");
                   System.out.println("HttpNfcLeaseState: " + result);
@@ -915,12 +863,15 @@ public class OVFManagerExportVAPP {
       System.out.println("vapp             [required] : Name of the vapp");
       System.out
             .println("localpath        [required] : Local System Folder Path");
+      System.out
+            .println("digest           [optional] : SHA256 (default) or SHA1");
       System.out
             .println("run.bat com.vmware.httpfileaccess.OVFManagerExportVAPP");
       System.out
             .println("--url [webserviceurl] --username [username] --password [password]");
       System.out
             .println("--host [Host name] --vapp [Vapp Name] --localpath [Local path]");
+      System.out.println("[--digest SHA1]");
    }
 
    /**
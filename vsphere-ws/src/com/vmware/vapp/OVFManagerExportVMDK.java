@@ -21,6 +21,7 @@ import javax.xml.ws.soap.SOAPFaultException;
 
 import org.w3c.dom.Element;
 
+import com.vmware.apputils.vim25.HttpNfcLeaseManager;
 import com.vmware.vim25.DynamicProperty;
 import com.vmware.vim25.HttpNfcLeaseDeviceUrl;
 import com.vmware.vim25.HttpNfcLeaseInfo;
@@ -101,10 +102,6 @@ public class OVFManagerExportVMDK {
    private static VimService vimService;
    private static ServiceContent serviceContent;
    private static Boolean isConnected = false;
-   private static volatile long TOTAL_BYTES = 0;
-   private static HttpNfcLeaseExtender leaseExtender;
-   private static volatile long TOTAL_BYTES_WRITTEN = 0;
-   private static boolean vmdkFlag = false;
 
    private static void trustAllHttpsCertificates() throws Exception {
       javax.net.ssl.TrustManager[] trustAllCerts =
@@ -542,30 +539,29 @@ public class OVFManagerExportVMDK {
             printHttpNfcLeaseInfo(httpNfcLeaseInfo, host);
             long diskCapacity =
                   (httpNfcLeaseInfo.getTotalDiskCapacityInKB()) * 1024;
-            TOTAL_BYTES = diskCapacity;
-            leaseExtender =
-                  new OVFManagerExportVMDK().new HttpNfcLeaseExtender(
-                        httpNfcLease, vimPort);
-            Thread t = new Thread(leaseExtender);
-            t.start();
+            HttpNfcLeaseManager.Lease lease =
+                  HttpNfcLeaseManager.getDefault().register(vimPort,
+                        httpNfcLease, diskCapacity);
             List<HttpNfcLeaseDeviceUrl> deviceUrlArr =
                   httpNfcLeaseInfo.getDeviceUrl();
-            for (HttpNfcLeaseDeviceUrl deviceUrl : deviceUrlArr) {
-               System.out.println("Downloading Files:");
-               String deviceUrlStr = deviceUrl.getUrl();
-               String absoluteFile =
-                     deviceUrlStr.substring(deviceUrlStr.lastIndexOf("/") + 1);
-               System.out.println("Absolute File Name: " + absoluteFile);
-               System.out.println("VMDK URL: "
-                     + deviceUrlStr.replace("*", host));
-               writeVMDKFile(absoluteFile, deviceUrlStr.replace("*", host),
-                     diskCapacity, vmname);
+            try {
+               for (HttpNfcLeaseDeviceUrl deviceUrl : deviceUrlArr) {
+                  System.out.println("Downloading Files:");
+                  String deviceUrlStr = deviceUrl.getUrl();
+                  String absoluteFile =
+                        deviceUrlStr
+                              .substring(deviceUrlStr.lastIndexOf("/") + 1);
+                  System.out.println("Absolute File Name: " + absoluteFile);
+                  System.out.println("VMDK URL: "
+                        + deviceUrlStr.replace("*", host));
+                  writeVMDKFile(absoluteFile, deviceUrlStr.replace("*", host),
+                        diskCapacity, vmname, lease);
+               }
+               System.out.println("Completed Downloading the files");
+               lease.complete();
+            } finally {
+               lease.close();
             }
-            System.out.println("Completed Downloading the files");
-            vmdkFlag = true;
-            t.interrupt();
-            vimPort.httpNfcLeaseProgress(httpNfcLease, 100);
-            vimPort.httpNfcLeaseComplete(httpNfcLease);
          } else {
             System.out.println("HttpNfcLeaseState not ready");
             for (Object o : result) {
@@ -602,50 +598,9 @@ public class OVFManagerExportVMDK {
             .println("########################################################");
    }
 
-   /**
-    * The Class HttpNfcLeaseExtender.
-    */
-   public class HttpNfcLeaseExtender implements Runnable {
-      private ManagedObjectReference httpNfcLease = null;
-      private VimPortType vimPort = null;
-
-      public HttpNfcLeaseExtender(ManagedObjectReference mor,
-            VimPortType VIM_PORT) {
-         httpNfcLease = mor;
-         vimPort = VIM_PORT;
-      }
-
-      @Override
-      public void run() {
-         try {
-            System.out.println("---------------------- Thread for "
-                  + "Checking the HTTP NFCLEASE vmdkFlag: " + vmdkFlag
-                  + "----------------------");
-            while (!vmdkFlag) {
-               System.out.println("#### TOTAL_BYTES_WRITTEN "
-                     + TOTAL_BYTES_WRITTEN);
-               System.out.println("#### TOTAL_BYTES " + TOTAL_BYTES);
-               try {
-                  vimPort.httpNfcLeaseProgress(httpNfcLease, 0);
-                  Thread.sleep(290000000);
-               } catch (InterruptedException e) {
-                  System.out
-                        .println("---------------------- Thread interrupted "
-                              + "----------------------");
-               } catch (SOAPFaultException sfe) {
-                  printSoapFaultException(sfe);
-               }
-            }
-         } catch (SOAPFaultException sfe) {
-            printSoapFaultException(sfe);
-         } catch (Exception e) {
-            e.printStackTrace();
-         }
-      }
-   }
-
    private static void writeVMDKFile(String absoluteFile, String string,
-         long diskCapacity, String vmName) throws Exception {
+         long diskCapacity, String vmName, HttpNfcLeaseManager.Lease lease)
+         throws Exception {
       HttpURLConnection conn = getHTTPConnection(string);
       InputStream in = conn.getInputStream();
       String fileName = localPath + "/" + vmName + "-" + absoluteFile;
@@ -656,6 +611,7 @@ public class OVFManagerExportVMDK {
       while ((len = in.read(buf)) > 0) {
          out.write(buf, 0, len);
          written = written + len;
+         lease.addBytes(len);
       }
       System.out.println("Exported File " + vmName + "-" + absoluteFile + " : "
             + written);
@@ -1,19 +1,14 @@
 package com.vmware.vapp;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.MalformedURLException;
-import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -28,6 +23,8 @@ import javax.xml.ws.soap.SOAPFaultException;
 
 import org.w3c.dom.Element;
 
+import com.vmware.apputils.vim25.HttpNfcLeaseManager;
+import com.vmware.apputils.vim25.NfcUploader;
 import com.vmware.vim25.ArrayOfManagedObjectReference;
 import com.vmware.vim25.DynamicProperty;
 import com.vmware.vim25.HttpNfcLeaseDeviceUrl;
@@ -107,43 +104,6 @@ public class OVFManagerImportLocalVApp {
       }
    }
 
-   private class HttpNfcLeaseExtender implements Runnable {
-      private ManagedObjectReference httpNfcLease = null;
-      private VimPortType vimPort = null;
-      private int progressPercent = 0;
-
-      public HttpNfcLeaseExtender(ManagedObjectReference mor,
-            VimPortType vimport) {
-         httpNfcLease = mor;
-         vimPort = vimport;
-      }
-
-      @Override
-      public void run() {
-         try {
-            while (!vmdkFlag) {
-               System.out.println("\n\n#####################vmdk flag: "
-                     + vmdkFlag + "\n\n");
-               progressPercent =
-                     (int) ((TOTAL_BYTES_WRITTEN * 100) / (TOTAL_BYTES));
-               try {
-                  vimPort.httpNfcLeaseProgress(httpNfcLease, progressPercent);
-                  Thread.sleep(290000000);
-               } catch (InterruptedException e) {
-                  System.out
-                        .println("********************** Thread interrupted *******************");
-               } catch (SOAPFaultException sfe) {
-                  printSoapFaultException(sfe);
-               }
-            }
-         } catch (SOAPFaultException sfe) {
-            printSoapFaultException(sfe);
-         } catch (Exception e) {
-            e.printStackTrace();
-         }
-      }
-   }
-
    /* Start Server Connection and common code */
 
    private static VimService vimService = null;
@@ -304,10 +264,6 @@ public class OVFManagerImportLocalVApp {
    private static String host = null;
    private static String localPath = null;
    private static String vappName = null;
-   private static boolean vmdkFlag = false;
-   private static volatile long TOTAL_BYTES = 0;
-   private static volatile long TOTAL_BYTES_WRITTEN = 0;
-   private static HttpNfcLeaseExtender leaseExtender;
 
 
    /**
@@ -618,13 +574,14 @@ public class OVFManagerImportLocalVApp {
                vimPort.createImportSpec(serviceContent.getOvfManager(),
                      ovfDescriptor, rpMor, dsMor, importSpecParams);
          List<OvfFileItem> fileItemArr = ovfImportResult.getFileItem();
+         long totalBytes = 0;
          if (fileItemArr != null) {
             for (OvfFileItem fi : fileItemArr) {
                printOvfFileItem(fi);
-               TOTAL_BYTES += fi.getSize();
+               totalBytes += fi.getSize();
             }
          }
-         System.out.println("Total bytes: " + TOTAL_BYTES);
+         System.out.println("Total bytes: " + totalBytes);
          ManagedObjectReference httpNfcLease =
                vimPort.importVApp(rpMor, ovfImportResult.getImportSpec(),
                      vmFolder, hostMor);
@@ -638,11 +595,10 @@ public class OVFManagerImportLocalVApp {
                   (HttpNfcLeaseInfo) getEntityProps(httpNfcLease,
                         new String[] { "info" }).get("info");
             printHttpNfcLeaseInfo(httpNfcLeaseInfo);
-            leaseExtender =
-                  new OVFManagerImportLocalVApp().new HttpNfcLeaseExtender(
-                        httpNfcLease, vimPort);
-            Thread t = new Thread(leaseExtender);
-            t.start();
+            HttpNfcLeaseManager.Lease lease =
+                  HttpNfcLeaseManager.getDefault().register(vimPort,
+                        httpNfcLease, totalBytes);
+            NfcUploader uploader = new NfcUploader(lease, getSessionCookie());
             List<HttpNfcLeaseDeviceUrl> deviceUrlArr =
                   httpNfcLeaseInfo.getDeviceUrl();
             for (HttpNfcLeaseDeviceUrl deviceUrl : deviceUrlArr) {
@@ -652,23 +608,35 @@ public class OVFManagerImportLocalVApp {
                      System.out.println("Import key: " + deviceKey);
                      System.out.println("OvfFileItem device id: "
                            + ovfFileItem.getDeviceId());
-                     System.out.println("HTTP Post file: "
-                           + ovfFileItem.getPath());
+                     System.out.println("HTTP "
+                           + (ovfFileItem.isCreate() ? "PUT" : "POST")
+                           + " file: " + ovfFileItem.getPath());
                      String absoluteFile =
                            localPath.substring(0, localPath.lastIndexOf("\\"));
                      absoluteFile = absoluteFile + "/" + ovfFileItem.getPath();
                      System.out.println("Absolute path: " + absoluteFile);
-                     getVMDKFile(ovfFileItem.isCreate(), absoluteFile,
-                           deviceUrl.getUrl().replace("*", host),
-                           ovfFileItem.getSize());
-                     System.out.println("Completed uploading the VMDK file");
+                     uploader.addDisk(new File(absoluteFile), deviceUrl
+                           .getUrl().replace("*", host), ovfFileItem.isCreate());
                   }
                }
             }
-            vmdkFlag = true;
-            t.interrupt();
-            vimPort.httpNfcLeaseProgress(httpNfcLease, 100);
-            vimPort.httpNfcLeaseComplete(httpNfcLease);
+            HttpsURLConnection.setDefaultHostnameVerifier(new HostnameVerifier() {
+               @Override
+               public boolean verify(String urlHostName, SSLSession session) {
+                  return true;
+               }
+            });
+            try {
+               long bytesWritten = uploader.upload();
+               System.out.println("Completed uploading the VMDK files, "
+                     + bytesWritten + " bytes");
+               lease.complete();
+            } catch (IOException e) {
+               lease.abort(e);
+               throw e;
+            } finally {
+               lease.close();
+            }
          } else {
             System.out.println("HttpNfcLeaseState not ready");
             for (Object o : result) {
@@ -693,116 +661,18 @@ public class OVFManagerImportLocalVApp {
       return importSpecParams;
    }
 
-   private static void getVMDKFile(boolean put, String fileName, String uri,
-         long diskCapacity) {
-      HttpsURLConnection conn = null;
-      BufferedOutputStream bos = null;
-
-      int bytesRead, bytesAvailable, bufferSize;
-      byte[] buffer;
-      int maxBufferSize = 64 * 1024;
-
-      try {
-         System.out.println("Destination host URL: " + uri);
-         HostnameVerifier hv = new HostnameVerifier() {
-            @Override
-            public boolean verify(String urlHostName, SSLSession session) {
-               System.out.println("Warning: URL Host: " + urlHostName + " vs. "
-                     + session.getPeerHost());
-               return true;
-            }
-         };
-         HttpsURLConnection.setDefaultHostnameVerifier(hv);
-         URL url = new URL(uri);
-         conn = (HttpsURLConnection) url.openConnection();
-
-
-         // Maintain session
-         @SuppressWarnings("unchecked")
-         List<String> cookies = (List<String>) headers.get("Set-cookie");
-         cookieValue = cookies.get(0);
-         StringTokenizer tokenizer = new StringTokenizer(cookieValue, ";");
-         cookieValue = tokenizer.nextToken();
-         String path = "$" + tokenizer.nextToken();
-         String cookie = "$Version=\"1\"; " + cookieValue + "; " + path;
-
-         // set the cookie in the new request header
-         Map<String, List<String>> map = new HashMap<String, List<String>>();
-         map.put("Cookie", Collections.singletonList(cookie));
-         ((BindingProvider) vimPort).getRequestContext().put(
-               MessageContext.HTTP_REQUEST_HEADERS, map);
-         conn.setDoInput(true);
-         conn.setDoOutput(true);
-         conn.setUseCaches(false);
-         conn.setChunkedStreamingMode(maxBufferSize);
-         if (put) {
-            conn.setRequestMethod("PUT");
-            System.out.println("HTTP method: PUT");
-         } else {
-            conn.setRequestMethod("POST");
-            System.out.println("HTTP method: POST");
-         }
-         conn.setRequestProperty("Cookie", cookie);
-         conn.setRequestProperty("Connection", "Keep-Alive");
-         conn.setRequestProperty("Content-Type",
-               "application/x-vnd.vmware-streamVmdk");
-         conn.setRequestProperty("Content-Length", String.valueOf(diskCapacity));
-         conn.setRequestProperty("Expect", "100-continue");
-         bos = new BufferedOutputStream(conn.getOutputStream());
-         System.out.println("Local file path: " + fileName);
-         InputStream io = new FileInputStream(fileName);
-         BufferedInputStream bis = new BufferedInputStream(io);
-         bytesAvailable = bis.available();
-         System.out.println("vmdk available bytes: " + bytesAvailable);
-         bufferSize = Math.min(bytesAvailable, maxBufferSize);
-         buffer = new byte[bufferSize];
-         bytesRead = bis.read(buffer, 0, bufferSize);
-         long bytesWrote = bytesRead;
-         TOTAL_BYTES_WRITTEN += bytesRead;
-         while (bytesRead >= 0) {
-            bos.write(buffer, 0, bufferSize);
-            bos.flush();
-            System.out.println("Bytes Wrote: " + bytesWrote);
-            bytesAvailable = bis.available();
-            bufferSize = Math.min(bytesAvailable, maxBufferSize);
-            bytesWrote += bufferSize;
-            System.out.println("Total bytes written: " + TOTAL_BYTES_WRITTEN);
-            TOTAL_BYTES_WRITTEN += bufferSize;
-            buffer = null;
-            buffer = new byte[bufferSize];
-            bytesRead = bis.read(buffer, 0, bufferSize);
-            System.out.println("Bytes Read: " + bytesRead);
-            if ((bytesRead == 0) && (bytesWrote >= diskCapacity)) {
-               System.out
-                     .println("Total bytes written: " + TOTAL_BYTES_WRITTEN);
-               bytesRead = -1;
-            }
-         }
-         try {
-            DataInputStream dis = new DataInputStream(conn.getInputStream());
-            dis.close();
-         } catch (SocketTimeoutException stex) {
-            System.out.println("From (ServerResponse): " + stex);
-         } catch (IOException ioex) {
-            System.out.println("From (ServerResponse): " + ioex);
-         }
-         System.out.println("Writing vmdk to the output stream done");
-         bis.close();
-      } catch (MalformedURLException ex) {
-         ex.printStackTrace();
-      } catch (IOException ioe) {
-         ioe.printStackTrace();
-      } finally {
-         try {
-            bos.flush();
-            bos.close();
-            conn.disconnect();
-         } catch (SOAPFaultException sfe) {
-            printSoapFaultException(sfe);
-         } catch (Exception e) {
-            e.printStackTrace();
-         }
-      }
+   /*
+    * The disks are uploaded with the session cookie of the web service
+    * connection.
+    */
+   private static String getSessionCookie() {
+      @SuppressWarnings("unchecked")
+      List<String> cookies = (List<String>) headers.get("Set-cookie");
+      cookieValue = cookies.get(0);
+      StringTokenizer tokenizer = new StringTokenizer(cookieValue, ";");
+      cookieValue = tokenizer.nextToken();
+      String path = "$" + tokenizer.nextToken();
+      return "$Version=\"1\"; " + cookieValue + "; " + path;
    }
 
    private static String getOvfDescriptorFromLocal(String ovfDescriptorUrl)
@@ -1,13 +1,8 @@
 package com.vmware.vapp;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.rmi.RemoteException;
@@ -28,6 +23,8 @@ import javax.xml.ws.soap.SOAPFaultException;
 
 import org.w3c.dom.Element;
 
+import com.vmware.apputils.vim25.HttpNfcLeaseManager;
+import com.vmware.apputils.vim25.NfcRelay;
 import com.vmware.vim25.ArrayOfManagedObjectReference;
 import com.vmware.vim25.DynamicProperty;
 import com.vmware.vim25.HttpNfcLeaseDeviceUrl;
@@ -109,43 +106,6 @@ public class OVFManagerImportVAppFromUrl {
 
    /* Start Server Connection and common code */
 
-   private class HttpNfcLeaseExtender implements Runnable {
-      private ManagedObjectReference httpNfcLease = null;
-      private VimPortType vimPort = null;
-      private int progressPercent = 0;
-
-      public HttpNfcLeaseExtender(ManagedObjectReference mor,
-            VimPortType vimport) {
-         httpNfcLease = mor;
-         vimPort = vimport;
-      }
-
-      @Override
-      public void run() {
-         try {
-            while (!vmdkFlag) {
-               System.out.println("\n\n#####################vmdk flag: "
-                     + vmdkFlag + "\n\n");
-               progressPercent =
-                     (int) ((TOTAL_BYTES_WRITTEN * 100) / (TOTAL_BYTES));
-               try {
-                  vimPort.httpNfcLeaseProgress(httpNfcLease, progressPercent);
-                  Thread.sleep(290000000);
-               } catch (InterruptedException e) {
-                  System.out
-                        .println("********************** Thread interrupted *******************");
-               } catch (SOAPFaultException sfe) {
-                  printSoapFaultException(sfe);
-               }
-            }
-         } catch (SOAPFaultException sfe) {
-            printSoapFaultException(sfe);
-         } catch (Exception e) {
-            e.printStackTrace();
-         }
-      }
-   }
-
    private static VimService vimService = null;
    private static VimPortType vimPort = null;
    private static ServiceContent serviceContent = null;
@@ -316,10 +276,6 @@ public class OVFManagerImportVAppFromUrl {
    private static String host = null;
    private static String urlPath = null;
    private static String vappName = null;
-   private static boolean vmdkFlag = false;
-   private static volatile long TOTAL_BYTES = 0;
-   private static volatile long TOTAL_BYTES_WRITTEN = 0;
-   private static HttpNfcLeaseExtender leaseExtender;
 
    /**
     * Returns all the MOREFs of the specified type that are present under the
@@ -635,13 +591,14 @@ public class OVFManagerImportVAppFromUrl {
          if (ovfImportResult.getError() == null
                || ovfImportResult.getError().isEmpty()) {
             List<OvfFileItem> fileItemArr = ovfImportResult.getFileItem();
+            long totalBytes = 0;
             if (fileItemArr != null) {
                for (OvfFileItem fi : fileItemArr) {
                   printOvfFileItem(fi);
-                  TOTAL_BYTES += fi.getSize();
+                  totalBytes += fi.getSize();
                }
             }
-            System.out.println("Total bytes: " + TOTAL_BYTES);
+            System.out.println("Total bytes: " + totalBytes);
             if (ovfImportResult != null) {
                ManagedObjectReference httpNfcLease =
                      vimPort.importVApp(rpMor, ovfImportResult.getImportSpec(),
@@ -658,11 +615,11 @@ public class OVFManagerImportVAppFromUrl {
                         (HttpNfcLeaseInfo) getEntityProps(httpNfcLease,
                               new String[] { "info" }).get("info");
                   printHttpNfcLeaseInfo(httpNfcLeaseInfo);
-                  leaseExtender =
-                        new OVFManagerImportVAppFromUrl().new HttpNfcLeaseExtender(
-                              httpNfcLease, vimPort);
-                  Thread t = new Thread(leaseExtender);
-                  t.start();
+                  HttpNfcLeaseManager.Lease lease =
+                        HttpNfcLeaseManager.getDefault().register(vimPort,
+                              httpNfcLease, totalBytes);
+                  NfcRelay relay = new NfcRelay(lease, getSessionCookie());
+                  relay.setSourceCookie(getSessionCookie());
                   List<HttpNfcLeaseDeviceUrl> deviceUrlArr =
                         httpNfcLeaseInfo.getDeviceUrl();
                   for (HttpNfcLeaseDeviceUrl deviceUrl : deviceUrlArr) {
@@ -672,27 +629,39 @@ public class OVFManagerImportVAppFromUrl {
                            System.out.println("Import key: " + deviceKey);
                            System.out.println("OvfFileItem device id: "
                                  + ovfFileItem.getDeviceId());
-                           System.out.println("HTTP Post file: "
-                                 + ovfFileItem.getPath());
+                           System.out.println("HTTP "
+                                 + (ovfFileItem.isCreate() ? "PUT" : "POST")
+                                 + " file: " + ovfFileItem.getPath());
 
                            String absoluteFile =
                                  urlPath.substring(0, urlPath.lastIndexOf("/"));
                            absoluteFile =
                                  absoluteFile + "/" + ovfFileItem.getPath();
                            System.out.println("Absolute path: " + absoluteFile);
-
-                           getVMDKFile(ovfFileItem.isCreate(), absoluteFile,
-                                 deviceUrl.getUrl().replace("*", host),
-                                 ovfFileItem.getSize());
-                           System.out
-                                 .println("Completed uploading the VMDK file");
+                           relay.addDisk(absoluteFile, deviceUrl.getUrl()
+                                 .replace("*", host), ovfFileItem.isCreate());
                         }
                      }
                   }
-                  vmdkFlag = true;
-                  t.interrupt();
-                  vimPort.httpNfcLeaseProgress(httpNfcLease, 100);
-                  vimPort.httpNfcLeaseComplete(httpNfcLease);
+                  HttpsURLConnection
+                        .setDefaultHostnameVerifier(new HostnameVerifier() {
+                           @Override
+                           public boolean verify(String urlHostName,
+                                 SSLSession session) {
+                              return true;
+                           }
+                        });
+                  try {
+                     long bytesWritten = relay.relay();
+                     System.out.println("Completed relaying the VMDK files, "
+                           + bytesWritten + " bytes");
+                     lease.complete();
+                  } catch (IOException e) {
+                     lease.abort(e);
+                     throw e;
+                  } finally {
+                     lease.close();
+                  }
                } else {
                   System.out.println("HttpNfcLeaseState not ready");
                   for (Object o : result) {
@@ -742,6 +711,16 @@ public class OVFManagerImportVAppFromUrl {
       return strContent + "";
    }
 
+   private static String getSessionCookie() {
+      @SuppressWarnings("unchecked")
+      List<String> cookies = (List<String>) headers.get("Set-cookie");
+      cookieValue = cookies.get(0);
+      StringTokenizer tokenizer = new StringTokenizer(cookieValue, ";");
+      cookieValue = tokenizer.nextToken();
+      String path = "$" + tokenizer.nextToken();
+      return "$Version=\"1\"; " + cookieValue + "; " + path;
+   }
+
    private static HttpURLConnection getHTTPConnection(String urlString)
          throws Exception {
       trustAllHttpsCertificates();
@@ -749,13 +728,7 @@ public class OVFManagerImportVAppFromUrl {
       HttpURLConnection httpConnection =
             (HttpURLConnection) url.openConnection();
       // Maintain session
-      @SuppressWarnings("unchecked")
-      List<String> cookies = (List<String>) headers.get("Set-cookie");
-      cookieValue = cookies.get(0);
-      StringTokenizer tokenizer = new StringTokenizer(cookieValue, ";");
-      cookieValue = tokenizer.nextToken();
-      String path = "$" + tokenizer.nextToken();
-      String cookie = "$Version=\"1\"; " + cookieValue + "; " + path;
+      String cookie = getSessionCookie();
 
       // set the cookie in the new request header
       Map<String, List<String>> map = new HashMap<String, List<String>>();
@@ -804,124 +777,6 @@ public class OVFManagerImportVAppFromUrl {
             .println("########################################################");
    }
 
-   private static void getVMDKFile(boolean put, String readFileLocation,
-         String writeFileLocation, long diskCapacity) throws Exception {
-      HttpsURLConnection writeConnection = null;
-      BufferedOutputStream writeBufferedOutputStream = null;
-
-      int bytesRead, bytesAvailable, bufferSize;
-      byte[] buffer;
-      int maxBufferSize = 64 * 1024;
-
-      try {
-         System.out.println("Destination host URL: " + writeFileLocation);
-         HostnameVerifier hv = new HostnameVerifier() {
-            @Override
-            public boolean verify(String urlHostName, SSLSession session) {
-               System.out.println("Warning: URL Host: " + urlHostName + " vs. "
-                     + session.getPeerHost());
-               return true;
-            }
-         };
-         HttpsURLConnection.setDefaultHostnameVerifier(hv);
-         URL url = new URL(writeFileLocation);
-         writeConnection = (HttpsURLConnection) url.openConnection();
-
-         // Maintain session
-         @SuppressWarnings("unchecked")
-         List<String> cookies = (List<String>) headers.get("Set-cookie");
-         cookieValue = cookies.get(0);
-         StringTokenizer tokenizer = new StringTokenizer(cookieValue, ";");
-         cookieValue = tokenizer.nextToken();
-         String path = "$" + tokenizer.nextToken();
-         String cookie = "$Version=\"1\"; " + cookieValue + "; " + path;
-
-         // set the cookie in the new request header
-         Map<String, List<String>> map = new HashMap<String, List<String>>();
-         map.put("Cookie", Collections.singletonList(cookie));
-         ((BindingProvider) vimPort).getRequestContext().put(
-               MessageContext.HTTP_REQUEST_HEADERS, map);
-
-         writeConnection.setDoInput(true);
-         writeConnection.setDoOutput(true);
-         writeConnection.setUseCaches(false);
-         writeConnection.setChunkedStreamingMode(maxBufferSize);
-         if (put) {
-            writeConnection.setRequestMethod("PUT");
-            System.out.println("HTTP method: PUT");
-         } else {
-            writeConnection.setRequestMethod("POST");
-            System.out.println("HTTP method: POST");
-         }
-         writeConnection.setRequestProperty("Cookie", cookie);
-         writeConnection.setRequestProperty("Connection", "Keep-Alive");
-         writeConnection.setRequestProperty("Content-Type",
-               "application/x-vnd.vmware-streamVmdk");
-         writeConnection.setRequestProperty("Content-Length",
-               String.valueOf(diskCapacity));
-
-         writeBufferedOutputStream =
-               new BufferedOutputStream(writeConnection.getOutputStream());
-         System.out.println("Local file path: " + readFileLocation);
-         HttpURLConnection readConnection = getHTTPConnection(readFileLocation);
-         InputStream readInputStream = readConnection.getInputStream();
-         BufferedInputStream readBufferedInputStream =
-               new BufferedInputStream(readInputStream);
-         bytesAvailable = readBufferedInputStream.available();
-         System.out.println("vmdk available bytes: " + bytesAvailable);
-         bufferSize = Math.min(bytesAvailable, maxBufferSize);
-         buffer = new byte[bufferSize];
-
-         bytesRead = readBufferedInputStream.read(buffer, 0, bufferSize);
-         long bytesWrote = bytesRead;
-         TOTAL_BYTES_WRITTEN += bytesRead;
-         while (bytesRead >= 0) {
-            writeBufferedOutputStream.write(buffer, 0, bufferSize);
-            writeBufferedOutputStream.flush();
-            System.out.println("Bytes Wrote: " + bytesWrote);
-            bytesAvailable = readBufferedInputStream.available();
-            bufferSize = Math.min(bytesAvailable, maxBufferSize);
-            bytesWrote += bufferSize;
-            System.out.println("Total bytes written: " + TOTAL_BYTES_WRITTEN);
-            TOTAL_BYTES_WRITTEN += bufferSize;
-            buffer = null;
-            buffer = new byte[bufferSize];
-            bytesRead = readBufferedInputStream.read(buffer, 0, bufferSize);
-            System.out.println("Bytes Read: " + bytesRead);
-            if ((bytesRead == 0) && (bytesWrote >= diskCapacity)) {
-               System.out
-                     .println("Total bytes written: " + TOTAL_BYTES_WRITTEN);
-               bytesRead = -1;
-            }
-         }
-         try {
-            DataInputStream dis =
-                  new DataInputStream(writeConnection.getInputStream());
-            dis.close();
-         } catch (SocketTimeoutException stex) {
-            System.out.println("From (ServerResponse): " + stex);
-         } catch (IOException ioex) {
-            System.out.println("From (ServerResponse): " + ioex);
-         }
-         System.out.println("Writing vmdk to the output stream done");
-         readBufferedInputStream.close();
-      } catch (MalformedURLException ex) {
-         ex.printStackTrace();
-      } catch (IOException ioe) {
-         ioe.printStackTrace();
-      } finally {
-         try {
-            writeBufferedOutputStream.flush();
-            writeBufferedOutputStream.close();
-            writeConnection.disconnect();
-         } catch (SOAPFaultException sfe) {
-            printSoapFaultException(sfe);
-         } catch (Exception e) {
-            e.printStackTrace();
-         }
-      }
-   }
-
    /**
     * Wait for values.
     * 
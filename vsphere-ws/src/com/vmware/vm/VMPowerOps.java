@@ -2,16 +2,28 @@ package com.vmware.vm;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLSession;
-import javax.xml.ws.BindingProvider;
 import javax.xml.ws.soap.SOAPFaultException;
 
+import com.vmware.apputils.vim25.ServiceConnection;
+import com.vmware.apputils.vim25.ServiceConnectionPool;
+import com.vmware.apputils.vim25.TaskTracker;
+import com.vmware.vim25.ClusterAction;
+import com.vmware.vim25.ClusterAttemptedVmInfo;
+import com.vmware.vim25.ClusterNotAttemptedVmInfo;
+import com.vmware.vim25.ClusterPowerOnVmResult;
+import com.vmware.vim25.ClusterRecommendation;
 import com.vmware.vim25.DynamicProperty;
 import com.vmware.vim25.InvalidCollectorVersionFaultMsg;
 import com.vmware.vim25.InvalidPropertyFaultMsg;
@@ -30,11 +42,11 @@ import com.vmware.vim25.RetrieveOptions;
 import com.vmware.vim25.RetrieveResult;
 import com.vmware.vim25.RuntimeFaultFaultMsg;
 import com.vmware.vim25.ServiceContent;
+import com.vmware.vim25.TaskInfo;
 import com.vmware.vim25.TaskInfoState;
 import com.vmware.vim25.TraversalSpec;
 import com.vmware.vim25.UpdateSet;
 import com.vmware.vim25.VimPortType;
-import com.vmware.vim25.VimService;
 
 
 /**
@@ -54,47 +66,32 @@ import com.vmware.vim25.VimService;
  * guestid          [optional] : guest id of the vm
  * hostname         [optional] : name of the host
  * vmname           [optional] : name of the virtual machine
+ * batchsize        [optional] : run poweron | poweroff | reset | suspend for
+ *                               all matching VMs concurrently; poweron groups
+ *                               up to batchsize VMs per datacenter into one
+ *                               PowerOnMultiVM call
+ * maxperhost       [optional] : batch mode cap of tasks in flight per host
+ *                               (default 8)
  * 
  * <b>Command Line:</b>
  * run.bat com.vmware.vm.VMPowerOps --url [URLString] --username [User] --password [Password]
  * --operation [Operation] --datacenter [DatacenterName]--guestid [GuestId] --hostname [HostName]
  * --vmname [VMName]
+ * 
+ * Batch power on, 50 VMs per PowerOnMultiVM call, 4 tasks per host
+ * run.bat com.vmware.vm.VMPowerOps --url [URLString] --username [User] --password [Password]
+ * --operation poweron --datacentername [DatacenterName] --batchsize 50 --maxperhost 4
  * </pre>
  */
 
 public class VMPowerOps {
 
-   private static class TrustAllTrustManager implements
-         javax.net.ssl.TrustManager, javax.net.ssl.X509TrustManager {
-
-      @Override
-      public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-         return null;
-      }
-
-      @Override
-      public void checkServerTrusted(
-            java.security.cert.X509Certificate[] certs, String authType)
-            throws java.security.cert.CertificateException {
-
-         return;
-      }
-
-      @Override
-      public void checkClientTrusted(
-            java.security.cert.X509Certificate[] certs, String authType)
-            throws java.security.cert.CertificateException {
-         return;
-      }
-   }
-
    /* Start Server Connection and common code */
-   private static final String SVC_INST_NAME = "ServiceInstance";
-   private static final ManagedObjectReference SVC_INST_REF =
-         new ManagedObjectReference();
-   private static VimService vimService = null;
+   private static ServiceConnection connection = null;
    private static VimPortType vimPort = null;
    private static ServiceContent serviceContent = null;
+   private static final int DEFAULT_MAX_PER_HOST = 8;
+   private static final String NO_HOST = "(no host)";
 
 
    /*
@@ -109,22 +106,10 @@ public class VMPowerOps {
    private static String datacenter = null;
    private static String guestId = null;
    private static String host = null;
+   private static Integer batchSize = null;
+   private static int maxPerHost = DEFAULT_MAX_PER_HOST;
    private static boolean isConnected = false;
 
-   private static void trustAllHttpsCertificates() throws Exception {
-
-      javax.net.ssl.TrustManager[] trustAllCerts =
-            new javax.net.ssl.TrustManager[1];
-      javax.net.ssl.TrustManager tm = new TrustAllTrustManager();
-      trustAllCerts[0] = tm;
-      javax.net.ssl.SSLContext sc = javax.net.ssl.SSLContext.getInstance("SSL");
-      javax.net.ssl.SSLSessionContext sslsc = sc.getServerSessionContext();
-      sslsc.setSessionTimeout(0);
-      sc.init(null, trustAllCerts, null);
-      HttpsURLConnection.setDefaultSSLSocketFactory(sc
-            .getSocketFactory());
-   }
-
    // get common parameters
    private static void getConnectionParameters(String[] args)
          throws IllegalArgumentException {
@@ -183,6 +168,12 @@ public class VMPowerOps {
          } else if (param.equalsIgnoreCase("--hostname")
                && !val.startsWith("--") && !val.isEmpty()) {
             host = val;
+         } else if (param.equalsIgnoreCase("--batchsize")
+               && !val.startsWith("--") && !val.isEmpty()) {
+            batchSize = Integer.parseInt(val);
+         } else if (param.equalsIgnoreCase("--maxperhost")
+               && !val.startsWith("--") && !val.isEmpty()) {
+            maxPerHost = Integer.parseInt(val);
          }
          val = "";
          ai += 2;
@@ -190,6 +181,10 @@ public class VMPowerOps {
       if (operation == null) {
          throw new IllegalArgumentException("Expected --operation argument.");
       }
+      if ((batchSize != null && batchSize < 1) || maxPerHost < 1) {
+         throw new IllegalArgumentException(
+               "Expected positive --batchsize and --maxperhost values.");
+      }
    }
 
    /**
@@ -200,29 +195,11 @@ public class VMPowerOps {
     */
    private static void connect() throws Exception {
 
-      HostnameVerifier hv = new HostnameVerifier() {
-         @Override
-         public boolean verify(String urlHostName, SSLSession session) {
-            return true;
-         }
-      };
-      trustAllHttpsCertificates();
-      HttpsURLConnection.setDefaultHostnameVerifier(hv);
-
-      SVC_INST_REF.setType(SVC_INST_NAME);
-      SVC_INST_REF.setValue(SVC_INST_NAME);
-
-      vimService = new VimService();
-      vimPort = vimService.getVimPort();
-      Map<String, Object> ctxt =
-            ((BindingProvider) vimPort).getRequestContext();
-
-      ctxt.put(BindingProvider.ENDPOINT_ADDRESS_PROPERTY, url);
-      ctxt.put(BindingProvider.SESSION_MAINTAIN_PROPERTY, true);
-
-      serviceContent = vimPort.retrieveServiceContent(SVC_INST_REF);
-      vimPort.login(serviceContent.getSessionManager(), userName, password,
-            null);
+      connection =
+            ServiceConnectionPool.getInstance().getConnection(url, userName,
+                  password);
+      vimPort = connection.getVimPort();
+      serviceContent = connection.getServiceContent();
       isConnected = true;
    }
 
@@ -233,7 +210,7 @@ public class VMPowerOps {
     */
    private static void disconnect() throws Exception {
       if (isConnected) {
-         vimPort.logout(serviceContent.getSessionManager());
+         ServiceConnectionPool.getInstance().close(connection);
       }
       isConnected = false;
    }
@@ -631,6 +608,8 @@ public class VMPowerOps {
          System.out.println("No Virtual Machine found matching "
                + "the specified criteria");
          return;
+      } else if (isBatchOperation()) {
+         runBatchOperation(vmMap);
       } else {
          if (operation.equalsIgnoreCase("poweron")) {
             powerOnVM(vmMap);
@@ -777,6 +756,403 @@ public class VMPowerOps {
       }
    }
 
+   /*
+    * Batch mode. VMs are dispatched under a per-host cap on tasks in flight.
+    * Power on requests are grouped per datacenter into PowerOnMultiVM calls of
+    * at most batchSize VMs; the other task based operations are issued one
+    * task per VM. All tasks are awaited through one TaskTracker and every
+    * completion is handed back to the dispatching thread through the events
+    * queue, so the bookkeeping below is single threaded. The dispatching
+    * thread runs all queued completions before it dispatches again, and a
+    * power on chunk smaller than batchSize is only issued when the per host
+    * cap cannot make it any larger or nothing else is in flight, so the
+    * slots freed by single completions are refilled in full chunks.
+    */
+
+   /*
+    * Latency and outcome of the VMs processed in batch mode.
+    */
+   private static class BatchStats {
+      private final long startTime = System.currentTimeMillis();
+      private final List<Long> latencies = new ArrayList<Long>();
+      private int succeeded = 0;
+      private int failed = 0;
+
+      void record(boolean success, long latency) {
+         latencies.add(latency);
+         if (success) {
+            succeeded++;
+         } else {
+            failed++;
+         }
+      }
+
+      void print() {
+         long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+         List<Long> sorted = new ArrayList<Long>(latencies);
+         Collections.sort(sorted);
+         long total = 0;
+         for (Long latency : sorted) {
+            total += latency;
+         }
+         System.out.println("\nBatch " + operation + " summary");
+         System.out.println("Virtual machines : " + sorted.size()
+               + " (succeeded " + succeeded + ", failed " + failed + ")");
+         System.out.println("Elapsed time     : " + elapsed + " ms");
+         System.out.println("Throughput       : "
+               + String.format("%.2f", sorted.size() * 1000.0 / elapsed)
+               + " VMs/s");
+         if (!sorted.isEmpty()) {
+            System.out.println("Per VM latency   : min "
+                  + sorted.get(0) + " ms, avg " + (total / sorted.size())
+                  + " ms, p50 " + percentile(sorted, 50) + " ms, p95 "
+                  + percentile(sorted, 95) + " ms, max "
+                  + sorted.get(sorted.size() - 1) + " ms");
+         }
+      }
+
+      private static long percentile(List<Long> sorted, int pct) {
+         int index = (int) Math.ceil(pct / 100.0 * sorted.size()) - 1;
+         return sorted.get(Math.max(0, index));
+      }
+   }
+
+   private static final BlockingQueue<Runnable> events =
+         new LinkedBlockingQueue<Runnable>();
+   private static final Map<String, Integer> inFlightPerHost =
+         new HashMap<String, Integer>();
+   private static final Map<String, Long> dispatchTimes =
+         new HashMap<String, Long>();
+   private static final Map<String, String> vmNames =
+         new HashMap<String, String>();
+   private static final Map<String, String> vmHosts =
+         new HashMap<String, String>();
+   private static BatchStats batchStats = null;
+   private static TaskTracker taskTracker = null;
+   private static int remaining = 0;
+   private static int totalInFlight = 0;
+
+   private static boolean isBatchOperation() {
+      return batchSize != null
+            && (operation.equalsIgnoreCase("poweron")
+                  || operation.equalsIgnoreCase("poweroff")
+                  || operation.equalsIgnoreCase("reset") || operation
+                     .equalsIgnoreCase("suspend"));
+   }
+
+   private static void runBatchOperation(
+         Map<String, ManagedObjectReference> vmMap) throws Exception {
+      List<ManagedObjectReference> vms =
+            new ArrayList<ManagedObjectReference>(vmMap.values());
+      for (Map.Entry<String, ManagedObjectReference> entry : vmMap.entrySet()) {
+         vmNames.put(entry.getValue().getValue(), entry.getKey());
+      }
+      Map<ManagedObjectReference, Map<String, Object>> hostProps =
+            getEntityProps(vms, new String[] { "runtime.host" });
+      for (ManagedObjectReference vmMor : hostProps.keySet()) {
+         Object hostMor = hostProps.get(vmMor).get("runtime.host");
+         vmHosts.put(vmMor.getValue(),
+               hostMor == null ? NO_HOST
+                     : ((ManagedObjectReference) hostMor).getValue());
+      }
+
+      // pending VMs per datacenter, a single bucket for per VM operations
+      Map<ManagedObjectReference, LinkedList<ManagedObjectReference>> pending =
+            new LinkedHashMap<ManagedObjectReference, LinkedList<ManagedObjectReference>>();
+      if (operation.equalsIgnoreCase("poweron")) {
+         Map<String, ManagedObjectReference> datacenters =
+               getMOREFsInContainerByType(serviceContent.getRootFolder(),
+                     "Datacenter");
+         for (ManagedObjectReference dcMor : datacenters.values()) {
+            LinkedList<ManagedObjectReference> dcVms =
+                  new LinkedList<ManagedObjectReference>();
+            for (ManagedObjectReference vmMor : getMOREFsInContainerByType(
+                  dcMor, "VirtualMachine").values()) {
+               if (vmNames.containsKey(vmMor.getValue())) {
+                  dcVms.add(vmMor);
+               }
+            }
+            if (!dcVms.isEmpty()) {
+               pending.put(dcMor, dcVms);
+            }
+         }
+      } else {
+         pending.put(serviceContent.getRootFolder(),
+               new LinkedList<ManagedObjectReference>(vms));
+      }
+
+      remaining = 0;
+      for (LinkedList<ManagedObjectReference> dcVms : pending.values()) {
+         remaining += dcVms.size();
+      }
+      System.out.println("Batch " + operation + " of " + remaining
+            + " virtual machines, at most " + maxPerHost
+            + " tasks in flight per host");
+
+      batchStats = new BatchStats();
+      taskTracker = new TaskTracker(vimPort, serviceContent);
+      try {
+         while (remaining > 0) {
+            dispatch(pending);
+            events.take().run();
+            Runnable event;
+            while ((event = events.poll()) != null) {
+               event.run();
+            }
+         }
+      } finally {
+         taskTracker.close();
+      }
+      batchStats.print();
+   }
+
+   /*
+    * Issues tasks for every pending VM whose host is below the cap.
+    */
+   private static void dispatch(
+         Map<ManagedObjectReference, LinkedList<ManagedObjectReference>> pending) {
+      for (Map.Entry<ManagedObjectReference, LinkedList<ManagedObjectReference>> entry : pending
+            .entrySet()) {
+         LinkedList<ManagedObjectReference> queue = entry.getValue();
+         List<ManagedObjectReference> ready =
+               new ArrayList<ManagedObjectReference>();
+         for (Iterator<ManagedObjectReference> it = queue.iterator(); it
+               .hasNext();) {
+            ManagedObjectReference vmMor = it.next();
+            String host = vmHosts.get(vmMor.getValue());
+            Integer inFlight = inFlightPerHost.get(host);
+            if (inFlight == null) {
+               inFlight = 0;
+            }
+            if (inFlight < maxPerHost) {
+               inFlightPerHost.put(host, inFlight + 1);
+               totalInFlight++;
+               dispatchTimes.put(vmMor.getValue(), System.currentTimeMillis());
+               ready.add(vmMor);
+               it.remove();
+            }
+         }
+         if (operation.equalsIgnoreCase("poweron")) {
+            int issued = ready.size() - ready.size() % batchSize;
+            if (totalInFlight == ready.size()
+                  || ready.size() - issued >= reachable(ready.subList(issued,
+                        ready.size()), queue)) {
+               issued = ready.size();
+            }
+            // hand the partial chunk back until more slots are free
+            for (int i = ready.size() - 1; i >= issued; i--) {
+               ManagedObjectReference vmMor = ready.get(i);
+               String host = vmHosts.get(vmMor.getValue());
+               inFlightPerHost.put(host, inFlightPerHost.get(host) - 1);
+               totalInFlight--;
+               dispatchTimes.remove(vmMor.getValue());
+               queue.addFirst(vmMor);
+            }
+            for (int from = 0; from < issued; from += batchSize) {
+               powerOnMulti(entry.getKey(),
+                     ready.subList(from, Math.min(issued, from + batchSize)));
+            }
+         } else {
+            for (ManagedObjectReference vmMor : ready) {
+               startVMTask(vmMor);
+            }
+         }
+      }
+   }
+
+   /*
+    * Largest number of the given VMs the per host cap lets run at once.
+    */
+   private static int reachable(List<ManagedObjectReference> ready,
+         List<ManagedObjectReference> queued) {
+      Map<String, Integer> perHost = new HashMap<String, Integer>();
+      for (List<ManagedObjectReference> vms : Arrays.asList(ready, queued)) {
+         for (ManagedObjectReference vmMor : vms) {
+            String host = vmHosts.get(vmMor.getValue());
+            Integer count = perHost.get(host);
+            perHost.put(host, count == null ? 1 : count + 1);
+         }
+      }
+      int reachable = 0;
+      for (Integer count : perHost.values()) {
+         reachable += Math.min(count, maxPerHost);
+      }
+      return reachable;
+   }
+
+   private static void powerOnMulti(ManagedObjectReference dcMor,
+         List<ManagedObjectReference> chunk) {
+      final List<ManagedObjectReference> vms =
+            new ArrayList<ManagedObjectReference>(chunk);
+      ManagedObjectReference taskmor;
+      try {
+         taskmor = vimPort.powerOnMultiVMTask(dcMor, vms, null);
+      } catch (Exception e) {
+         for (ManagedObjectReference vmMor : vms) {
+            postVmDone(vmMor, e.getLocalizedMessage());
+         }
+         return;
+      }
+      taskTracker.track(taskmor).addCallback(new TaskTracker.TaskCallback() {
+         @Override
+         public void completed(ManagedObjectReference task, final TaskInfo info) {
+            events.add(new Runnable() {
+               @Override
+               public void run() {
+                  powerOnMultiDone(vms, info);
+               }
+            });
+         }
+
+         @Override
+         public void failed(ManagedObjectReference task, final Throwable cause) {
+            events.add(new Runnable() {
+               @Override
+               public void run() {
+                  for (ManagedObjectReference vmMor : vms) {
+                     vmDone(vmMor, false, cause.getMessage());
+                  }
+               }
+            });
+         }
+      });
+   }
+
+   /*
+    * PowerOnMultiVM finishes once the individual power on tasks are started.
+    * Those are tracked in turn; VMs the server did not attempt fail here, as
+    * do VMs of a manual DRS cluster, for which the server only returns
+    * placement recommendations that have to be approved first.
+    */
+   private static void powerOnMultiDone(List<ManagedObjectReference> vms,
+         TaskInfo info) {
+      Set<String> unresolved = new HashSet<String>();
+      for (ManagedObjectReference vmMor : vms) {
+         unresolved.add(vmMor.getValue());
+      }
+      if (info.getState() == TaskInfoState.SUCCESS
+            && info.getResult() instanceof ClusterPowerOnVmResult) {
+         ClusterPowerOnVmResult result =
+               (ClusterPowerOnVmResult) info.getResult();
+         for (ClusterNotAttemptedVmInfo notAttempted : result
+               .getNotAttempted()) {
+            unresolved.remove(notAttempted.getVm().getValue());
+            vmDone(notAttempted.getVm(), false,
+                  notAttempted.getFault() == null ? "not attempted"
+                        : notAttempted.getFault().getLocalizedMessage());
+         }
+         for (ClusterAttemptedVmInfo attempted : result.getAttempted()) {
+            unresolved.remove(attempted.getVm().getValue());
+            if (attempted.getTask() == null) {
+               vmDone(attempted.getVm(), true, null);
+            } else {
+               trackVMTask(attempted.getVm(), attempted.getTask());
+            }
+         }
+         for (ClusterRecommendation recommendation : result
+               .getRecommendations()) {
+            for (ClusterAction action : recommendation.getAction()) {
+               ManagedObjectReference vmMor = action.getTarget();
+               if (vmMor != null && unresolved.remove(vmMor.getValue())) {
+                  vmDone(vmMor, false, "DRS recommendation "
+                        + recommendation.getKey() + " pending approval ("
+                        + recommendation.getReasonText() + ")");
+               }
+            }
+         }
+      }
+      String reason =
+            info.getError() == null ? "no result for the virtual machine"
+                  : info.getError().getLocalizedMessage();
+      for (ManagedObjectReference vmMor : vms) {
+         if (unresolved.contains(vmMor.getValue())) {
+            vmDone(vmMor, false, reason);
+         }
+      }
+   }
+
+   private static void startVMTask(ManagedObjectReference vmMor) {
+      try {
+         ManagedObjectReference taskmor;
+         if (operation.equalsIgnoreCase("poweroff")) {
+            taskmor = vimPort.powerOffVMTask(vmMor);
+         } else if (operation.equalsIgnoreCase("reset")) {
+            taskmor = vimPort.resetVMTask(vmMor);
+         } else {
+            taskmor = vimPort.suspendVMTask(vmMor);
+         }
+         trackVMTask(vmMor, taskmor);
+      } catch (Exception e) {
+         postVmDone(vmMor, e.getLocalizedMessage());
+      }
+   }
+
+   /*
+    * A failure while dispatching is reported through the events queue like
+    * any other completion, so every dispatched VM yields exactly one event.
+    */
+   private static void postVmDone(final ManagedObjectReference vmMor,
+         final String reason) {
+      events.add(new Runnable() {
+         @Override
+         public void run() {
+            vmDone(vmMor, false, reason);
+         }
+      });
+   }
+
+   private static void trackVMTask(final ManagedObjectReference vmMor,
+         ManagedObjectReference taskmor) {
+      taskTracker.track(taskmor).addCallback(new TaskTracker.TaskCallback() {
+         @Override
+         public void completed(ManagedObjectReference task, final TaskInfo info) {
+            events.add(new Runnable() {
+               @Override
+               public void run() {
+                  vmDone(vmMor, info.getState() == TaskInfoState.SUCCESS,
+                        info.getError() == null ? null : info.getError()
+                              .getLocalizedMessage());
+               }
+            });
+         }
+
+         @Override
+         public void failed(ManagedObjectReference task, final Throwable cause) {
+            events.add(new Runnable() {
+               @Override
+               public void run() {
+                  vmDone(vmMor, false, cause.getMessage());
+               }
+            });
+         }
+      });
+   }
+
+   private static void vmDone(ManagedObjectReference vmMor, boolean success,
+         String reason) {
+      String host = vmHosts.get(vmMor.getValue());
+      Integer inFlight = inFlightPerHost.get(host);
+      if (inFlight != null) {
+         inFlightPerHost.put(host, inFlight - 1);
+      }
+      totalInFlight--;
+      Long dispatched = dispatchTimes.remove(vmMor.getValue());
+      long latency =
+            dispatched == null ? 0 : System.currentTimeMillis() - dispatched;
+      batchStats.record(success, latency);
+      remaining--;
+
+      String vmname = vmNames.get(vmMor.getValue());
+      if (success) {
+         System.out.println(vmname + "[" + vmMor.getValue() + "] " + operation
+               + " succeeded in " + latency + " ms");
+      } else {
+         System.out.println("Unable to " + operation + " vm : " + vmname + "["
+               + vmMor.getValue() + "]");
+         System.err.println("Reason :" + reason);
+      }
+   }
+
    private static void printSoapFaultException(SOAPFaultException sfe) {
       System.out.println("SOAP Fault -");
       if (sfe.getFault().hasDetail()) {
@@ -813,12 +1189,19 @@ public class VMPowerOps {
       System.out.println("ipaddress        [optional] : ipaddress of the vm");
       System.out.println("guestid          [optional] : guest id of the vm");
       System.out.println("hostname         [optional] : name of the host");
+      System.out
+            .println("batchsize        [optional] : run the task based operations in batch mode,");
+      System.out
+            .println("                              poweron uses PowerOnMultiVM with this many VMs per call");
+      System.out
+            .println("maxperhost       [optional] : batch mode cap of tasks in flight per host (default 8)");
       System.out.println("\nCommand:");
       System.out
             .println("run.bat com.vmware.vm.VMPowerOps "
                   + "--url [URLString] --username [User] --password [Password] --vmname [VMName] "
                   + "--operation [Operation] --folder [FolderName] --datacenter [DatacenterName] "
-                  + "--pool [ResourcePool] --ipaddress [IpAddress] --guestid [GuestId] --host [HostName]");
+                  + "--pool [ResourcePool] --ipaddress [IpAddress] --guestid [GuestId] --host [HostName] "
+                  + "--batchsize [BatchSize] --maxperhost [MaxTasksPerHost]");
    }
 
    /**
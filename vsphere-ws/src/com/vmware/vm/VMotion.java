@@ -15,6 +15,7 @@ import javax.net.ssl.SSLSession;
 import javax.xml.ws.BindingProvider;
 import javax.xml.ws.soap.SOAPFaultException;
 
+import com.vmware.apputils.vim25.EntityLookup;
 import com.vmware.vim25.ArrayOfManagedObjectReference;
 import com.vmware.vim25.DatastoreSummary;
 import com.vmware.vim25.DynamicProperty;
@@ -108,6 +109,7 @@ public class VMotion {
    private static VimService vimService = null;
    private static VimPortType vimPort = null;
    private static ServiceContent serviceContent = null;
+   private static EntityLookup entityLookup = null;
    private static final String SVC_INST_NAME = "ServiceInstance";
    private static final ManagedObjectReference SVC_INST_REF =
          new ManagedObjectReference();
@@ -248,6 +250,7 @@ public class VMotion {
       vimPort.login(serviceContent.getSessionManager(), userName, password,
             null);
       isConnected = true;
+      entityLookup = new EntityLookup(vimPort, serviceContent);
       propCollectorRef = serviceContent.getPropertyCollector();
    }
 
@@ -455,58 +458,6 @@ public class VMotion {
       return objList;
    }
 
-   /**
-    * 
-    * @return TraversalSpec specification to get to the HostSystem managed
-    *         object.
-    */
-   private static TraversalSpec getHostSystemTraversalSpec() {
-      // Create a traversal spec that starts from the 'root' objects
-      // and traverses the inventory tree to get to the Host system.
-      // Build the traversal specs bottoms up
-      SelectionSpec ss = new SelectionSpec();
-      ss.setName("VisitFolders");
-
-      // Traversal to get to the host from ComputeResource
-      TraversalSpec computeResourceToHostSystem = new TraversalSpec();
-      computeResourceToHostSystem.setName("computeResourceToHostSystem");
-      computeResourceToHostSystem.setType("ComputeResource");
-      computeResourceToHostSystem.setPath("host");
-      computeResourceToHostSystem.setSkip(false);
-      computeResourceToHostSystem.getSelectSet().add(ss);
-
-      // Traversal to get to the ComputeResource from hostFolder
-      TraversalSpec hostFolderToComputeResource = new TraversalSpec();
-      hostFolderToComputeResource.setName("hostFolderToComputeResource");
-      hostFolderToComputeResource.setType("Folder");
-      hostFolderToComputeResource.setPath("childEntity");
-      hostFolderToComputeResource.setSkip(false);
-      hostFolderToComputeResource.getSelectSet().add(ss);
-
-      // Traversal to get to the hostFolder from DataCenter
-      TraversalSpec dataCenterToHostFolder = new TraversalSpec();
-      dataCenterToHostFolder.setName("DataCenterToHostFolder");
-      dataCenterToHostFolder.setType("Datacenter");
-      dataCenterToHostFolder.setPath("hostFolder");
-      dataCenterToHostFolder.setSkip(false);
-      dataCenterToHostFolder.getSelectSet().add(ss);
-
-      //TraversalSpec to get to the DataCenter from rootFolder
-      TraversalSpec traversalSpec = new TraversalSpec();
-      traversalSpec.setName("VisitFolders");
-      traversalSpec.setType("Folder");
-      traversalSpec.setPath("childEntity");
-      traversalSpec.setSkip(false);
-
-      List<SelectionSpec> sSpecArr = new ArrayList<SelectionSpec>();
-      sSpecArr.add(ss);
-      sSpecArr.add(dataCenterToHostFolder);
-      sSpecArr.add(hostFolderToComputeResource);
-      sSpecArr.add(computeResourceToHostSystem);
-      traversalSpec.getSelectSet().addAll(sSpecArr);
-      return traversalSpec;
-   }
-
    /**
     * Retrieves the MOREF of the host.
     * 
@@ -516,53 +467,9 @@ public class VMotion {
     */
    private static ManagedObjectReference getHostByHostName(String hostName) {
       ManagedObjectReference retVal = null;
-      ManagedObjectReference rootFolder = serviceContent.getRootFolder();
       try {
-         TraversalSpec tSpec = getHostSystemTraversalSpec();
-         // Create Property Spec
-         PropertySpec propertySpec = new PropertySpec();
-         propertySpec.setAll(Boolean.FALSE);
-         propertySpec.getPathSet().add("name");
-         propertySpec.setType("HostSystem");
-
-         // Now create Object Spec
-         ObjectSpec objectSpec = new ObjectSpec();
-         objectSpec.setObj(rootFolder);
-         objectSpec.setSkip(Boolean.TRUE);
-         objectSpec.getSelectSet().add(tSpec);
-
-         // Create PropertyFilterSpec using the PropertySpec and ObjectPec
-         // created above.
-         PropertyFilterSpec propertyFilterSpec = new PropertyFilterSpec();
-         propertyFilterSpec.getPropSet().add(propertySpec);
-         propertyFilterSpec.getObjectSet().add(objectSpec);
-         List<PropertyFilterSpec> listpfs =
-               new ArrayList<PropertyFilterSpec>(1);
-         listpfs.add(propertyFilterSpec);
-         List<ObjectContent> listobjcont =
-               retrievePropertiesAllObjects(listpfs);
-
-         if (listobjcont != null) {
-            for (ObjectContent oc : listobjcont) {
-               ManagedObjectReference mr = oc.getObj();
-               String hostnm = null;
-               List<DynamicProperty> listDynamicProps = oc.getPropSet();
-               DynamicProperty[] dps =
-                     listDynamicProps
-                           .toArray(new DynamicProperty[listDynamicProps.size()]);
-               if (dps != null) {
-                  for (DynamicProperty dp : dps) {
-                     hostnm = (String) dp.getVal();
-                  }
-               }
-               if (hostnm != null && hostnm.equals(hostName)) {
-                  retVal = mr;
-                  break;
-               }
-            }
-         } else {
-            System.out.println("The Object Content is Null");
-         }
+         // Indexed by name on the first call, later calls are map lookups
+         retVal = entityLookup.findByName("HostSystem", hostName);
       } catch (SOAPFaultException sfe) {
          printSoapFaultException(sfe);
       } catch (Exception e) {